@@ -0,0 +1,724 @@
+package de.uos.ikw.eegdroid;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.UUID;
+
+import de.uos.ikw.eegdroid.utilities.BiquadFilter;
+import de.uos.ikw.eegdroid.utilities.FilterChain;
+
+/**
+ * Processing chain of one Traumschreiber: conversion to microvolts, the in-app filters, the LSL
+ * outlet and the recording files. It is owned by the {@link BluetoothLeService}, which runs in
+ * the foreground while a session is streaming, so acquisition does not depend on the lifecycle
+ * of an activity. Activities attach as {@link Viewer}, get the processed samples and detach
+ * again without touching the stream or the recording.
+ * <p>
+ * Samples are processed on the dispatcher thread of the device. The settings (sampling rate,
+ * gain, filters) and the recording can be changed from any thread.
+ */
+public class AcquisitionSession implements BluetoothLeService.DataListener {
+
+    public static final int N_CHANNELS = 24;
+    public static final String[] CHANNEL_LABELS = new String[]{"FP1", "FPZ", "FP2", "F7", "F3", "Fz", "F4", "F8", "M1", "T7", "C3", "CZ", "C4", "T8", "M2", "P7", "P3", "Pz", "P4", "P8", "POZ", "O1", "OZ", "O2"};
+    private final static String TAG = AcquisitionSession.class.getSimpleName();
+    private static final String DELIMITER = ",";
+    private static final String LINE_BREAK = "\n";
+    // ~16 s of samples at 250 Hz before the LSL overflow policy applies
+    private static final int LSL_QUEUE_CAPACITY = 4096;
+    private final String address;
+    private final BluetoothLeService service;
+    private final TraumschreiberService decoder;
+    private final Runnable onStateChanged;
+    // processing block of the current package, reused for every package
+    private final float[] microV = new float[N_CHANNELS];
+    private final float[] nanSample = new float[N_CHANNELS];
+    // in-app filters, applied in place to every package
+    private final FilterChain filterChain = new FilterChain(N_CHANNELS);
+    // Replaced as a whole on (un)registering, so dispatching can iterate without locking or allocating
+    private volatile Viewer[] viewers = new Viewer[0];
+    private volatile boolean streaming = false;
+    private volatile boolean recording = false;
+    private volatile float samplingRate = 500 / 2f;
+    private volatile float gain = 1f;
+    private final Object lslLock = new Object();
+    // held while a package is stored and while the recording stops, so the files are only
+    // closed once the dispatcher thread is done with them
+    private final Object recordingLock = new Object();
+    private LSL.StreamInfo streamInfo;
+    private LSL.StreamOutlet streamOutlet;
+    // feeds the outlet from its own thread
+    private LslPublisher lslPublisher;
+    // sample clock: timestamps follow the device samples instead of the package arrival
+    private final ClockSync clockSync = new ClockSync(500 / 2f);
+    private volatile boolean restartClock = true;
+    private long sampleIndex;
+    private float clockRate;
+    // the LSL clock if the library is available, else the same monotonic clock from Java
+    private boolean lslClock;
+    // LSL clock minus System.nanoTime in seconds, maps the arrival times of the packages
+    private double clockOffset;
+    // clock time the recording started at, the recorded times are relative to it
+    private double recordingClockStart;
+    private int currentPkgLoss = 0;
+    private int currentPkgId = 0;
+    private int currentBtPkgLoss = 0;
+    private int storedPkgCount;         //no. of samples added to the recording
+    private int lostPkgCountTotal;      // total count of lost samples based on info in header
+    private double lastTimeStamp;
+    private long startTime;
+    private String start_time;
+    private String end_time;
+    private String recording_time;
+    private long start_timestamp;
+    private long end_timestamp;
+    private String tempFileName;
+    private RecordingWriter recordingWriter;
+    private boolean binaryRecording;
+    private DeltaRecorder deltaRecorder;
+    private PacketCapture packetCapture;
+
+    /**
+     * @param onStateChanged called when streaming or recording starts or stops
+     */
+    AcquisitionSession(BluetoothLeService service, String address, TraumschreiberService decoder, Runnable onStateChanged) {
+        this.service = service;
+        this.address = address;
+        this.decoder = decoder;
+        this.onStateChanged = onStateChanged;
+        Arrays.fill(nanSample, Float.NaN);
+        prepareLslStream();
+    }
+
+    /**
+     * Receives the processed data of the session. Called on the dispatcher thread of the device,
+     * so implementations must not touch views.
+     */
+    public interface Viewer {
+        /**
+         * @param config the 8 config bytes read from the device
+         */
+        void onConfigData(int[] config);
+
+        /**
+         * @param microV     filtered sample in microvolts, reused for the next sample
+         * @param lostBefore samples lost right before this one, on the link and in the device
+         */
+        void onSample(float[] microV, int lostBefore);
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public synchronized void attach(Viewer viewer) {
+        for (Viewer attached : viewers) if (attached == viewer) return;
+        Viewer[] attached = Arrays.copyOf(viewers, viewers.length + 1);
+        attached[attached.length - 1] = viewer;
+        viewers = attached;
+    }
+
+    public synchronized void detach(Viewer viewer) {
+        Viewer[] attached = new Viewer[viewers.length];
+        int n = 0;
+        for (Viewer v : viewers) {
+            if (v != viewer) attached[n++] = v;
+        }
+        viewers = Arrays.copyOf(attached, n);
+    }
+
+    /**
+     * Starts or stops processing the channel data; config data always reaches the viewers.
+     */
+    public void setStreaming(boolean streaming) {
+        if (this.streaming == streaming) return;
+        if (streaming) restartClock = true;
+        this.streaming = streaming;
+        if (!streaming) flushLsl();
+        onStateChanged.run();
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public boolean isRecording() {
+        return recording;
+    }
+
+    public float getSamplingRate() {
+        return samplingRate;
+    }
+
+    public void setSamplingRate(float samplingRate) {
+        this.samplingRate = samplingRate;
+    }
+
+    public void setGain(float gain) {
+        this.gain = gain;
+    }
+
+    /**
+     * Replaces the in-app filter cascade, safe to call while streaming.
+     */
+    public void setFilterStages(BiquadFilter[] stages) {
+        filterChain.setStages(stages);
+        Log.d(TAG, "In-app filter stages: " + filterChain.size());
+    }
+
+    @Override
+    public void onDataAvailable(String address, int[] data, int length) {
+        if (!address.equals(this.address)) return;
+
+        // CONFIG DATA
+        if (length == 8) {
+            final int[] configData = Arrays.copyOf(data, length);
+            for (Viewer viewer : viewers) viewer.onConfigData(configData);
+            return;
+        }
+
+        if (!streaming) return;
+
+        // ENCODING UPDATES
+        if (data[0] == 0xC0DE) return; //prevent further processing
+
+        // CHANNEL DATA
+        // First, parse the header (if there is a header)
+        int offset = 0;
+        double arrival;
+        if (length > N_CHANNELS) {
+            currentPkgId = data[0];
+            currentPkgLoss = data[1];
+            currentBtPkgLoss = data[TraumschreiberService.LOST_PKGS_POS];
+            arrival = TraumschreiberService.getArrivalNanos(data) / 1e9 + clockOffset;
+            offset = 2;
+        } else {
+            arrival = now();
+        }
+        lostPkgCountTotal += (currentBtPkgLoss + currentPkgLoss);
+        final double timestamp = nextTimestamp(currentBtPkgLoss + currentPkgLoss, arrival);
+
+        convertToMicroV(data, offset, microV);
+        filterChain.process(microV, 1);
+        streamData(microV, timestamp);
+        if (recording) storeData(microV, timestamp);
+        for (Viewer viewer : viewers) viewer.onSample(microV, currentBtPkgLoss + currentPkgLoss);
+    }
+
+    /* This is the last processing step before the data is displayed and saved
+     Note that gain is 1 by default */
+    private void convertToMicroV(int[] data, int offset, float[] dataMicroV) {
+        final float scale = microVoltsPerUnit();
+        for (int i = 0; i < N_CHANNELS; i++)
+            dataMicroV[i] = (float) data[offset + i] * scale;
+    }
+
+    // Conversion formula (new): V_in = X * 5/4 * (298 / (1000 * gain))
+    private float microVoltsPerUnit() {
+        return 5f / 4 * 298 / (1000 * gain);
+    }
+
+    private void prepareLslStream() {
+        final UUID uid = UUID.randomUUID();
+        // samples per push, the default of 8 samples are 32 ms at 250 Hz
+        final String defaultChunkSize = service.getString(R.string.default_lslChunkSize);
+        int chunkSize;
+        try {
+            chunkSize = Math.max(1, Integer.parseInt(preferences().getString("lslChunkSize", defaultChunkSize)));
+        } catch (NumberFormatException ex) {
+            chunkSize = Integer.parseInt(defaultChunkSize);
+        }
+        try {
+            streamInfo = new LSL.StreamInfo("Traumschreiber-EEG", "EEG", N_CHANNELS,
+                    samplingRate, LSL.ChannelFormat.float32, uid.toString());
+            if (preferences().getBoolean("eegLabels", true)) {
+                LSL.XMLElement chns = streamInfo.desc().append_child("channels");
+                for (String label : CHANNEL_LABELS) {
+                    LSL.XMLElement ch = chns.append_child("channel");
+                    ch.append_child_value("label", label);
+                    ch.append_child_value("unit", "microvolts");
+                    ch.append_child_value("type", "EEG");
+                }
+            } else {
+                for (int i = 1; i <= N_CHANNELS; i++)
+                    streamInfo.desc().append_child(String.format(Locale.getDefault(), "Ch-%d", i));
+            }
+        } catch (Error ex) {
+            Log.e(TAG, " LSL issue: " + ex.getMessage());
+        }
+        try {
+            streamOutlet = new LSL.StreamOutlet(streamInfo, chunkSize, 360);
+            lslClock = true;
+            clockOffset = LSL.local_clock() - System.nanoTime() / 1e9;
+            lslPublisher = new LslPublisher(streamOutlet, N_CHANNELS, chunkSize, LSL_QUEUE_CAPACITY,
+                    preferences().getInt("lslOverflowPolicy", LslPublisher.OVERFLOW_COALESCE));
+        } catch (IOException ex) {
+            Log.d("LSL issue:", Objects.requireNonNull(ex.getMessage()));
+        }
+    }
+
+    /**
+     * Queues the sample for the LSL publisher, which pushes it with the next chunk.
+     */
+    private void streamData(float[] sample, double timestamp) {
+        synchronized (lslLock) {
+            if (lslPublisher == null) return;
+            if (!lslPublisher.publish(sample, timestamp)) {
+                Log.d("LSL issue", "LSL publisher stopped");
+                clearLSL();
+            }
+        }
+    }
+
+    /**
+     * Timestamp of the next sample on the LSL clock. The sample index counts the samples since
+     * the stream started, lost ones included, and {@link ClockSync} maps it to the clock. This
+     * keeps the BLE connection interval, which delivers packages in bursts, out of the
+     * timestamps and follows the drift between the device and the phone.
+     *
+     * @param lostBefore samples lost right before this one
+     * @param arrival    time the package was received on the LSL clock
+     */
+    private double nextTimestamp(int lostBefore, double arrival) {
+        final float rate = samplingRate;
+        if (restartClock || rate != clockRate) {
+            restartClock = false;
+            clockSync.reset(rate);
+            sampleIndex = 0;
+            clockRate = rate;
+        } else {
+            sampleIndex += 1 + lostBefore;
+        }
+        return clockSync.update(sampleIndex, arrival);
+    }
+
+    private double now() {
+        return lslClock ? LSL.local_clock() : System.nanoTime() / 1e9;
+    }
+
+    /**
+     * Pushes the samples queued so far, e.g. when the stream is stopped.
+     */
+    private void flushLsl() {
+        synchronized (lslLock) {
+            if (lslPublisher != null) lslPublisher.flush();
+        }
+    }
+
+    private void clearLSL() {
+        // push what is queued, then close and delete the stream outlet and info if possible
+        synchronized (lslLock) {
+            if (lslPublisher != null) {
+                lslPublisher.close();
+                lslPublisher = null;
+            }
+            if (streamOutlet != null) {
+                streamOutlet.close();
+                streamInfo.destroy();
+                streamOutlet = null;
+                streamInfo = null;
+                Log.d(TAG, "LSL stream closed and deleted.");
+            }
+        }
+    }
+
+    /**
+     * @return the publisher feeding the LSL outlet with its live metrics, null without outlet
+     */
+    public LslPublisher getLslPublisher() {
+        synchronized (lslLock) {
+            return lslPublisher;
+        }
+    }
+
+    /**
+     * Ends the session: a running recording is discarded and the LSL outlet closed.
+     */
+    void close() {
+        streaming = false;
+        if (recording) discardRecording();
+        viewers = new Viewer[0];
+        clearLSL();
+    }
+
+    //Starts a recording session
+    @SuppressLint("SimpleDateFormat")
+    public boolean startRecording() {
+        if (recording) return true;
+        // Reset Variables used for recording
+        storedPkgCount = 0;
+        lostPkgCountTotal = 0;
+        start_time = new SimpleDateFormat("HH:mm:ss.SSS").format(new Date());
+        start_timestamp = new Timestamp(startTime).getTime();
+        recordingClockStart = now();
+
+        createRecordingFile();
+        recording = recordingWriter != null;
+        onStateChanged.run();
+        return recording;
+    }
+
+    private void createRecordingFile() {
+        //transmission time, sampling time, channel values, transmissionID, pkgslosses, resolution
+        String date = new SimpleDateFormat("yyyyddMM_HH-mm-ss", Locale.getDefault()).format(new Date());
+        tempFileName = date + "_" + "recording.temp";
+
+        //write a header with metadata
+        final StringBuilder columnNames = new StringBuilder();
+        boolean header = true;
+        if (header) writeHeader(columnNames);
+
+        // Specify column names here
+        columnNames.append("time");
+        columnNames.append(DELIMITER + "sampling_time");
+
+        // use electrode labels ("FP1", etc.) or channel numbers ("ch1")
+        boolean useChannelLabels = preferences().getBoolean("eegLabels", true);
+        if (useChannelLabels) {
+            for (int i = 0; i < N_CHANNELS; i++) {
+                columnNames.append(DELIMITER).append(CHANNEL_LABELS[i]);
+            }
+        } else {
+            for (int i = 1; i <= N_CHANNELS; i++)
+                columnNames.append(String.format(Locale.getDefault(), "ch%d,", i));
+
+        }
+
+        columnNames.append(DELIMITER).append("pkgid");
+        columnNames.append(DELIMITER).append("pkgloss_bluetooth");
+        columnNames.append(DELIMITER).append("pkgloss_internal");
+        columnNames.append(DELIMITER).append("transmission_rate");
+        columnNames.append(LINE_BREAK);
+
+        try {
+            File recordingFile = new File(MainActivity.getDirSessions(), tempFileName);
+            // rows are formatted and written in batches on the writer's own thread
+            binaryRecording = preferences().getBoolean("binaryRecording", false);
+            if (binaryRecording) {
+                recordingWriter = new RecordingWriter(recordingFile, columnNames, N_CHANNELS,
+                        samplingRate, decoder.getBitsPerCh(), microVoltsPerUnit());
+            } else {
+                recordingWriter = new RecordingWriter(recordingFile, columnNames, N_CHANNELS);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error creating recording file: " + e.getMessage());
+            recordingWriter = null;
+        }
+
+        // optional lossless copy of the raw deltas, written next to the recording
+        deltaRecorder = null;
+        if (preferences().getBoolean("deltaRecording", false)) {
+            try {
+                File deltaFile = new File(MainActivity.getDirSessions(), deltaTempFileName());
+                deltaRecorder = new DeltaRecorder(deltaFile, N_CHANNELS, samplingRate,
+                        microVoltsPerUnit(), columnNames);
+                decoder.setDeltaRecorder(deltaRecorder);
+            } catch (IOException e) {
+                Log.e(TAG, "Error creating delta recording file: " + e.getMessage());
+            }
+        }
+
+        // optional capture of the raw notifications for a later replay
+        packetCapture = null;
+        if (preferences().getBoolean("capturePackets", false)) {
+            try {
+                File captureFile = new File(MainActivity.getDirSessions(), captureTempFileName());
+                packetCapture = new PacketCapture(captureFile, address);
+                service.setPacketCapture(address, packetCapture);
+            } catch (IOException e) {
+                Log.e(TAG, "Error creating packet capture file: " + e.getMessage());
+            }
+        }
+    }
+
+    private void writeHeader(StringBuilder header) {
+        // First Row
+        header.append("Username" + DELIMITER);
+        header.append("UserID" + DELIMITER);
+        header.append("SessionTag" + DELIMITER);
+        header.append("Date" + DELIMITER);
+        header.append("SamplingRate" + DELIMITER);
+        header.append("Bits" + DELIMITER);
+        header.append("unit" + DELIMITER);
+        header.append("ClockStart" + DELIMITER);
+        header.append("\n");
+
+
+        final String username = preferences().getString("username", "user");
+        final String userID = preferences().getString("userID", "12345678");
+        String date = new SimpleDateFormat("yyyyddMMHHmmss", Locale.getDefault()).format(new Date());
+
+        // Second Row
+        header.append(username).append(DELIMITER);
+        header.append(userID).append(DELIMITER);
+        header.append("SessionTag").append(DELIMITER);
+        header.append(date).append(DELIMITER);
+        header.append(samplingRate).append(DELIMITER);
+        header.append(decoder.getBitsPerCh()).append(DELIMITER);
+        header.append("microVolt").append(DELIMITER);
+        header.append(String.format(Locale.ROOT, "%.6f", recordingClockStart)).append(DELIMITER);
+        header.append("\n");
+    }
+
+    /**
+     * Stores
+     * transmission time, sampling time, channel values, transmissionID, pkgslosses, resolution
+     *
+     * @param data_microV Voltages recorded by the Traumschreiber in micro Volts
+     * @param timestamp   time the sample was taken on the session clock
+     */
+    private void storeData(float[] data_microV, double timestamp) {
+        synchronized (recordingLock) {
+            // the recording may have stopped since the caller checked
+            if (!recording) return;
+            // losses before the first row happened before the recording
+            final boolean continued = storedPkgCount > 0;
+            // lost samples are stamped with their place in the sample clock
+            long index = sampleIndex - currentPkgLoss - (continued ? currentBtPkgLoss : 0);
+            //NaN rows on top (uninitialized)
+            for (int i = 0; i < currentPkgLoss; i++) writeSampleToCsv(nanSample, clockSync.timestamp(index++));
+            if (continued) for (int i = 0; i < currentBtPkgLoss; i++) writeSampleToCsv(nanSample, clockSync.timestamp(index++));
+            // Channel Values
+            writeSampleToCsv(data_microV, timestamp);
+        }
+    }
+
+    /**
+     * Adds a row to the recording with columns in the following order
+     * timestamp, samplingtime,channelvalues,pkgid,pkgsloss
+     *
+     * @param sample    float array with channel values
+     * @param timestamp time the sample was taken on the session clock
+     */
+    private void writeSampleToCsv(float[] sample, double timestamp) {
+
+        // Real Time Stamps, in ms after the start of the recording (see ClockStart in the header)
+        if (storedPkgCount == 0) startTime = System.currentTimeMillis();
+        lastTimeStamp = (timestamp - recordingClockStart) * 1000;
+
+        // Expected Time Stamps
+        double samplingInterval = 1000.0 / samplingRate;
+        double samplingTime = samplingInterval * storedPkgCount;
+
+        // Correct Pkg loss counts: NaN rows should have a pkg loss of 0.
+        int NaNCorrectionBtLoss = 0;
+        int NaNCorrectionInternalLoss = 0;
+        if (Float.isNaN(sample[0])) {
+            NaNCorrectionBtLoss = currentBtPkgLoss;
+            NaNCorrectionInternalLoss = currentPkgLoss;
+        }
+        recordingWriter.writeRow(lastTimeStamp, samplingTime, sample, currentPkgId,
+                currentBtPkgLoss - NaNCorrectionBtLoss,     //Bluetooth loss
+                currentPkgLoss - NaNCorrectionInternalLoss, //Internal loss
+                transmissionRate());
+        storedPkgCount++;
+    }
+
+    // packages per second as measured from their arrival times
+    private float transmissionRate() {
+        final long interval = decoder.getSequenceTracker().getIntervalNanos();
+        return interval > 0 ? 1e9f / interval : 0;
+    }
+
+    /**
+     * Finishes the recording and gives its files their permanent names.
+     *
+     * @param tag session label used in the file names
+     * @return name of the saved recording file
+     */
+    @SuppressLint("DefaultLocale")
+    public String saveRecording(final String tag) {
+        /*
+          Writes a footer with meta data to the end of the file and saves it acc. to user preferences
+         */
+        stopRecording();
+        boolean footer = false;
+        closeRecordingWriter(footer ? writeFooter(tag) : null);
+
+        //Get the date
+        String date = new SimpleDateFormat("yyyyddMMHHmmss", Locale.getDefault()).format(new Date());
+
+        // give the temp file a proper file name
+        String permFileName = date + "_" + tag + (binaryRecording ? SessionFile.EXTENSION : ".csv");
+        File tempFile = new File(MainActivity.getDirSessions(), tempFileName);
+        File permFile = new File(MainActivity.getDirSessions(), permFileName);
+        boolean storeResult = tempFile.renameTo(permFile);
+        if (!storeResult) Log.e(TAG, "Error saving recording.");
+        if (deltaRecorder != null) {
+            File deltaFile = new File(MainActivity.getDirSessions(), deltaTempFileName());
+            storeResult = deltaFile.renameTo(new File(MainActivity.getDirSessions(),
+                    date + "_" + tag + DeltaRecording.EXTENSION));
+            if (!storeResult) Log.e(TAG, "Error saving delta recording.");
+        }
+        if (packetCapture != null) {
+            File captureFile = new File(MainActivity.getDirSessions(), captureTempFileName());
+            storeResult = captureFile.renameTo(new File(MainActivity.getDirSessions(),
+                    date + "_" + tag + PacketCapture.EXTENSION));
+            if (!storeResult) Log.e(TAG, "Error saving packet capture.");
+        }
+        onStateChanged.run();
+        return permFileName;
+    }
+
+    /**
+     * Ends the recording and deletes its files.
+     */
+    public void discardRecording() {
+        stopRecording();
+        // a discarded recording still has to release its file before it is deleted
+        closeRecordingWriter(null);
+        deleteTempFile(tempFileName);
+        deleteTempFile(deltaTempFileName());
+        deleteTempFile(captureTempFileName());
+        onStateChanged.run();
+    }
+
+    @SuppressLint("SimpleDateFormat")
+    private void stopRecording() {
+        // waits for a package being stored, the following ones are not
+        synchronized (recordingLock) {
+            recording = false;
+        }
+        end_time = new SimpleDateFormat("HH:mm:ss.SSS").format(new Date());
+        long stop_watch = System.currentTimeMillis();
+        end_timestamp = new Timestamp(stop_watch).getTime();
+        recording_time = Long.toString(stop_watch - startTime);
+    }
+
+    private void deleteTempFile(String name) {
+        if (name == null) return;
+        File tempFile = new File(MainActivity.getDirSessions(), name);
+        if (tempFile.exists() && !tempFile.delete()) Log.e(TAG, "Failed to delete file.");
+    }
+
+    /**
+     * Waits until all queued rows are on disk, then closes the recording file.
+     *
+     * @param footer text appended after the last row, may be null
+     */
+    private void closeRecordingWriter(CharSequence footer) {
+        if (deltaRecorder != null) {
+            decoder.setDeltaRecorder(null);
+            try {
+                deltaRecorder.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing delta recording: " + e.getMessage());
+            }
+        }
+        if (packetCapture != null) {
+            service.setPacketCapture(address, null);
+            try {
+                packetCapture.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing packet capture: " + e.getMessage());
+            }
+        }
+        if (recordingWriter == null) return;
+        try {
+            recordingWriter.close(footer);
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing recording file: " + e.getMessage());
+        }
+    }
+
+    private String deltaTempFileName() {
+        return tempFileName == null ? null : tempFileName.replace(".temp", DeltaRecording.EXTENSION + ".temp");
+    }
+
+    private String captureTempFileName() {
+        return tempFileName == null ? null : tempFileName.replace(".temp", PacketCapture.EXTENSION + ".temp");
+    }
+
+    private StringBuilder writeFooter(String tag) {
+        final StringBuilder footer = new StringBuilder();
+
+        // Column Names of Footer
+        final String footerLabels = "Username,User ID,Session ID,Session Tag,Date,Shape (rows x columns)," +
+                "Duration (ms),Starting Time,Ending Time,Sampling Rate,Bits per Channel," +
+                "measurement unit,Starting Timestamp,Ending Timestamp";
+        footer.append(footerLabels);
+        footer.append("\n");
+        // Footer Values
+        final String username = preferences().getString("username", "user");
+        final String userID = preferences().getString("userID", "12345678");
+        final UUID id = UUID.randomUUID();
+        String date = new SimpleDateFormat("yyyyddMMHHmmss", Locale.getDefault()).format(new Date());
+
+        footer.append(username);
+        footer.append(DELIMITER).append(userID);
+        footer.append(DELIMITER).append(id.toString());
+        footer.append(DELIMITER).append(tag);
+        footer.append(DELIMITER).append(date);
+        footer.append(DELIMITER).append(storedPkgCount).append("x").append(N_CHANNELS);
+        footer.append(DELIMITER).append(recording_time);
+        footer.append(DELIMITER).append(start_time);
+        footer.append(DELIMITER).append(end_time);
+        footer.append(DELIMITER).append(samplingRate);
+        footer.append(DELIMITER).append(decoder.getBitsPerCh());
+        footer.append(DELIMITER).append("µV");
+        footer.append(DELIMITER).append(start_timestamp);
+        footer.append(DELIMITER).append(end_timestamp);
+        return footer;
+    }
+
+    /**
+     * Appends the statistics of the last (or running) recording, one "label: \t value" per line.
+     */
+    public void appendStats(StringBuilder statistics) {
+        statistics.append("Last Timestamp: \t").append(lastTimeStamp).append("\n");
+        statistics.append("Sampling Rate: \t").append(samplingRate).append("\n");
+        statistics.append(String.format(Locale.ROOT, "Device Rate: \t%.3f\n", clockSync.getRate()));
+        statistics.append(String.format(Locale.ROOT, "Arrival Jitter: \t%.1f ms\n", clockSync.getJitter() * 1000));
+        statistics.append("Bit resolution: \t").append(decoder.getBitsPerCh()).append("\n");
+        statistics.append("Total Number of PKGs: \t").append(storedPkgCount).append("\n");
+        statistics.append("Total Number of Lost PKGs: \t").append(lostPkgCountTotal).append("\n");
+        statistics.append("Device Dropped Samples: \t").append(decoder.getDroppedSampleCount()).append("\n");
+        SequenceTracker sequence = decoder.getSequenceTracker();
+        statistics.append("Bluetooth Lost PKGs (session): \t").append(sequence.getLost())
+                .append(" (").append(sequence.getLossRatio() * 100).append("%)\n");
+        statistics.append("Longest Loss Burst: \t").append(sequence.getMaxGap()).append("\n");
+        statistics.append("Late PKGs: \t").append(sequence.getLate()).append("\n");
+        if (recordingWriter != null) {
+            statistics.append("Bytes Written: \t").append(recordingWriter.getBytesWritten()).append("\n");
+            statistics.append("Write Rate (bytes/s): \t").append(recordingWriter.getBytesPerSecond()).append("\n");
+            statistics.append("Max Flush Latency (ms): \t").append(recordingWriter.getMaxFlushMillis()).append("\n");
+            statistics.append("Recording Dropped Rows: \t").append(recordingWriter.getDroppedRows()).append("\n");
+        }
+        if (deltaRecorder != null) {
+            statistics.append("Delta Recording (bytes): \t").append(deltaRecorder.getBytesWritten()).append("\n");
+            statistics.append("Delta Recording Resyncs: \t").append(deltaRecorder.getOverflowCount()).append("\n");
+        }
+        final LslPublisher publisher = getLslPublisher();
+        if (publisher != null) {
+            statistics.append("LSL Pushed Samples: \t").append(publisher.getPushedSamples())
+                    .append(" in ").append(publisher.getPushedChunks()).append(" chunks\n");
+            statistics.append("LSL Queue (max): \t").append(publisher.getQueuedSamples())
+                    .append(" (").append(publisher.getHighWaterMark()).append(")\n");
+            statistics.append("LSL Dropped Samples: \t").append(publisher.getDroppedSamples()).append("\n");
+            statistics.append("LSL Push Latency (ms): \t").append(publisher.getLastLatencyMillis())
+                    .append(" (max ").append(publisher.getMaxLatencyMillis()).append(")\n");
+        }
+        if (packetCapture != null) {
+            statistics.append("Captured Packets: \t").append(packetCapture.getPacketsWritten())
+                    .append(" (dropped ").append(packetCapture.getDroppedPackets()).append(")\n");
+        }
+        if (storedPkgCount > 0) {
+            statistics.append("Package Loss (%): ").append((float) (lostPkgCountTotal * 100) / (float) storedPkgCount);
+        }
+    }
+
+    private SharedPreferences preferences() {
+        return service.getSharedPreferences("userPreferences", Context.MODE_PRIVATE);
+    }
+}
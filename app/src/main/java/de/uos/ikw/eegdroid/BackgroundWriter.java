@@ -0,0 +1,198 @@
+package de.uos.ikw.eegdroid;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Base of the file writers that take records from a single producer thread and write them on a
+ * thread of their own.
+ * <p>
+ * The producer copies each record into a slot of a preallocated {@link SampleRingBuffer} with
+ * {@link #offer}, which never blocks unless asked to wait for a free slot. The writer thread
+ * hands every slot to {@link #handle}, calls {@link #flush} when written data has been pending
+ * for MAX_FLUSH_INTERVAL_NS and {@link #finish} after the last slot. Subclasses only encode the
+ * records and write the batches.
+ */
+abstract class BackgroundWriter {
+
+    private final static String TAG = BackgroundWriter.class.getSimpleName();
+    private static final long MAX_FLUSH_INTERVAL_NS = 1_000_000_000L;
+    private static final long PARK_NANOS = 10_000_000L;
+    final SampleRingBuffer queue;
+    private final int slotSize;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean waiting = false;
+    // set while the producer queues a record, stop() waits until it is done
+    private volatile boolean producing = false;
+    // producer waiting in offer for a free slot, woken by the writer thread
+    private volatile Thread producer;
+    private long lastFlushTime;
+    private volatile IOException error;
+
+    /**
+     * @param name     name of the writer thread
+     * @param capacity number of queued slots
+     * @param slotSize maximum number of ints per slot
+     */
+    BackgroundWriter(String name, int capacity, int slotSize) {
+        this.queue = new SampleRingBuffer(capacity, slotSize);
+        this.slotSize = slotSize;
+        this.thread = new Thread(this::drain, name);
+    }
+
+    /**
+     * Starts the writer thread, called by the subclass once it is set up.
+     */
+    final void start() {
+        lastFlushTime = System.nanoTime();
+        thread.start();
+    }
+
+    /**
+     * Queues a slot without waiting.
+     *
+     * @return false if the queue was full or the writer is stopped
+     */
+    final boolean offer(int[] slot, int length) {
+        return offer(slot, length, 0);
+    }
+
+    /**
+     * Queues a slot. Called by a single producer thread; if the queue is full, waits at most
+     * maxWaitNanos for the writer thread to free a slot.
+     *
+     * @return false if no slot was free in time or the writer is stopped
+     */
+    final boolean offer(int[] slot, int length, long maxWaitNanos) {
+        producing = true;
+        try {
+            if (!running) return false;
+            final boolean queued = queue.offer(slot, length)
+                    || maxWaitNanos > 0 && waitAndOffer(slot, length, maxWaitNanos);
+            if (waiting) LockSupport.unpark(thread);
+            return queued;
+        } finally {
+            producing = false;
+        }
+    }
+
+    // waits until the writer thread frees a slot, at most maxWaitNanos
+    private boolean waitAndOffer(int[] slot, int length, long maxWaitNanos) {
+        final long deadline = System.nanoTime() + maxWaitNanos;
+        // published before the offer, so a slot freed after a failed offer wakes this thread
+        producer = Thread.currentThread();
+        try {
+            while (running) {
+                LockSupport.unpark(thread);
+                if (queue.offer(slot, length)) return true;
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return false;
+                LockSupport.parkNanos(this, remaining);
+            }
+            return false;
+        } finally {
+            producer = null;
+        }
+    }
+
+    final boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Lets the writer thread write all queued slots and waits until it is done. A record being
+     * queued by the producer is still written, later ones are ignored.
+     *
+     * @return false if the writer was stopped before
+     */
+    final boolean stop() {
+        if (!running) return false;
+        running = false;
+        final Thread waitingProducer = producer;
+        if (waitingProducer != null) LockSupport.unpark(waitingProducer);
+        // either the producer sees running cleared or this sees it producing
+        while (producing) Thread.yield();
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
+    /**
+     * @return the first error of the writer thread, null if all writes succeeded
+     */
+    final IOException getError() {
+        return error;
+    }
+
+    /**
+     * Encodes a slot, called on the writer thread.
+     */
+    abstract void handle(int[] slot) throws IOException;
+
+    /**
+     * @return number of bytes or characters encoded but not written yet
+     */
+    abstract int pending();
+
+    /**
+     * Writes the pending data, called on the writer thread.
+     */
+    abstract void writeBatch() throws IOException;
+
+    /**
+     * Writes what is left after the last slot, called on the writer thread.
+     */
+    void finish() throws IOException {
+        flush();
+    }
+
+    final void flush() throws IOException {
+        lastFlushTime = System.nanoTime();
+        writeBatch();
+    }
+
+    private void drain() {
+        final int[] slot = new int[slotSize];
+        while (true) {
+            if (queue.poll(slot) > 0) {
+                final Thread waitingProducer = producer;
+                if (waitingProducer != null) LockSupport.unpark(waitingProducer);
+                try {
+                    handle(slot);
+                } catch (IOException e) {
+                    fail(e);
+                }
+                continue;
+            }
+            if (!running && queue.isEmpty()) break;
+            if (pending() > 0 && System.nanoTime() - lastFlushTime > MAX_FLUSH_INTERVAL_NS) {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+            waiting = true;
+            if (queue.isEmpty() && running) LockSupport.parkNanos(PARK_NANOS);
+            waiting = false;
+        }
+        try {
+            finish();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        if (error != null) return;
+        Log.e(TAG, thread.getName() + " failed to write: " + e.getMessage());
+        error = e;
+    }
+}
@@ -15,7 +15,10 @@ package de.uos.ikw.eegdroid;
  * limitations under the License.
  */
 
-import android.annotation.SuppressLint;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -30,48 +33,86 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
 import androidx.core.app.ActivityCompat;
+import androidx.core.app.NotificationCompat;
 
+import java.io.File;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Service for managing connection and data communication with a GATT server hosted on a
- * given Bluetooth LE device.
+ * Service for managing connections and data communication with GATT servers hosted on
+ * Bluetooth LE devices. Several Traumschreibers can be connected at the same time, each of
+ * them gets its own {@link BluetoothGatt} and its own {@link TraumschreiberService} decoder.
+ * All broadcasts carry the address of the device they belong to in {@link #EXTRA_ADDRESS}.
+ * <p>
+ * Connection events are broadcast as Intents. The notifications of every device go through
+ * its {@link PacketPipeline}: decoded data is queued in a per-device {@link SampleRingBuffer} and
+ * handed to the registered {@link DataListener}s by a dedicated {@link SampleDispatcher} thread,
+ * so the binder thread receiving the notifications never waits for processing.
+ * <p>
+ * Addresses starting with {@link TraumschreiberSimulator#ADDRESS_PREFIX} connect to a virtual
+ * device whose generated packets take the same path, see {@link #connectSimulator}.
+ * <p>
+ * GATT operations (reads, writes, notification changes, MTU requests) are queued per device in
+ * a {@link GattOperationQueue}, so callers can issue them back to back without waiting. Right
+ * after service discovery the link is set up for throughput (see {@link #setupLink}), before
+ * any operation of the activities.
+ * <p>
+ * The processing behind a device (filters, LSL outlet, recording files) lives in an
+ * {@link AcquisitionSession} owned by this service. While a session streams or records, the
+ * service runs in the foreground and survives the unbinding of the activities, which attach to
+ * the session again when they come back.
  */
 public class BluetoothLeService extends Service {
     public final static String ACTION_GATT_CONNECTED = "com.example.bluetooth.le.ACTION_GATT_CONNECTED";
     public final static String ACTION_GATT_DISCONNECTED = "com.example.bluetooth.le.ACTION_GATT_DISCONNECTED";
     public final static String ACTION_GATT_SERVICES_DISCOVERED = "com.example.bluetooth.le.ACTION_GATT_SERVICES_DISCOVERED";
-    public final static String ACTION_DATA_AVAILABLE = "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
-    public final static String EXTRA_DATA = "com.example.bluetooth.le.EXTRA_DATA";
+    public final static String EXTRA_ADDRESS = "com.example.bluetooth.le.EXTRA_ADDRESS";
     private final static String TAG = BluetoothLeService.class.getSimpleName();
     private static final int STATE_DISCONNECTED = 0;
     private static final int STATE_CONNECTING = 1;
     private static final int STATE_CONNECTED = 2;
+    // ~4 s of packages at 250 Hz
+    private static final int SAMPLE_BUFFER_CAPACITY = 1024;
+    private static final float SIMULATED_PACKET_RATE = 250;
+    // largest ATT MTU, the stack settles on the largest both sides support
+    private static final int MAX_MTU = 517;
+    private static final int DEFAULT_MTU = 23;
+    private static final String NOTIFICATION_CHANNEL_ID = "acquisition";
+    private static final int NOTIFICATION_ID = 1;
     private final IBinder mBinder = new LocalBinder();
-    public boolean isBusy = false;
+    // runs the timeouts and retries of the GATT operation queues
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
-    //private TraumschreiberService mTraumschreiberService = new TraumschreiberService();
-    private int[] dataDecoded;
+    // One entry per device address, GATT callbacks of different devices never share state
+    private final Map<String, DeviceConnection> mConnections = new ConcurrentHashMap<>();
+    // Replaced as a whole on (un)registering, so dispatching can iterate without locking or allocating
+    private volatile DataListener[] mDataListeners = new DataListener[0];
+    private boolean mForeground = false;
     // Implements callback methods for GATT events that the app cares about.  For example,
     // connection change and services discovered.
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
             String intentAction;
+            final DeviceConnection connection = getConnection(gatt);
+            if (connection == null) return;
             if (newState == BluetoothProfile.STATE_CONNECTED && (status == BluetoothGatt.GATT_SUCCESS)) {
                 intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
+                connection.state = STATE_CONNECTED;
+                broadcastUpdate(intentAction, connection.address);
                 Log.i(TAG, "Connected to GATT server.");
                 // Attempts to discover services after successful connection.
                 if (ActivityCompat.checkSelfPermission(getApplicationContext(), android.Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
@@ -84,21 +125,30 @@ public class BluetoothLeService extends Service {
                     // for ActivityCompat#requestPermissions for more details.
                     return;
                 }
-                Log.i(TAG, "Attempting to start service discovery:" + mBluetoothGatt.discoverServices());
+                Log.i(TAG, "Attempting to start service discovery:" + gatt.discoverServices());
 
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED && (status == BluetoothGatt.GATT_SUCCESS)) {
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED || status != BluetoothGatt.GATT_SUCCESS) {
+                // after errors (e.g. 133, or 8 for a lost link) the handle is unusable as well,
+                // a reconnect has to start over with connectGatt()
                 gatt.close();
+                mConnections.remove(connection.address);
+                connection.queue.clear();
+                closeSession(connection);
+                connection.pipeline.stop();
                 intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
+                connection.state = STATE_DISCONNECTED;
+                Log.i(TAG, "Disconnected from GATT server " + connection.address + ", status " + status);
+                broadcastUpdate(intentAction, connection.address);
             }
         }
 
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
+                // queued first, so the link is set up before the activities configure the device
+                final DeviceConnection connection = getConnection(gatt);
+                if (connection != null) setupLink(connection);
+                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED, gatt.getDevice().getAddress());
                 if (ActivityCompat.checkSelfPermission(getApplicationContext(), android.Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
                     // TODO: Consider calling
                     //    ActivityCompat#requestPermissions
@@ -109,7 +159,6 @@ public class BluetoothLeService extends Service {
                     // for ActivityCompat#requestPermissions for more details.
                     return;
                 }
-                mBluetoothGatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
             } else Log.w(TAG, "onServicesDiscovered received: " + status);
 
         }
@@ -118,51 +167,94 @@ public class BluetoothLeService extends Service {
         public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
             Log.d(TAG, "New MTU Size: " + mtu);
             Log.d(TAG, "MTU Request Success: " + status);
-            isBusy = false;
+            final DeviceConnection connection = getConnection(gatt);
+            if (connection == null) return;
+            if (status == BluetoothGatt.GATT_SUCCESS) connection.mtu = mtu;
+            connection.queue.onMtuChanged(mtu, status);
         }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            Log.d(TAG, "PHY Update tx: " + txPhy + " rx: " + rxPhy + " status: " + status);
+            final DeviceConnection connection = getConnection(gatt);
+            if (connection == null) return;
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+                connection.txPhy = txPhy;
+                connection.rxPhy = rxPhy;
             }
+            connection.queue.onPhyUpdate(txPhy, rxPhy, status);
+        }
 
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            final DeviceConnection connection = getConnection(gatt);
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                dispatchData(connection, characteristic);
+            }
+            if (connection != null) connection.queue.onCharacteristicRead(characteristic, status);
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+            dispatchData(getConnection(gatt), characteristic);
         }
 
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
             Log.d(TAG, "------------- onCharacteristicWrite status: " + status);
             Log.d(TAG, "New Value of Config: " + Arrays.toString(characteristic.getValue()));
-            isBusy = false;
+            final DeviceConnection connection = getConnection(gatt);
+            if (connection != null) connection.queue.onCharacteristicWrite(characteristic, status);
         }
 
         @Override
         public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            isBusy = false;
             Log.d(TAG, "------------- onDescriptorWrite status: " + status);
+            final DeviceConnection connection = getConnection(gatt);
+            if (connection != null) connection.queue.onDescriptorWrite(descriptor, status);
         }
     };
     private boolean newTraumschreiber = false;
 
-    private void broadcastUpdate(final String action) {
+    private DeviceConnection getConnection(BluetoothGatt gatt) {
+        return mConnections.get(gatt.getDevice().getAddress());
+    }
+
+    private void broadcastUpdate(final String action, final String address) {
         final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_ADDRESS, address);
         sendBroadcast(intent);
     }
 
-    @SuppressLint("DefaultLocale")
-    private void broadcastUpdate(final String action, final BluetoothGattCharacteristic characteristic) {
-        final Intent intent = new Intent(action);
-        final byte[] data = characteristic.getValue();
-        if (data != null && data.length > 0) {
-            dataDecoded = TraumschreiberService.decode(data, characteristic.getUuid());
-            if (dataDecoded != null) intent.putExtra(EXTRA_DATA, dataDecoded);
+    private void dispatchData(final DeviceConnection connection,
+                              final BluetoothGattCharacteristic characteristic) {
+        if (connection == null) return;
+        connection.pipeline.onPacket(characteristic.getUuid(), characteristic.getValue(), System.nanoTime());
+    }
+
+    private void notifyListeners(String address, int[] data, int length) {
+        for (DataListener listener : mDataListeners) {
+            listener.onDataAvailable(address, data, length);
         }
-        if (dataDecoded != null) sendBroadcast(intent);
+    }
+
+    /**
+     * Registers a listener for the decoded data of all connected devices.
+     */
+    public synchronized void registerDataListener(DataListener listener) {
+        for (DataListener registered : mDataListeners) if (registered == listener) return;
+        DataListener[] listeners = Arrays.copyOf(mDataListeners, mDataListeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+        mDataListeners = listeners;
+    }
+
+    public synchronized void unregisterDataListener(DataListener listener) {
+        DataListener[] listeners = new DataListener[mDataListeners.length];
+        int n = 0;
+        for (DataListener registered : mDataListeners) {
+            if (registered != listener) listeners[n++] = registered;
+        }
+        mDataListeners = Arrays.copyOf(listeners, n);
     }
 
     @Override
@@ -170,15 +262,28 @@ public class BluetoothLeService extends Service {
         return mBinder;
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // no session can be running yet, whatever is left was written by a dead one
+        deleteTempFiles();
+    }
+
     @Override
     public boolean onUnbind(Intent intent) {
         // After using a given device, you should make sure that BluetoothGatt.close() is called
         // such that resources are cleaned up properly.  In this particular example, close() is
-        // invoked when the UI is disconnected from the Service.
-        close();
+        // invoked when the UI is disconnected from the Service, unless a session keeps running.
+        if (!mForeground) close();
         return super.onUnbind(intent);
     }
 
+    @Override
+    public void onDestroy() {
+        close();
+        super.onDestroy();
+    }
+
     /**
      * Initializes a reference to the local Bluetooth adapter.
      *
@@ -213,14 +318,19 @@ public class BluetoothLeService extends Service {
      * callback.
      */
     public boolean connect(final String address) {
+        if (TraumschreiberSimulator.isSimulatedAddress(address)) {
+            return mConnections.containsKey(address)
+                    || connectSimulator(address, 16, SIMULATED_PACKET_RATE);
+        }
         if (mBluetoothAdapter == null || address == null) {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
 
         // Previously connected device.  Try to reconnect.
-        if (mBluetoothGatt != null && address.equals(mBluetoothDeviceAddress)) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
+        final DeviceConnection existing = mConnections.get(address);
+        if (existing != null) {
+            Log.d(TAG, "Trying to use an existing BluetoothGatt for connection.");
             if (ActivityCompat.checkSelfPermission(this, android.Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
                 // TODO: Consider calling
                 //    ActivityCompat#requestPermissions
@@ -231,8 +341,8 @@ public class BluetoothLeService extends Service {
                 // for ActivityCompat#requestPermissions for more details.
                 return true;
             }
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
+            if (existing.gatt.connect()) {
+                existing.state = STATE_CONNECTING;
                 return true;
             } else return false;
         }
@@ -244,21 +354,112 @@ public class BluetoothLeService extends Service {
         }
         // We want to directly connect to the device, so we are setting the autoConnect
         // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
+        final DeviceConnection connection = new DeviceConnection(address,
+                new GattOperationQueue(mHandler), (data, length) -> notifyListeners(address, data, length));
+        // registered with its queue before connectGatt, so the first callback already finds both
+        mConnections.put(address, connection);
+        connection.gatt = device.connectGatt(this, false, mGattCallback);
+        connection.queue.setGatt(connection.gatt);
+        Log.d(TAG, "Trying to create a new connection to " + address);
+        connection.state = STATE_CONNECTING;
+        return true;
+    }
+
+    /**
+     * Connects to a virtual Traumschreiber that generates packets on its own thread and feeds
+     * them into a pipeline like the one of a real device, for load tests without hardware.
+     * The connection is established immediately and ACTION_GATT_SERVICES_DISCOVERED follows
+     * with a Traumschreiber service built locally (see {@link #getService}). GATT operations on
+     * its characteristics complete at once: config writes and reads go to the simulator,
+     * notification changes have no effect as the simulator always sends.
+     *
+     * @param address    address of the virtual device, see {@link TraumschreiberSimulator#address}
+     * @param bitsPerCh  delta resolution of the generated packets, 10, 14 or 16
+     * @param packetRate packets per second, 0 for as fast as the pipeline accepts them
+     * @return false if a device with this address is already connected
+     */
+    public boolean connectSimulator(final String address, int bitsPerCh, float packetRate) {
+        if (mConnections.containsKey(address)) return false;
+        final DeviceConnection connection = new DeviceConnection(address, null,
+                (data, length) -> notifyListeners(address, data, length));
+        final TraumschreiberService decoder = connection.pipeline.getDecoder();
+        decoder.setResolution(bitsPerCh, TraumschreiberSimulator.characteristicIndex(bitsPerCh));
+        connection.simulator = new TraumschreiberSimulator(connection.pipeline, bitsPerCh,
+                packetRate, address.hashCode());
+        connection.simulatedService = simulatedService();
+        mConnections.put(address, connection);
+        connection.state = STATE_CONNECTED;
+        connection.simulator.start();
+        Log.i(TAG, "Connected to simulated Traumschreiber " + address);
+        broadcastUpdate(ACTION_GATT_CONNECTED, address);
+        broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED, address);
+        return true;
+    }
+
+    // the characteristics of a Traumschreiber, for virtual devices that have no GATT server
+    private static BluetoothGattService simulatedService() {
+        final BluetoothGattService service = new BluetoothGattService(TraumschreiberService.serviceUUID,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        for (UUID uuid : TraumschreiberService.notifyingUUIDs) {
+            service.addCharacteristic(new BluetoothGattCharacteristic(uuid,
+                    BluetoothGattCharacteristic.PROPERTY_NOTIFY, 0));
+        }
+        service.addCharacteristic(new BluetoothGattCharacteristic(TraumschreiberService.codeUUID,
+                BluetoothGattCharacteristic.PROPERTY_NOTIFY, 0));
+        service.addCharacteristic(new BluetoothGattCharacteristic(TraumschreiberService.configUUID,
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
+                BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE));
+        return service;
+    }
+
+    /**
+     * Completes a GATT operation on a virtual device, see {@link #connectSimulator}.
+     *
+     * @param value    value to write, null for reads and notification changes
+     * @param callback called on the main thread, may be null
+     * @return false if the address does not belong to a virtual device
+     */
+    private boolean simulateOperation(String address, BluetoothGattCharacteristic characteristic,
+                                      boolean read, byte[] value, GattOperationQueue.Callback callback) {
+        final DeviceConnection connection = address == null ? null : mConnections.get(address);
+        if (connection == null || connection.simulator == null) return false;
+        if (characteristic != null && TraumschreiberService.configUUID.equals(characteristic.getUuid())) {
+            if (value != null) connection.simulator.writeConfig(value);
+            if (read) connection.simulator.readConfig();
+        }
+        if (callback != null) mHandler.post(() -> callback.onComplete(BluetoothGatt.GATT_SUCCESS, value));
         return true;
     }
 
+    /**
+     * @return the packet generator of a virtual device, null for real or unknown devices
+     */
+    public TraumschreiberSimulator getSimulator(String address) {
+        final DeviceConnection connection = mConnections.get(address);
+        return connection == null ? null : connection.simulator;
+    }
+
     /**
      * Disconnects an existing connection or cancel a pending connection. The disconnection result
      * is reported asynchronously through the
      * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
      * callback.
+     *
+     * @param address The device address of the device to disconnect.
      */
-    public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+    public void disconnect(final String address) {
+        final DeviceConnection simulated = address == null ? null : mConnections.get(address);
+        if (simulated != null && simulated.simulator != null) {
+            simulated.simulator.stop();
+            mConnections.remove(address);
+            closeSession(simulated);
+            simulated.pipeline.stop();
+            simulated.state = STATE_DISCONNECTED;
+            broadcastUpdate(ACTION_GATT_DISCONNECTED, address);
+            return;
+        }
+        final BluetoothGatt gatt = getGatt(address);
+        if (mBluetoothAdapter == null || gatt == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
@@ -272,15 +473,19 @@ public class BluetoothLeService extends Service {
             // for ActivityCompat#requestPermissions for more details.
             return;
         }
-        mBluetoothGatt.disconnect();
+        gatt.disconnect();
     }
 
     /**
-     * After using a given BLE device, the app must call this method to ensure resources are
+     * After using the BLE devices, the app must call this method to ensure resources are
      * released properly.
      */
     private void close() {
-        if (mBluetoothGatt == null) return;
+        if (mConnections.isEmpty()) return;
+        for (DeviceConnection connection : mConnections.values()) {
+            if (connection.simulator != null) connection.simulator.stop();
+            closeSession(connection);
+        }
         if (ActivityCompat.checkSelfPermission(this, android.Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
             // TODO: Consider calling
             //    ActivityCompat#requestPermissions
@@ -291,8 +496,12 @@ public class BluetoothLeService extends Service {
             // for ActivityCompat#requestPermissions for more details.
             return;
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+        for (DeviceConnection connection : mConnections.values()) {
+            if (connection.queue != null) connection.queue.clear();
+            if (connection.gatt != null) connection.gatt.close();
+            connection.pipeline.stop();
+        }
+        mConnections.clear();
     }
 
     /**
@@ -300,10 +509,13 @@ public class BluetoothLeService extends Service {
      * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
      * callback.
      *
+     * @param address        The device address of the device to read from.
      * @param characteristic The characteristic to read from.
      */
-    public void readCharacteristic(BluetoothGattCharacteristic characteristic, boolean newModel) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+    public void readCharacteristic(String address, BluetoothGattCharacteristic characteristic, boolean newModel) {
+        if (simulateOperation(address, characteristic, true, null, null)) return;
+        final GattOperationQueue queue = getQueue(address);
+        if (mBluetoothAdapter == null || queue == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
@@ -318,22 +530,34 @@ public class BluetoothLeService extends Service {
             // for ActivityCompat#requestPermissions for more details.
             return;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        queue.read(characteristic, null);
     }
 
     /**
      * Enables or disables notification on a give characteristic.
      *
+     * @param address        The device address of the device owning the characteristic.
      * @param characteristic Characteristic to act on.
      * @param enabled        If true, enable notification.  False otherwise.
      */
-    public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+    public void setCharacteristicNotification(String address, BluetoothGattCharacteristic characteristic, boolean enabled) {
+        setCharacteristicNotification(address, characteristic, enabled, null);
+    }
+
+    /**
+     * Enables or disables notification on a give characteristic.
+     *
+     * @param callback reports when the device confirmed the change, may be null
+     */
+    public void setCharacteristicNotification(String address, BluetoothGattCharacteristic characteristic,
+                                              boolean enabled, GattOperationQueue.Callback callback) {
+        if (simulateOperation(address, characteristic, false, null, callback)) return;
+        final GattOperationQueue queue = getQueue(address);
+        if (mBluetoothAdapter == null || queue == null || characteristic == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
 
-        // Set Notification
         if (ActivityCompat.checkSelfPermission(this, android.Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
             // TODO: Consider calling
             //    ActivityCompat#requestPermissions
@@ -344,37 +568,40 @@ public class BluetoothLeService extends Service {
             // for ActivityCompat#requestPermissions for more details.
             return;
         }
-        boolean result = mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
-        Log.d(TAG, "set Notification of Characteristic " + characteristic.getUuid().toString() + " success: " + String.format("%b", result));
-
-        // Update Descriptor of the Characteristic
-        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-        if (descriptor != null) {
-            isBusy = true; // Changes during onDescriptorWrite-callback
-
-            // Need to handle Notifications and Indications Differently
-            int properties = characteristic.getProperties();
-            boolean indicate = (properties & BluetoothGattCharacteristic.PROPERTY_INDICATE) > 0;
-            // if(indicate) Log.d(TAG, "WATCH OUT, PROPERTY TREATED AS INDICATE, OK?");
-            if (!enabled) descriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
-            else if (indicate) descriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
-            else descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            result = mBluetoothGatt.writeDescriptor(descriptor);
-            Log.d(TAG, "writeDescriptor" + characteristic.getUuid().toString() + " Succes: " + String.format("%b", result));
-        }
+        // Set Notification and update the Descriptor of the Characteristic, once the operations before are done
+        queue.setNotification(characteristic, enabled, callback);
+        Log.d(TAG, "Queued notification change of Characteristic " + characteristic.getUuid().toString() + ": " + enabled);
     }
 
     /**
      * Request a write on a give {@code BluetoothGattCharacteristic}. The write result is reported
      * asynchronously through the {@code BluetoothGattCallback#onCharacteristicWrite(andorid.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
      * callback.
+     *
+     * @param address The device address of the device owning the characteristic.
+     */
+    public void writeCharacteristic(String address, BluetoothGattCharacteristic characteristic) {
+        if (characteristic == null) {
+            Log.w(TAG, "No characteristic to write");
+            return;
+        }
+        writeCharacteristic(address, characteristic, characteristic.getValue(), null);
+    }
+
+    /**
+     * Queues a write of the given value. The value is copied, so the caller may change it (or
+     * the value of the characteristic) right away for the next write.
+     *
+     * @param callback reports the outcome of the write, may be null
      */
-    public void writeCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothGatt == null) {
+    public void writeCharacteristic(String address, BluetoothGattCharacteristic characteristic,
+                                    byte[] value, GattOperationQueue.Callback callback) {
+        if (simulateOperation(address, characteristic, false, value, callback)) return;
+        final GattOperationQueue queue = getQueue(address);
+        if (queue == null || characteristic == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        isBusy = true;
         Log.w(TAG, characteristic.toString());
         if (ActivityCompat.checkSelfPermission(this, android.Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
             // TODO: Consider calling
@@ -386,23 +613,102 @@ public class BluetoothLeService extends Service {
             // for ActivityCompat#requestPermissions for more details.
             return;
         }
-        mBluetoothGatt.writeCharacteristic(characteristic);
+        queue.write(characteristic, value, callback);
     }
 
-    public BluetoothGattService getService(UUID uuid) {
-        return (mBluetoothGatt.getService(uuid));
+    /**
+     * Returns the decoder holding the encoding state of the given Traumschreiber.
+     *
+     * @param address The device address of the Traumschreiber.
+     * @return its decoder, null if the device is not connected
+     */
+    public TraumschreiberService getTraumschreiberService(String address) {
+        final DeviceConnection connection = mConnections.get(address);
+        return connection == null ? null : connection.pipeline.getDecoder();
     }
 
     /**
-     * Retrieves a list of supported GATT services on the connected device. This should be
+     * @return the addresses of all devices that are connected or connecting
+     */
+    public Set<String> getConnectedAddresses() {
+        return mConnections.keySet();
+    }
+
+    /**
+     * Returns the buffer between the bluetooth thread and the processing of the given device.
+     * Its overflow count tells how many packages the app itself dropped.
+     *
+     * @param address The device address of the Traumschreiber.
+     * @return its sample buffer, null if the device is not connected
+     */
+    public SampleRingBuffer getSampleBuffer(String address) {
+        final DeviceConnection connection = mConnections.get(address);
+        return connection == null ? null : connection.pipeline.getBuffer();
+    }
+
+    /**
+     * Starts or stops (null) capturing the raw notifications of the given device.
+     *
+     * @param address The device address of the Traumschreiber.
+     * @param capture receives every raw packet on the binder thread, e.g. a {@link PacketCapture}
+     * @return false if the device is not connected
+     */
+    public boolean setPacketCapture(String address, PacketSink capture) {
+        final DeviceConnection connection = mConnections.get(address);
+        if (connection == null) return false;
+        connection.pipeline.setCapture(capture);
+        return true;
+    }
+
+    /**
+     * Sets the number of packets held back to restore the order of late packets of the given
+     * device, see {@link PacketPipeline#setReorderWindow}.
+     *
+     * @return false if the device is not connected
+     */
+    public boolean setReorderWindow(String address, int window) {
+        final DeviceConnection connection = mConnections.get(address);
+        if (connection == null) return false;
+        connection.pipeline.setReorderWindow(window);
+        return true;
+    }
+
+    private GattOperationQueue getQueue(String address) {
+        if (address == null) return null;
+        final DeviceConnection connection = mConnections.get(address);
+        return connection == null ? null : connection.queue;
+    }
+
+    private BluetoothGatt getGatt(String address) {
+        if (address == null) return null;
+        final DeviceConnection connection = mConnections.get(address);
+        return connection == null ? null : connection.gatt;
+    }
+
+    public BluetoothGattService getService(String address, UUID uuid) {
+        final DeviceConnection connection = address == null ? null : mConnections.get(address);
+        if (connection != null && connection.simulatedService != null) {
+            return connection.simulatedService.getUuid().equals(uuid) ? connection.simulatedService : null;
+        }
+        return (getGatt(address).getService(uuid));
+    }
+
+    /**
+     * Retrieves a list of supported GATT services on the given device. This should be
      * invoked only after {@code BluetoothGatt#discoverServices()} completes successfully.
      *
+     * @param address The device address of the device.
      * @return A {@code List} of supported services.
      */
-    public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
+    public List<BluetoothGattService> getSupportedGattServices(String address) {
+        final DeviceConnection connection = address == null ? null : mConnections.get(address);
+        if (connection != null && connection.simulatedService != null) {
+            return Collections.singletonList(connection.simulatedService);
+        }
+        final BluetoothGatt gatt = getGatt(address);
+        if (gatt == null) return null;
 
-        return mBluetoothGatt.getServices();
+        return gatt.getServices();
     }
 
     public void setNewTraumschreiber(boolean newDevice) {
@@ -410,8 +716,9 @@ public class BluetoothLeService extends Service {
         newTraumschreiber = newDevice;
     }
 
-    public void requestMtu(int mtu) {
-        isBusy = true;
+    public void requestMtu(String address, int mtu) {
+        final GattOperationQueue queue = getQueue(address);
+        if (queue == null) return;
         // Request new MTU
         if (ActivityCompat.checkSelfPermission(this, android.Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
             // TODO: Consider calling
@@ -423,12 +730,171 @@ public class BluetoothLeService extends Service {
             // for ActivityCompat#requestPermissions for more details.
             return;
         }
-        mBluetoothGatt.requestMtu(mtu);
+        queue.requestMtu(mtu, null);
         Log.i(TAG, "Requesting Mtu of size" + mtu);
     }
 
-    public void requestDLE(int dle) {
+    /**
+     * Queues the link setup for a freshly discovered device: short connection interval, largest
+     * MTU and the 2M PHY if the phone supports it. Android offers no call for the data length
+     * extension, the stack extends it on its own after the MTU exchange. Devices that do not
+     * support an option keep their current setting.
+     */
+    private void setupLink(DeviceConnection connection) {
+        if (ActivityCompat.checkSelfPermission(this, android.Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+            Log.w(TAG, "No BLUETOOTH_CONNECT permission, keeping the default link settings");
+            return;
+        }
+        connection.queue.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH,
+                (status, value) -> Log.i(TAG, "Connection priority HIGH requested: " + status));
+        connection.queue.requestMtu(MAX_MTU,
+                (status, value) -> Log.i(TAG, "Link MTU: " + connection.mtu + " status: " + status));
+        if (mBluetoothAdapter.isLe2MPhySupported()) {
+            connection.queue.setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK,
+                    (status, value) -> Log.i(TAG, "Link PHY tx: " + connection.txPhy + " rx: " + connection.rxPhy));
+        }
+    }
 
+    /**
+     * @return negotiated ATT MTU of the device, 23 if none was negotiated
+     */
+    public int getMtu(String address) {
+        final DeviceConnection connection = address == null ? null : mConnections.get(address);
+        return connection == null ? DEFAULT_MTU : connection.mtu;
+    }
+
+    /**
+     * @return PHY the device sends on, {@link BluetoothDevice#PHY_LE_1M} unless updated
+     */
+    public int getRxPhy(String address) {
+        final DeviceConnection connection = address == null ? null : mConnections.get(address);
+        return connection == null ? BluetoothDevice.PHY_LE_1M : connection.rxPhy;
+    }
+
+    /**
+     * Returns the acquisition session of a connected device, created on first use.
+     *
+     * @return null if the device is not connected
+     */
+    public synchronized AcquisitionSession getAcquisitionSession(String address) {
+        final DeviceConnection connection = address == null ? null : mConnections.get(address);
+        if (connection == null) return null;
+        if (connection.session == null) {
+            connection.session = new AcquisitionSession(this, address,
+                    connection.pipeline.getDecoder(), this::updateForeground);
+            registerDataListener(connection.session);
+        }
+        return connection.session;
+    }
+
+    /**
+     * @return address of a device whose session is streaming or recording, null if there is none
+     */
+    public String getActiveSessionAddress() {
+        for (DeviceConnection connection : mConnections.values()) {
+            final AcquisitionSession session = connection.session;
+            if (session != null && (session.isStreaming() || session.isRecording())) return connection.address;
+        }
+        return null;
+    }
+
+    private synchronized void closeSession(DeviceConnection connection) {
+        if (connection.session == null) return;
+        unregisterDataListener(connection.session);
+        connection.session.close();
+        connection.session = null;
+        updateForeground();
+    }
+
+    /**
+     * Keeps the service in the foreground while any session is streaming or recording. A started
+     * service is not destroyed when the activities unbind, so acquisition continues with the
+     * screen off or the activities gone.
+     */
+    private synchronized void updateForeground() {
+        String active = getActiveSessionAddress();
+        if (active != null && !mForeground) {
+            mForeground = true;
+            startService(new Intent(this, BluetoothLeService.class));
+            startForeground(NOTIFICATION_ID, createNotification(active));
+            Log.i(TAG, "Acquisition running in the foreground");
+        } else if (active == null && mForeground) {
+            mForeground = false;
+            stopForeground(true);
+            // destroyed only once no activity is bound any more
+            stopSelf();
+            Log.i(TAG, "Acquisition left the foreground");
+        }
+    }
+
+    private Notification createNotification(String address) {
+        final NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        manager.createNotificationChannel(new NotificationChannel(NOTIFICATION_CHANNEL_ID,
+                getString(R.string.notification_channel_acquisition), NotificationManager.IMPORTANCE_LOW));
+        final PendingIntent openRecord = PendingIntent.getActivity(this, 0,
+                new Intent(this, Record.class).addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP),
+                PendingIntent.FLAG_IMMUTABLE);
+        return new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_bluetooth_white_24dp)
+                .setContentTitle(getString(R.string.notification_acquisition_title))
+                .setContentText(address)
+                .setContentIntent(openRecord)
+                .setOngoing(true)
+                .build();
+    }
+
+    private void deleteTempFiles() {
+        final File dir = MainActivity.getDirSessions();
+        final File[] files = dir == null ? null : dir.listFiles();
+        if (files == null) return;
+        for (File tempFile : files) {
+            if (tempFile.getName().endsWith(".temp")) {
+                boolean deleted = tempFile.delete();
+                if (!deleted) Log.e(TAG, "Failed to delete file.");
+                else Log.d(TAG, "deleted temp file!");
+            }
+        }
+    }
+
+    /**
+     * Receives the decoded data of the connected Traumschreibers. Called on the dispatcher thread
+     * of the sending device, so implementations must not touch views.
+     */
+    public interface DataListener {
+        /**
+         * @param address device address of the sending Traumschreiber
+         * @param data    decoded package as produced by {@link TraumschreiberService#decode};
+         *                the buffer is reused for the next package, copy what you want to keep
+         * @param length  number of valid values in data
+         */
+        void onDataAvailable(String address, int[] data, int length);
+    }
+
+    /**
+     * Connection state, GATT handle and packet pipeline of a single Traumschreiber.
+     */
+    private static class DeviceConnection {
+        final String address;
+        final PacketPipeline pipeline;
+        volatile BluetoothGatt gatt;
+        // serializes the GATT operations, null for virtual devices
+        final GattOperationQueue queue;
+        // packet generator of a virtual device, null for real devices
+        TraumschreiberSimulator simulator;
+        // characteristics of a virtual device, see connectSimulator()
+        BluetoothGattService simulatedService;
+        // processing and recording, created when an activity first asks for it
+        volatile AcquisitionSession session;
+        volatile int state = STATE_DISCONNECTED;
+        volatile int mtu = DEFAULT_MTU;
+        volatile int txPhy = BluetoothDevice.PHY_LE_1M;
+        volatile int rxPhy = BluetoothDevice.PHY_LE_1M;
+
+        DeviceConnection(String address, GattOperationQueue queue, SampleDispatcher.Consumer consumer) {
+            this.address = address;
+            this.queue = queue;
+            this.pipeline = new PacketPipeline(address, SAMPLE_BUFFER_CAPACITY, consumer);
+        }
     }
 
     public class LocalBinder extends Binder {
@@ -0,0 +1,146 @@
+package de.uos.ikw.eegdroid;
+
+/**
+ * Maps the sample index of a device to the local clock (e.g. {@link LSL#local_clock}), so
+ * samples get timestamps free of the transmission jitter.
+ * <p>
+ * BLE delivers packages in bursts per connection interval, their arrival times scatter by tens
+ * of milliseconds around the time the samples were taken. The device clock runs at a constant
+ * rate though, so arrival time over sample index is a straight line plus noise. This fits that
+ * line by exponentially weighted least squares: every sample adds its index and arrival time to
+ * five decaying sums, and the slope (the sample period of the device clock) and the offset are
+ * solved from them. Old samples fade out with a time constant of WINDOW_SECONDS, which follows
+ * slow drift of either clock. Once the fit is established, arrivals further than MAX_RESIDUAL
+ * off the line, e.g. a backlog released after a connection hiccup, are pulled towards it before
+ * they are added, so they cannot bend the line.
+ * <p>
+ * The sums are kept relative to a reference point that is moved to their weighted mean every
+ * RECENTER_INTERVAL samples, which keeps them small and the fit precise over long sessions.
+ * Memory and time per sample are constant. The timestamps carry the mean transmission latency,
+ * which is constant and the same for all samples.
+ * <p>
+ * {@link #update} is called by one thread, the getters may be called from any thread.
+ */
+public class ClockSync {
+
+    // time constant of the exponential forgetting
+    private static final double WINDOW_SECONDS = 30;
+    // the nominal period is used until the samples cover this time
+    private static final double MIN_FIT_SECONDS = 2;
+    // largest deviation from the fitted line an arrival can have, in seconds
+    private static final double MAX_RESIDUAL = 0.05;
+    private static final int RECENTER_INTERVAL = 1024;
+    private double nominalPeriod;
+    private double decay;
+    private long minFitSamples;
+    // reference point of the sums
+    private long x0;
+    private double y0;
+    // weighted sums of 1, x, y, x*x and x*y relative to the reference point
+    private double sw, sx, sy, sxx, sxy;
+    private long count;
+    private volatile double period;
+    private double offset;
+    private volatile double jitter;
+    private double lastTimestamp;
+
+    /**
+     * @param nominalRate sampling rate the device was configured with
+     */
+    public ClockSync(double nominalRate) {
+        reset(nominalRate);
+    }
+
+    /**
+     * Forgets all samples, e.g. when the stream restarts or the sampling rate changes.
+     */
+    public void reset(double nominalRate) {
+        nominalPeriod = 1 / nominalRate;
+        decay = 1 - 1 / (WINDOW_SECONDS * nominalRate);
+        minFitSamples = Math.max(2, (long) (MIN_FIT_SECONDS * nominalRate));
+        sw = sx = sy = sxx = sxy = 0;
+        count = 0;
+        period = nominalPeriod;
+        offset = 0;
+        jitter = 0;
+        lastTimestamp = Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Adds the arrival of a sample and returns its corrected timestamp. Indices have to increase,
+     * lost samples simply leave a gap.
+     *
+     * @param sampleIndex index of the sample in the device stream
+     * @param arrival     local time the sample arrived, in seconds
+     * @return timestamp of the sample on the local clock, never earlier than the previous one
+     */
+    public double update(long sampleIndex, double arrival) {
+        if (count == 0) {
+            x0 = sampleIndex;
+            y0 = arrival;
+        }
+        final double x = sampleIndex - x0;
+        double y = arrival - y0;
+        final double residual = y - (offset + period * x);
+        if (count >= minFitSamples) {
+            jitter = Math.sqrt((1 - decay) * residual * residual + decay * jitter * jitter);
+            if (residual > MAX_RESIDUAL) y -= residual - MAX_RESIDUAL;
+            else if (residual < -MAX_RESIDUAL) y -= residual + MAX_RESIDUAL;
+        }
+        sw = decay * sw + 1;
+        sx = decay * sx + x;
+        sy = decay * sy + y;
+        sxx = decay * sxx + x * x;
+        sxy = decay * sxy + x * y;
+        count++;
+        fit();
+        if (count % RECENTER_INTERVAL == 0) recenter();
+        final double timestamp = Math.max(timestamp(sampleIndex), lastTimestamp);
+        lastTimestamp = timestamp;
+        return timestamp;
+    }
+
+    /**
+     * @return timestamp of the given sample on the local clock according to the current fit,
+     * also for samples that were lost
+     */
+    public double timestamp(long sampleIndex) {
+        return y0 + offset + period * (sampleIndex - x0);
+    }
+
+    /**
+     * @return estimated sampling rate of the device in Hz, measured on the local clock
+     */
+    public double getRate() {
+        return 1 / period;
+    }
+
+    /**
+     * @return running RMS distance of the arrivals from the fitted line in seconds
+     */
+    public double getJitter() {
+        return jitter;
+    }
+
+    private void fit() {
+        final double det = sw * sxx - sx * sx;
+        double slope = nominalPeriod;
+        if (count >= minFitSamples && det > 0) slope = (sw * sxy - sx * sy) / det;
+        period = slope;
+        offset = (sy - slope * sx) / sw;
+    }
+
+    private void recenter() {
+        // move the reference point to the weighted mean, shifting the sums accordingly
+        final long dx = Math.round(sx / sw);
+        final double dy = sy / sw;
+        sxx += dx * (dx * sw - 2 * sx);
+        sxy -= dx * sy;
+        sx -= dx * sw;
+        sxy -= dy * sx;
+        sy -= dy * sw;
+        x0 += dx;
+        y0 += dy;
+        offset = (sy - period * sx) / sw;
+    }
+}
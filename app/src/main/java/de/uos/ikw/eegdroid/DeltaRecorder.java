@@ -0,0 +1,219 @@
+package de.uos.ikw.eegdroid;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import de.uos.ikw.eegdroid.utilities.RiceCodec;
+
+/**
+ * Writes a lossless {@link DeltaRecording} of the raw DPCM deltas of one Traumschreiber.
+ * <p>
+ * The decoder ({@link TraumschreiberService#setDeltaRecorder}) hands the unpacked deltas,
+ * encoding updates and decoder states to the write methods on its decoding thread. These only
+ * copy the values into a preallocated {@link SampleRingBuffer} and never block; the entropy
+ * coding and the disk writes happen on the recorder's own thread.
+ * If the queue is full, the write methods return false and the decoder resynchronizes the
+ * recording with a new state record.
+ */
+public class DeltaRecorder extends BackgroundWriter {
+
+    // ~1 min of packages at 250 Hz
+    private static final int QUEUE_CAPACITY = 16384;
+    private static final int BATCH_BYTES = 64 * 1024;
+    private final int nChannels;
+    // type, two header values and the channel values, filled by the producer
+    private final int[] producerSlot;
+    private final FileChannel channel;
+    private final ByteBuffer out;
+    private final RiceCodec.BitWriter bits;
+    // deltas of the current block, channel after channel
+    private final int[] blockDeltas;
+    private final byte[] blockHeaders;
+    private int blockCount;
+    private volatile long packagesWritten;
+    private volatile long bytesWritten;
+
+    /**
+     * Creates the file, writes its header and starts the writer thread.
+     *
+     * @param microVoltsPerUnit factor converting decoded values to micro volts, kept in the header
+     * @param metadata          free text kept in the header
+     */
+    public DeltaRecorder(File file, int nChannels, float samplingRate, float microVoltsPerUnit,
+                         CharSequence metadata) throws IOException {
+        this(file, nChannels, samplingRate, microVoltsPerUnit, metadata, QUEUE_CAPACITY);
+    }
+
+    // a small queue lets tests force overflows
+    DeltaRecorder(File file, int nChannels, float samplingRate, float microVoltsPerUnit,
+                  CharSequence metadata, int queueCapacity) throws IOException {
+        super("DeltaRecorder", queueCapacity, nChannels + 3);
+        this.nChannels = nChannels;
+        this.producerSlot = new int[nChannels + 3];
+        this.blockDeltas = new int[DeltaRecording.BLOCK_PACKAGES * nChannels];
+        this.blockHeaders = new byte[DeltaRecording.BLOCK_PACKAGES];
+        this.bits = new RiceCodec.BitWriter(DeltaRecording.BLOCK_PACKAGES * nChannels * 2);
+        this.out = ByteBuffer.allocate(BATCH_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        this.channel = new FileOutputStream(file).getChannel();
+        final ByteBuffer header = DeltaRecording.encodeHeader(nChannels, samplingRate, microVoltsPerUnit,
+                System.currentTimeMillis(), metadata);
+        bytesWritten = header.remaining();
+        while (header.hasRemaining()) channel.write(header);
+        start();
+    }
+
+    /**
+     * Queues an encoding update.
+     *
+     * @param bitShift  bit shift of every channel
+     * @param bitsPerCh current delta resolution
+     * @param extra     byte 13 of the c0de package
+     * @return false if the queue was full
+     */
+    public boolean writeEncoding(int[] bitShift, int bitsPerCh, int extra) {
+        return offer(DeltaRecording.RECORD_ENCODING, bitsPerCh, extra, bitShift);
+    }
+
+    /**
+     * Queues the decoded signal the next package's deltas are added to.
+     *
+     * @return false if the queue was full
+     */
+    public boolean writeState(int[] signal) {
+        return offer(DeltaRecording.RECORD_STATE, 0, 0, signal);
+    }
+
+    /**
+     * Queues the deltas of one package.
+     *
+     * @param header header byte of the package (pkgid and dropped samples), 0 without header
+     * @param delta  unpacked deltas of all channels, before the bit shift
+     * @return false if the queue was full
+     */
+    public boolean writeDeltas(int header, int[] delta) {
+        return offer(DeltaRecording.RECORD_BLOCK, header, 0, delta);
+    }
+
+    /**
+     * Writes all queued packages, stops the writer thread and closes the file. A record being
+     * queued on the decoding thread is still written, later ones are ignored.
+     */
+    public void close() throws IOException {
+        if (!stop()) return;
+        channel.close();
+        if (getError() != null) throw getError();
+    }
+
+    public long getPackagesWritten() {
+        return packagesWritten;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return number of queue overflows, each one forces a new state record
+     */
+    public long getOverflowCount() {
+        return queue.getOverflowCount();
+    }
+
+    private boolean offer(int type, int a, int b, int[] values) {
+        if (!isRunning()) return false;
+        final int[] slot = producerSlot;
+        slot[0] = type;
+        slot[1] = a;
+        slot[2] = b;
+        System.arraycopy(values, 0, slot, 3, nChannels);
+        return offer(slot, slot.length);
+    }
+
+    @Override
+    void handle(int[] slot) throws IOException {
+        switch (slot[0]) {
+            case DeltaRecording.RECORD_BLOCK:
+                blockHeaders[blockCount] = (byte) slot[1];
+                for (int i = 0; i < nChannels; i++) {
+                    blockDeltas[i * DeltaRecording.BLOCK_PACKAGES + blockCount] = slot[3 + i];
+                }
+                if (++blockCount == DeltaRecording.BLOCK_PACKAGES) writeBlock();
+                break;
+            case DeltaRecording.RECORD_ENCODING:
+                // events apply to the packages after them, so the pending block goes first
+                writeBlock();
+                reserve(3 + nChannels);
+                out.put(DeltaRecording.RECORD_ENCODING);
+                out.put((byte) slot[1]);
+                out.put((byte) slot[2]);
+                for (int i = 0; i < nChannels; i++) out.put((byte) slot[3 + i]);
+                break;
+            case DeltaRecording.RECORD_STATE:
+                writeBlock();
+                reserve(1 + 4 * nChannels);
+                out.put(DeltaRecording.RECORD_STATE);
+                for (int i = 0; i < nChannels; i++) out.putInt(slot[3 + i]);
+                break;
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        final int n = blockCount;
+        if (n == 0) return;
+        bits.reset();
+        for (int i = 0; i < nChannels; i++) {
+            RiceCodec.encode(blockDeltas, i * DeltaRecording.BLOCK_PACKAGES, 1, n, bits);
+        }
+        bits.align();
+        final int length = bits.length();
+        reserve(1 + 2 + n + 4);
+        out.put(DeltaRecording.RECORD_BLOCK);
+        out.putShort((short) n);
+        out.put(blockHeaders, 0, n);
+        out.putInt(length);
+        // the payload can exceed the batch buffer, write around it
+        if (out.remaining() >= length) {
+            out.put(bits.bytes(), 0, length);
+        } else {
+            flush();
+            write(ByteBuffer.wrap(bits.bytes(), 0, length));
+        }
+        packagesWritten += n;
+        blockCount = 0;
+    }
+
+    private void reserve(int length) throws IOException {
+        if (out.remaining() < length) flush();
+    }
+
+    @Override
+    int pending() {
+        return out.position();
+    }
+
+    @Override
+    void writeBatch() throws IOException {
+        out.flip();
+        write(out);
+        out.clear();
+    }
+
+    @Override
+    void finish() throws IOException {
+        writeBlock();
+        flush();
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        if (getError() != null) {
+            buffer.position(buffer.limit());
+            return;
+        }
+        bytesWritten += buffer.remaining();
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+}
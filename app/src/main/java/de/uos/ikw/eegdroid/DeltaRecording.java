@@ -0,0 +1,285 @@
+package de.uos.ikw.eegdroid;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import de.uos.ikw.eegdroid.utilities.DcEstimator;
+import de.uos.ikw.eegdroid.utilities.RiceCodec;
+
+/**
+ * Lossless recording format (.eegr) that keeps the DPCM deltas sent by the Traumschreiber,
+ * written by {@link DeltaRecorder}.
+ * <p>
+ * All values are little endian. After the header (see {@link #encodeHeader}) the file holds a
+ * sequence of records, each starting with its type byte:
+ * <ul>
+ * <li>RECORD_ENCODING: bits per channel, byte 13 of the c0de package and the 24 bit shifts
+ * (one byte each). Applies to all following packages.</li>
+ * <li>RECORD_STATE: the 24 decoded signal values (int) before the next package. Written at the
+ * start and whenever the recorder had to skip packages.</li>
+ * <li>RECORD_BLOCK: number of packages n (short), their header bytes (pkgid << 4 | dropped
+ * samples), the payload length (int) and the payload: for every channel the n deltas,
+ * Rice coded with {@link RiceCodec}.</li>
+ * </ul>
+ * The decoded signal of a package is the previous value plus (delta << bit shift), exactly as
+ * accumulated by {@link TraumschreiberService#decode}, so replaying the records reproduces every
+ * value bit by bit. The values are those before the decoder removes the DC offset, which can be
+ * done again with a {@link de.uos.ikw.eegdroid.utilities.DcEstimator}.
+ */
+public class DeltaRecording {
+
+    public static final String EXTENSION = ".eegr";
+    public static final int MAGIC = 0x52474545; // "EEGR"
+    public static final int VERSION = 1;
+    public static final byte RECORD_ENCODING = 1;
+    public static final byte RECORD_STATE = 2;
+    public static final byte RECORD_BLOCK = 3;
+    public static final int BLOCK_PACKAGES = 128;
+    // magic, version, nChannels, samplingRate, microVoltsPerUnit, startTime, blockPackages, metadata length
+    public static final int FIXED_HEADER_BYTES = 36;
+    private static final int READ_BUFFER_BYTES = 256 * 1024;
+    private static final int EXPORT_BATCH_PACKAGES = 1024;
+
+    /**
+     * Encodes the file header.
+     *
+     * @param microVoltsPerUnit factor converting decoded values to micro volts
+     * @param metadata          free text, e.g. the header of the CSV recording
+     */
+    public static ByteBuffer encodeHeader(int nChannels, float samplingRate, float microVoltsPerUnit,
+                                          long startTime, CharSequence metadata) {
+        final byte[] text = metadata.toString().getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_BYTES + text.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(nChannels);
+        header.putFloat(samplingRate);
+        header.putFloat(microVoltsPerUnit);
+        header.putLong(startTime);
+        header.putInt(BLOCK_PACKAGES);
+        header.putInt(text.length);
+        header.put(text);
+        header.flip();
+        return header;
+    }
+
+    public static boolean isDeltaRecording(File file) {
+        return file.getName().toLowerCase().endsWith(EXTENSION);
+    }
+
+    /**
+     * Writes the packages of a delta recording as CSV: the time from the package count, the
+     * channels in micro volts with the DC offset removed like during the session, the package
+     * id and the samples the device dropped before the package.
+     */
+    public static void exportCsv(File recording, File csv) throws IOException {
+        try (Reader reader = new Reader(recording); Writer writer = new FileWriter(csv)) {
+            final int nChannels = reader.getChannelCount();
+            final float microVolts = reader.getMicroVoltsPerUnit();
+            final double interval = 1000.0 / reader.getSamplingRate();
+            final DcEstimator dcEstimator = new DcEstimator(nChannels, TraumschreiberService.DC_TIME_CONSTANT_SHIFT);
+            final int[] pkg = new int[nChannels + 2];
+            final int[] signal = new int[nChannels];
+            final int[] centered = new int[nChannels];
+            final StringBuilder text = new StringBuilder(EXPORT_BATCH_PACKAGES * nChannels * 12);
+            text.append("sampling_time");
+            for (int i = 1; i <= nChannels; i++) text.append(",ch").append(i);
+            text.append(",pkgid,dropped_samples\n");
+            long count = 0;
+            while (reader.next(pkg) > 0) {
+                System.arraycopy(pkg, 2, signal, 0, nChannels);
+                dcEstimator.center(signal, centered, 0);
+                text.append(count++ * interval);
+                for (int i = 0; i < nChannels; i++) text.append(',').append(centered[i] * microVolts);
+                text.append(',').append(pkg[0]).append(',').append(pkg[1]).append('\n');
+                if (count % EXPORT_BATCH_PACKAGES == 0) {
+                    writer.append(text);
+                    text.setLength(0);
+                }
+            }
+            writer.append(text);
+        }
+    }
+
+    /**
+     * Replays a delta recording package by package.
+     */
+    public static class Reader implements Closeable {
+
+        private final FileInputStream stream;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        private final int nChannels;
+        private final float samplingRate;
+        private final float microVoltsPerUnit;
+        private final long startTime;
+        private final String metadata;
+        private final int[] signal;
+        private final int[] bitShift;
+        private final int[] deltas;
+        private final byte[] headers;
+        private byte[] payload = new byte[4096];
+        private int bitsPerCh;
+        private int encodingExtra;
+        private int blockLength;
+        private int blockPosition;
+        private boolean eof;
+
+        public Reader(File recording) throws IOException {
+            stream = new FileInputStream(recording);
+            channel = stream.getChannel();
+            buffer.flip();
+            if (!ensure(FIXED_HEADER_BYTES) || buffer.getInt() != MAGIC)
+                throw new IOException("Not a delta recording: " + recording);
+            final int version = buffer.getInt();
+            if (version > VERSION) throw new IOException("Unsupported delta recording version " + version);
+            nChannels = buffer.getInt();
+            samplingRate = buffer.getFloat();
+            microVoltsPerUnit = buffer.getFloat();
+            startTime = buffer.getLong();
+            final int blockPackages = buffer.getInt();
+            final int metadataLength = buffer.getInt();
+            final byte[] text = new byte[metadataLength];
+            readBytes(text, metadataLength);
+            metadata = new String(text, StandardCharsets.UTF_8);
+            signal = new int[nChannels];
+            bitShift = new int[nChannels];
+            deltas = new int[blockPackages * nChannels];
+            headers = new byte[blockPackages];
+        }
+
+        public int getChannelCount() {
+            return nChannels;
+        }
+
+        public float getSamplingRate() {
+            return samplingRate;
+        }
+
+        public float getMicroVoltsPerUnit() {
+            return microVoltsPerUnit;
+        }
+
+        public long getStartTime() {
+            return startTime;
+        }
+
+        public String getMetadata() {
+            return metadata;
+        }
+
+        /**
+         * @return bits per channel of the package returned last
+         */
+        public int getBitsPerCh() {
+            return bitsPerCh;
+        }
+
+        /**
+         * @return byte 13 of the latest encoding update
+         */
+        public int getEncodingExtra() {
+            return encodingExtra;
+        }
+
+        public int getSignalBitShift(int channel) {
+            return bitShift[channel];
+        }
+
+        /**
+         * Decodes the next package in the layout of {@link TraumschreiberService#decode}:
+         * pos 0: bluetooth id, pos 1: dropped samples, then the decoded channel values
+         * (not centered).
+         *
+         * @param out receives nChannels + 2 values
+         * @return number of values written, 0 at the end of the recording
+         */
+        public int next(int[] out) throws IOException {
+            while (blockPosition == blockLength) {
+                if (!readRecord()) return 0;
+            }
+            final int header = headers[blockPosition] & 0xff;
+            out[0] = (header >> 4) & 0x0f;
+            out[1] = header & 0x0f;
+            for (int i = 0; i < nChannels; i++) {
+                signal[i] += deltas[i * blockLength + blockPosition] << bitShift[i];
+                out[2 + i] = signal[i];
+            }
+            blockPosition++;
+            return nChannels + 2;
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+
+        private boolean readRecord() throws IOException {
+            if (!ensure(1)) return false;
+            final byte type = buffer.get();
+            switch (type) {
+                case RECORD_ENCODING:
+                    if (!ensure(2 + nChannels)) return false;
+                    bitsPerCh = buffer.get();
+                    encodingExtra = buffer.get();
+                    for (int i = 0; i < nChannels; i++) bitShift[i] = buffer.get();
+                    return true;
+                case RECORD_STATE:
+                    if (!ensure(4 * nChannels)) return false;
+                    for (int i = 0; i < nChannels; i++) signal[i] = buffer.getInt();
+                    return true;
+                case RECORD_BLOCK:
+                    if (!ensure(2)) return false;
+                    final int n = buffer.getShort();
+                    if (!ensure(n + 4)) return false;
+                    buffer.get(headers, 0, n);
+                    final int length = buffer.getInt();
+                    if (payload.length < length) payload = new byte[length];
+                    if (!readBytes(payload, length)) return false;
+                    final RiceCodec.BitReader bits = new RiceCodec.BitReader(payload, 0, length);
+                    for (int i = 0; i < nChannels; i++) RiceCodec.decode(bits, deltas, i * n, 1, n);
+                    blockLength = n;
+                    blockPosition = 0;
+                    return true;
+                default:
+                    throw new IOException("Unknown record type " + type);
+            }
+        }
+
+        private boolean readBytes(byte[] into, int length) throws IOException {
+            int done = 0;
+            while (done < length) {
+                if (!ensure(1)) return false;
+                final int chunk = Math.min(length - done, buffer.remaining());
+                buffer.get(into, done, chunk);
+                done += chunk;
+            }
+            return true;
+        }
+
+        // makes at least n bytes available in buffer, false at the end of the file
+        private boolean ensure(int n) throws IOException {
+            if (buffer.remaining() >= n) return true;
+            if (eof) return false;
+            buffer.compact();
+            while (buffer.position() < n) {
+                if (channel.read(buffer) < 0) {
+                    eof = true;
+                    break;
+                }
+            }
+            buffer.flip();
+            // a truncated last record (recording not closed) ends the replay
+            return buffer.remaining() >= n;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package de.uos.ikw.eegdroid;
 import android.content.pm.ActivityInfo;
 import android.graphics.Color;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.widget.CheckBox;
@@ -47,6 +48,7 @@ import de.uos.ikw.eegdroid.utilities.MyXAxisValueFormatterTime;
  */
 public class Display extends AppCompatActivity {
 
+    private final static String TAG = Display.class.getSimpleName();
     private ArrayList<File> arrayListOfFiles;
     private File fileToPlot;
     private LineChart chart;
@@ -310,6 +312,11 @@ public class Display extends AppCompatActivity {
         int nChannels = 8;
         lineDataSets = new LineDataSet[nChannels];
 
+        if (SessionFile.isSessionFile(file)) {
+            loadSessionFile(file, nChannels);
+            return;
+        }
+
         try {
             // create csvReader object and skip first 3 Lines
             CSVReader csvReader = new CSVReaderBuilder(new FileReader(file)).withSkipLines(3).build();
@@ -358,6 +365,26 @@ public class Display extends AppCompatActivity {
         }
     }
 
+    // Reads every 10th row of the first channels of a binary session
+    private void loadSessionFile(File file, int nChannels) {
+        int density = 10;
+        int[] channels = new int[nChannels];
+        for (int i = 0; i < nChannels; i++) channels[i] = i;
+
+        try (SessionFile.Reader reader = new SessionFile.Reader(file)) {
+            int nRows = (int) ((reader.getRowCount() + density - 1) / density);
+            double[] times = new double[nRows];
+            float[][] values = reader.readChannels(channels, density, times);
+            for (int i = 0; i < nChannels; i++) {
+                ArrayList<Entry> entries = new ArrayList<>(nRows);
+                for (int j = 0; j < nRows; j++) entries.add(new Entry((float) times[j], values[i][j]));
+                lineDataSets[i] = new LineDataSet(entries, "Channel_" + (i + 1));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Reading " + file.getName() + " failed: " + e.getMessage());
+        }
+    }
+
     private void setData() {
 
         List<ILineDataSet> dataSets = new ArrayList<ILineDataSet>();
@@ -0,0 +1,360 @@
+package de.uos.ikw.eegdroid;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+
+/**
+ * Runs the GATT operations of one device one after another.
+ * <p>
+ * Android accepts only one outstanding GATT operation per connection and silently rejects the
+ * next one while a callback is pending. Operations are therefore queued and started when the
+ * callback of the previous one arrived (see the on... methods, called from the
+ * {@link android.bluetooth.BluetoothGattCallback}). Values to write are copied when the
+ * operation is queued, so quick successive writes of the same characteristic all reach the
+ * device in order. An operation that cannot be started, fails or gets no callback within its
+ * timeout is retried MAX_RETRIES times before its callback reports the failure. PHY requests
+ * are not retried, a failure there means the devices do not support the PHY.
+ * <p>
+ * The queue exists before its {@link BluetoothGatt}, so the GATT callbacks find it from the
+ * first one on. Operations queued before {@link #setGatt} wait for it.
+ * <p>
+ * Completion callbacks run on the binder thread of the GATT callback or on the thread of the
+ * handler, they must not block.
+ */
+@SuppressLint("MissingPermission") // callers check the BLUETOOTH_CONNECT permission
+public class GattOperationQueue {
+
+    public static final int STATUS_TIMEOUT = -1;
+    public static final int STATUS_CANCELLED = -2;
+    public static final int STATUS_NOT_STARTED = -3;
+    private final static String TAG = GattOperationQueue.class.getSimpleName();
+    private static final long TIMEOUT_MS = 2000;
+    private static final long RETRY_DELAY_MS = 50;
+    private static final int MAX_RETRIES = 2;
+    private static final int READ = 0;
+    private static final int WRITE = 1;
+    private static final int WRITE_DESCRIPTOR = 2;
+    private static final int NOTIFICATION = 3;
+    private static final int MTU = 4;
+    private static final int PHY = 5;
+    private static final int CONNECTION_PRIORITY = 6;
+    private volatile BluetoothGatt gatt;
+    private final Handler handler;
+    private final ArrayDeque<Operation> pending = new ArrayDeque<>();
+    private final Runnable timeout = this::onTimeout;
+    private final Runnable startNext = this::startNext;
+    private Operation current;
+    private volatile long completed;
+    private volatile long failed;
+    private volatile long retries;
+
+    /**
+     * @param handler runs timeouts and delayed retries
+     */
+    public GattOperationQueue(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Sets the connection the operations run on and starts the ones queued so far.
+     */
+    public void setGatt(BluetoothGatt gatt) {
+        this.gatt = gatt;
+        startNext();
+    }
+
+    /**
+     * Reports the outcome of a queued operation.
+     */
+    public interface Callback {
+        /**
+         * @param status {@link BluetoothGatt#GATT_SUCCESS}, a GATT error, or one of the
+         *               STATUS_ constants of this class
+         * @param value  value read or written, the new MTU as 4 bytes for MTU requests,
+         *               null if there is none
+         */
+        void onComplete(int status, byte[] value);
+    }
+
+    public void read(BluetoothGattCharacteristic characteristic, Callback callback) {
+        enqueue(new Operation(READ, characteristic, null, null, 0, callback));
+    }
+
+    /**
+     * Queues a write of the given value, the characteristic gets it right before the write.
+     */
+    public void write(BluetoothGattCharacteristic characteristic, byte[] value, Callback callback) {
+        enqueue(new Operation(WRITE, characteristic, null, value.clone(), 0, callback));
+    }
+
+    public void writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value, Callback callback) {
+        enqueue(new Operation(WRITE_DESCRIPTOR, null, descriptor, value.clone(), 0, callback));
+    }
+
+    /**
+     * Enables or disables notifications (or indications) locally and on the device by writing
+     * the client characteristic configuration descriptor.
+     */
+    public void setNotification(BluetoothGattCharacteristic characteristic, boolean enabled, Callback callback) {
+        enqueue(new Operation(NOTIFICATION, characteristic, null, null, enabled ? 1 : 0, callback));
+    }
+
+    public void requestMtu(int mtu, Callback callback) {
+        enqueue(new Operation(MTU, null, null, null, mtu, callback));
+    }
+
+    /**
+     * Queues a request of the PHY for both directions, e.g. {@link BluetoothDevice#PHY_LE_2M_MASK}.
+     * The callback gets the resulting tx and rx PHY as two bytes.
+     */
+    public void setPreferredPhy(int phyMask, Callback callback) {
+        enqueue(new Operation(PHY, null, null, null, phyMask, callback));
+    }
+
+    /**
+     * Queues a connection priority request, e.g. {@link BluetoothGatt#CONNECTION_PRIORITY_HIGH}.
+     * Android reports no outcome, the callback runs once the request was handed to the stack.
+     */
+    public void requestConnectionPriority(int priority, Callback callback) {
+        enqueue(new Operation(CONNECTION_PRIORITY, null, null, null, priority, callback));
+    }
+
+    /**
+     * Fails all queued operations, e.g. after the connection was lost.
+     */
+    public void clear() {
+        final Operation[] cancelled;
+        synchronized (this) {
+            handler.removeCallbacks(timeout);
+            handler.removeCallbacks(startNext);
+            cancelled = new Operation[pending.size() + (current == null ? 0 : 1)];
+            int n = 0;
+            if (current != null) cancelled[n++] = current;
+            while (!pending.isEmpty()) cancelled[n++] = pending.poll();
+            current = null;
+        }
+        for (Operation operation : cancelled) notify(operation, STATUS_CANCELLED, null);
+    }
+
+    /**
+     * @return true if no operation is running or waiting
+     */
+    public synchronized boolean isIdle() {
+        return current == null && pending.isEmpty();
+    }
+
+    public long getCompletedCount() {
+        return completed;
+    }
+
+    public long getFailedCount() {
+        return failed;
+    }
+
+    public long getRetryCount() {
+        return retries;
+    }
+
+    public void onCharacteristicRead(BluetoothGattCharacteristic characteristic, int status) {
+        complete(READ, characteristic.getUuid(), status, characteristic.getValue());
+    }
+
+    public void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
+        complete(WRITE, characteristic.getUuid(), status, characteristic.getValue());
+    }
+
+    public void onDescriptorWrite(BluetoothGattDescriptor descriptor, int status) {
+        // notification changes finish with the write of their descriptor
+        final UUID characteristic = descriptor.getCharacteristic().getUuid();
+        final boolean notification;
+        synchronized (this) {
+            notification = current != null && current.type == NOTIFICATION
+                    && current.uuid().equals(characteristic);
+        }
+        if (notification) complete(NOTIFICATION, characteristic, status, descriptor.getValue());
+        else complete(WRITE_DESCRIPTOR, descriptor.getUuid(), status, descriptor.getValue());
+    }
+
+    public void onMtuChanged(int mtu, int status) {
+        final byte[] value = {(byte) (mtu >> 24), (byte) (mtu >> 16), (byte) (mtu >> 8), (byte) mtu};
+        complete(MTU, null, status, value);
+    }
+
+    public void onPhyUpdate(int txPhy, int rxPhy, int status) {
+        complete(PHY, null, status, new byte[]{(byte) txPhy, (byte) rxPhy});
+    }
+
+    private void enqueue(Operation operation) {
+        synchronized (this) {
+            pending.add(operation);
+            if (current != null) return;
+        }
+        startNext();
+    }
+
+    private void startNext() {
+        Operation operation;
+        int started;
+        synchronized (this) {
+            if (gatt == null) return;
+            if (current == null) current = pending.poll();
+            operation = current;
+            if (operation == null) return;
+            started = operation.start(gatt);
+            if (started == Operation.STARTED) {
+                handler.removeCallbacks(timeout);
+                handler.postDelayed(timeout, TIMEOUT_MS);
+                return;
+            }
+            if (started == Operation.REJECTED && operation.attempts <= operation.maxRetries()) {
+                // the stack is still busy, e.g. with an operation started elsewhere
+                retries++;
+                handler.postDelayed(startNext, RETRY_DELAY_MS);
+                return;
+            }
+            current = null;
+        }
+        // completed without callback (nothing to write) or rejected too often
+        finish(operation, started == Operation.DONE ? BluetoothGatt.GATT_SUCCESS : STATUS_NOT_STARTED, null);
+        startNext();
+    }
+
+    private void complete(int type, UUID uuid, int status, byte[] value) {
+        final Operation operation;
+        synchronized (this) {
+            operation = current;
+            if (operation == null || operation.type != type
+                    || (uuid != null && !uuid.equals(operation.uuid()))) {
+                // not ours, e.g. a read answered after a timeout
+                return;
+            }
+            handler.removeCallbacks(timeout);
+            if (status != BluetoothGatt.GATT_SUCCESS && operation.attempts <= operation.maxRetries()) {
+                Log.w(TAG, "GATT operation " + type + " failed with status " + status + ", retrying");
+                retries++;
+                handler.postDelayed(startNext, RETRY_DELAY_MS);
+                return;
+            }
+            current = null;
+        }
+        finish(operation, status, value);
+        startNext();
+    }
+
+    private void onTimeout() {
+        final Operation operation;
+        final boolean retry;
+        synchronized (this) {
+            operation = current;
+            if (operation == null) return;
+            retry = operation.attempts <= operation.maxRetries();
+            if (!retry) current = null;
+        }
+        if (retry) {
+            Log.w(TAG, "GATT operation " + operation.type + " timed out, retrying");
+            retries++;
+        } else {
+            finish(operation, STATUS_TIMEOUT, null);
+        }
+        startNext();
+    }
+
+    private void finish(Operation operation, int status, byte[] value) {
+        if (status == BluetoothGatt.GATT_SUCCESS) completed++;
+        else {
+            failed++;
+            Log.w(TAG, "GATT operation " + operation.type + " failed with status " + status);
+        }
+        notify(operation, status, value);
+    }
+
+    private static void notify(Operation operation, int status, byte[] value) {
+        if (operation.callback != null) operation.callback.onComplete(status, value);
+    }
+
+    /**
+     * A queued GATT operation and its arguments.
+     */
+    private static class Operation {
+        static final int STARTED = 0;
+        static final int REJECTED = 1;
+        static final int DONE = 2;
+        final int type;
+        final BluetoothGattCharacteristic characteristic;
+        final BluetoothGattDescriptor descriptor;
+        final byte[] value;
+        final int argument;
+        final Callback callback;
+        int attempts;
+
+        Operation(int type, BluetoothGattCharacteristic characteristic, BluetoothGattDescriptor descriptor,
+                  byte[] value, int argument, Callback callback) {
+            this.type = type;
+            this.characteristic = characteristic;
+            this.descriptor = descriptor;
+            this.value = value;
+            this.argument = argument;
+            this.callback = callback;
+        }
+
+        int maxRetries() {
+            return type == PHY ? 0 : MAX_RETRIES;
+        }
+
+        UUID uuid() {
+            return characteristic != null ? characteristic.getUuid() : descriptor != null ? descriptor.getUuid() : null;
+        }
+
+        int start(BluetoothGatt gatt) {
+            attempts++;
+            boolean started;
+            switch (type) {
+                case READ:
+                    started = gatt.readCharacteristic(characteristic);
+                    break;
+                case WRITE:
+                    characteristic.setValue(value);
+                    started = gatt.writeCharacteristic(characteristic);
+                    break;
+                case WRITE_DESCRIPTOR:
+                    descriptor.setValue(value);
+                    started = gatt.writeDescriptor(descriptor);
+                    break;
+                case NOTIFICATION:
+                    final boolean enabled = argument != 0;
+                    gatt.setCharacteristicNotification(characteristic, enabled);
+                    final BluetoothGattDescriptor config = characteristic.getDescriptor(
+                            UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
+                    if (config == null) return DONE;
+                    // Need to handle Notifications and Indications Differently
+                    final boolean indicate = (characteristic.getProperties()
+                            & BluetoothGattCharacteristic.PROPERTY_INDICATE) > 0;
+                    if (!enabled) config.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+                    else if (indicate) config.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+                    else config.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+                    started = gatt.writeDescriptor(config);
+                    break;
+                case MTU:
+                    started = gatt.requestMtu(argument);
+                    break;
+                case PHY:
+                    gatt.setPreferredPhy(argument, argument, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+                    started = true;
+                    break;
+                case CONNECTION_PRIORITY:
+                    return gatt.requestConnectionPriority(argument) ? DONE : REJECTED;
+                default:
+                    throw new IllegalStateException("Unexpected operation: " + type);
+            }
+            return started ? STARTED : REJECTED;
+        }
+    }
+}
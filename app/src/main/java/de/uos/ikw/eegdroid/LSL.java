@@ -789,12 +789,12 @@ public class LSL {
          */
         public StreamOutlet(StreamInfo info, int chunk_size, int max_buffered) throws IOException {
             obj = inst.lsl_create_outlet(info.handle(), chunk_size, max_buffered);
-            throw new IOException("Unable to open LSL outlet.");
+            if (obj == null) throw new IOException("Unable to open LSL outlet.");
         }
 
         public StreamOutlet(StreamInfo info, int chunk_size) throws IOException {
             obj = inst.lsl_create_outlet(info.handle(), chunk_size, 360);
-            throw new IOException("Unable to open LSL outlet.");
+            if (obj == null) throw new IOException("Unable to open LSL outlet.");
         }
 
         public StreamOutlet(StreamInfo info) throws IOException {
@@ -998,6 +998,18 @@ public class LSL {
             inst.lsl_push_chunk_ftn(obj, data, data.length, timestamps);
         }
 
+        /**
+         * Push the first data_elements values of a buffer as a chunk of multiplexed samples, so a
+         * preallocated buffer can be reused for chunks of any size. One timestamp per sample is provided.
+         *
+         * @param data          A buffer holding the values of multiple samples at its start.
+         * @param data_elements Number of values to push, a multiple of the channel count.
+         * @param timestamps    An array holding a time stamp for each of the pushed samples at its start.
+         */
+        public void push_chunk(float[] data, int data_elements, double[] timestamps) {
+            inst.lsl_push_chunk_ftn(obj, data, data_elements, timestamps);
+        }
+
         public void push_chunk(double[] data, double[] timestamps, boolean pushthrough) {
             inst.lsl_push_chunk_dtnp(obj, data, data.length, timestamps, pushthrough ? 1 : 0);
         }
@@ -0,0 +1,241 @@
+package de.uos.ikw.eegdroid;
+
+import android.util.Log;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds an LSL outlet from a dedicated thread.
+ * <p>
+ * {@link #publish} only copies the sample and its timestamp into a preallocated queue. The
+ * publisher thread takes them out in chunks and hands them to the outlet, so a slow network or
+ * receiver never reaches the processing of the device. What happens when the queue is full is
+ * set by the overflow policy:
+ * <ul>
+ * <li>OVERFLOW_BLOCK: publish waits until the thread made room, nothing is lost but the
+ * processing stalls with the outlet.</li>
+ * <li>OVERFLOW_DROP_OLDEST: the oldest queued sample is dropped, receivers see a gap and the
+ * newest data has the lowest latency.</li>
+ * <li>OVERFLOW_COALESCE: a backlog is pushed as one large chunk instead of chunks of
+ * chunkSize, which needs far fewer calls to catch up. Only if the queue still runs full, the
+ * oldest sample is dropped.</li>
+ * </ul>
+ * Queue depth, drops and the latency from publishing a sample to the return of its push are
+ * available as live metrics. If the outlet throws, the thread stops and {@link #isFailed}
+ * turns true.
+ */
+public class LslPublisher {
+
+    public static final int OVERFLOW_BLOCK = 0;
+    public static final int OVERFLOW_DROP_OLDEST = 1;
+    public static final int OVERFLOW_COALESCE = 2;
+    private final static String TAG = LslPublisher.class.getSimpleName();
+    private static final long PARK_NANOS = 10_000_000L;
+    private final LSL.StreamOutlet outlet;
+    private final int nChannels;
+    private final int chunkSize;
+    private final int capacity;
+    private final int policy;
+    private final Thread thread;
+    // queued samples, multiplexed, with their timestamps and the time they were published
+    private final float[] samples;
+    private final double[] timestamps;
+    private final long[] publishNanos;
+    // next sample to write and to read, guarded by this
+    private long head;
+    private long tail;
+    // chunk being pushed, only touched by the publisher thread
+    private final float[] chunk;
+    private final double[] chunkTimestamps;
+    private volatile boolean running = true;
+    private volatile boolean flushRequested;
+    private volatile boolean failed;
+    private volatile boolean waiting;
+    private volatile long pushed;
+    private volatile long dropped;
+    private volatile long chunks;
+    private volatile int highWaterMark;
+    private volatile long lastLatencyNanos;
+    private volatile long maxLatencyNanos;
+
+    /**
+     * @param outlet    outlet to feed, must stay open until {@link #close} returned
+     * @param nChannels values per sample
+     * @param chunkSize samples per push when the thread keeps up
+     * @param capacity  number of samples the queue can hold
+     * @param policy    one of the OVERFLOW_ constants
+     */
+    public LslPublisher(LSL.StreamOutlet outlet, int nChannels, int chunkSize, int capacity, int policy) {
+        this.outlet = outlet;
+        this.nChannels = nChannels;
+        this.chunkSize = chunkSize;
+        this.capacity = Math.max(capacity, chunkSize);
+        this.policy = policy;
+        this.samples = new float[this.capacity * nChannels];
+        this.timestamps = new double[this.capacity];
+        this.publishNanos = new long[this.capacity];
+        final int maxChunk = policy == OVERFLOW_COALESCE ? this.capacity : chunkSize;
+        this.chunk = new float[maxChunk * nChannels];
+        this.chunkTimestamps = new double[maxChunk];
+        thread = new Thread(this::drain, "LslPublisher");
+        thread.start();
+    }
+
+    /**
+     * Queues a sample. Called by a single producer thread; only waits with OVERFLOW_BLOCK.
+     *
+     * @return false if the publisher has stopped
+     */
+    public boolean publish(float[] sample, double timestamp) {
+        if (!running) return false;
+        final long now = System.nanoTime();
+        synchronized (this) {
+            while (head - tail >= capacity) {
+                if (policy != OVERFLOW_BLOCK) {
+                    tail++;
+                    dropped++;
+                    break;
+                }
+                if (!running) return false;
+                try {
+                    wait(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            final int slot = (int) (head % capacity);
+            System.arraycopy(sample, 0, samples, slot * nChannels, nChannels);
+            timestamps[slot] = timestamp;
+            publishNanos[slot] = now;
+            head++;
+            final int queued = (int) (head - tail);
+            if (queued > highWaterMark) highWaterMark = queued;
+            if (queued < chunkSize || !waiting) return true;
+        }
+        LockSupport.unpark(thread);
+        return true;
+    }
+
+    /**
+     * Pushes the queued samples without waiting for a full chunk, e.g. when the stream stops.
+     */
+    public void flush() {
+        flushRequested = true;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Pushes the queued samples and stops the thread. The outlet is left open.
+     */
+    public void close() {
+        running = false;
+        synchronized (this) {
+            notifyAll();
+        }
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * @return number of samples waiting to be pushed
+     */
+    public synchronized int getQueuedSamples() {
+        return (int) (head - tail);
+    }
+
+    /**
+     * @return the largest number of samples that were waiting at once
+     */
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    public long getPushedSamples() {
+        return pushed;
+    }
+
+    public long getPushedChunks() {
+        return chunks;
+    }
+
+    /**
+     * @return number of samples dropped because the queue was full
+     */
+    public long getDroppedSamples() {
+        return dropped;
+    }
+
+    /**
+     * @return time from publishing the oldest sample of the last chunk to the return of its push, in ms
+     */
+    public float getLastLatencyMillis() {
+        return lastLatencyNanos / 1e6f;
+    }
+
+    /**
+     * @return largest latency of a chunk in ms
+     */
+    public float getMaxLatencyMillis() {
+        return maxLatencyNanos / 1e6f;
+    }
+
+    private void drain() {
+        while (true) {
+            final boolean flushing = flushRequested || !running;
+            if (push(flushing ? 1 : chunkSize)) continue;
+            // the queue is empty (flushing) or holds less than a chunk
+            if (flushing) flushRequested = false;
+            if (!running || failed) break;
+            waiting = true;
+            if (!flushRequested && running && getQueuedSamples() < chunkSize) LockSupport.parkNanos(PARK_NANOS);
+            waiting = false;
+        }
+    }
+
+    /**
+     * Takes up to a chunk out of the queue and pushes it, if at least minSamples are queued.
+     *
+     * @return true if a chunk was pushed
+     */
+    private boolean push(int minSamples) {
+        final int n;
+        final long oldest;
+        synchronized (this) {
+            final int queued = (int) (head - tail);
+            if (queued == 0 || queued < minSamples) return false;
+            // COALESCE takes the whole backlog, the others keep the chunks regular
+            n = Math.min(queued, policy == OVERFLOW_COALESCE ? chunkTimestamps.length : chunkSize);
+            oldest = publishNanos[(int) (tail % capacity)];
+            for (int i = 0; i < n; i++) {
+                final int slot = (int) ((tail + i) % capacity);
+                System.arraycopy(samples, slot * nChannels, chunk, i * nChannels, nChannels);
+                chunkTimestamps[i] = timestamps[slot];
+            }
+            tail += n;
+            if (policy == OVERFLOW_BLOCK) notifyAll();
+        }
+        try {
+            outlet.push_chunk(chunk, n * nChannels, chunkTimestamps);
+        } catch (Exception ex) {
+            Log.e(TAG, "Pushing to the LSL outlet failed: " + ex.getMessage());
+            failed = true;
+            running = false;
+            return false;
+        }
+        final long latency = System.nanoTime() - oldest;
+        lastLatencyNanos = latency;
+        if (latency > maxLatencyNanos) maxLatencyNanos = latency;
+        pushed += n;
+        chunks++;
+        return true;
+    }
+}
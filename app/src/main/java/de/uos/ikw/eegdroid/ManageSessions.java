@@ -21,6 +21,7 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -116,6 +117,9 @@ public class ManageSessions extends AppCompatActivity {
                 case R.id.open_with_app:
                     openWithApp(selectedPositions);
                     return true;
+                case R.id.export_csv:
+                    exportCsv(selectedPositions);
+                    return true;
                 default:
                     return super.onOptionsItemSelected(item);
             }
@@ -157,9 +161,11 @@ public class ManageSessions extends AppCompatActivity {
                         int position = selectedPositions.get(i);
                         String oldName = arrayListOfFiles.get(position).getName().substring(0, 15);
                         String numbering = (renameCount == 0) ? "" : "_" + renameCount;
+                        String fileName = arrayListOfFiles.get(position).getName();
+                        String extension = fileName.substring(fileName.lastIndexOf('.'));
                         File newName = new File(saveDir, oldName +
                                 userInputDialogEditText.getText().toString() +
-                                numbering + ".csv");
+                                numbering + extension);
                         renameCount++;
                         //Check if exist another file with this name
                         if (arrayListOfFiles.contains(newName)) {
@@ -245,6 +251,32 @@ public class ManageSessions extends AppCompatActivity {
         startActivity(intent);
     }
 
+    // Writes a CSV copy next to every selected binary session or delta recording
+    private void exportCsv(ArrayList<Integer> selectedPositions) {
+        int exported = 0;
+        for (int position : selectedPositions) {
+            File session = arrayListOfFiles.get(position);
+            boolean deltaRecording = DeltaRecording.isDeltaRecording(session);
+            if (!deltaRecording && !SessionFile.isSessionFile(session)) continue;
+            String name = session.getName();
+            // the delta recording is written next to a CSV recording of the same name
+            String suffix = deltaRecording ? "_deltas.csv" : ".csv";
+            File csv = new File(session.getParentFile(),
+                    name.substring(0, name.lastIndexOf('.')) + suffix);
+            try {
+                if (deltaRecording) DeltaRecording.exportCsv(session, csv);
+                else SessionFile.exportCsv(session, csv);
+                exported++;
+            } catch (IOException e) {
+                Log.e("ManageSessions: ", "CSV export failed: " + e.getMessage());
+            }
+        }
+        Toast.makeText(getApplicationContext(), "Exported " + exported + " session(s) as CSV", Toast.LENGTH_SHORT).show();
+        readDirectory(MainActivity.getDirSessions());
+        adapter = new SessionAdapter(arrayListOfFiles, getApplicationContext());
+        ((RecyclerView) findViewById(R.id.recycler_view)).setAdapter(adapter);
+    }
+
     public void createDirectory(File dir) {
         if (!dir.exists()) {
             dir.mkdirs(); // creates needed dirs
@@ -253,7 +285,9 @@ public class ManageSessions extends AppCompatActivity {
 
     //Returns a list of recordings in directory
     public void readDirectory(File dir) {
-        arrayListOfFiles = new ArrayList<>(Arrays.asList(Objects.requireNonNull(dir.listFiles((d, name) -> name.toLowerCase().endsWith(".csv") || name.toLowerCase().endsWith(".xdf")))));
+        arrayListOfFiles = new ArrayList<>(Arrays.asList(Objects.requireNonNull(dir.listFiles((d, name) -> name.toLowerCase().endsWith(".csv") || name.toLowerCase().endsWith(".xdf")
+                || name.toLowerCase().endsWith(SessionFile.EXTENSION)
+                || name.toLowerCase().endsWith(DeltaRecording.EXTENSION)))));
         arrayListOfFiles.sort(Collections.reverseOrder());
         //Add if here?
     }
@@ -0,0 +1,403 @@
+package de.uos.ikw.eegdroid;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Captures the raw notifications of one Traumschreiber, with their characteristic and arrival
+ * time, to a compact file (.tscap) that {@link PacketReplay} can feed back into a
+ * {@link PacketPipeline}.
+ * <p>
+ * {@link #onPacket} is called on the bluetooth thread; it copies the packet with its arrival
+ * time into a preallocated {@link SampleRingBuffer} and never blocks. Packets that do not fit into the queue or exceed MAX_PACKET_BYTES are counted as
+ * dropped. A writer thread encodes and writes them in batches.
+ * <p>
+ * A capture usually starts in the middle of a stream, so the packets alone cannot be decoded:
+ * resolution, notifying characteristic, encoding shifts and the DPCM integrator are set by
+ * earlier packets and by the app. {@link PacketPipeline} therefore hands the decoder state to
+ * {@link #onDecoderState} before the first packet and after every change of the resolution or
+ * the notifying characteristic, and the capture stores it as a state record in between the
+ * packets.
+ * <p>
+ * File layout (little endian): MAGIC, VERSION, wall clock time of the start of the capture in ms,
+ * length of the device address (short) and the address (UTF-8), followed by the records:
+ * time since the previous packet in ns (varint, 0 for state records), characteristic (byte, index into
+ * {@link #KNOWN_UUIDS}, 0xff followed by the UUID as two longs or STATE_RECORD), length (varint)
+ * and the bytes. The bytes of a state record are the bits per channel, the index of the
+ * notifying characteristic, the 24 encoding shifts and the extra encoding byte (bytes), the 24
+ * integrator values (ints), whether the DC estimate is seeded (byte) and the 24 DC offsets (longs).
+ * Version 1 files have no state records.
+ */
+public class PacketCapture extends BackgroundWriter implements PacketSink, Closeable {
+
+    public static final String EXTENSION = ".tscap";
+    public static final int MAGIC = 0x50435354; // "TSCP"
+    public static final int VERSION = 2;
+    public static final int MAX_PACKET_BYTES = 512;
+    // characteristics written as a single byte
+    static final UUID[] KNOWN_UUIDS = {
+            TraumschreiberService.notifyingUUIDs.get(0),
+            TraumschreiberService.notifyingUUIDs.get(1),
+            TraumschreiberService.notifyingUUIDs.get(2),
+            TraumschreiberService.codeUUID,
+            TraumschreiberService.configUUID,
+    };
+    private final static String TAG = PacketCapture.class.getSimpleName();
+    private static final int UNKNOWN_UUID = 0xff;
+    private static final int STATE_RECORD = 0xfe;
+    // 4 single bytes, then per channel a shift (byte), an integrator (int) and a DC offset (long)
+    private static final int STATE_BYTES = 4 + TraumschreiberService.nChannels * (1 + 4 + 8);
+    // ~30 s of notifications at 250 Hz
+    private static final int QUEUE_CAPACITY = 8192;
+    // uuid index, length, nanoTime (2 ints), uuid (4 ints), then the bytes packed into ints
+    private static final int SLOT_HEADER = 8;
+    private static final int BATCH_BYTES = 64 * 1024;
+    private static final int SLOT_SIZE = SLOT_HEADER + MAX_PACKET_BYTES / 4;
+    private final int[] producerSlot = new int[SLOT_SIZE];
+    private final FileChannel channel;
+    private final ByteBuffer out = ByteBuffer.allocate(BATCH_BYTES + MAX_PACKET_BYTES + 64)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer stateBytes = ByteBuffer.allocate(STATE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private final String address;
+    private volatile long packetsWritten;
+    private volatile long bytesWritten;
+    private long droppedPackets; // only written by the producer
+    private long previousNanos;
+    private boolean firstPacket = true;
+
+    /**
+     * Creates the capture file and starts the writer thread.
+     *
+     * @param address address of the captured device, kept in the header
+     */
+    public PacketCapture(File file, String address) throws IOException {
+        super("PacketCapture", QUEUE_CAPACITY, SLOT_SIZE);
+        this.address = address == null ? "" : address;
+        this.channel = new FileOutputStream(file).getChannel();
+        final byte[] name = this.address.getBytes(StandardCharsets.UTF_8);
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putLong(System.currentTimeMillis());
+        out.putShort((short) name.length);
+        out.put(name);
+        start();
+    }
+
+    @Override
+    public void onPacket(UUID characteristicId, byte[] data, long arrivalNanos) {
+        if (!isRunning()) return;
+        if (data.length > MAX_PACKET_BYTES) {
+            droppedPackets++;
+            return;
+        }
+        offer(indexOf(characteristicId), characteristicId, data, data.length, arrivalNanos);
+    }
+
+    /**
+     * Stores the state as a record before the following packets. Called on the bluetooth thread.
+     */
+    @Override
+    public void onDecoderState(TraumschreiberService.State state) {
+        if (!isRunning()) return;
+        stateBytes.clear();
+        encodeState(state, stateBytes);
+        if (!offer(STATE_RECORD, null, stateBytes.array(), STATE_BYTES, 0) && isRunning()) {
+            Log.w(TAG, "Capture queue full, the following packets cannot be decoded exactly");
+        }
+    }
+
+    private boolean offer(int index, UUID characteristicId, byte[] data, int length, long nanos) {
+        final int[] slot = producerSlot;
+        slot[0] = index;
+        slot[1] = length;
+        slot[2] = (int) (nanos >>> 32);
+        slot[3] = (int) nanos;
+        if (index == UNKNOWN_UUID) {
+            final long msb = characteristicId.getMostSignificantBits();
+            final long lsb = characteristicId.getLeastSignificantBits();
+            slot[4] = (int) (msb >>> 32);
+            slot[5] = (int) msb;
+            slot[6] = (int) (lsb >>> 32);
+            slot[7] = (int) lsb;
+        }
+        final int words = (length + 3) / 4;
+        for (int w = 0, b = 0; w < words; w++, b += 4) {
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                v <<= 8;
+                if (b + i < length) v |= data[b + i] & 0xff;
+            }
+            slot[SLOT_HEADER + w] = v;
+        }
+        final boolean queued = offer(slot, SLOT_HEADER + words);
+        if (!queued && isRunning()) droppedPackets++;
+        return queued;
+    }
+
+    /**
+     * Writes all queued packets, stops the writer thread and closes the file. A packet being
+     * queued on the bluetooth thread is still written, later ones are ignored.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!stop()) return;
+        channel.close();
+        if (getError() != null) throw getError();
+    }
+
+    public long getPacketsWritten() {
+        return packetsWritten;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return packets lost because the queue was full or they were too large
+     */
+    public long getDroppedPackets() {
+        return droppedPackets;
+    }
+
+    private static void encodeState(TraumschreiberService.State state, ByteBuffer b) {
+        b.put((byte) state.bitsPerCh);
+        b.put((byte) state.notifyingIndex);
+        for (int shift : state.signalBitShift) b.put((byte) shift);
+        b.put((byte) state.encodingExtra);
+        for (int value : state.decodedSignal) b.putInt(value);
+        b.put((byte) (state.dcSeeded ? 1 : 0));
+        for (long offset : state.dcOffset) b.putLong(offset);
+    }
+
+    private static TraumschreiberService.State decodeState(ByteBuffer b) {
+        final TraumschreiberService.State state = new TraumschreiberService.State();
+        state.bitsPerCh = b.get();
+        state.notifyingIndex = b.get();
+        for (int i = 0; i < state.signalBitShift.length; i++) state.signalBitShift[i] = b.get();
+        state.encodingExtra = b.get();
+        for (int i = 0; i < state.decodedSignal.length; i++) state.decodedSignal[i] = b.getInt();
+        state.dcSeeded = b.get() != 0;
+        for (int i = 0; i < state.dcOffset.length; i++) state.dcOffset[i] = b.getLong();
+        return state;
+    }
+
+    private static int indexOf(UUID uuid) {
+        for (int i = 0; i < KNOWN_UUIDS.length; i++) if (KNOWN_UUIDS[i].equals(uuid)) return i;
+        return UNKNOWN_UUID;
+    }
+
+    @Override
+    void handle(int[] slot) throws IOException {
+        encode(slot);
+        if (out.position() >= BATCH_BYTES) flush();
+    }
+
+    private void encode(int[] slot) {
+        if (slot[0] == STATE_RECORD) {
+            // belongs to the following packet, has no arrival time of its own
+            putVarLong(out, 0);
+        } else {
+            final long nanos = ((long) slot[2] << 32) | (slot[3] & 0xffffffffL);
+            if (firstPacket) {
+                previousNanos = nanos;
+                firstPacket = false;
+            }
+            putVarLong(out, nanos - previousNanos);
+            previousNanos = nanos;
+        }
+        out.put((byte) slot[0]);
+        if (slot[0] == UNKNOWN_UUID) {
+            out.putLong(((long) slot[4] << 32) | (slot[5] & 0xffffffffL));
+            out.putLong(((long) slot[6] << 32) | (slot[7] & 0xffffffffL));
+        }
+        final int length = slot[1];
+        putVarLong(out, length);
+        for (int i = 0; i < length; i++) {
+            out.put((byte) (slot[SLOT_HEADER + i / 4] >>> (24 - 8 * (i % 4))));
+        }
+        packetsWritten++;
+    }
+
+    @Override
+    int pending() {
+        return out.position();
+    }
+
+    @Override
+    void writeBatch() throws IOException {
+        out.flip();
+        try {
+            if (getError() == null) {
+                bytesWritten += out.remaining();
+                while (out.hasRemaining()) channel.write(out);
+            }
+        } finally {
+            out.clear();
+        }
+    }
+
+    private static void putVarLong(ByteBuffer b, long v) {
+        while ((v & ~0x7fL) != 0) {
+            b.put((byte) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        b.put((byte) v);
+    }
+
+    /**
+     * Reads the packets of a capture file one after another.
+     */
+    public static class Reader implements Closeable {
+
+        private final FileInputStream stream;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(256 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        // reused arrays by packet length, packets are handed out without allocating
+        private final byte[][] arrays = new byte[MAX_PACKET_BYTES + 1][];
+        private final long startTime;
+        private final String address;
+        private boolean eof;
+        private long nanos;
+        private UUID characteristicId;
+        private byte[] data;
+        private TraumschreiberService.State state;
+
+        public Reader(File capture) throws IOException {
+            stream = new FileInputStream(capture);
+            channel = stream.getChannel();
+            buffer.flip();
+            if (!ensure(22) || buffer.getInt() != MAGIC)
+                throw new IOException("Not a packet capture: " + capture);
+            final int version = buffer.getInt();
+            if (version > VERSION) throw new IOException("Unsupported capture version " + version);
+            startTime = buffer.getLong();
+            final int nameLength = buffer.getShort();
+            if (!ensure(nameLength)) throw new IOException("Truncated capture header: " + capture);
+            final byte[] name = new byte[nameLength];
+            buffer.get(name);
+            address = new String(name, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @return wall clock time of the start of the capture in ms
+         */
+        public long getStartTime() {
+            return startTime;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        /**
+         * Advances to the next record, a packet or a decoder state.
+         *
+         * @return false at the end of the capture
+         */
+        public boolean next() throws IOException {
+            // longest packet header: 10 bytes time, 17 bytes uuid, 3 bytes length
+            if (!ensure(30) && (eof && !buffer.hasRemaining())) return false;
+            try {
+                nanos += getVarLong();
+                final int index = buffer.get() & 0xff;
+                if (index == UNKNOWN_UUID) {
+                    characteristicId = new UUID(buffer.getLong(), buffer.getLong());
+                } else if (index == STATE_RECORD) {
+                    characteristicId = null;
+                } else {
+                    characteristicId = KNOWN_UUIDS[index];
+                }
+                final int length = (int) getVarLong();
+                if (length > MAX_PACKET_BYTES || !ensure(length)) return false;
+                if (index == STATE_RECORD) {
+                    final int end = buffer.position() + length;
+                    state = decodeState(buffer);
+                    buffer.position(end);
+                    data = null;
+                    return true;
+                }
+                state = null;
+                if (arrays[length] == null) arrays[length] = new byte[length];
+                data = arrays[length];
+                buffer.get(data);
+                return true;
+            } catch (BufferUnderflowException e) {
+                // truncated last packet (capture not closed)
+                return false;
+            }
+        }
+
+        /**
+         * @return arrival time of the current record in ns after the first packet
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return characteristic of the current packet, null for a state record
+         */
+        public UUID getCharacteristicId() {
+            return characteristicId;
+        }
+
+        /**
+         * @return bytes of the current packet, the array is reused for later packets,
+         * null for a state record
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * @return decoder state of the current record, null if it is a packet
+         */
+        public TraumschreiberService.State getState() {
+            return state;
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+
+        private long getVarLong() {
+            long v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get();
+                v |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return v;
+        }
+
+        // makes n bytes available if the file still has them
+        private boolean ensure(int n) throws IOException {
+            if (buffer.remaining() >= n) return true;
+            if (eof) return false;
+            buffer.compact();
+            while (buffer.position() < n) {
+                if (channel.read(buffer) < 0) {
+                    eof = true;
+                    break;
+                }
+            }
+            buffer.flip();
+            return buffer.remaining() >= n;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package de.uos.ikw.eegdroid;
+
+import android.util.Log;
+
+import java.util.UUID;
+
+/**
+ * Decoder, sample queue and dispatcher thread of a single Traumschreiber.
+ * <p>
+ * This is the entry point for raw packets of one device: the GATT callbacks of
+ * {@link BluetoothLeService} feed it as well as replayed or generated packets, so all of them
+ * take exactly the same path through decoding, queueing and processing. {@link #onPacket} must
+ * be called by one thread at a time and never blocks. Optionally, a {@link PacketReorderer}
+ * puts packets that arrive slightly late back in order before they are decoded.
+ */
+public class PacketPipeline implements PacketSink {
+
+    private final static String TAG = PacketPipeline.class.getSimpleName();
+    private final String address;
+    private final TraumschreiberService decoder;
+    private final SampleDispatcher dispatcher;
+    // decoding buffer, only touched by the thread calling onPacket
+    private final int[] decoded = new int[TraumschreiberService.DECODED_PKG_SIZE];
+    private final PacketSink decoding = this::decodePacket;
+    private volatile PacketSink capture;
+    private volatile int reorderWindow;
+    // only touched by the thread calling onPacket: the reorderer for reorderWindow and the
+    // capture that has the current decoder state
+    private PacketReorderer reorderer;
+    private PacketSink syncedCapture;
+    private int syncedBitsPerCh;
+    private UUID syncedNotifyingUUID;
+
+    /**
+     * @param address  device address, also names the dispatcher thread
+     * @param capacity number of decoded packages the queue can hold
+     * @param consumer receives the decoded packages on the dispatcher thread
+     */
+    public PacketPipeline(String address, int capacity, SampleDispatcher.Consumer consumer) {
+        this.address = address;
+        this.decoder = new TraumschreiberService(address);
+        this.dispatcher = new SampleDispatcher("SampleDispatcher-" + address,
+                new SampleRingBuffer(capacity, TraumschreiberService.DECODED_PKG_SIZE), consumer);
+    }
+
+    @Override
+    public void onPacket(UUID characteristicId, byte[] data, long arrivalNanos) {
+        if (data == null || data.length == 0) return;
+        final PacketSink c = capture;
+        if (c != null) {
+            if (c != syncedCapture || decoder.getBitsPerCh() != syncedBitsPerCh
+                    || !decoder.getNotifyingUUID().equals(syncedNotifyingUUID)) {
+                syncCapture(c);
+            }
+            c.onPacket(characteristicId, data, arrivalNanos);
+        }
+        if (reorderWindow != (reorderer == null ? 0 : reorderer.getWindow())) applyReorderWindow();
+        if (reorderer != null) reorderer.onPacket(characteristicId, data, arrivalNanos);
+        else decodePacket(characteristicId, data, arrivalNanos);
+    }
+
+    /**
+     * Continues decoding from the given state, e.g. recorded in a replayed {@link PacketCapture}.
+     * Held packets are decoded first, as they were received before the state was taken.
+     */
+    @Override
+    public void onDecoderState(TraumschreiberService.State state) {
+        if (reorderer != null) reorderer.flush();
+        decoder.setState(state);
+    }
+
+    // hands the capture the state the following packets depend on
+    private void syncCapture(PacketSink c) {
+        // decode the held packets first, so the state covers every packet received before it
+        if (reorderer != null) reorderer.flush();
+        c.onDecoderState(decoder.getState());
+        syncedCapture = c;
+        syncedBitsPerCh = decoder.getBitsPerCh();
+        syncedNotifyingUUID = decoder.getNotifyingUUID();
+    }
+
+    // replaces the reorderer on the receiving thread, the held packets of the old one go first
+    private void applyReorderWindow() {
+        if (reorderer != null) reorderer.flush();
+        final int window = reorderWindow;
+        reorderer = window > 0 ? new PacketReorderer(decoding, window) : null;
+    }
+
+    private void decodePacket(UUID characteristicId, byte[] data, long arrivalNanos) {
+        // decodes into the reused buffer of this device, n == 0 means there is nothing to pass on
+        final int n = decoder.decode(data, characteristicId, decoded, arrivalNanos);
+        if (n == 0) return;
+        if (!dispatcher.offer(decoded, n)) {
+            Log.w(TAG, "Sample buffer of " + address + " full, dropped a package");
+        }
+    }
+
+    /**
+     * Starts or stops (null) handing a copy of every raw packet to the given sink,
+     * e.g. a {@link PacketCapture}. The sink is called on the receiving thread and receives the
+     * decoder state before the first packet and whenever the resolution changes.
+     */
+    public void setCapture(PacketSink capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * Holds back up to window packets after a gap in the package ids, waiting for the missing
+     * one. 0 passes every packet on as it arrives. Takes effect with the next packet; packets
+     * held back under the previous window are decoded first.
+     */
+    public void setReorderWindow(int window) {
+        if (window < 0 || window > PacketReorderer.MAX_WINDOW) throw new IllegalArgumentException("Window: " + window);
+        reorderWindow = window;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public TraumschreiberService getDecoder() {
+        return decoder;
+    }
+
+    public SampleRingBuffer getBuffer() {
+        return dispatcher.getBuffer();
+    }
+
+    /**
+     * Stops the dispatcher thread, packages still queued are discarded.
+     */
+    public void stop() {
+        dispatcher.stop();
+    }
+}
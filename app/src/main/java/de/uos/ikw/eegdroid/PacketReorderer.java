@@ -0,0 +1,159 @@
+package de.uos.ikw.eegdroid;
+
+import java.util.UUID;
+
+/**
+ * Restores the order of data packets that arrive up to a few places too late, before they
+ * reach the decoder. The DPCM decoder adds every delta to the previous value, so a package
+ * decoded out of order shifts the values of its neighbours.
+ * <p>
+ * After a gap in the package ids, up to window packages are held back. If the missing package
+ * arrives in the meantime it is passed on at its place, otherwise the held packages are
+ * released in order once the window is full or the oldest of them has been held for the hold
+ * timeout, and the missing one counts as lost. The timeout is checked whenever a packet
+ * arrives. Every packet keeps its arrival time, so the decoder sizes gaps by the time the
+ * packets were received and not by the time they were released. Packages of
+ * other characteristics (encoding updates, config data) first release all held packages, as
+ * encoding updates apply to the packages sent before them. The held packages are copied into
+ * preallocated slots, so {@link #onPacket} never allocates.
+ */
+public class PacketReorderer implements PacketSink {
+
+    // ids are 4 bit, the window must leave room to tell late from early packages
+    public static final int MAX_WINDOW = 7;
+    // a few connection intervals, late packets usually come with the next connection event
+    public static final long DEFAULT_HOLD_TIMEOUT_NS = 50_000_000L;
+    private static final int ID_RANGE = 16;
+    private final PacketSink sink;
+    private final int window;
+    private final long holdTimeoutNanos;
+    private final byte[][] slots = new byte[ID_RANGE][PacketCapture.MAX_PACKET_BYTES];
+    private final int[] slotLength = new int[ID_RANGE];
+    private final UUID[] slotCharacteristic = new UUID[ID_RANGE];
+    private final long[] slotArrival = new long[ID_RANGE];
+    private final byte[][] released = new byte[PacketCapture.MAX_PACKET_BYTES + 1][];
+    private int expectedId = -1;
+    private int held;
+    // arrival time of the oldest held package
+    private long heldSince;
+    private volatile long reordered;
+    private volatile long timeouts;
+
+    /**
+     * @param sink   receives the packets in order on the calling thread
+     * @param window number of packages to hold back after a gap, 1 to MAX_WINDOW
+     */
+    public PacketReorderer(PacketSink sink, int window) {
+        this(sink, window, DEFAULT_HOLD_TIMEOUT_NS);
+    }
+
+    /**
+     * @param sink             receives the packets in order on the calling thread
+     * @param window           number of packages to hold back after a gap, 1 to MAX_WINDOW
+     * @param holdTimeoutNanos longest time to wait for a missing package
+     */
+    public PacketReorderer(PacketSink sink, int window, long holdTimeoutNanos) {
+        if (window < 1 || window > MAX_WINDOW) throw new IllegalArgumentException("Window: " + window);
+        this.sink = sink;
+        this.window = window;
+        this.holdTimeoutNanos = holdTimeoutNanos;
+    }
+
+    @Override
+    public void onPacket(UUID characteristicId, byte[] data, long arrivalNanos) {
+        if (held > 0 && arrivalNanos - heldSince > holdTimeoutNanos) {
+            timeouts++;
+            flush();
+        }
+        if (!TraumschreiberService.notifyingUUIDs.contains(characteristicId)
+                || data.length > PacketCapture.MAX_PACKET_BYTES) {
+            flush();
+            sink.onPacket(characteristicId, data, arrivalNanos);
+            return;
+        }
+        final int id = (data[0] >> 4) & 0x0f;
+        if (expectedId < 0) expectedId = id;
+        final int ahead = (id - expectedId) & (ID_RANGE - 1);
+        if (ahead == 0) {
+            pass(characteristicId, data, arrivalNanos, id);
+            if (held > 0) {
+                reordered++;
+                drain();
+            }
+        } else if (ahead <= window && slotLength[id] == 0) {
+            hold(characteristicId, data, arrivalNanos, id);
+            if (held == window) flush();
+        } else if (ahead >= ID_RANGE - window) {
+            // already given up on, the decoder takes it as late package
+            sink.onPacket(characteristicId, data, arrivalNanos);
+        } else {
+            // a longer gap, nothing to wait for
+            flush();
+            pass(characteristicId, data, arrivalNanos, id);
+        }
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Releases all held packages in order.
+     */
+    public void flush() {
+        while (held > 0) {
+            while (slotLength[expectedId] == 0) expectedId = (expectedId + 1) & (ID_RANGE - 1);
+            drain();
+        }
+    }
+
+    /**
+     * @return number of packages that were passed on at their place after arriving too late
+     */
+    public long getReordered() {
+        return reordered;
+    }
+
+    /**
+     * @return number of times held packages were released because the hold timeout expired
+     */
+    public long getTimeouts() {
+        return timeouts;
+    }
+
+    private void pass(UUID characteristicId, byte[] data, long arrivalNanos, int id) {
+        sink.onPacket(characteristicId, data, arrivalNanos);
+        expectedId = (id + 1) & (ID_RANGE - 1);
+    }
+
+    // passes on the held packages that follow without gap
+    private void drain() {
+        while (slotLength[expectedId] > 0) {
+            final int id = expectedId;
+            final int length = slotLength[id];
+            // the sink expects arrays of the packet length, reuse one per length
+            if (released[length] == null) released[length] = new byte[length];
+            System.arraycopy(slots[id], 0, released[length], 0, length);
+            slotLength[id] = 0;
+            held--;
+            pass(slotCharacteristic[id], released[length], slotArrival[id], id);
+        }
+        if (held > 0) heldSince = oldestArrival();
+    }
+
+    private void hold(UUID characteristicId, byte[] data, long arrivalNanos, int id) {
+        System.arraycopy(data, 0, slots[id], 0, data.length);
+        slotLength[id] = data.length;
+        slotCharacteristic[id] = characteristicId;
+        slotArrival[id] = arrivalNanos;
+        if (held++ == 0) heldSince = arrivalNanos;
+    }
+
+    private long oldestArrival() {
+        long oldest = Long.MAX_VALUE;
+        for (int id = 0; id < ID_RANGE; id++) {
+            if (slotLength[id] > 0 && slotArrival[id] < oldest) oldest = slotArrival[id];
+        }
+        return oldest;
+    }
+}
@@ -0,0 +1,164 @@
+package de.uos.ikw.eegdroid;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.UUID;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds a {@link PacketCapture} file into a {@link PacketSink}, usually a {@link PacketPipeline},
+ * so recorded sessions can be decoded and processed again without a Traumschreiber.
+ * <p>
+ * The decoder states recorded in the capture are handed to the sink before the packets that
+ * depend on them. In real-time mode the packets keep their original spacing, otherwise they are
+ * pushed as fast as the sink accepts them, which measures the throughput of the pipeline.
+ * <p>
+ * {@link #main} decodes a capture on a desktop JVM (see the jvm module) and optionally writes the
+ * decoded packages as CSV.
+ */
+public class PacketReplay implements Runnable {
+
+    private final File capture;
+    private final PacketSink sink;
+    private final boolean realTime;
+    private volatile boolean running = true;
+    private volatile long packetsReplayed;
+    private volatile long elapsedNanos;
+    private IOException error;
+
+    /**
+     * @param realTime true to reproduce the original timing, false to replay as fast as possible
+     */
+    public PacketReplay(File capture, PacketSink sink, boolean realTime) {
+        this.capture = capture;
+        this.sink = sink;
+        this.realTime = realTime;
+    }
+
+    /**
+     * Replays the capture on the calling thread until its end or {@link #stop}.
+     */
+    @Override
+    public void run() {
+        final long start = System.nanoTime();
+        try (PacketCapture.Reader reader = new PacketCapture.Reader(capture)) {
+            while (running && reader.next()) {
+                if (realTime) {
+                    final long due = start + reader.getNanos();
+                    long wait;
+                    while (running && (wait = due - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+                }
+                if (reader.getState() != null) {
+                    sink.onDecoderState(reader.getState());
+                    continue;
+                }
+                // the original spacing, so that gaps are sized like in the live session
+                sink.onPacket(reader.getCharacteristicId(), reader.getData(), start + reader.getNanos());
+                packetsReplayed++;
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+        elapsedNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Replays the capture on a new thread.
+     */
+    public Thread start() {
+        final Thread thread = new Thread(this, "PacketReplay");
+        thread.start();
+        return thread;
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    public long getPacketsReplayed() {
+        return packetsReplayed;
+    }
+
+    /**
+     * @return packets per second of the finished replay
+     */
+    public double getPacketsPerSecond() {
+        return elapsedNanos > 0 ? packetsReplayed * 1e9 / elapsedNanos : 0;
+    }
+
+    /**
+     * @return the error that ended the replay, null if it reached the end of the capture
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    /**
+     * Decodes a capture and prints the package statistics.
+     * Usage: PacketReplay capture.tscap [--realtime] [--csv decoded.csv]
+     * The CSV has the columns pkgid, pkgloss and the decoded value of every channel.
+     */
+    public static void main(String[] args) throws IOException {
+        File capture = null;
+        File csvFile = null;
+        boolean realTime = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--realtime")) realTime = true;
+            else if (args[i].equals("--csv") && i + 1 < args.length) csvFile = new File(args[++i]);
+            else capture = new File(args[i]);
+        }
+        if (capture == null) {
+            System.err.println("Usage: PacketReplay capture" + PacketCapture.EXTENSION
+                    + " [--realtime] [--csv decoded.csv]");
+            System.exit(2);
+            return;
+        }
+        final TraumschreiberService decoder = new TraumschreiberService();
+        final int[] decoded = new int[TraumschreiberService.DECODED_PKG_SIZE];
+        final long[] packages = new long[1];
+        try (Writer csv = csvFile == null ? null : new BufferedWriter(new FileWriter(csvFile))) {
+            if (csv != null) {
+                csv.write("pkgid,pkgloss");
+                for (int i = 1; i <= TraumschreiberService.nChannels; i++) csv.write(",ch" + i);
+                csv.write('\n');
+            }
+            // decodes on the replay thread, so nothing is dropped however fast the replay runs
+            final PacketSink sink = new PacketSink() {
+                @Override
+                public void onPacket(UUID characteristicId, byte[] data, long arrivalNanos) {
+                    final boolean signal = characteristicId.equals(decoder.getNotifyingUUID());
+                    if (decoder.decode(data, characteristicId, decoded, arrivalNanos) == 0 || !signal) return;
+                    packages[0]++;
+                    if (csv == null) return;
+                    try {
+                        csv.write(decoded[0] + "," + decoded[TraumschreiberService.LOST_PKGS_POS]);
+                        for (int i = 0; i < TraumschreiberService.nChannels; i++) {
+                            csv.write(",");
+                            csv.write(Integer.toString(decoded[2 + i]));
+                        }
+                        csv.write('\n');
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+
+                @Override
+                public void onDecoderState(TraumschreiberService.State state) {
+                    decoder.setState(state);
+                }
+            };
+            final PacketReplay replay = new PacketReplay(capture, sink, realTime);
+            replay.run();
+            if (replay.getError() != null) throw replay.getError();
+            final SequenceTracker tracker = decoder.getSequenceTracker();
+            System.out.printf("%d packets replayed at %.0f packets/s%n",
+                    replay.getPacketsReplayed(), replay.getPacketsPerSecond());
+            System.out.printf("%d data packages, %d lost, %d late, %d dropped samples, loss %.3f %%%n",
+                    packages[0], tracker.getLost(), tracker.getLate(), decoder.getDroppedSampleCount(),
+                    tracker.getLossRatio() * 100);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package de.uos.ikw.eegdroid;
+
+import java.util.UUID;
+
+/**
+ * Receives raw Traumschreiber notifications, as delivered by the GATT callbacks of
+ * {@link BluetoothLeService}, a {@link PacketReplay} or a {@link PacketPipeline}'s capture.
+ */
+public interface PacketSink {
+    /**
+     * @param characteristicId characteristic the bytes were received from
+     * @param data             raw notification bytes, not retained by the sink
+     * @param arrivalNanos     {@link System#nanoTime} at which the notification was received
+     */
+    void onPacket(UUID characteristicId, byte[] data, long arrivalNanos);
+
+    /**
+     * Announces the decoder state the following packets were received with: at the start of a
+     * capture and after every change of the resolution or the notifying characteristic.
+     * Ignored by sinks that do not decode or record.
+     *
+     * @param state decoder state, not modified by the sink
+     */
+    default void onDecoderState(TraumschreiberService.State state) {
+    }
+}
@@ -1,6 +1,7 @@
 package de.uos.ikw.eegdroid;
 
 import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
@@ -10,6 +11,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
+import android.content.SharedPreferences;
 import android.graphics.Color;
 import android.os.Bundle;
 import android.os.Handler;
@@ -51,14 +53,9 @@ import com.github.mikephil.charting.listener.OnChartValueSelectedListener;
 import com.github.mikephil.charting.utils.MPPointD;
 import com.github.mikephil.charting.utils.MPPointF;
 
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.sql.Timestamp;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
@@ -66,22 +63,35 @@ import java.util.Timer;
 import java.util.TimerTask;
 import java.util.UUID;
 
+import de.uos.ikw.eegdroid.utilities.BiquadFilter;
+
 
 public class Record extends AppCompatActivity {
 
 
     public static final String EXTRAS_DEVICE_NAME = "DEVICE_NAME";
     public static final String EXTRAS_DEVICE_ADDRESS = "DEVICE_ADDRESS";
+    // packets held back to restore the order of late packets, if enabled in the settings
+    private static final int REORDER_WINDOW = 4;
     private final static String TAG = Record.class.getSimpleName();
-    public final List<Float> timestamps = new ArrayList<>();
-    public final List<Float> samplingTimes = new ArrayList<>();
-    public final ArrayList<Integer> pkgIDs = new ArrayList<>();
-    public final List<Integer> pkgsLost = new ArrayList<>();
-    final String delimiter = ",";
-    final String lineBreak = "\n";
     private final Handler handler = new Handler();
-    private final List<List<Float>> accumulatedSamples = new ArrayList<>();
-    private final Float[] channelOffsets = new Float[24];
+    // guards the accumulated samples and the package counts, which the dispatcher thread fills
+    // and the UI thread takes
+    private final Object plotLock = new Object();
+    // samples waiting for the next plot refresh; more than a second of data at 250 Hz, used as
+    // ring that keeps the newest samples when the plot lags
+    private final float[][] accumulatedSamples = new float[512][24];
+    private int accumulatedStart = 0;
+    private int accumulatedCount = 0;
+    private boolean plotRefreshPending = false;
+    private final Runnable plotRefresh = this::refreshPlot;
+    // the accumulated samples taken over by the UI thread for a refresh
+    private final float[][] refreshSamples = new float[512][24];
+    // oldest samples overwritten before they were plotted, since the last refresh and in total
+    // (read by the stats dialog on the UI thread)
+    private int overwrittenSincePlot = 0;
+    private volatile long plotOverwrittenCount = 0;
+    private final float[] channelOffsets = new float[24];
     private final int maxVisibleXRange = 8000;  // see 8s at the time on the plot
     private final int leftAxisUpperLimit = (int) (2 * Math.pow(10, 6));
     private final int leftAxisLowerLimit = (int) (-2 * Math.pow(10, 6));
@@ -98,13 +108,21 @@ public class Record extends AppCompatActivity {
     private final boolean[] channelsShown = new boolean[nChannels];
     private final CheckBox[] checkBoxes = new CheckBox[nChannels];
     private final TextView[] channelValueViews = new TextView[nChannels];
-    private final TraumschreiberService mTraumService = new TraumschreiberService();
-    private final String[] channelLabels = new String[]{"FP1", "FPZ", "FP2", "F7", "F3", "Fz", "F4", "F8", "M1", "T7", "C3", "CZ", "C4", "T8", "M2", "P7", "P3", "Pz", "P4", "P8", "POZ", "O1", "OZ", "O2"};
+    private TraumschreiberService mTraumService;
     private final float pkgLossLimit = 0.02f; // tolerance for this proportion of package loss
     private final int srmUpdateInterval = 5000; // ms
-    private final float[] hpFilteredNow = new float[nChannels];
-    LSL.StreamInfo streamInfo;
-    LSL.StreamOutlet streamOutlet = null;
+    private final float[] nanSample = new float[nChannels];
+    private final String[] filterNames = new String[]{"DC blocker (high pass)", "50 Hz notch",
+            "60 Hz notch", "Band pass 0.5 - 40 Hz"};
+    // "dcBlockerFilter" is also set by the high pass switch of the Settings screen
+    private final String[] filterKeys = new String[]{"dcBlockerFilter", "notch50Filter",
+            "notch60Filter", "bandPassFilter"};
+    private final boolean[] filtersEnabled = new boolean[]{true, false, false, false};
+    // stages of every enabled filter, reused while the filter stays on so they keep their state
+    private final BiquadFilter[][] filterStages = new BiquadFilter[filterKeys.length][];
+    // session and sampling rate the filter stages were made for
+    private AcquisitionSession filterSession;
+    private float filterSamplingRate;
     private float samplingRate = 500 / 2f;  // alternative: 500, 500/2, 500/3, 500/4, etc.
     private BluetoothGattCharacteristic configCharacteristic;
     private BluetoothGattCharacteristic codeCharacteristic;
@@ -137,6 +155,7 @@ public class Record extends AppCompatActivity {
     private byte encodingSafetyFactorB;
     private int encodingSafetyPos = 8;
     private AlertDialog traumConfigDialog;
+    private ThroughputProbe throughputProbe;
     private TextView mConnectionState;
     private TextView viewDeviceAddress;
     private String mDeviceAddress;
@@ -150,11 +169,13 @@ public class Record extends AppCompatActivity {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
             }
-
-            // hack for ensuring a successful connection
-            // constants
-            int CONNECT_DELAY = 2000;
-            handler.postDelayed(() -> mBluetoothLeService.connect(mDeviceAddress), CONNECT_DELAY);  // connect with a defined delay
+            if (mDeviceAddress == null) {
+                // bound to a running service, attach to its acquisition if there is one
+                mDeviceAddress = mBluetoothLeService.getActiveSessionAddress();
+                if (mDeviceAddress != null) attachToSession();
+                return;
+            }
+            connectDevice();
         }
 
         @Override
@@ -162,15 +183,15 @@ public class Record extends AppCompatActivity {
             if (mBluetoothLeService != null) mBluetoothLeService = null;
         }
     };
-    private boolean recording = false;
-    private boolean notifying = false;
+    private volatile boolean recording = false;
+    private volatile boolean notifying = false;
     private float resolutionTime;
     private float resolutionFrequency;
     private TextView mDataResolution;
     private TextView mBatteryValue;
     private androidx.appcompat.widget.SwitchCompat plotSwitch;
-    private boolean plotting = true;
-    private boolean channelViewsEnabled = true;
+    private volatile boolean plotting = true;
+    private volatile boolean channelViewsEnabled = true;
     private final CompoundButton.OnCheckedChangeListener channelViewsSwitchListener = (buttonView, isChecked) -> {
         LinearLayout channelViewsContainer = findViewById(R.id.ChannelViewsContainer);
         if (isChecked) {
@@ -205,20 +226,11 @@ public class Record extends AppCompatActivity {
         tapZoomButton.setText("10^" + tapZoomExponent);
     };
     private ImageButton recordingButton;
-    private int adaptiveEncodingFlag = 0; //Indicates whether adaptive encoding took place in this instant.
-    private int pkgCountTotal;                //total count of packages that  arrived
-    private int storedPkgCount;         //no. of samples added to the csv
-    private int lostPkgCountTotal;            // total count of lost samples based on info in header
+    private volatile int pkgCountTotal;       //total count of packages that  arrived
+    private volatile int lostPkgCountTotal;   // total count of lost samples based on info in header
     private float pkgLossPercent;       // proportion of currently lost packages
     private boolean ignorePkgLoss = false;
-    private float lastTimeStamp;
-    private String start_time;
-    private String end_time;
-    private long startTime;
-    private String recording_time;
-    private long start_timestamp;
-    private long end_timestamp;
-    private long plottingLastRefresh;
+    private volatile long plottingLastRefresh;
     private final CompoundButton.OnCheckedChangeListener plotSwitchOnCheckedChangeListener = new CompoundButton.OnCheckedChangeListener() {
         @Override
         public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
@@ -239,39 +251,50 @@ public class Record extends AppCompatActivity {
     };
     private boolean deviceConnected = false;
     private Menu menu;
-    private int currentPkgLoss = 0;
-    private int currentPkgId = 0;
-    private int lastPkgId = 0;
-    private int currentBtPkgLoss = 0;
-    private Thread plottingThread;
-    private String tempFileName;
-    private FileWriter fileWriter;
+    // processing and recording of the connected device, owned by the service
+    private AcquisitionSession mSession;
+    private boolean released = false;
     private final View.OnClickListener recordingButtonOnClickListener = v -> {
         if (!recording) startRecording();
         else showSaveDialog();
     };
-    private boolean samplingRateMonitorRunning = false;
+    private volatile boolean samplingRateMonitorRunning = false;
     private Timer srmTimer;
     private TimerTask srmTimerTask;
     private boolean showingPkgLossWarning = false;
-    private float[] hpFilteredPrevious = new float[nChannels];
-    private float[] samplePrevious = new float[nChannels];
     // Handles various events fired by the Service.
     private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
+            // This screen shows a single headset, ignore the events of other connected devices
+            final String address = intent.getStringExtra(BluetoothLeService.EXTRA_ADDRESS);
+            if (address != null && !address.equals(mDeviceAddress)) return;
             // CONNECTION EVENT
             switch (action) {
                 case BluetoothLeService.ACTION_GATT_CONNECTED:
                     deviceConnected = true;
+                    mTraumService = mBluetoothLeService.getTraumschreiberService(mDeviceAddress);
+                    applyBitsPerCh();
+                    if (getSharedPreferences("userPreferences", MODE_PRIVATE).getBoolean("reorderPackets", false)) {
+                        mBluetoothLeService.setReorderWindow(mDeviceAddress, REORDER_WINDOW);
+                    }
+                    mSession = mBluetoothLeService.getAcquisitionSession(mDeviceAddress);
+                    mSession.setSamplingRate(samplingRate);
+                    mSession.setGain(selectedGain);
+                    updateFilterChain();
+                    mSession.attach(mViewer);
                     buttons_prerecording();
                     setConnectionStatus(true);
-                    storedPkgCount = 0;
                     // DISCONNECTION EVENT
                     break;
                 case BluetoothLeService.ACTION_GATT_DISCONNECTED:
                     deviceConnected = false;
+                    // the service closed the session, a running recording is lost
+                    mSession = null;
+                    recording = false;
+                    notifying = false;
+                    if (throughputProbe != null) throughputProbe.cancel();
                     setConnectionStatus(false);
                     clearUI();
                     disableCheckboxes();
@@ -284,72 +307,52 @@ public class Record extends AppCompatActivity {
                     // BLUETOOTH SERVICE REGISTRATION
                     break;
                 case BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED:
-                    BluetoothGattService bleService = mBluetoothLeService.getService(TraumschreiberService.serviceUUID);
-                    mNotifyCharacteristic = bleService.getCharacteristic(TraumschreiberService.notifyingUUID);
+                    BluetoothGattService bleService = mBluetoothLeService.getService(mDeviceAddress, TraumschreiberService.serviceUUID);
+                    mNotifyCharacteristic = bleService.getCharacteristic(mTraumService.getNotifyingUUID());
                     codeCharacteristic = bleService.getCharacteristic(TraumschreiberService.codeUUID);
                     configCharacteristic = bleService.getCharacteristic(TraumschreiberService.configUUID);
-                    mBluetoothLeService.setCharacteristicNotification(codeCharacteristic, true);
-                    waitForBluetoothCallback(mBluetoothLeService);
+                    // queued behind each other by the service, no need to wait in between
+                    mBluetoothLeService.setCharacteristicNotification(mDeviceAddress, codeCharacteristic, true);
                 /*Apply default configuration once we have the config characteristic;
                   A bit inelegant, but it is more tedious to change default values on by repgroamming
                    the traumschreiber*/
                     applyDefaultConfiguration();
-
-                    // HANDLE INCOMING STREAM
                     break;
-                case BluetoothLeService.ACTION_DATA_AVAILABLE:
-
-                    int[] data = intent.getIntArrayExtra(BluetoothLeService.EXTRA_DATA);
-
-                    // CONFIG DATA
-                    if (data.length == 8) {
-                        int[] configData = intent.getIntArrayExtra(BluetoothLeService.EXTRA_DATA);
-                        Toast.makeText(getApplicationContext(), "Received Config Data", Toast.LENGTH_SHORT).show();
-                        updateTraumConfigValues(configData);
-                        if (traumConfigDialog.isShowing()) displayTraumConfigValues();
-                        return;
-                    }
-
-                    if (!notifying) return;
-
-                    // ENCODING UPDATES
-                    if (data[0] == 0xC0DE) {
-                        //pkgLossCount = data[2];
-                        //Log.v(TAG,"Updated signalBitshift of CH1: " + signalBitShift);
-                        // Give the next row in our recording an adaptive encoding flag
-                        adaptiveEncodingFlag = 1;
-                        return; //prevent further processing
-                    }
-
-                    // no processing (for testing bluetooth transmission rates)
-                    //if(data==null) return;
+            }
+        }
+    };
+    // Shows the processed samples of the session, runs on the dispatcher thread of the device
+    private final AcquisitionSession.Viewer mViewer = new AcquisitionSession.Viewer() {
+        @Override
+        public void onConfigData(int[] config) {
+            runOnUiThread(() -> {
+                Toast.makeText(getApplicationContext(), "Received Config Data", Toast.LENGTH_SHORT).show();
+                updateTraumConfigValues(config);
+                if (traumConfigDialog.isShowing()) displayTraumConfigValues();
+            });
+        }
 
-                    // CHANNEL DATA
-                    // First, parse the header (if there is a header)
-                    if (data.length > nChannels) {
-                        currentPkgId = data[0];
-                        currentPkgLoss = data[1];
-                        currentBtPkgLoss = calculateBtPkgLoss();
-                        data = Arrays.copyOfRange(data, 2, data.length);
-                    }
-                    pkgCountTotal++;
-                    lostPkgCountTotal += (currentBtPkgLoss + currentPkgLoss);
-                    if (!samplingRateMonitorRunning) startSamplingRateMonitoring();
+        @Override
+        public void onSample(float[] microV, int lostBefore) {
+            synchronized (plotLock) {
+                pkgCountTotal++;
+                lostPkgCountTotal += lostBefore;
+                if (plotting) storeForPlotting(microV, lostBefore);
+            }
+            if (!samplingRateMonitorRunning) {
+                samplingRateMonitorRunning = true;
+                handler.post(Record.this::startSamplingRateMonitoring);
+            }
 
-                    List<Float> microV = convertToMicroV(data);
-                    if (getSharedPreferences("userPreferences", MODE_PRIVATE).getBoolean("inAppFilter", true)) {
-                        microV = highPassFilter(microV);
-                    }
-                    streamData(microV);
-                    if (channelViewsEnabled && pkgCountTotal % 100 == 0) displayNumerical(microV);
-                    if (plotting) storeForPlotting(microV);
-                    if (recording) storeData(microV);
-                    break;
+            if (channelViewsEnabled && pkgCountTotal % 100 == 0) {
+                final float[] shownMicroV = microV.clone();
+                runOnUiThread(() -> displayNumerical(shownMicroV));
             }
         }
     };
 
     public Record() {
+        Arrays.fill(nanSample, Float.NaN);
     }
 
     private static IntentFilter makeGattUpdateIntentFilter() {
@@ -357,25 +360,23 @@ public class Record extends AppCompatActivity {
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
-        intentFilter.addAction(BluetoothLeService.EXTRA_DATA);
         return intentFilter;
     }
 
-    private int calculateBtPkgLoss() {
-        int btloss = 0;
-        if (storedPkgCount > 0) {
-            if (lastPkgId > currentPkgId) {
-                btloss = (15 - lastPkgId) + currentPkgId;
-            } else {
-                btloss = (currentPkgId - 1) - lastPkgId;
-            }
-        }
-        lastPkgId = currentPkgId;
-        return btloss;
+    private void applyConfiguration() {
+        byte[] configBytes = buildConfigBytes();
+        configCharacteristic.setValue(configBytes);
+
+        boolean togglingRequired = notifying;
+        if (togglingRequired) toggleNotifying();
+        mBluetoothLeService.writeCharacteristic(mDeviceAddress, configCharacteristic);
+        if (togglingRequired) toggleNotifying();
+
+        Log.d(TAG, "New Value of Config: " + Arrays.toString(configCharacteristic.getValue()));
+        Toast.makeText(getApplicationContext(), "Applied configuration.", Toast.LENGTH_SHORT).show();
     }
 
-    private void applyConfiguration() {
+    private byte[] buildConfigBytes() {
         // Declare bytearray
         byte[] configBytes = new byte[8];
 
@@ -390,27 +391,70 @@ public class Record extends AppCompatActivity {
         configBytes[7] = (byte) 0; // battery status
 
         Log.d(TAG, "configBytes before writing: " + Arrays.toString(configBytes));
-        configCharacteristic.setValue(configBytes);
+        return configBytes;
+    }
 
-        boolean togglingRequired = notifying;
-        if (togglingRequired) toggleNotifying();
-        mBluetoothLeService.writeCharacteristic(configCharacteristic);
-        if (togglingRequired) toggleNotifying();
+    /**
+     * Streams generated data in every combination of transmission rate and bits per channel
+     * and shows which of them this phone receives without losses. The current configuration
+     * is applied again afterwards.
+     */
+    private void runThroughputProbe() {
+        if (recording || throughputProbe != null) return;
+        if (notifying) toggleNotifying();
+        BluetoothGattService bleService = mBluetoothLeService.getService(mDeviceAddress, TraumschreiberService.serviceUUID);
+        throughputProbe = new ThroughputProbe(mBluetoothLeService, mDeviceAddress, bleService, buildConfigBytes(), handler);
+        final StringBuilder report = new StringBuilder();
+        report.append("MTU: \t").append(mBluetoothLeService.getMtu(mDeviceAddress)).append("\n");
+        report.append("PHY: \t").append(mBluetoothLeService.getRxPhy(mDeviceAddress) == BluetoothDevice.PHY_LE_2M ? "2M" : "1M").append("\n\n");
+        final AlertDialog probeDialog = new AlertDialog.Builder(Record.this)
+                .setTitle("Link benchmark")
+                .setMessage(report + "Measuring...")
+                .setCancelable(false)
+                .setPositiveButton("Cancel", (dialogInterface, i) -> {
+                    if (throughputProbe != null) throughputProbe.cancel();
+                })
+                .create();
+        probeDialog.show();
+        throughputProbe.start(new ThroughputProbe.Listener() {
+            @Override
+            public void onProgress(ThroughputProbe.Result result, int done, int total) {
+                report.append(result).append("\n");
+                probeDialog.setMessage(report + "Measuring... (" + done + "/" + total + ")");
+            }
 
-        Log.d(TAG, "New Value of Config: " + Arrays.toString(configCharacteristic.getValue()));
-        Toast.makeText(getApplicationContext(), "Applied configuration.", Toast.LENGTH_SHORT).show();
+            @Override
+            public void onFinished(List<ThroughputProbe.Result> results) {
+                throughputProbe = null;
+                mNotifyCharacteristic = bleService.getCharacteristic(mTraumService.getNotifyingUUID());
+                ThroughputProbe.Result best = null;
+                for (ThroughputProbe.Result result : results) {
+                    // highest rate first, then the highest resolution
+                    if (result.isSustained() && (best == null || result.transmissionRate > best.transmissionRate
+                            || (result.transmissionRate == best.transmissionRate && result.bitsPerCh > best.bitsPerCh))) {
+                        best = result;
+                    }
+                }
+                if (best != null) report.append("\nBest sustained: ").append(best.transmissionRate > 200 ? "250Hz" : "167Hz")
+                        .append(", ").append(best.bitsPerCh).append(" bit");
+                else if (!results.isEmpty()) report.append("\nNo combination without losses");
+                probeDialog.setMessage(report);
+                probeDialog.getButton(AlertDialog.BUTTON_POSITIVE).setText("OK");
+            }
+        });
     }
 
     private void applyDefaultConfiguration() {
         resetTraumConfig();
         // Declare bytearray
         byte[] configBytes;
-        TraumschreiberService.setNotifyingUUID(2);
+        // the default config below sends 16 bit, the reset selected it
+        applyBitsPerCh();
         configBytes = new byte[]{-23, 0, 0, 35, 0, -128, 0, 0};
         configCharacteristic.setValue(configBytes);
-        mBluetoothLeService.writeCharacteristic(configCharacteristic);
-        BluetoothGattService bleService = mBluetoothLeService.getService(TraumschreiberService.serviceUUID);
-        mNotifyCharacteristic = bleService.getCharacteristic(TraumschreiberService.notifyingUUID);
+        mBluetoothLeService.writeCharacteristic(mDeviceAddress, configCharacteristic);
+        BluetoothGattService bleService = mBluetoothLeService.getService(mDeviceAddress, TraumschreiberService.serviceUUID);
+        mNotifyCharacteristic = bleService.getCharacteristic(mTraumService.getNotifyingUUID());
     }
 
     /**
@@ -637,7 +681,9 @@ public class Record extends AppCompatActivity {
             srmTimerTask.cancel();
             samplingRateMonitorRunning = false;
         }
-        pkgCountTotal = 0;
+        synchronized (plotLock) {
+            pkgCountTotal = 0;
+        }
     }
 
     @SuppressLint("SetTextI18n")
@@ -646,9 +692,7 @@ public class Record extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
         setContentView(R.layout.activity_record);
-
-        // LSL stuff
-        prepareLslStream();
+        loadFilterPreferences();
 
         // UI References
         mConnectionState = findViewById(R.id.connection_state);
@@ -701,34 +745,45 @@ public class Record extends AppCompatActivity {
 
         Objects.requireNonNull(getSupportActionBar()).setDisplayHomeAsUpEnabled(true);
 
-        //Remove left over temporary files
-        deleteTempFiles();
+        // attach to an acquisition that outlived the previous activity, if the service is running
+        bindService(new Intent(this, BluetoothLeService.class), mServiceConnection, 0);
     }
 
-    private void prepareLslStream() {
-        final UUID uid = UUID.randomUUID();
-        try {
-            streamInfo = new LSL.StreamInfo("Traumschreiber-EEG", "EEG", 24,
-                    samplingRate, LSL.ChannelFormat.double64, uid.toString());
-            if (getSharedPreferences("userPreferences", MODE_PRIVATE).getBoolean("eegLabels", true)) {
-                LSL.XMLElement chns = streamInfo.desc().append_child("channels");
-                for (String label : channelLabels) {
-                    LSL.XMLElement ch = chns.append_child("channel");
-                    ch.append_child_value("label", label);
-                    ch.append_child_value("unit", "microvolts");
-                    ch.append_child_value("type", "EEG");
-                }
-            } else {
-                for (int i = 1; i <= 24; i++)
-                    streamInfo.desc().append_child(String.format(Locale.getDefault(), "Ch-%d", i));
-            }
-        } catch (Error ex) {
-            Log.e(TAG, " LSL issue: " + ex.getMessage());
+    private void connectDevice() {
+        // hack for ensuring a successful connection
+        // constants
+        int CONNECT_DELAY = 2000;
+        handler.postDelayed(() -> mBluetoothLeService.connect(mDeviceAddress), CONNECT_DELAY);  // connect with a defined delay
+    }
+
+    /**
+     * Restores the state of a session that kept running while no activity was shown.
+     */
+    private void attachToSession() {
+        mSession = mBluetoothLeService.getAcquisitionSession(mDeviceAddress);
+        mTraumService = mBluetoothLeService.getTraumschreiberService(mDeviceAddress);
+        deviceConnected = true;
+        notifying = mSession.isStreaming();
+        recording = mSession.isRecording();
+        samplingRate = mSession.getSamplingRate();
+        BluetoothGattService bleService = mBluetoothLeService.getService(mDeviceAddress, TraumschreiberService.serviceUUID);
+        if (bleService != null) {
+            mNotifyCharacteristic = bleService.getCharacteristic(mTraumService.getNotifyingUUID());
+            codeCharacteristic = bleService.getCharacteristic(TraumschreiberService.codeUUID);
+            configCharacteristic = bleService.getCharacteristic(TraumschreiberService.configUUID);
         }
-        try {
-            streamOutlet = new LSL.StreamOutlet(streamInfo);
-        } catch (IOException ex) {
-            Log.d("LSL issue:", Objects.requireNonNull(ex.getMessage()));
+        mSession.attach(mViewer);
+        if (menu != null) showSessionState();
+        Log.d(TAG, "Attached to running session of " + mDeviceAddress);
+    }
+
+    private void showSessionState() {
+        setConnectionStatus(true);
+        if (recording) buttons_recording();
+        else buttons_prerecording();
+        if (notifying) {
+            menu.findItem(R.id.notify).setIcon(R.drawable.ic_notifications_active_blue_24dp);
+            getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
         }
     }
 
@@ -763,7 +818,7 @@ public class Record extends AppCompatActivity {
         box.setText(Integer.toString(i + 1));
         box.setTextSize(6);
         if (getSharedPreferences("userPreferences", MODE_PRIVATE).getBoolean("eegLabels", true)) {
-            box.setText(channelLabels[i]);
+            box.setText(AcquisitionSession.CHANNEL_LABELS[i]);
         }
         box.setTextSize(8);
         box.setTextColor(channelColors[i]);
@@ -818,35 +873,10 @@ public class Record extends AppCompatActivity {
 //         unregisterReceiver(mGattUpdateReceiver);
     }
 
-    private void clearLSL() {
-        // close and delete the stream outlet and info if possible
-        if (streamOutlet != null) {
-            streamOutlet.close();
-            streamInfo.destroy();
-            streamOutlet = null;
-            streamInfo = null;
-            Log.d(TAG, "LSL stream closed and deleted.");
-        }
-    }
-
     @Override
     public void onBackPressed() {
         Log.d(TAG, "Called onBackPressed");
-        try {
-            clearLSL();
-            if (!notifying) {
-                notifying = true;
-                mBluetoothLeService.setCharacteristicNotification(mNotifyCharacteristic, true);
-            } else {
-                notifying = false;
-                mBluetoothLeService.setCharacteristicNotification(mNotifyCharacteristic, false);
-            }
-            unregisterReceiver(mGattUpdateReceiver);
-            unbindService(mServiceConnection);
-            mBluetoothLeService = null;
-        } catch (Exception e) {
-            Log.w(TAG, e.toString());
-        }
+        releaseService();
         finish();
     }
 
@@ -854,21 +884,39 @@ public class Record extends AppCompatActivity {
     protected void onDestroy() {
         super.onDestroy();
         Log.d(TAG, "Called onDestroy");
-        try {
-            clearLSL();
-            if (!notifying) {
-                notifying = true;
-                mBluetoothLeService.setCharacteristicNotification(mNotifyCharacteristic, true);
-            } else {
-                notifying = false;
-                mBluetoothLeService.setCharacteristicNotification(mNotifyCharacteristic, false);
+        releaseService();
+    }
+
+    /**
+     * Detaches the views from the service. A session that is streaming or recording keeps
+     * running in the service, which stays in the foreground until it is stopped.
+     */
+    private void releaseService() {
+        if (released) return;
+        released = true;
+        if (mBluetoothLeService != null) {
+            try {
+                boolean keepRunning = mSession != null && (mSession.isStreaming() || mSession.isRecording());
+                if (mSession != null) mSession.detach(mViewer);
+                handler.removeCallbacks(plotRefresh);
+                if (keepRunning) {
+                    Log.d(TAG, "Session keeps running in the background");
+                } else if (!notifying) {
+                    notifying = true;
+                    mBluetoothLeService.setCharacteristicNotification(mDeviceAddress, mNotifyCharacteristic, true);
+                } else {
+                    notifying = false;
+                    mBluetoothLeService.setCharacteristicNotification(mDeviceAddress, mNotifyCharacteristic, false);
+                }
+            } catch (Exception e) {
+                Log.w(TAG, e.toString());
             }
-            unregisterReceiver(mGattUpdateReceiver);
-            unbindService(mServiceConnection);
-            mBluetoothLeService = null;
-        } catch (Exception e) {
-            Log.w(TAG, e.toString());
         }
+        mSession = null;
+        unregisterReceiver(mGattUpdateReceiver);
+        // bound since onCreate
+        unbindService(mServiceConnection);
+        mBluetoothLeService = null;
     }
 
     @Override
@@ -876,6 +924,7 @@ public class Record extends AppCompatActivity {
         // Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.bluetooth_connect, menu);
         this.menu = menu;
+        if (deviceConnected) showSessionState();
         return true;
     }
 
@@ -897,7 +946,7 @@ public class Record extends AppCompatActivity {
                 AlertDialog.Builder alert = new AlertDialog.Builder(this)
                         .setTitle(R.string.dialog_title)
                         .setMessage(getResources().getString(R.string.confirmation_disconnect));
-                alert.setPositiveButton(android.R.string.yes, (dialog, which) -> mBluetoothLeService.disconnect());
+                alert.setPositiveButton(android.R.string.yes, (dialog, which) -> mBluetoothLeService.disconnect(mDeviceAddress));
                 alert.setNegativeButton(android.R.string.cancel, (dialog, which) -> {
                     // close dialog
                     dialog.cancel();
@@ -906,6 +955,11 @@ public class Record extends AppCompatActivity {
             }
             return true;
         }
+        if (id == R.id.simulator) {
+            // a virtual device instead of a scanned one, for trying the app and load tests
+            if (!deviceConnected) selectDevice(TraumschreiberSimulator.address(0));
+            return true;
+        }
 
         if (id == android.R.id.home) {
             if (recording) {
@@ -929,27 +983,35 @@ public class Record extends AppCompatActivity {
 
         if (id == R.id.centering) {
             Toast.makeText(getApplicationContext(),
-                    "Centering Signal around 0 in 2 seconds",
+                    "Centering Signal around 0",
                     Toast.LENGTH_LONG).show();
             mTraumService.initiateCentering();
         }
 
         if (id == R.id.traumConfig) showTraumConfigDialog();
 
+        if (id == R.id.filters) showFilterDialog();
+
+        if (id == R.id.linkBenchmark) {
+            if (recording) {
+                Toast.makeText(getApplicationContext(), "Not available while recording", Toast.LENGTH_SHORT).show();
+            } else runThroughputProbe();
+        }
+
         return super.onOptionsItemSelected(item);
     }
 
     public void toggleNotifying() {
         MenuItem menuItemNotify = menu.findItem(R.id.notify);
         //menuItemNotify.setEnabled(false);
-        waitForBluetoothCallback(mBluetoothLeService);
 
         if (!notifying) {
             Log.d(TAG, "Notifications Button pressed: ENABLED");
             notifying = true;
             mTraumService.warmUp();
+            if (mSession != null) mSession.setStreaming(true);
             mDataResolution.setText(R.string.warming_up);
-            mBluetoothLeService.setCharacteristicNotification(mNotifyCharacteristic, true);
+            mBluetoothLeService.setCharacteristicNotification(mDeviceAddress, mNotifyCharacteristic, true);
             menuItemNotify.setIcon(R.drawable.ic_notifications_active_blue_24dp);
             //Prevent Screen from turning off
             getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
@@ -957,7 +1019,8 @@ public class Record extends AppCompatActivity {
         } else {
             Log.d(TAG, "Notifications Button pressed: DISABLED");
             notifying = false;
-            mBluetoothLeService.setCharacteristicNotification(mNotifyCharacteristic, false);
+            mBluetoothLeService.setCharacteristicNotification(mDeviceAddress, mNotifyCharacteristic, false);
+            if (mSession != null) mSession.setStreaming(false);
             endTimer();
             menuItemNotify.setIcon(R.drawable.ic_notifications_off_white_24dp);
             //Stop screen from staying on
@@ -1007,6 +1070,7 @@ public class Record extends AppCompatActivity {
                 selectedGainPos = position;
                 selectedGainB = (byte) ((position & 0x3) << 6);
                 selectedGain = (float) Math.pow(2, position);
+                if (mSession != null) mSession.setGain(selectedGain);
                 byte[] binaryString = {selectedGainB};
                 Log.d(TAG, "Binary rep of selected value: " + Arrays.toString(binaryString));
             }
@@ -1027,36 +1091,18 @@ public class Record extends AppCompatActivity {
                 selectedBitsPerChPos = position;
                 bitsPerChB = (byte) ((position & 0x3) << 4);
 
-                int bitsPerCh;
                 Log.d(TAG, "Position of BitsPerCh: " + position);
-                switch (position) {
-                    case 0:
-                        bitsPerCh = 10;
-                        break;
-                    case 1:
-                        bitsPerCh = 14;
-                        break;
-                    case 2:
-                        bitsPerCh = 16;
-                        break;
-                    case 3:
-                        position = 0;  // 3 and 0 have same effect, later we set NotifyingUUID, needs to be 0 instead of 3
-                        bitsPerCh = 10;
-                        break;
-
-                    default:
-                        throw new IllegalStateException("Unexpected value: " + position);
-                }
-                TraumschreiberService.bitsPerCh = bitsPerCh;
+                // without a device the choice is applied by applyBitsPerCh() once it connects
+                if (mTraumService == null) return;
 
                 // Turn notifications off.
                 if (notifying) toggleNotifying();
 
-                //Update Characteristic on Which data is sent
-                TraumschreiberService.setNotifyingUUID(position); //0, 1 or 2
+                //Update the resolution and the Characteristic on Which data is sent
+                applyBitsPerCh();
                 if (deviceConnected) {
-                    BluetoothGattService bleService = mBluetoothLeService.getService(TraumschreiberService.serviceUUID);
-                    mNotifyCharacteristic = bleService.getCharacteristic(TraumschreiberService.notifyingUUID);
+                    BluetoothGattService bleService = mBluetoothLeService.getService(mDeviceAddress, TraumschreiberService.serviceUUID);
+                    mNotifyCharacteristic = bleService.getCharacteristic(mTraumService.getNotifyingUUID());
                 }
 
                 byte[] binaryString = {bitsPerChB};
@@ -1122,6 +1168,8 @@ public class Record extends AppCompatActivity {
                 // Small Extra for correct plotting timing
                 if (transmissionRateB == (byte) 1) samplingRate = 500 / 2f;
                 else samplingRate = 500 / 3f;
+                if (mSession != null) mSession.setSamplingRate(samplingRate);
+                updateFilterChain(); // cut-off frequencies depend on the sampling rate
 
                 byte[] binaryString = {transmissionRateB};
                 Log.d(TAG, "Binary rep of selected value: " + Arrays.toString(binaryString));
@@ -1273,7 +1321,7 @@ public class Record extends AppCompatActivity {
         // Link readConfigButton
         Button readConfigButton = traumConfigDialog.findViewById(R.id.read_config_button);
         readConfigButton.setOnClickListener(v -> {
-            if (deviceConnected) mBluetoothLeService.readCharacteristic(configCharacteristic, true);
+            if (deviceConnected) mBluetoothLeService.readCharacteristic(mDeviceAddress, configCharacteristic, true);
             else
                 Toast.makeText(getApplicationContext(), "No Device Connected", Toast.LENGTH_SHORT).show();
         });
@@ -1289,6 +1337,29 @@ public class Record extends AppCompatActivity {
 
     }
 
+    /**
+     * Sets the decoder of the connected device to the selected bits per channel and the
+     * characteristic they are sent on. Positions {0,1,2,3} <=> {10,14,16,10} bit.
+     */
+    private void applyBitsPerCh() {
+        if (mTraumService == null) return;
+        // 3 and 0 have the same effect, the notifying UUID needs 0 instead of 3
+        final int position = selectedBitsPerChPos == 3 ? 0 : selectedBitsPerChPos;
+        switch (position) {
+            case 0:
+                mTraumService.setResolution(10, position);
+                break;
+            case 1:
+                mTraumService.setResolution(14, position);
+                break;
+            case 2:
+                mTraumService.setResolution(16, position);
+                break;
+            default:
+                throw new IllegalStateException("Unexpected value: " + position);
+        }
+    }
+
     @SuppressLint("SetTextI18n")
     private void updateTraumConfigValues(int[] configData) {
         selectedGainPos = (configData[0] & 0xff) >> 6; // 0bxx00 0000
@@ -1406,68 +1477,95 @@ public class Record extends AppCompatActivity {
             if (resultCode == RESULT_OK) {
                 // The user picked a contact.
                 // The Intent's data Uri identifies which contact was selected
-                mDeviceAddress = intent.getStringExtra(EXTRAS_DEVICE_ADDRESS);
-                Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
-                bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
+                selectDevice(intent.getStringExtra(EXTRAS_DEVICE_ADDRESS));
             }
         }
     }
 
-    private void waitForBluetoothCallback(BluetoothLeService service) {
-        while (service.isBusy) {
-            Handler handler = new Handler();
-            handler.postDelayed(() -> Log.v(TAG, "Waiting for bluetooth operation to finish."), 300);
+    private void selectDevice(String address) {
+        mDeviceAddress = address;
+        if (mBluetoothLeService != null) {
+            // already bound to the running service
+            connectDevice();
+        } else {
+            Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
+            bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
         }
-
     }
 
     private void clearUI() {
         for (TextView view : channelValueViews) view.setText("0μV");
         mDataResolution.setText(R.string.default_resolution_text);
-        pkgCountTotal = 0;
+        synchronized (plotLock) {
+            pkgCountTotal = 0;
+        }
     }
 
     private void disableCheckboxes() {
         for (CheckBox box : checkBoxes) box.setEnabled(false);
     }
 
-    /* This is the last processing step before the data is displayed and saved
-     Note that gain is 1 by default */
-    private List<Float> convertToMicroV(int[] data) {
-        // Conversion formula (new): V_in = X * (298 / (1000 * gain))
-        List<Float> dataMicroV = new ArrayList<>();
-        for (float datapoint : data)
-            dataMicroV.add(datapoint * 5 / 4 * 298 / (1000 * selectedGain));
-        return dataMicroV;
+    private void loadFilterPreferences() {
+        SharedPreferences preferences = getSharedPreferences("userPreferences", MODE_PRIVATE);
+        for (int i = 0; i < filterKeys.length; i++)
+            filtersEnabled[i] = preferences.getBoolean(filterKeys[i], filtersEnabled[i]);
+        updateFilterChain();
     }
 
-    private List<Float> highPassFilter(List<Float> data) {
-        Log.v(TAG, "HIGHPASSFILTERING");
-        // Convert sample to float array
-        float[] sampleNow = new float[data.size()];
-        for (int i = 0; i <= data.size() - 1; i++) {
-            sampleNow[i] = data.get(i);
+    /* Rebuilds the in-app filter cascade of the session, safe to call while streaming. Filters
+       that stay enabled keep their stages and state, unless the session or the sampling rate
+       changed */
+    private void updateFilterChain() {
+        final boolean rebuild = mSession != filterSession || samplingRate != filterSamplingRate;
+        filterSession = mSession;
+        filterSamplingRate = samplingRate;
+        List<BiquadFilter> stages = new ArrayList<>();
+        for (int i = 0; i < filterStages.length; i++) {
+            if (!filtersEnabled[i]) {
+                filterStages[i] = null;
+                continue;
+            }
+            if (filterStages[i] == null || rebuild) filterStages[i] = createFilterStages(i);
+            stages.addAll(Arrays.asList(filterStages[i]));
         }
+        if (mSession != null) mSession.setFilterStages(stages.toArray(new BiquadFilter[0]));
+    }
 
-        for (int i = 0; i < nChannels; i++) {
-            hpFilteredNow[i] = (float) (0.999 * (hpFilteredPrevious[i]
-                    + sampleNow[i] - samplePrevious[i]));
+    private BiquadFilter[] createFilterStages(int filter) {
+        switch (filter) {
+            case 0:
+                return new BiquadFilter[]{BiquadFilter.dcBlocker(nChannels, 0.999)};
+            case 1:
+                return new BiquadFilter[]{BiquadFilter.notch(nChannels, samplingRate, 50, 30)};
+            case 2:
+                return new BiquadFilter[]{BiquadFilter.notch(nChannels, samplingRate, 60, 30)};
+            case 3:
+                return BiquadFilter.bandPass(nChannels, samplingRate, 0.5, 40);
+            default:
+                throw new IllegalStateException("Unexpected value: " + filter);
         }
-        hpFilteredPrevious = hpFilteredNow;
-        samplePrevious = sampleNow;
+    }
 
-        // Convert hpFilteredNow to List<Float> and return
-        List<Float> hpFiltered = new ArrayList<>();
-        for (float f : hpFilteredNow) hpFiltered.add(f);
-        return hpFiltered;
+    private void showFilterDialog() {
+        AlertDialog.Builder filterDialogBuilder = new AlertDialog.Builder(this)
+                .setTitle("In-App Filters")
+                .setMultiChoiceItems(filterNames, filtersEnabled, (dialog, which, isChecked) -> {
+                    filtersEnabled[which] = isChecked;
+                    getSharedPreferences("userPreferences", MODE_PRIVATE).edit()
+                            .putBoolean(filterKeys[which], isChecked).apply();
+                    updateFilterChain();
+                })
+                .setPositiveButton("OK", (dialogInterface, i) -> {
+                });
+        filterDialogBuilder.create().show();
     }
 
     @SuppressLint("DefaultLocale")
-    private void displayNumerical(List<Float> signalMicroV) {
+    private void displayNumerical(float[] signalMicroV) {
         if (signalMicroV != null) {
             for (int i = 0; i < nChannels; i++) {
                 String channelValueS = "";
-                float channelValueF = signalMicroV.get(i);
+                float channelValueF = signalMicroV[i];
                 //if(signalMicroV.get(i) > 0) value += "+";
                 if (channelValueF >= 1000 | channelValueF <= -1000) {
                     channelValueF = channelValueF / 1000;
@@ -1513,19 +1611,6 @@ public class Record extends AppCompatActivity {
         return dataType;
     }
 
-    private void streamData(List<Float> data_microV) {
-        float[] sample = new float[24];
-        for (int i = 0; i < data_microV.size(); i++) {
-            sample[i] = data_microV.get(i);
-        }
-        try {
-            streamOutlet.push_sample(sample);
-        } catch (Exception ex) {
-            Log.d("LSL issue", Objects.requireNonNull(ex.getMessage()));
-            clearLSL();
-        }
-    }
-
     private void createChart() {
         OnChartValueSelectedListener ol = new OnChartValueSelectedListener() {
             @Override
@@ -1584,9 +1669,9 @@ public class Record extends AppCompatActivity {
         mChart.setDragDecelerationFrictionCoef(0.6f);
     }
 
-    private LineDataSet createPlottableSet(int channelId) {
+    private LineDataSet createPlottableSet(int channelId, List<Entry> entries) {
 
-        LineDataSet set = new LineDataSet(plottingBuffer.get(channelId), String.format(Locale.getDefault(), "Ch-%d", channelId + 1));
+        LineDataSet set = new LineDataSet(entries, String.format(Locale.getDefault(), "Ch-%d", channelId + 1));
         set.setAxisDependency(YAxis.AxisDependency.LEFT);
         set.setColor(channelColors[channelId]);
         set.setDrawCircles(false);
@@ -1596,42 +1681,72 @@ public class Record extends AppCompatActivity {
         return set;
     }
 
-    private void storeForPlotting(final List<Float> microV) {
+    private void accumulateForPlotting(float[] sample) {
+        final int capacity = accumulatedSamples.length;
+        if (accumulatedCount == capacity) {
+            // plot is lagging, drop the oldest sample
+            accumulatedStart = (accumulatedStart + 1) % capacity;
+            accumulatedCount--;
+            overwrittenSincePlot++;
+        }
+        System.arraycopy(sample, 0, accumulatedSamples[(accumulatedStart + accumulatedCount++) % capacity], 0, nChannels);
+    }
+
+    // Runs on the dispatcher thread with plotLock held, the plot itself is refreshed on the UI thread
+    private void storeForPlotting(final float[] microV, int lostBefore) {
 
         //Track lost packages to keep the chart timing accurate
-        Float[] lostSample = new Float[24];
-        Arrays.fill(lostSample, Float.NaN);
-        List<Float> lostSampleL = Arrays.asList(lostSample);
-        for (int i = 0; i < currentBtPkgLoss; i++) accumulatedSamples.add(lostSampleL);
-        for (int i = 0; i < currentPkgLoss; i++) accumulatedSamples.add(lostSampleL);
-
-        accumulatedSamples.add(microV);
-        long pkgArrivalTime = System.currentTimeMillis();
-        long plottingElapsed = pkgArrivalTime - plottingLastRefresh;
+        for (int i = 0; i < lostBefore; i++) accumulateForPlotting(nanSample);
+
+        accumulateForPlotting(microV);
         int plottingFPS = 25;
-        if (plottingElapsed < 1000 / plottingFPS) {
+        if (plotRefreshPending || System.currentTimeMillis() - plottingLastRefresh < 1000 / plottingFPS) {
             // only update the plot below if enough time has passed.
             return;
         }
+        plotRefreshPending = true;
+        handler.post(plotRefresh);
+    }
+
+    private void refreshPlot() {
+        final int count;
+        final int overwritten;
+        synchronized (plotLock) {
+            count = accumulatedCount;
+            for (int i = 0; i < count; i++) {
+                System.arraycopy(accumulatedSamples[(accumulatedStart + i) % accumulatedSamples.length], 0,
+                        refreshSamples[i], 0, nChannels);
+            }
+            overwritten = overwrittenSincePlot;
+            overwrittenSincePlot = 0;
+            accumulatedStart = 0;
+            accumulatedCount = 0;
+            plotRefreshPending = false;
+            plottingLastRefresh = System.currentTimeMillis();
+        }
 
         final List<ILineDataSet> plottableDatasets = new ArrayList<>();  // for adding multiple plots
         float t = 0;
         float pkgInterval = 1000 / samplingRate;
 
+        // the overwritten samples preceded the accumulated ones, leave a gap for them
+        plottedPkgCount += overwritten;
+        plotOverwrittenCount += overwritten;
+
         /* Add all accumulatedSamples to the datasets that are used for plotting **/
-        for (int i = 0; i < accumulatedSamples.size(); i++) {
+        for (int i = 0; i < count; i++) {
             plottedPkgCount += 1;
             t = plottedPkgCount * pkgInterval; // timestamp for x axis in ms
-            List<Float> channelFloats = accumulatedSamples.get(i);
+            float[] channelFloats = refreshSamples[i];
             float lastChannelSigma = 0;
             float displayedChannelsBelow = 0;
             for (int ch = 0; ch < nChannels; ch++) {
                 channelOffsets[ch] = 40 * (lastChannelSigma + 1) * displayedChannelsBelow;
-                float plotValue = channelFloats.get(ch) + channelOffsets[ch];
+                float plotValue = channelFloats[ch] + channelOffsets[ch];
                 plottingBuffer.get(ch).add(new Entry(t, plotValue));
 
                 if (channelsShown[ch]) {
-                    lastChannelSigma = 2 << TraumschreiberService.signalBitShift[ch];
+                    lastChannelSigma = 2 << mTraumService.getSignalBitShift(ch);
                     displayedChannelsBelow++;
                 }
             }
@@ -1639,7 +1754,7 @@ public class Record extends AppCompatActivity {
 
         // Remove old entries
         if (plottingBuffer.get(0).size() > maxVisibleXRange / pkgInterval) {
-            int start = accumulatedSamples.size();
+            int start = count;
             int end = plottingBuffer.get(0).size() - 1;
             for (int ch = 0; ch < nChannels; ch++) {
                 ArrayList<Entry> trimmed = new ArrayList<>(plottingBuffer.get(ch).subList(start, end));
@@ -1647,53 +1762,49 @@ public class Record extends AppCompatActivity {
             }
         }
 
-        if (plottingThread != null) plottingThread.interrupt();
-        //Update Plot
-        final float centerX = t;
-        final Runnable runnablePlottingThread = () -> {
-            /* Create plottable datasets from plottingBuffer */
-            for (int ch = 0; ch < nChannels; ch++) {
-                if (channelsShown[ch]) {
-                    LineDataSet set = createPlottableSet(ch);
-                    plottableDatasets.add(set);
-                }
+        /* Create plottable datasets from a copy of plottingBuffer, which keeps changing with every refresh */
+        for (int ch = 0; ch < nChannels; ch++) {
+            if (channelsShown[ch]) {
+                LineDataSet set = createPlottableSet(ch, new ArrayList<>(plottingBuffer.get(ch)));
+                plottableDatasets.add(set);
             }
-            mChart.getLineData().clearValues();
-            mChart.notifyDataSetChanged();
-
-            LineData graphData = new LineData(plottableDatasets);
-            mChart.setData(graphData);
-            mChart.notifyDataSetChanged();
-
-            // limit the number of visible entries
-            mChart.setVisibleXRangeMaximum(maxVisibleXRange);
-
-            // keep current Y Position
-            MPPointF centerPointPx = mChart.getViewPortHandler().getContentCenter();
-            MPPointD centerPointValue = mChart.getValuesByTouchPoint(centerPointPx.x, centerPointPx.y, YAxis.AxisDependency.LEFT);
-            float centerY = (float) centerPointValue.y;
-            //Log.d(TAG, "CenterY " +  centerY);
-            mChart.moveViewTo(centerX, centerY, YAxis.AxisDependency.LEFT); // What happens without this? I expect it sticks
-        };
-        // Execute the above defined thread
-        plottingThread = new Thread(() -> runOnUiThread(runnablePlottingThread));
-        plottingThread.start();
-        plottingLastRefresh = System.currentTimeMillis();
-        accumulatedSamples.clear();
+        }
+
+        //Update Plot
+        mChart.getLineData().clearValues();
+        mChart.notifyDataSetChanged();
+
+        LineData graphData = new LineData(plottableDatasets);
+        mChart.setData(graphData);
+        mChart.notifyDataSetChanged();
+
+        // limit the number of visible entries
+        mChart.setVisibleXRangeMaximum(maxVisibleXRange);
+
+        // keep current Y Position
+        MPPointF centerPointPx = mChart.getViewPortHandler().getContentCenter();
+        MPPointD centerPointValue = mChart.getValuesByTouchPoint(centerPointPx.x, centerPointPx.y, YAxis.AxisDependency.LEFT);
+        float centerY = (float) centerPointValue.y;
+        //Log.d(TAG, "CenterY " +  centerY);
+        mChart.moveViewTo(t, centerY, YAxis.AxisDependency.LEFT); // What happens without this? I expect it sticks
     }
 
     //Starts a recording session
-    @SuppressLint({"SimpleDateFormat", "SetTextI18n"})
+    @SuppressLint("SetTextI18n")
     private void startRecording() {
         // Reset Variables used for recording
         plottedPkgCount = 0;
-        storedPkgCount = 0;
-        lostPkgCountTotal = 0;
-        start_time = new SimpleDateFormat("HH:mm:ss.SSS").format(new Date());
-        start_timestamp = new Timestamp(startTime).getTime();
-        recording = true;
+        plotOverwrittenCount = 0;
+        synchronized (plotLock) {
+            lostPkgCountTotal = 0;
+        }
 
-        createRecordingFile();
+        // the session writes the files, also while this activity is gone
+        recording = mSession != null && mSession.startRecording();
+        if (!recording) {
+            Toast.makeText(getApplicationContext(), "Could not create recording file.", Toast.LENGTH_LONG).show();
+            return;
+        }
 
         //UI Feedback
         Toast.makeText(getApplicationContext(), "Recording in progress.", Toast.LENGTH_LONG
@@ -1704,111 +1815,13 @@ public class Record extends AppCompatActivity {
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
     }
 
-    private void createRecordingFile() {
-        //transmission time, sampling time, channel values, transmissionID, pkgslosses, resolution
-        String date = new SimpleDateFormat("yyyyddMM_HH-mm-ss", Locale.getDefault()).format(new Date());
-        tempFileName = date + "_" + "recording.temp";
-        try {
-            File recordingFile = new File(MainActivity.getDirSessions(), tempFileName);
-            // if file doesn't exists, then create it
-            if (!recordingFile.exists()) {
-                boolean newFile = recordingFile.createNewFile();
-                if (!newFile) Log.e(TAG, "Error creating new file.");
-            }
-            fileWriter = new FileWriter(recordingFile);
-        } catch (IOException e) {
-            Log.e(TAG, e.getMessage());
-        }
-
-        //write a header with metadata
-        boolean header = true;
-        if (header) writeHeader(fileWriter);
-
-        // Specify column names here
-        final StringBuilder columnNames = new StringBuilder();
-        columnNames.append("time");
-        columnNames.append(delimiter + "sampling_time");
-
-        // use electrode labels ("FP1", etc.) or channel numbers ("ch1")
-        boolean useChannelLabels = getSharedPreferences("userPreferences", MODE_PRIVATE)
-                .getBoolean("eegLabels", true);
-        if (useChannelLabels) {
-            for (int i = 0; i < nChannels; i++) {
-                columnNames.append(delimiter).append(channelLabels[i]);
-            }
-        } else {
-            for (int i = 1; i <= nChannels; i++)
-                columnNames.append(String.format(Locale.getDefault(), "ch%d,", i));
-
-        }
-
-        columnNames.append(delimiter).append("pkgid");
-        columnNames.append(delimiter).append("pkgloss_bluetooth");
-        columnNames.append(delimiter).append("pkgloss_internal");
-        columnNames.append(delimiter).append("transmission_rate");
-        columnNames.append(lineBreak);
-
-        try {
-            fileWriter.append(columnNames);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    private void writeHeader(FileWriter fileWriter) {
-        final StringBuilder header = new StringBuilder();
-
-        // First Row
-        header.append("Username" + delimiter);
-        header.append("UserID" + delimiter);
-        header.append("SessionTag" + delimiter);
-        header.append("Date" + delimiter);
-        header.append("SamplingRate" + delimiter);
-        header.append("Bits" + delimiter);
-        header.append("unit" + delimiter);
-        header.append("\n");
-
-
-        final String username = getSharedPreferences("userPreferences", 0).getString("username", "user");
-        final String userID = getSharedPreferences("userPreferences", 0).getString("userID", "12345678");
-        String date = new SimpleDateFormat("yyyyddMMHHmmss", Locale.getDefault()).format(new Date());
-
-        // Second Row
-        header.append(username).append(delimiter);
-        header.append(userID).append(delimiter);
-        header.append("SessionTag").append(delimiter);
-        header.append(date).append(delimiter);
-        header.append(samplingRate).append(delimiter);
-        header.append(TraumschreiberService.bitsPerCh).append(delimiter);
-        header.append("microVolt").append(delimiter);
-        header.append("\n");
-
-        try {
-            fileWriter.write(header.toString());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-    }
-
     //Finish a recording session
-    @SuppressLint("SimpleDateFormat")
     private void endRecording() {
 
         // Resetting and Clearing Variables
         recording = false;
-        end_time = new SimpleDateFormat("HH:mm:ss.SSS").format(new Date());
-        long stop_watch = System.currentTimeMillis();
-        end_timestamp = new Timestamp(stop_watch).getTime();
-        recording_time = Long.toString(stop_watch - startTime);
-
-        timestamps.clear();
-        samplingTimes.clear();
-        pkgIDs.clear();
-        pkgsLost.clear();
-
-        //Clear Files
-        deleteTempFiles();
+        // a saved recording has been closed already, a discarded one is deleted here
+        if (mSession != null && mSession.isRecording()) mSession.discardRecording();
 
         // UI Update
         buttons_prerecording();
@@ -1826,14 +1839,14 @@ public class Record extends AppCompatActivity {
     private void showStats() {
         StringBuilder statistics = new StringBuilder();
         statistics.append("Device: \t").append(mDeviceAddress).append("\n\n");
-        statistics.append("Last Timestamp: \t").append(lastTimeStamp).append("\n");
-        statistics.append("Sampling Rate: \t").append(samplingRate).append("\n");
-        statistics.append("Bit resolution: \t").append(TraumschreiberService.bitsPerCh).append("\n");
-        statistics.append("Total Number of PKGs: \t").append(storedPkgCount).append("\n");
-        statistics.append("Total Number of Lost PKGs: \t").append(lostPkgCountTotal).append("\n");
-        if (storedPkgCount > 0) {
-            statistics.append("Package Loss (%): ").append((float) (lostPkgCountTotal * 100) / (float) storedPkgCount);
+        if (mSession != null) mSession.appendStats(statistics);
+        SampleRingBuffer sampleBuffer = mBluetoothLeService == null ? null : mBluetoothLeService.getSampleBuffer(mDeviceAddress);
+        if (sampleBuffer != null) {
+            statistics.append("\nApp Dropped PKGs (buffer overflow): \t").append(sampleBuffer.getOverflowCount()).append("\n");
+            statistics.append("Buffer High-Water Mark: \t").append(sampleBuffer.getHighWaterMark())
+                    .append("/").append(sampleBuffer.capacity()).append("\n");
         }
+        statistics.append("Samples not plotted (plot lagging): \t").append(plotOverwrittenCount).append("\n");
         AlertDialog.Builder statsDialogBuilder = new AlertDialog.Builder(Record.this)
                 .setTitle("Recording statistics for debugging:")
                 .setMessage(statistics.toString())
@@ -1893,126 +1906,17 @@ public class Record extends AppCompatActivity {
 
     }
 
-    /**
-     * Stores
-     * transmission time, sampling time, channel values, transmissionID, pkgslosses, resolution
-     *
-     * @param data_microV Voltages recorded by the Traumschreiber in micro Volts
-     */
-    private void storeData(List<Float> data_microV) {
-
-        float[] f_microV = new float[nChannels];
-        Arrays.fill(f_microV, Float.NaN);
-        //NaN rows on top (uninitialized)
-        for (int i = 0; i < currentPkgLoss; i++) writeSampleToCsv(f_microV);
-        for (int i = 0; i < currentBtPkgLoss; i++) writeSampleToCsv(f_microV);
-        // Channel Values
-        int i = 0;
-        for (Float f : data_microV)
-            f_microV[i++] = (f != null ? f : Float.NaN); // Or whatever default you want
-        writeSampleToCsv(f_microV);
-        adaptiveEncodingFlag = 0;
-
-    }
-
-    /**
-     * Adds a row to the recording with columns in the following order
-     * timestamp, samplingtime,channelvalues,pkgid,pkgsloss
-     *
-     * @param sample float array with channel values
-     */
-    private void writeSampleToCsv(float[] sample) {
-
-        // Real Time Stamps
-        if (storedPkgCount == 0) startTime = System.currentTimeMillis();
-        lastTimeStamp = System.currentTimeMillis() - startTime;
-
-        // Expected Time Stamps
-        float samplingInterval = 1000 / samplingRate;
-        float samplingTime = samplingInterval * storedPkgCount;
-
-        // Correct Pkg loss counts: NaN rows should have a pkg loss of 0.
-        int NaNCorrectionBtLoss = 0;
-        int NaNCorrectionInternalLoss = 0;
-        if (Float.isNaN(sample[0])) {
-            NaNCorrectionBtLoss = currentBtPkgLoss;
-            NaNCorrectionInternalLoss = currentPkgLoss;
-        }
-        try {
-            fileWriter.append(String.valueOf(lastTimeStamp));
-            fileWriter.append(delimiter).append(String.valueOf(samplingTime));
-            for (int j = 0; j < nChannels; j++) {
-                fileWriter.append(delimiter).append(String.valueOf(sample[j]));
-            }
-            fileWriter.append(delimiter).append(String.valueOf(currentPkgId));
-            fileWriter.append(delimiter).append(String.valueOf(currentBtPkgLoss - NaNCorrectionBtLoss));      //Bluetooth loss
-            fileWriter.append(delimiter).append(String.valueOf(currentPkgLoss - NaNCorrectionInternalLoss)); //Internal loss
-            fileWriter.append(delimiter).append(String.valueOf(resolutionFrequency));
-            fileWriter.append("\n");
-            storedPkgCount++;
-
-
-        } catch (Exception e) {
-            Log.e(TAG, e.getMessage());
-        }
-    }
-
     private void saveSession() throws IOException {
         saveSession("default");
     }
 
-    @SuppressLint("DefaultLocale")
     private void saveSession(final String tag) throws IOException {
-        /*
-          Writes a footer with meta data to the end of the file and saves it acc. to user preferences
-         */
-        boolean footer = false;
-        if (footer) writeFooter(tag);
-
-        //Get the date
-        String date = new SimpleDateFormat("yyyyddMMHHmmss", Locale.getDefault()).format(new Date());
-
-        // give the temp file a proper file name
-        String permFileName = date + "_" + tag + ".csv";
-        File tempFile = new File(MainActivity.getDirSessions(), tempFileName);
-        File permFile = new File(MainActivity.getDirSessions(), permFileName);
-        boolean storeResult = tempFile.renameTo(permFile);
-        if (!storeResult) Log.e(TAG, "Error saving recording.");
+        recording = false;
+        if (mSession == null) throw new IOException("Session closed, the recording is lost");
+        String permFileName = mSession.saveRecording(tag);
 
         Toast.makeText(getApplicationContext(), "Stored Recording as " + permFileName, Toast.LENGTH_LONG
         ).show();
-
-        fileWriter.close();
-    }
-
-    private void writeFooter(String tag) throws IOException {
-
-        // Column Names of Footer
-        final String footerLabels = "Username,User ID,Session ID,Session Tag,Date,Shape (rows x columns)," +
-                "Duration (ms),Starting Time,Ending Time,Sampling Rate,Bits per Channel," +
-                "measurement unit,Starting Timestamp,Ending Timestamp";
-        fileWriter.append(footerLabels);
-        fileWriter.append("\n");
-        // Footer Values
-        final String username = getSharedPreferences("userPreferences", 0).getString("username", "user");
-        final String userID = getSharedPreferences("userPreferences", 0).getString("userID", "12345678");
-        final UUID id = UUID.randomUUID();
-        String date = new SimpleDateFormat("yyyyddMMHHmmss", Locale.getDefault()).format(new Date());
-
-        fileWriter.append(username);
-        fileWriter.append(delimiter).append(userID);
-        fileWriter.append(delimiter).append(id.toString());
-        fileWriter.append(delimiter).append(tag);
-        fileWriter.append(delimiter).append(date);
-        fileWriter.append(delimiter).append(String.valueOf(storedPkgCount)).append("x").append(String.valueOf(nChannels));
-        fileWriter.append(delimiter).append(recording_time);
-        fileWriter.append(delimiter).append(start_time);
-        fileWriter.append(delimiter).append(end_time);
-        fileWriter.append(delimiter).append(String.valueOf(samplingRate));
-        fileWriter.append(delimiter).append(String.valueOf(TraumschreiberService.bitsPerCh));
-        fileWriter.append(delimiter).append("µV");
-        fileWriter.append(delimiter).append(String.valueOf(start_timestamp));
-        fileWriter.append(delimiter).append(String.valueOf(end_timestamp));
     }
 
     private void buttons_nodata() {
@@ -2035,6 +1939,8 @@ public class Record extends AppCompatActivity {
         MenuItem menuItemNotify = menu.findItem(R.id.notify);
         MenuItem menuItemCast = menu.findItem(R.id.cast);
         MenuItem menuItemCentering = menu.findItem(R.id.centering);
+        MenuItem menuItemBenchmark = menu.findItem(R.id.linkBenchmark);
+        MenuItem menuItemSimulator = menu.findItem(R.id.simulator);
 
         if (connected) {
             // Visual feedback
@@ -2047,6 +1953,8 @@ public class Record extends AppCompatActivity {
             menuItemNotify.setVisible(true);
             menuItemCast.setVisible(true);
             menuItemCentering.setVisible(true);
+            menuItemBenchmark.setVisible(!TraumschreiberSimulator.isSimulatedAddress(mDeviceAddress));
+            menuItemSimulator.setVisible(false);
 
         } else {
             menuItem.setIcon(R.drawable.ic_bluetooth_searching_white_24dp);
@@ -2058,6 +1966,8 @@ public class Record extends AppCompatActivity {
             menuItemNotify.setVisible(false);
             menuItemCast.setVisible(false);
             menuItemCentering.setVisible(false);
+            menuItemBenchmark.setVisible(false);
+            menuItemSimulator.setVisible(true);
         }
     }
 
@@ -2089,17 +1999,4 @@ public class Record extends AppCompatActivity {
         channelColors[23] = ContextCompat.getColor(this, R.color.Ch24);
     }
 
-    public void deleteTempFiles() {
-        File dir = new File(MainActivity.getDirSessions(), "");
-        File[] files = dir.listFiles();
-        assert files != null;
-        for (File tempFile : files) {
-            if (tempFile.getName().endsWith(".temp")) {
-                boolean deleted = tempFile.delete();
-                if (!deleted) Log.e(TAG, "Failed to delete file.");
-                else Log.d(TAG, "deleted temp file!");
-            }
-        }
-    }
-
 }
@@ -0,0 +1,300 @@
+package de.uos.ikw.eegdroid;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes the rows of a recording on a dedicated thread, either as CSV text or in the binary
+ * {@link SessionFile} format.
+ * <p>
+ * {@link #writeRow} only copies the values into a preallocated {@link SampleRingBuffer}.
+ * The writer thread formats the rows into a reusable buffer and hands them to the file in
+ * large batches, so neither the UI nor the bluetooth processing ever waits for the disk. If the
+ * disk falls QUEUE_CAPACITY rows behind, writeRow waits at most MAX_WAIT_NANOS for a free slot
+ * and drops the row after that, see {@link #getDroppedRows}.
+ * Rows have the columns
+ * time, sampling_time, channel values, pkgid, pkgloss_bluetooth, pkgloss_internal, transmission_rate.
+ */
+public class RecordingWriter extends BackgroundWriter {
+
+    // ~30 s of rows at 250 Hz before writeRow has to wait for the disk
+    private static final int QUEUE_CAPACITY = 8192;
+    // characters (CSV) or bytes (binary) per write
+    private static final int BATCH_SIZE = 64 * 1024;
+    private static final long MAX_WAIT_NANOS = 100_000_000L;
+    private static final char DELIMITER = ',';
+    private final int nChannels;
+    // ints per queued row, the two time columns take two ints each
+    private final int rowSize;
+    // exactly one of writer (CSV) and channel (binary) is set
+    private final Writer writer;
+    private final FileChannel channel;
+    private final StringBuilder batch;
+    private final char[] chars;
+    private final ByteBuffer bytes;
+    // channel values of binary files are stored in units of the device
+    private final float unitsPerMicroVolt;
+    // time stamp of every SessionFile.BLOCK_ROWS-th row, written as index on close
+    private double[] blockTimes;
+    private int nBlocks;
+    // row being filled by the producer
+    private final int[] producerRow;
+    // CSV rows are ASCII, their characters are bytes
+    private volatile long bytesWritten;
+    private volatile long rowsWritten;
+    private volatile long droppedRows;
+    private volatile long lastFlushNanos;
+    private volatile long maxFlushNanos;
+    private long startNanos;
+
+    /**
+     * Creates the file, writes the header synchronously and starts the writer thread.
+     *
+     * @param file      recording file, truncated if it exists
+     * @param header    text preceding the rows (meta data and column names)
+     * @param nChannels number of channel columns per row
+     */
+    public RecordingWriter(File file, CharSequence header, int nChannels) throws IOException {
+        super("RecordingWriter", QUEUE_CAPACITY, nChannels + SessionFile.EXTRA_COLUMNS + 2);
+        this.nChannels = nChannels;
+        this.rowSize = nChannels + SessionFile.EXTRA_COLUMNS + 2;
+        this.producerRow = new int[rowSize];
+        this.batch = new StringBuilder(BATCH_SIZE + 1024);
+        this.chars = new char[BATCH_SIZE + 1024];
+        this.bytes = null;
+        this.unitsPerMicroVolt = 0;
+        this.channel = null;
+        this.writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+        writer.write(header.toString());
+        bytesWritten = utf8Length(header);
+        startNanos = System.nanoTime();
+        start();
+    }
+
+    /**
+     * Creates a binary {@link SessionFile}, writes its header synchronously and starts the
+     * writer thread.
+     *
+     * @param file              recording file, truncated if it exists
+     * @param header            text preceding the rows in the CSV representation, kept as meta data
+     * @param nChannels         number of channel columns per row
+     * @param samplingRate      sampling rate at the start of the recording
+     * @param bitsPerCh         bit resolution at the start of the recording
+     * @param microVoltsPerUnit factor converting decoded values to micro volts at the start of
+     *                          the recording, the channel values are stored in these units
+     */
+    public RecordingWriter(File file, CharSequence header, int nChannels, float samplingRate,
+                           int bitsPerCh, float microVoltsPerUnit) throws IOException {
+        super("RecordingWriter", QUEUE_CAPACITY, nChannels + SessionFile.EXTRA_COLUMNS + 2);
+        this.nChannels = nChannels;
+        this.rowSize = nChannels + SessionFile.EXTRA_COLUMNS + 2;
+        this.producerRow = new int[rowSize];
+        this.batch = null;
+        this.chars = null;
+        this.bytes = ByteBuffer.allocateDirect(BATCH_SIZE + SessionFile.rowBytes(nChannels))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        this.unitsPerMicroVolt = 1 / microVoltsPerUnit;
+        this.blockTimes = new double[1024];
+        this.writer = null;
+        this.channel = new FileOutputStream(file).getChannel();
+        final ByteBuffer encoded = SessionFile.encodeHeader(nChannels, samplingRate, bitsPerCh,
+                microVoltsPerUnit, System.currentTimeMillis(), header);
+        bytesWritten = encoded.remaining();
+        writeFully(encoded);
+        startNanos = System.nanoTime();
+        start();
+    }
+
+    /**
+     * Queues a row. Called by a single producer thread; waits only if the writer has fallen
+     * QUEUE_CAPACITY rows behind, and drops the row if no slot frees up within MAX_WAIT_NANOS.
+     * Rows passed after {@link #close} are ignored.
+     *
+     * @param time         ms since the start of the recording
+     * @param samplingTime nominal ms since the start of the recording
+     */
+    public void writeRow(double time, double samplingTime, float[] channels, int pkgId,
+                         int btLoss, int internalLoss, float transmissionRate) {
+        if (!isRunning()) return;
+        final int[] row = producerRow;
+        final long timeBits = Double.doubleToRawLongBits(time);
+        final long samplingTimeBits = Double.doubleToRawLongBits(samplingTime);
+        row[0] = (int) (timeBits >>> 32);
+        row[1] = (int) timeBits;
+        row[2] = (int) (samplingTimeBits >>> 32);
+        row[3] = (int) samplingTimeBits;
+        for (int i = 0; i < nChannels; i++) row[4 + i] = Float.floatToRawIntBits(channels[i]);
+        row[nChannels + 4] = pkgId;
+        row[nChannels + 5] = btLoss;
+        row[nChannels + 6] = internalLoss;
+        row[nChannels + 7] = Float.floatToRawIntBits(transmissionRate);
+        if (!offer(row, rowSize, MAX_WAIT_NANOS) && isRunning()) droppedRows++;
+    }
+
+    /**
+     * Writes all queued rows, stops the writer thread and closes the file.
+     */
+    public void close() throws IOException {
+        close(null);
+    }
+
+    /**
+     * Writes all queued rows followed by the trailer, stops the writer thread and closes the file.
+     * Binary files end with the block index instead, a text trailer is ignored.
+     *
+     * @param trailer text written after the last row, may be null
+     */
+    public void close(CharSequence trailer) throws IOException {
+        if (!stop()) return;
+        if (channel != null) {
+            if (getError() == null) {
+                final ByteBuffer index = SessionFile.encodeTrailer(blockTimes, nBlocks, rowsWritten);
+                bytesWritten += index.remaining();
+                writeFully(index);
+            }
+            channel.close();
+        } else {
+            if (trailer != null) {
+                writer.write(trailer.toString());
+                bytesWritten += utf8Length(trailer);
+            }
+            writer.close();
+        }
+        if (getError() != null) throw getError();
+    }
+
+    public long getRowsWritten() {
+        return rowsWritten;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return number of rows dropped because the writer was QUEUE_CAPACITY rows behind for
+     * longer than MAX_WAIT_NANOS
+     */
+    public long getDroppedRows() {
+        return droppedRows;
+    }
+
+    /**
+     * @return average write throughput since the file was created
+     */
+    public float getBytesPerSecond() {
+        long elapsed = System.nanoTime() - startNanos;
+        return elapsed > 0 ? bytesWritten * 1e9f / elapsed : 0;
+    }
+
+    /**
+     * @return duration of the most recent batch write in ms
+     */
+    public float getLastFlushMillis() {
+        return lastFlushNanos / 1e6f;
+    }
+
+    /**
+     * @return duration of the slowest batch write in ms
+     */
+    public float getMaxFlushMillis() {
+        return maxFlushNanos / 1e6f;
+    }
+
+    /**
+     * @return number of rows waiting to be written
+     */
+    public int getQueuedRows() {
+        return queue.size();
+    }
+
+    @Override
+    void handle(int[] row) throws IOException {
+        if (channel != null) putRow(row);
+        else appendRow(row);
+        if (pending() >= BATCH_SIZE) flush();
+    }
+
+    @Override
+    int pending() {
+        return channel != null ? bytes.position() : batch.length();
+    }
+
+    private void putRow(int[] row) {
+        if (rowsWritten % SessionFile.BLOCK_ROWS == 0) {
+            if (nBlocks == blockTimes.length) blockTimes = Arrays.copyOf(blockTimes, nBlocks * 2);
+            blockTimes[nBlocks++] = getDouble(row, 0);
+        }
+        // the raw bits of the other columns, the doubles as two ints high word first
+        bytes.putLong(((long) row[0] << 32) | (row[1] & 0xffffffffL));
+        bytes.putLong(((long) row[2] << 32) | (row[3] & 0xffffffffL));
+        for (int i = 0; i < nChannels; i++) {
+            SessionFile.putSample(bytes, SessionFile.toUnits(Float.intBitsToFloat(row[4 + i]), unitsPerMicroVolt));
+        }
+        for (int i = nChannels + 4; i < rowSize; i++) bytes.putInt(row[i]);
+        rowsWritten++;
+    }
+
+    private void appendRow(int[] row) {
+        final StringBuilder b = batch;
+        b.append(getDouble(row, 0));
+        b.append(DELIMITER).append(getDouble(row, 2));
+        for (int i = 0; i < nChannels; i++) {
+            b.append(DELIMITER).append(Float.intBitsToFloat(row[4 + i]));
+        }
+        b.append(DELIMITER).append(row[nChannels + 4]);
+        b.append(DELIMITER).append(row[nChannels + 5]);
+        b.append(DELIMITER).append(row[nChannels + 6]);
+        b.append(DELIMITER).append(Float.intBitsToFloat(row[nChannels + 7]));
+        b.append('\n');
+        rowsWritten++;
+    }
+
+    private static double getDouble(int[] row, int position) {
+        return Double.longBitsToDouble(((long) row[position] << 32) | (row[position + 1] & 0xffffffffL));
+    }
+
+    @Override
+    void writeBatch() throws IOException {
+        final int length = pending();
+        if (length == 0 || getError() != null) {
+            if (channel != null) bytes.clear();
+            else batch.setLength(0);
+            return;
+        }
+        final long start = System.nanoTime();
+        if (channel != null) {
+            bytes.flip();
+            try {
+                writeFully(bytes);
+            } finally {
+                bytes.clear();
+            }
+        } else {
+            batch.getChars(0, length, chars, 0);
+            batch.setLength(0);
+            writer.write(chars, 0, length);
+            writer.flush();
+        }
+        final long duration = System.nanoTime() - start;
+        lastFlushNanos = duration;
+        if (duration > maxFlushNanos) maxFlushNanos = duration;
+        bytesWritten += length;
+    }
+
+    private static int utf8Length(CharSequence text) {
+        return text.toString().getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+}
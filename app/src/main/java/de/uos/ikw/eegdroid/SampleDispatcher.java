@@ -0,0 +1,82 @@
+package de.uos.ikw.eegdroid;
+
+import android.util.Log;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decouples the GATT callback thread from the processing of decoded packages.
+ * <p>
+ * The callback thread {@link #offer}s packages into a {@link SampleRingBuffer} and returns
+ * immediately. A dedicated consumer thread drains the buffer and hands every package to the
+ * {@link Consumer}, so slow storage or plotting can never stall bluetooth reception.
+ */
+public class SampleDispatcher {
+
+    private final static String TAG = SampleDispatcher.class.getSimpleName();
+    // upper bound for a sleeping consumer, also bounds the reaction time to stop()
+    private static final long PARK_NANOS = 10_000_000L;
+    private final SampleRingBuffer buffer;
+    private final Consumer consumer;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean waiting = false;
+
+    public SampleDispatcher(String name, SampleRingBuffer buffer, Consumer consumer) {
+        this.buffer = buffer;
+        this.consumer = consumer;
+        this.thread = new Thread(this::drain, name);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Queues a package for the consumer thread. Never blocks.
+     *
+     * @return false if the package was dropped because the buffer was full
+     */
+    public boolean offer(int[] data, int length) {
+        final boolean queued = buffer.offer(data, length);
+        if (waiting) LockSupport.unpark(thread);
+        return queued;
+    }
+
+    public SampleRingBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Stops the consumer thread. Packages still in the buffer are discarded.
+     */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    private void drain() {
+        final int[] pkg = new int[buffer.slotSize()];
+        while (running) {
+            final int length = buffer.poll(pkg);
+            if (length == 0) {
+                waiting = true;
+                // re-check after announcing, otherwise a package offered in between would wait
+                if (buffer.isEmpty()) LockSupport.parkNanos(PARK_NANOS);
+                waiting = false;
+                continue;
+            }
+            try {
+                consumer.accept(pkg, length);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Processing of a package failed", e);
+            }
+        }
+    }
+
+    public interface Consumer {
+        /**
+         * @param data   package values, the array is reused for the next package
+         * @param length number of valid values in data
+         */
+        void accept(int[] data, int length);
+    }
+}
@@ -0,0 +1,109 @@
+package de.uos.ikw.eegdroid;
+
+/**
+ * Preallocated single-producer single-consumer ring buffer for decoded Traumschreiber packages.
+ * <p>
+ * Every slot holds up to {@code slotSize} ints (header fields followed by the channel values,
+ * as written by {@link TraumschreiberService#decode}) plus the number of valid values.
+ * The producer (GATT callback thread) never blocks: if the consumer falls behind, new packages
+ * are rejected and counted as overflows. These app-side drops are separate from the radio-side
+ * losses reported in the package header.
+ * <p>
+ * Only one thread may call {@link #offer} and only one thread may call {@link #poll}.
+ */
+public class SampleRingBuffer {
+
+    private final int capacity;
+    private final int mask;
+    private final int slotSize;
+    private final int[] slots;
+    private final int[] lengths;
+    // next slot to write, only written by the producer
+    private volatile long head;
+    // next slot to read, only written by the consumer
+    private volatile long tail;
+    private volatile int highWaterMark;
+    private volatile long overflowCount;
+
+    /**
+     * @param capacity number of packages the buffer can hold, rounded up to a power of two
+     * @param slotSize maximum number of ints per package
+     */
+    public SampleRingBuffer(int capacity, int slotSize) {
+        int size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.slotSize = slotSize;
+        this.slots = new int[size * slotSize];
+        this.lengths = new int[size];
+    }
+
+    /**
+     * Copies a package into the buffer. Never blocks.
+     *
+     * @param data   package values
+     * @param length number of valid values in data, at most slotSize
+     * @return false if the buffer was full and the package was dropped
+     */
+    public boolean offer(int[] data, int length) {
+        final long h = head;
+        if (h - tail >= capacity) {
+            overflowCount++; // single writer, no atomic increment needed
+            return false;
+        }
+        final int slot = (int) (h & mask);
+        System.arraycopy(data, 0, slots, slot * slotSize, length);
+        lengths[slot] = length;
+        head = h + 1; // publishes the slot to the consumer
+
+        final int used = (int) (h + 1 - tail);
+        if (used > highWaterMark) highWaterMark = used;
+        return true;
+    }
+
+    /**
+     * Copies the oldest package into out and frees its slot.
+     *
+     * @param out receives the package values, must hold slotSize ints
+     * @return number of values written to out, 0 if the buffer is empty
+     */
+    public int poll(int[] out) {
+        final long t = tail;
+        if (t == head) return 0;
+        final int slot = (int) (t & mask);
+        final int length = lengths[slot];
+        System.arraycopy(slots, slot * slotSize, out, 0, length);
+        tail = t + 1; // hands the slot back to the producer
+        return length;
+    }
+
+    public boolean isEmpty() {
+        return tail == head;
+    }
+
+    public int size() {
+        return (int) (head - tail);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int slotSize() {
+        return slotSize;
+    }
+
+    /**
+     * @return the largest number of packages that were waiting in the buffer at once
+     */
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * @return number of packages dropped because the buffer was full
+     */
+    public long getOverflowCount() {
+        return overflowCount;
+    }
+}
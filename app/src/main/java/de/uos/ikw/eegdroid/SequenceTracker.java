@@ -0,0 +1,173 @@
+package de.uos.ikw.eegdroid;
+
+/**
+ * Follows the 4 bit package ids of a Traumschreiber stream and counts the lost packages
+ * before every package, taking the wrap at 16 into account.
+ * <p>
+ * The id alone cannot tell 1 lost package from 17. For gaps of more than half the id range,
+ * the arrival time since the previous package is divided by the running estimate of the
+ * package interval, and the loss is snapped to the count closest to that estimate that agrees
+ * with the ids. Packages arrive in bursts, one per connection event, so the first package of
+ * an event comes up to a connection interval after its slot while the last one is on time.
+ * Half the longest such delay seen lately is taken off the time before it is divided, which
+ * keeps a single loss at an event boundary from being taken for a wrap of the ids.
+ * <p>
+ * A package whose id was skipped among the last few ids and that arrives shortly after the
+ * previous package is a late package: its slot was already counted as lost, so it is reported
+ * as {@link #LATE} and not counted again. Any other id behind the expected one starts a new gap,
+ * so a burst of 9 to 15 lost packages is counted as loss even if the next package arrives
+ * quickly.
+ * <p>
+ * All counters cover the packages since the last {@link #reset}. {@link #track} runs on the
+ * decoding thread in constant time and never allocates.
+ */
+public class SequenceTracker {
+
+    /**
+     * Returned by {@link #track} for a package that arrived after its successors.
+     */
+    public static final int LATE = -1;
+    private static final int ID_RANGE = 16;
+    // skipped ids up to this far behind the expected one, arriving within LATE_INTERVALS of the
+    // previous package, are taken as late packages (as passed on by a PacketReorderer)
+    private static final int LATE_RANGE = PacketReorderer.MAX_WINDOW;
+    private static final int LATE_INTERVALS = 4;
+    // gaps of more ids than this are checked against the arrival time
+    private static final int TIME_CHECK_GAP = ID_RANGE / 2;
+    // packages the running estimate of the interval averages over, it has to span many
+    // connection events as the packages of one event arrive at nearly the same time
+    private static final int INTERVAL_PACKAGES = 256;
+    // decay of the longest arrival delay per package in order, as power of two
+    private static final int DELAY_SHIFT = 8;
+    private int expectedId = -1;
+    // bit per id that was skipped within the last LATE_RANGE ids and may still arrive late
+    private int missing;
+    private long lastArrival;
+    private long interval;
+    private int intervalPackages;
+    // longest arrival delay beyond the interval of the recent packages in order, about one
+    // connection interval when the packages come in bursts
+    private long batchDelay;
+    private volatile long received;
+    private volatile long lost;
+    private volatile long late;
+    private volatile long longGaps;
+    private volatile int maxGap;
+
+    /**
+     * Registers the next package.
+     *
+     * @param pkgId        4 bit id from the header of the package
+     * @param arrivalNanos arrival time of the package, e.g. {@link System#nanoTime}
+     * @return number of packages lost right before this one, or LATE
+     */
+    public int track(int pkgId, long arrivalNanos) {
+        received++;
+        if (expectedId < 0) {
+            expectedId = (pkgId + 1) % ID_RANGE;
+            lastArrival = arrivalNanos;
+            return 0;
+        }
+        final long elapsed = arrivalNanos - lastArrival;
+        int gap = (pkgId - expectedId) & (ID_RANGE - 1);
+        if (gap >= ID_RANGE - LATE_RANGE && (missing & (1 << pkgId)) != 0
+                && (interval <= 0 || elapsed < LATE_INTERVALS * interval)) {
+            missing &= ~(1 << pkgId);
+            late++;
+            return LATE;
+        }
+        if (gap == 0 && interval > 0) {
+            final long delay = Math.min(elapsed - interval, ID_RANGE * interval);
+            batchDelay = delay > batchDelay ? delay : batchDelay - (batchDelay >> DELAY_SHIFT);
+        }
+        if (gap == 0 || interval <= 0 || elapsed - batchDelay / 2 <= TIME_CHECK_GAP * interval) {
+            // the ids tell how many package intervals the time covers
+            intervalPackages = Math.min(intervalPackages + gap + 1, INTERVAL_PACKAGES);
+            interval += (elapsed - (gap + 1) * interval) / intervalPackages;
+        } else {
+            // the ids wrapped an unknown number of times, the time without the wait for the
+            // connection event tells how many
+            final long estimate = Math.round((double) (elapsed - batchDelay / 2) / interval) - 1;
+            final long wraps = Math.max(0, Math.round((double) (estimate - gap) / ID_RANGE));
+            if (wraps > 0) longGaps++;
+            gap += (int) Math.min(wraps * ID_RANGE, Integer.MAX_VALUE - ID_RANGE);
+        }
+        // remember the ids just skipped, forget those too far behind to come late
+        int recent = 0;
+        int skipped = 0;
+        for (int i = 1; i <= LATE_RANGE; i++) {
+            final int bit = 1 << ((pkgId - i) & (ID_RANGE - 1));
+            recent |= bit;
+            if (i <= gap) skipped |= bit;
+        }
+        missing = (missing | skipped) & recent;
+        expectedId = (pkgId + 1) % ID_RANGE;
+        lastArrival = arrivalNanos;
+        lost += gap;
+        if (gap > maxGap) maxGap = gap;
+        return gap;
+    }
+
+    /**
+     * Starts a new session, the next package is taken as the first.
+     */
+    public void reset() {
+        expectedId = -1;
+        missing = 0;
+        interval = 0;
+        intervalPackages = 0;
+        batchDelay = 0;
+        received = 0;
+        lost = 0;
+        late = 0;
+        longGaps = 0;
+        maxGap = 0;
+    }
+
+    /**
+     * @return packages received, including late ones
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    public long getLost() {
+        return lost;
+    }
+
+    /**
+     * @return packages that arrived after their slot had been counted as lost
+     */
+    public long getLate() {
+        return late;
+    }
+
+    /**
+     * @return gaps longer than the id range that were sized by their duration
+     */
+    public long getLongGaps() {
+        return longGaps;
+    }
+
+    /**
+     * @return most packages lost in a row
+     */
+    public int getMaxGap() {
+        return maxGap;
+    }
+
+    /**
+     * @return share of the packages sent that never arrived
+     */
+    public float getLossRatio() {
+        final long total = received - late + lost;
+        return total > 0 ? (float) lost / total : 0;
+    }
+
+    /**
+     * @return running estimate of the time between two packages in ns, 0 if unknown
+     */
+    public long getIntervalNanos() {
+        return Math.max(0, interval);
+    }
+}
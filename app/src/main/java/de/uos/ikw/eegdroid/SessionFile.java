@@ -0,0 +1,411 @@
+package de.uos.ikw.eegdroid;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary session format (.eegb) written by {@link RecordingWriter}.
+ * <p>
+ * All values are little endian. The file starts with a fixed header followed by the meta data
+ * text that precedes the rows of a CSV recording (user, date, column names). The rows have the
+ * same columns as the CSV rows:
+ * time and sampling_time in ms (double, so they keep sub-ms precision in long sessions),
+ * channel values (int24), pkgid, pkgloss_bluetooth, pkgloss_internal (int) and
+ * transmission_rate (float).
+ * The channel values are stored in units of the device, {@code microV = value * microVoltsPerUnit}
+ * with the factor of the gain at the start of the recording kept in the header. Lost samples
+ * (NaN in the CSV format) are stored as MISSING.
+ * Since every row has the same size, row i starts at {@code dataOffset + i * rowBytes}.
+ * On a regular close, the index of the time stamps of every BLOCK_ROWS-th row is appended
+ * followed by the trailer (number of index entries, number of rows, INDEX_MAGIC). The
+ * {@link Reader} finds the row of a time stamp with it by reading a single block.
+ * Files without trailer (e.g. after a crash) are still readable.
+ */
+public class SessionFile {
+
+    public static final String EXTENSION = ".eegb";
+    public static final int MAGIC = 0x42474545; // "EEGB"
+    public static final int INDEX_MAGIC = 0x31584449; // "IDX1"
+    public static final int VERSION = 3;
+    public static final int BLOCK_ROWS = 256;
+    // magic, version, nChannels, rowBytes, samplingRate, bitsPerCh, microVoltsPerUnit, startTime,
+    // blockRows, metadata length
+    public static final int FIXED_HEADER_BYTES = 44;
+    public static final int TRAILER_BYTES = 16;
+    // time, sampling_time, pkgid, pkgloss_bluetooth, pkgloss_internal, transmission_rate
+    public static final int EXTRA_COLUMNS = 6;
+    // stored channel value of a lost sample
+    public static final int MISSING = -(1 << 23);
+    private static final int MAX_SAMPLE = (1 << 23) - 1;
+    private static final int SAMPLE_BYTES = 3;
+    // time and sampling_time are the double columns at the start of a row
+    private static final int TIME_BYTES = 16;
+    private static final int READ_BLOCK_BYTES = 256 * 1024;
+
+    /**
+     * Encodes the file header.
+     *
+     * @param microVoltsPerUnit factor converting the stored channel values to micro volts
+     * @param metadata          text preceding the rows in the CSV representation of the session
+     */
+    public static ByteBuffer encodeHeader(int nChannels, float samplingRate, int bitsPerCh,
+                                          float microVoltsPerUnit, long startTime,
+                                          CharSequence metadata) {
+        final byte[] text = metadata.toString().getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_BYTES + text.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(nChannels);
+        header.putInt(rowBytes(nChannels));
+        header.putFloat(samplingRate);
+        header.putInt(bitsPerCh);
+        header.putFloat(microVoltsPerUnit);
+        header.putLong(startTime);
+        header.putInt(BLOCK_ROWS);
+        header.putInt(text.length);
+        header.put(text);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Encodes the block index and the trailer.
+     *
+     * @param blockTimes time stamp of the first row of every block
+     * @param nBlocks    number of valid entries in blockTimes
+     * @param rowCount   number of rows in the file
+     */
+    public static ByteBuffer encodeTrailer(double[] blockTimes, int nBlocks, long rowCount) {
+        final ByteBuffer trailer = ByteBuffer.allocate(nBlocks * 8 + TRAILER_BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < nBlocks; i++) trailer.putDouble(blockTimes[i]);
+        trailer.putInt(nBlocks);
+        trailer.putLong(rowCount);
+        trailer.putInt(INDEX_MAGIC);
+        trailer.flip();
+        return trailer;
+    }
+
+    public static int rowBytes(int nChannels) {
+        return TIME_BYTES + nChannels * SAMPLE_BYTES + (EXTRA_COLUMNS - 2) * 4;
+    }
+
+    /**
+     * Rounds a channel value to the units stored in the file.
+     *
+     * @param unitsPerMicroVolt inverse of the microVoltsPerUnit in the header
+     * @return stored value, MISSING for NaN
+     */
+    public static int toUnits(float microV, float unitsPerMicroVolt) {
+        if (Float.isNaN(microV)) return MISSING;
+        final float units = microV * unitsPerMicroVolt;
+        if (units >= MAX_SAMPLE) return MAX_SAMPLE;
+        if (units <= -MAX_SAMPLE) return -MAX_SAMPLE;
+        return Math.round(units);
+    }
+
+    /**
+     * Appends a stored channel value as 3 byte little endian integer.
+     */
+    public static void putSample(ByteBuffer buffer, int value) {
+        buffer.put((byte) value);
+        buffer.put((byte) (value >> 8));
+        buffer.put((byte) (value >> 16));
+    }
+
+    // sign extended 3 byte little endian integer at an absolute position
+    private static int getSample(ByteBuffer buffer, int position) {
+        return (buffer.get(position) & 0xff) | (buffer.get(position + 1) & 0xff) << 8
+                | buffer.get(position + 2) << 16;
+    }
+
+    public static boolean isSessionFile(File file) {
+        return file.getName().toLowerCase().endsWith(EXTENSION);
+    }
+
+    /**
+     * Writes a binary session as CSV file with the layout of a recording made in CSV format.
+     */
+    public static void exportCsv(File session, File csv) throws IOException {
+        try (Reader reader = new Reader(session); Writer writer = new FileWriter(csv)) {
+            final int nChannels = reader.getChannelCount();
+            final int rowSize = reader.getRowSize();
+            final double[] rows = new double[BLOCK_ROWS * rowSize];
+            final StringBuilder text = new StringBuilder(BLOCK_ROWS * rowSize * 12);
+            writer.write(reader.getMetadata());
+            for (long row = 0; row < reader.getRowCount(); row += BLOCK_ROWS) {
+                final int n = reader.readRows(row, BLOCK_ROWS, rows);
+                text.setLength(0);
+                for (int r = 0; r < n; r++) {
+                    final int o = r * rowSize;
+                    text.append(rows[o]);
+                    text.append(',').append(rows[o + 1]);
+                    for (int i = 0; i < nChannels; i++) text.append(',').append((float) rows[o + 2 + i]);
+                    text.append(',').append((int) rows[o + nChannels + 2]);
+                    text.append(',').append((int) rows[o + nChannels + 3]);
+                    text.append(',').append((int) rows[o + nChannels + 4]);
+                    text.append(',').append((float) rows[o + nChannels + 5]);
+                    text.append('\n');
+                }
+                writer.append(text);
+            }
+        }
+    }
+
+    /**
+     * Random access to the rows of a binary session.
+     */
+    public static class Reader implements Closeable {
+
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final int nChannels;
+        private final int rowBytes;
+        private final float samplingRate;
+        private final int bitsPerCh;
+        private final float microVoltsPerUnit;
+        private final long startTime;
+        private final String metadata;
+        private final long dataOffset;
+        private final long rowCount;
+        private final int blockRows;
+        // time stamp of the first row of every block, null without trailer
+        private double[] blockTimes;
+        private final ByteBuffer buffer;
+
+        public Reader(File session) throws IOException {
+            file = new RandomAccessFile(session, "r");
+            channel = file.getChannel();
+            final ByteBuffer fixed = read(0, FIXED_HEADER_BYTES);
+            if (fixed.getInt() != MAGIC) throw new IOException("Not a session file: " + session);
+            final int version = fixed.getInt();
+            if (version != VERSION) throw new IOException("Unsupported session file version " + version);
+            nChannels = fixed.getInt();
+            rowBytes = fixed.getInt();
+            samplingRate = fixed.getFloat();
+            bitsPerCh = fixed.getInt();
+            microVoltsPerUnit = fixed.getFloat();
+            startTime = fixed.getLong();
+            blockRows = fixed.getInt();
+            final int metadataLength = fixed.getInt();
+            final ByteBuffer text = read(FIXED_HEADER_BYTES, metadataLength);
+            metadata = new String(text.array(), 0, metadataLength, StandardCharsets.UTF_8);
+            dataOffset = FIXED_HEADER_BYTES + metadataLength;
+            buffer = ByteBuffer.allocateDirect(Math.max(rowBytes, READ_BLOCK_BYTES / rowBytes * rowBytes))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+
+            final long indexedRows = readIndexedRowCount();
+            // no trailer: the recording was not closed, every complete row is valid
+            rowCount = indexedRows >= 0 ? indexedRows : (channel.size() - dataOffset) / rowBytes;
+        }
+
+        public int getChannelCount() {
+            return nChannels;
+        }
+
+        public float getSamplingRate() {
+            return samplingRate;
+        }
+
+        public int getBitsPerCh() {
+            return bitsPerCh;
+        }
+
+        /**
+         * @return factor converting the stored channel values to micro volts
+         */
+        public float getMicroVoltsPerUnit() {
+            return microVoltsPerUnit;
+        }
+
+        /**
+         * @return wall clock time in ms at which the recording was started
+         */
+        public long getStartTime() {
+            return startTime;
+        }
+
+        public String getMetadata() {
+            return metadata;
+        }
+
+        public long getRowCount() {
+            return rowCount;
+        }
+
+        /**
+         * @return number of values per row in the arrays filled by {@link #readRows}
+         */
+        public int getRowSize() {
+            return nChannels + EXTRA_COLUMNS;
+        }
+
+        /**
+         * Reads consecutive rows, every column converted to double and the channel values to
+         * micro volts (NaN for lost samples).
+         *
+         * @param firstRow index of the first row to read
+         * @param maxRows  maximum number of rows to read
+         * @param out      receives the rows one after another, getRowSize() values each
+         * @return number of rows read
+         */
+        public int readRows(long firstRow, int maxRows, double[] out) throws IOException {
+            final int n = (int) Math.min(maxRows, Math.max(0, rowCount - firstRow));
+            final int rowSize = getRowSize();
+            int done = 0;
+            while (done < n) {
+                final int chunk = readChunk(firstRow + done, n - done);
+                for (int r = 0; r < chunk; r++) {
+                    int o = (done + r) * rowSize;
+                    out[o++] = buffer.getDouble();
+                    out[o++] = buffer.getDouble();
+                    final int samples = buffer.position();
+                    for (int i = 0; i < nChannels; i++) {
+                        out[o++] = toMicroV(getSample(buffer, samples + i * SAMPLE_BYTES));
+                    }
+                    buffer.position(samples + nChannels * SAMPLE_BYTES);
+                    out[o++] = buffer.getInt();
+                    out[o++] = buffer.getInt();
+                    out[o++] = buffer.getInt();
+                    out[o] = buffer.getFloat();
+                }
+                done += chunk;
+            }
+            return n;
+        }
+
+        /**
+         * Reads the values of the given channels of every step-th row in micro volts, NaN for
+         * lost samples.
+         *
+         * @param channels indices of the channels to read
+         * @param step     distance between two returned rows, 1 for every row
+         * @param times    receives the time stamps, may be null, (rowCount + step - 1) / step values
+         * @return values[channel][row]
+         */
+        public float[][] readChannels(int[] channels, int step, double[] times) throws IOException {
+            final int n = (int) ((rowCount + step - 1) / step);
+            final float[][] values = new float[channels.length][n];
+            final int chunkRows = Math.max(1, buffer.capacity() / rowBytes / step) * step;
+            int out = 0;
+            for (long row = 0; row < rowCount; row += chunkRows) {
+                final int read = readChunk(row, (int) Math.min(chunkRows, rowCount - row));
+                for (int r = 0; r < read; r += step) {
+                    final int o = r * rowBytes;
+                    if (times != null) times[out] = buffer.getDouble(o);
+                    for (int c = 0; c < channels.length; c++) {
+                        values[c][out] = toMicroV(getSample(buffer, o + TIME_BYTES + channels[c] * SAMPLE_BYTES));
+                    }
+                    out++;
+                }
+            }
+            return values;
+        }
+
+        /**
+         * Finds the first row at or after the given time, e.g. to read the rows from there on
+         * with {@link #readRows}. The time stamps have to increase from row to row. With the
+         * block index only one block is read, without it the rows are searched binary.
+         *
+         * @param time time stamp in ms, as in the time column
+         * @return index of the row, getRowCount() if all rows are earlier
+         */
+        public long findRow(double time) throws IOException {
+            long low = 0;
+            long high = rowCount;
+            if (blockTimes != null) {
+                // the first block starting at or after the time bounds the search from above
+                int block = 0;
+                int end = blockTimes.length;
+                while (block < end) {
+                    final int mid = (block + end) >>> 1;
+                    if (blockTimes[mid] < time) block = mid + 1;
+                    else end = mid;
+                }
+                if (block == 0) return 0;
+                high = Math.min(rowCount, (long) block * blockRows);
+                for (long row = (long) (block - 1) * blockRows + 1; row < high; ) {
+                    final int n = readChunk(row, (int) (high - row));
+                    for (int r = 0; r < n; r++) {
+                        if (buffer.getDouble(r * rowBytes) >= time) return row + r;
+                    }
+                    row += n;
+                }
+                return high;
+            }
+            while (low < high) {
+                final long mid = (low + high) >>> 1;
+                if (rowTime(mid) < time) low = mid + 1;
+                else high = mid;
+            }
+            return low;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+
+        private float toMicroV(int value) {
+            return value == MISSING ? Float.NaN : value * microVoltsPerUnit;
+        }
+
+        // reads up to maxRows rows into the buffer, positioned at the first of them
+        private int readChunk(long firstRow, int maxRows) throws IOException {
+            final int chunk = Math.min(buffer.capacity() / rowBytes, maxRows);
+            buffer.clear();
+            buffer.limit(chunk * rowBytes);
+            readFully(buffer, dataOffset + firstRow * rowBytes);
+            buffer.flip();
+            return chunk;
+        }
+
+        // number of rows given by the trailer, -1 if there is no valid trailer; loads the index
+        private long readIndexedRowCount() throws IOException {
+            final long size = channel.size();
+            if (size < dataOffset + TRAILER_BYTES) return -1;
+            final ByteBuffer trailer = read(size - TRAILER_BYTES, TRAILER_BYTES);
+            final int nBlocks = trailer.getInt();
+            final long rows = trailer.getLong();
+            if (trailer.getInt() != INDEX_MAGIC || nBlocks < 0) return -1;
+            final long indexOffset = size - TRAILER_BYTES - nBlocks * 8L;
+            if (indexOffset != dataOffset + rows * rowBytes) return -1;
+            if (blockRows > 0 && nBlocks == (rows + blockRows - 1) / blockRows) {
+                final ByteBuffer index = read(indexOffset, nBlocks * 8);
+                blockTimes = new double[nBlocks];
+                for (int i = 0; i < nBlocks; i++) blockTimes[i] = index.getDouble();
+            }
+            return rows;
+        }
+
+        private double rowTime(long row) throws IOException {
+            readChunk(row, 1);
+            return buffer.getDouble(0);
+        }
+
+        private ByteBuffer read(long position, int length) throws IOException {
+            final ByteBuffer b = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(b, position);
+            b.flip();
+            return b;
+        }
+
+        private void readFully(ByteBuffer b, long position) throws IOException {
+            while (b.hasRemaining()) {
+                final int n = channel.read(b, position);
+                if (n < 0) throw new EOFException();
+                position += n;
+            }
+        }
+    }
+}
@@ -7,6 +7,7 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.Spinner;
 import android.widget.Toast;
 
 import androidx.appcompat.app.AlertDialog;
@@ -22,9 +23,15 @@ public class Settings extends AppCompatActivity {
     private EditText editText_userID;
     private EditText editText_IP;
     private EditText editText_port;
+    private EditText editText_lslChunkSize;
+    private Spinner spinner_lslOverflowPolicy;
     private SwitchCompat switch_inAppFilter;
     private SwitchCompat switch_eegLabels;
     private SwitchCompat switch_showStats;
+    private SwitchCompat switch_binaryRecording;
+    private SwitchCompat switch_deltaRecording;
+    private SwitchCompat switch_capturePackets;
+    private SwitchCompat switch_reorderPackets;
     private SharedPreferences sharedPreferences;
 
     @Override
@@ -42,18 +49,31 @@ public class Settings extends AppCompatActivity {
         String userID = sharedPreferences.getString("userID", getResources().getString(R.string.default_userID));
         String IP = sharedPreferences.getString("IP", "192.168.1.125");
         String port = sharedPreferences.getString("port", "65432");
-        boolean inAppFilterEnabled = sharedPreferences.getBoolean("inAppFilter", true);
+        String lslChunkSize = sharedPreferences.getString("lslChunkSize", getResources().getString(R.string.default_lslChunkSize));
+        int lslOverflowPolicy = sharedPreferences.getInt("lslOverflowPolicy", LslPublisher.OVERFLOW_COALESCE);
+        // the same key as the DC blocker in the filter dialog of the recording screen
+        boolean inAppFilterEnabled = sharedPreferences.getBoolean("dcBlockerFilter", true);
         boolean eegLabelsEnabled = sharedPreferences.getBoolean("eegLabels", true);
         boolean showStatsEnabled = sharedPreferences.getBoolean("showStats", false);
+        boolean binaryRecordingEnabled = sharedPreferences.getBoolean("binaryRecording", false);
+        boolean deltaRecordingEnabled = sharedPreferences.getBoolean("deltaRecording", false);
+        boolean capturePacketsEnabled = sharedPreferences.getBoolean("capturePackets", false);
+        boolean reorderPacketsEnabled = sharedPreferences.getBoolean("reorderPackets", false);
 
         editText_saveDir = findViewById(R.id.editText_saveDir);
         editText_username = findViewById(R.id.editText_username);
         editText_userID = findViewById(R.id.editText_userID);
         editText_IP = findViewById(R.id.editText_IP);
         editText_port = findViewById(R.id.editText_port);
+        editText_lslChunkSize = findViewById(R.id.editText_lslChunkSize);
+        spinner_lslOverflowPolicy = findViewById(R.id.spinner_lslOverflowPolicy);
         switch_inAppFilter = findViewById(R.id.switch_inAppFilter);
         switch_eegLabels = findViewById(R.id.switch_eegLabels);
         switch_showStats = findViewById(R.id.switch_showStats);
+        switch_binaryRecording = findViewById(R.id.switch_binaryRecording);
+        switch_deltaRecording = findViewById(R.id.switch_deltaRecording);
+        switch_capturePackets = findViewById(R.id.switch_capturePackets);
+        switch_reorderPackets = findViewById(R.id.switch_reorderPackets);
         Button applyChangesButton = findViewById(R.id.settings_apply_changes);
         Runnable updateUI = () -> {
             editText_saveDir.setText(saveDir);
@@ -61,9 +81,15 @@ public class Settings extends AppCompatActivity {
             editText_userID.setText(userID);
             editText_IP.setText(IP);
             editText_port.setText(port);
+            editText_lslChunkSize.setText(lslChunkSize);
+            spinner_lslOverflowPolicy.setSelection(lslOverflowPolicy);
             switch_inAppFilter.setChecked(inAppFilterEnabled);
             switch_eegLabels.setChecked(eegLabelsEnabled);
             switch_showStats.setChecked(showStatsEnabled);
+            switch_binaryRecording.setChecked(binaryRecordingEnabled);
+            switch_deltaRecording.setChecked(deltaRecordingEnabled);
+            switch_capturePackets.setChecked(capturePacketsEnabled);
+            switch_reorderPackets.setChecked(reorderPacketsEnabled);
         };
         runOnUiThread(updateUI);
 
@@ -78,12 +104,17 @@ public class Settings extends AppCompatActivity {
             editor.putString("userID", editText_userID.getText().toString());
             editor.putString("IP", editText_IP.getText().toString());
             editor.putString("port", editText_port.getText().toString());
-            editor.putBoolean("inAppFilter", switch_inAppFilter.isChecked());
-            sharedPreferences.edit().putBoolean("inAppFilter", switch_inAppFilter.isChecked()).apply();
+            editor.putString("lslChunkSize", editText_lslChunkSize.getText().toString());
+            editor.putInt("lslOverflowPolicy", spinner_lslOverflowPolicy.getSelectedItemPosition());
+            editor.putBoolean("dcBlockerFilter", switch_inAppFilter.isChecked());
             editor.putBoolean("eegLabels", switch_eegLabels.isChecked());
             sharedPreferences.edit().putBoolean("eegLabels", switch_eegLabels.isChecked()).apply();
             editor.putBoolean("showStats", switch_showStats.isChecked());
             sharedPreferences.edit().putBoolean("showStats", switch_eegLabels.isChecked()).apply();
+            editor.putBoolean("binaryRecording", switch_binaryRecording.isChecked());
+            editor.putBoolean("deltaRecording", switch_deltaRecording.isChecked());
+            editor.putBoolean("capturePackets", switch_capturePackets.isChecked());
+            editor.putBoolean("reorderPackets", switch_reorderPackets.isChecked());
             editor.apply();
 
             //Notifies the user
@@ -124,6 +155,8 @@ public class Settings extends AppCompatActivity {
                     editText_userID.setText(getResources().getString(R.string.default_userID));
                     editText_IP.setText(getResources().getString(R.string.default_IP));
                     editText_port.setText(getResources().getString(R.string.default_port));
+                    editText_lslChunkSize.setText(getResources().getString(R.string.default_lslChunkSize));
+                    spinner_lslOverflowPolicy.setSelection(LslPublisher.OVERFLOW_COALESCE);
                 });
                 alert.setNegativeButton(android.R.string.cancel, (dialog, which) -> {
                     // close dialog
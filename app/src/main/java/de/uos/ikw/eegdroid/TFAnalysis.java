@@ -26,13 +26,18 @@ import org.apache.commons.math3.linear.MatrixUtils;
 
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import de.uos.ikw.eegdroid.utilities.FFTWWrapper;
 import de.uos.ikw.eegdroid.utilities.Utilities;
 
 public class TFAnalysis extends AppCompatActivity {
 
+    private final static String TAG = TFAnalysis.class.getSimpleName();
     private static final String[] channels = {"1", "2", "3", "4", "5", "6", "7", "8"};
     private static final String[] widths = {"1", "2", "3", "4", "5"};
     private static final String[] overlaps = {"0", "1/4", "1/3", "1/2"};
@@ -45,6 +50,8 @@ public class TFAnalysis extends AppCompatActivity {
     private static int MAX_CHART_HEIGHT;
     private static int MAX_CHART_WIDTH;
     public double[][] eegData;
+    // loads the session, plans the transforms and computes the spectrograms in order
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
     //ZoomableImageView bmpView;
     private ArrayList<File> arrayListOfFiles;
     private Spinner widthSpinner;
@@ -61,6 +68,13 @@ public class TFAnalysis extends AppCompatActivity {
         bmpView = findViewById(R.id.spectogram);
         //bmpView = (ZoomableImageView)findViewById(R.id.spectogram);
 
+        // spectrograms transform many windows of few lengths, measured plans pay off
+        final File wisdomFile = new File(getFilesDir(), "fftw.wisdom");
+        executor.execute(() -> {
+            FFTWWrapper.setMeasure(true, wisdomFile);
+            FFTWWrapper.setThreads(Runtime.getRuntime().availableProcessors());
+        });
+
         ManageSessions manager = new ManageSessions();
         arrayListOfFiles = manager.getArrayListOfFiles();
 
@@ -81,48 +95,18 @@ public class TFAnalysis extends AppCompatActivity {
                 .setItems(arrayOfNames, new DialogInterface.OnClickListener() {
                     public void onClick(DialogInterface dialog, int which) {
 
-                        loadData(arrayListOfFiles.get(which));
+                        final File file = arrayListOfFiles.get(which);
+                        executor.execute(() -> loadData(file));
 
 
                         final LinearLayout parent = (LinearLayout) bmpView.getParent();
                         parent.getViewTreeObserver().addOnGlobalLayoutListener(new ViewTreeObserver.OnGlobalLayoutListener() {
                             @Override
                             public void onGlobalLayout() {
-
-                                try {
-                                    parent.getViewTreeObserver().removeOnGlobalLayoutListener(this);
-                                    MAX_CHART_HEIGHT = parent.getWidth();
-                                    MAX_CHART_WIDTH = parent.getHeight();//height is ready
-                                    //Bitmap spectogram = Bitmap.createBitmap(0, 0, Bitmap.Config.ARGB_8888);
-
-                                    Bitmap spectogram = Utilities.getSpectrogramBitmap(eegData[CHANNEL], FS, WIDTH, OVERLAP,
-                                            WINDOW, true, MAXHERTZ, true);
-
-
-                                    int width = spectogram.getWidth();
-                                    int height = spectogram.getHeight();
-                                    float wScale = (float) MAX_CHART_WIDTH / width;
-                                    float hScale = (float) MAX_CHART_HEIGHT / 2 / height;
-                                    hScale = Math.min(wScale, hScale);
-                                    spectogram = Bitmap.createScaledBitmap(spectogram, (int) (wScale * width), (int) (hScale * height), false);
-
-
-                                    int test = eegData[CHANNEL].length / FS;
-                                    Log.d("zero?", Integer.toString(test));
-                                    // get real spectogram
-                                    Bitmap chart = Utilities.addAxisAndLabels(spectogram, MAXHERTZ, eegData[CHANNEL].length / FS);
-
-                                    bmpView.setImageBitmap(chart);
-
-                                } catch (Exception e) {
-
-                                    finish();
-                                    Toast.makeText(getApplicationContext(), R.string.warning_too_short, Toast.LENGTH_LONG).show();
-                                    Log.d("EXCEPTION", "Dividing by zero");
-
-
-                                }
-
+                                parent.getViewTreeObserver().removeOnGlobalLayoutListener(this);
+                                MAX_CHART_HEIGHT = parent.getWidth();
+                                MAX_CHART_WIDTH = parent.getHeight();//height is ready
+                                generateSpectogram();
                             }
                         });
 
@@ -141,6 +125,14 @@ public class TFAnalysis extends AppCompatActivity {
 
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // after the queued spectrograms, writes the wisdom and frees the plans
+        executor.execute(FFTWWrapper::releasePlans);
+        executor.shutdown();
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
@@ -152,21 +144,42 @@ public class TFAnalysis extends AppCompatActivity {
         }
     }
 
+    // Computes the spectrogram of the current settings on the executor and shows it when done
     private void generateSpectogram() {
-        Bitmap spectogram = Utilities.getSpectrogramBitmap(eegData[CHANNEL], FS, WIDTH, OVERLAP,
-                WINDOW, true, MAXHERTZ, true);
-
-        int width = spectogram.getWidth();
-        int height = spectogram.getHeight();
-        float wScale = (float) MAX_CHART_WIDTH / width;
-        float hScale = (float) MAX_CHART_HEIGHT / 2 / height;
-        hScale = Math.min(wScale, hScale);
-        spectogram = Bitmap.createScaledBitmap(spectogram, (int) (wScale * width), (int) (hScale * height), false);
-
-        // get real spectogram
-        Bitmap chart = Utilities.addAxisAndLabels(spectogram, MAXHERTZ, eegData[CHANNEL].length / FS);
-
-        bmpView.setImageBitmap(chart);
+        final int channel = CHANNEL;
+        final int windowWidth = WIDTH;
+        final int overlap = OVERLAP;
+        final int maxWidth = MAX_CHART_WIDTH;
+        final int maxHeight = MAX_CHART_HEIGHT;
+        executor.execute(() -> {
+            if (isDestroyed()) return;
+            final Bitmap chart;
+            try {
+                Bitmap spectogram = Utilities.getSpectrogramBitmap(eegData[channel], FS, windowWidth, overlap,
+                        WINDOW, true, MAXHERTZ, true);
+
+                int width = spectogram.getWidth();
+                int height = spectogram.getHeight();
+                float wScale = (float) maxWidth / width;
+                float hScale = (float) maxHeight / 2 / height;
+                hScale = Math.min(wScale, hScale);
+                spectogram = Bitmap.createScaledBitmap(spectogram, (int) (wScale * width), (int) (hScale * height), false);
+
+                // get real spectogram
+                chart = Utilities.addAxisAndLabels(spectogram, MAXHERTZ, eegData[channel].length / FS);
+            } catch (Exception e) {
+                Log.e(TAG, "Computing the spectrogram failed: " + e);
+                runOnUiThread(() -> {
+                    if (isFinishing()) return;
+                    Toast.makeText(getApplicationContext(), R.string.warning_too_short, Toast.LENGTH_LONG).show();
+                    finish();
+                });
+                return;
+            }
+            runOnUiThread(() -> {
+                if (!isDestroyed()) bmpView.setImageBitmap(chart);
+            });
+        });
     }
 
     private void setupOverlapSpinner() {
@@ -277,9 +290,26 @@ public class TFAnalysis extends AppCompatActivity {
         channelSpinner.setSelection(spinnerPosition);
     }
 
-    //Fills lineDataSets with the content of CSV files
+    // Fills eegData with one array per channel, eegData[0] is channel 1
     private void loadData(File file) {
 
+        if (SessionFile.isSessionFile(file)) {
+            // binary sessions are read channel by channel, without parsing and transposing rows
+            try (SessionFile.Reader reader = new SessionFile.Reader(file)) {
+                int[] channels = new int[reader.getChannelCount()];
+                for (int i = 0; i < channels.length; i++) channels[i] = i;
+                float[][] values = reader.readChannels(channels, 1, null);
+                eegData = new double[channels.length][];
+                for (int i = 0; i < channels.length; i++) {
+                    eegData[i] = new double[values[i].length];
+                    for (int j = 0; j < values[i].length; j++) eegData[i][j] = values[i][j];
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Reading " + file.getName() + " failed: " + e.getMessage());
+            }
+            return;
+        }
+
         try {
             // create csvReader object and skip first 3 Lines
             CSVReader csvReader = new CSVReaderBuilder(new FileReader(file)).withSkipLines(3).build();
@@ -287,10 +317,10 @@ public class TFAnalysis extends AppCompatActivity {
             List<double[]> list = new ArrayList<>();
             String[] line;
             while ((line = csvReader.readNext()) != null) {
-                double[] parsed = new double[line.length - 2];
-                //Ignore the first and last entry of every list
-                for (int i = 1; i < line.length - 1; i++) {
-                    parsed[i - 1] = Double.parseDouble(line[i]);
+                double[] parsed = new double[line.length - SessionFile.EXTRA_COLUMNS];
+                //Only the channel values, which follow time and sampling_time
+                for (int i = 0; i < parsed.length; i++) {
+                    parsed[i] = Double.parseDouble(line[i + 2]);
                 }
                 list.add(parsed);
             }
@@ -300,7 +330,7 @@ public class TFAnalysis extends AppCompatActivity {
             csvReader.close();
 
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.e(TAG, "Reading " + file.getName() + " failed: " + e.getMessage());
         }
     }
 
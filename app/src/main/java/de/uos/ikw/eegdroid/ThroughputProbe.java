@@ -0,0 +1,196 @@
+package de.uos.ikw.eegdroid;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures which combination of transmission rate and bits per channel a phone can receive
+ * from a Traumschreiber without losing packages.
+ * <p>
+ * For every combination the device is configured with the generateData bit set, so it streams
+ * generated data at the full rate independent of the electrodes. After a short settling time the
+ * packages are counted for MEASURE_MS with the {@link SequenceTracker} of the decoder. Finally
+ * the configuration given to the constructor is written back and notifications stay off.
+ * <p>
+ * All steps run on the thread of the handler, so is the listener called. The decoder runs on the
+ * bluetooth thread, it is switched with {@link TraumschreiberService#setResolution}, which
+ * replaces bits per channel and characteristic at once.
+ */
+public class ThroughputProbe {
+
+    // transmission rate position in config byte 0 and the package rate it selects
+    public static final int[] TRANSMISSION_RATE_POSITIONS = {0, 1};
+    public static final float[] TRANSMISSION_RATES = {500 / 3f, 500 / 2f};
+    public static final int[] BITS_PER_CH = {10, 14, 16};
+    // a combination is sustainable if less packages are lost
+    public static final float MAX_SUSTAINED_LOSS = 0.01f;
+    private final static String TAG = ThroughputProbe.class.getSimpleName();
+    private static final long SETTLE_MS = 500;
+    private static final long MEASURE_MS = 3000;
+    private static final int GENERATE_DATA_BIT = 0b10;
+    // bits per channel (0b00xx 0000), generate data and transmission rate (0b0000 00xx)
+    private static final int PROBED_BITS = 0x33;
+    private final BluetoothLeService service;
+    private final String address;
+    private final TraumschreiberService decoder;
+    private final BluetoothGattService gattService;
+    private final byte[] baseConfig;
+    private final Handler handler;
+    private final List<Result> results = new ArrayList<>();
+    private Listener listener;
+    private BluetoothGattCharacteristic current;
+    private int step;
+    private long startNanos;
+    private long startReceived;
+    private long startLate;
+    private long startLost;
+    private volatile boolean cancelled;
+    private boolean running;
+    private final Runnable measureStart = this::onMeasureStart;
+    private final Runnable measureEnd = this::onMeasureEnd;
+
+    /**
+     * @param baseConfig the 8 config bytes to probe with and to restore afterwards
+     */
+    public ThroughputProbe(BluetoothLeService service, String address, BluetoothGattService gattService,
+                           byte[] baseConfig, Handler handler) {
+        this.service = service;
+        this.address = address;
+        this.decoder = service.getTraumschreiberService(address);
+        this.gattService = gattService;
+        this.baseConfig = baseConfig.clone();
+        this.handler = handler;
+    }
+
+    /**
+     * Progress and outcome of a probe.
+     */
+    public interface Listener {
+        void onProgress(Result result, int done, int total);
+
+        void onFinished(List<Result> results);
+    }
+
+    /**
+     * Starts probing all combinations, takes about 4 s per combination.
+     */
+    public void start(Listener listener) {
+        this.listener = listener;
+        running = true;
+        results.clear();
+        step = 0;
+        cancelled = false;
+        handler.post(this::probeNext);
+    }
+
+    /**
+     * Stops after the current step and restores the configuration.
+     */
+    public void cancel() {
+        cancelled = true;
+        handler.removeCallbacks(measureStart);
+        handler.removeCallbacks(measureEnd);
+        handler.post(this::finish);
+    }
+
+    public static int combinations() {
+        return TRANSMISSION_RATE_POSITIONS.length * BITS_PER_CH.length;
+    }
+
+    private void probeNext() {
+        if (cancelled) return;
+        if (step == combinations()) {
+            finish();
+            return;
+        }
+        final int bitsPos = step % BITS_PER_CH.length;
+        final int ratePos = step / BITS_PER_CH.length;
+        final byte[] config = baseConfig.clone();
+        config[0] = (byte) ((config[0] & ~PROBED_BITS) | bitsPos << 4 | GENERATE_DATA_BIT
+                | TRANSMISSION_RATE_POSITIONS[ratePos]);
+        decoder.setResolution(BITS_PER_CH[bitsPos], bitsPos);
+        decoder.warmUp();
+        current = gattService.getCharacteristic(decoder.getNotifyingUUID());
+        final BluetoothGattCharacteristic configCharacteristic = gattService.getCharacteristic(TraumschreiberService.configUUID);
+        service.writeCharacteristic(address, configCharacteristic, config, null);
+        service.setCharacteristicNotification(address, current, true,
+                (status, value) -> handler.postDelayed(measureStart, SETTLE_MS));
+    }
+
+    private void onMeasureStart() {
+        if (cancelled) return;
+        final SequenceTracker tracker = decoder.getSequenceTracker();
+        startNanos = System.nanoTime();
+        startReceived = tracker.getReceived();
+        startLate = tracker.getLate();
+        startLost = tracker.getLost();
+        handler.postDelayed(measureEnd, MEASURE_MS);
+    }
+
+    private void onMeasureEnd() {
+        if (cancelled) return;
+        final SequenceTracker tracker = decoder.getSequenceTracker();
+        final float seconds = (System.nanoTime() - startNanos) / 1e9f;
+        final long received = tracker.getReceived() - startReceived - (tracker.getLate() - startLate);
+        final long lost = tracker.getLost() - startLost;
+        final Result result = new Result(decoder.getBitsPerCh(),
+                TRANSMISSION_RATES[step / BITS_PER_CH.length], received / seconds,
+                received + lost > 0 ? (float) lost / (received + lost) : 1f);
+        Log.i(TAG, result.toString());
+        results.add(result);
+        step++;
+        listener.onProgress(result, step, combinations());
+        service.setCharacteristicNotification(address, current, false,
+                (status, value) -> handler.post(this::probeNext));
+    }
+
+    private void finish() {
+        if (!running) return;
+        running = false;
+        if (current != null) service.setCharacteristicNotification(address, current, false, null);
+        final BluetoothGattCharacteristic configCharacteristic = gattService.getCharacteristic(TraumschreiberService.configUUID);
+        service.writeCharacteristic(address, configCharacteristic, baseConfig, (status, value) -> {
+            if (status != BluetoothGatt.GATT_SUCCESS) Log.w(TAG, "Restoring the config failed: " + status);
+        });
+        int bitsPos = (baseConfig[0] & 0x30) >> 4;
+        if (bitsPos == BITS_PER_CH.length) bitsPos = 0; // 0b11 sends 10 bit like 0b00
+        decoder.setResolution(BITS_PER_CH[bitsPos], bitsPos);
+        decoder.warmUp();
+        listener.onFinished(new ArrayList<>(results));
+    }
+
+    /**
+     * Throughput measured for one combination.
+     */
+    public static class Result {
+        public final int bitsPerCh;
+        public final float transmissionRate;
+        public final float packetsPerSecond;
+        public final float lossRatio;
+
+        Result(int bitsPerCh, float transmissionRate, float packetsPerSecond, float lossRatio) {
+            this.bitsPerCh = bitsPerCh;
+            this.transmissionRate = transmissionRate;
+            this.packetsPerSecond = packetsPerSecond;
+            this.lossRatio = lossRatio;
+        }
+
+        public boolean isSustained() {
+            return lossRatio < MAX_SUSTAINED_LOSS;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%.0fHz %d bit: %.1f pkgs/s, %.2f%% lost%s",
+                    transmissionRate, bitsPerCh, packetsPerSecond, lossRatio * 100,
+                    isSustained() ? "" : " (not sustained)");
+        }
+    }
+}
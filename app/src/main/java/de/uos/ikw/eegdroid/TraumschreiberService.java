@@ -6,6 +6,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.UUID;
 
+import de.uos.ikw.eegdroid.utilities.BitUnpacker;
+import de.uos.ikw.eegdroid.utilities.DcEstimator;
 
 public class TraumschreiberService {
 
@@ -23,21 +25,47 @@ public class TraumschreiberService {
     public static final UUID configUUID = UUID.fromString("0000ecc0-0000-1000-8000-00805f9b34fb");
     public static final UUID codeUUID = UUID.fromString("0000c0de-0000-1000-8000-00805f9b34fb");
     public static final int nChannels = 24;
+    /* Position of the number of packages lost before a package in the decoded package */
+    public static final int LOST_PKGS_POS = nChannels + 2;
+    /* Position of the arrival time (System.nanoTime, high and low int) in the decoded package */
+    public static final int ARRIVAL_POS = nChannels + 3;
+    /* Minimum capacity of the buffers handed to decode(): header + all channels + loss + arrival */
+    public static final int DECODED_PKG_SIZE = nChannels + 5;
     private final static String TAG = "TraumschreiberService";
-    private static final int[] decodedSignal = new int[24];
-    public static UUID notifyingUUID = UUID.fromString("0000ee60-0000-1000-8000-00805f9b34fb");
-    public static int[] signalBitShift = new int[24];
-    public static int bitsPerCh = 16;
-    public static int currentPkgID = 0;
-    public static boolean warmedUp = false;
-    private static int[] signalOffset = new int[24];
-    private static int pkgCount;
     private static final boolean header = true;
+    // unpack the deltas of all channels in one pass, payloads packed MSB first without gaps
+    private static final BitUnpacker UNPACK_10BIT = new BitUnpacker(10, nChannels);
+    private static final BitUnpacker UNPACK_14BIT = new BitUnpacker(14, nChannels);
+    private static final BitUnpacker UNPACK_16BIT = new BitUnpacker(16, nChannels);
+    private final int[] decodedSignal = new int[nChannels];
+    private final int[] delta = new int[nChannels];
+    private final int[] signalBitShift = new int[nChannels];
+    // time constant of the DC removal, 2^8 packages (~1 s at 250 Hz)
+    static final int DC_TIME_CONSTANT_SHIFT = 8;
+    private final DcEstimator dcEstimator = new DcEstimator(nChannels, DC_TIME_CONSTANT_SHIFT);
+    // set by initiateCentering() and warmUp(), applied on the decoding thread
+    private volatile boolean centeringRequested;
+    private volatile boolean resetRequested;
+    // replaced as a whole by the setters, so the decoding thread never sees half a change
+    private volatile Resolution resolution = new Resolution(16, 0);
+    // loss counters of this device since the last warmUp()
+    private final SequenceTracker sequenceTracker = new SequenceTracker();
+    private int droppedSampleCount;
+    // lossless recording of the raw deltas, see setDeltaRecorder()
+    private volatile DeltaRecorder deltaRecorder;
+    // recorder that knows the current decoder state, only used on the decoding thread
+    private DeltaRecorder syncedRecorder;
+    private int syncedBitsPerCh;
+    private int encodingExtra;
     public String mTraumschreiberDeviceAddress;
 
     public TraumschreiberService() {
     }
 
+    public TraumschreiberService(String deviceAddress) {
+        mTraumschreiberDeviceAddress = deviceAddress;
+    }
+
     public static boolean isTraumschreiberDevice(String bluetoothDeviceName) {
         return bluetoothDeviceName.toLowerCase().contains(DEVICE_NAME);
     }
@@ -46,10 +74,92 @@ public class TraumschreiberService {
         return bluetoothDeviceName.startsWith("T");
     }
 
-    public static void setNotifyingUUID(int i) {
+    public UUID getNotifyingUUID() {
+        return resolution.notifyingUUID;
+    }
+
+    public void setNotifyingUUID(int i) {
         // 0->10bit, 1->14bit, 2->16bit
-        notifyingUUID = notifyingUUIDs.get(i);
-        Log.d(TAG, "Notifying UUID of TraumschreiberService is now: " + notifyingUUID.toString());
+        setResolution(resolution.bitsPerCh, i);
+    }
+
+    public int getBitsPerCh() {
+        return resolution.bitsPerCh;
+    }
+
+    public void setBitsPerCh(int bitsPerCh) {
+        setResolution(bitsPerCh, resolution.notifyingIndex);
+    }
+
+    /**
+     * Switches bits per channel and notifying characteristic at once. May be called from any
+     * thread, every package is decoded either with the old or with the new pair.
+     *
+     * @param bitsPerCh      10, 14 or 16
+     * @param notifyingIndex index into notifyingUUIDs, 0->10bit, 1->14bit, 2->16bit
+     */
+    public void setResolution(int bitsPerCh, int notifyingIndex) {
+        resolution = new Resolution(bitsPerCh, notifyingIndex);
+        Log.d(TAG, "Notifying UUID of TraumschreiberService is now: " + resolution.notifyingUUID
+                + ", bits per channel: " + bitsPerCh);
+    }
+
+    public int getSignalBitShift(int channel) {
+        return signalBitShift[channel];
+    }
+
+    public int getLostPkgCount() {
+        return (int) sequenceTracker.getLost();
+    }
+
+    /**
+     * @return package id statistics since the last warmUp(), updated on the decoding thread
+     */
+    public SequenceTracker getSequenceTracker() {
+        return sequenceTracker;
+    }
+
+    public int getDroppedSampleCount() {
+        return droppedSampleCount;
+    }
+
+    /**
+     * Copies everything the decoding of the following packages depends on. Must be called on
+     * the decoding thread.
+     */
+    public State getState() {
+        final State state = new State();
+        final Resolution current = resolution;
+        state.bitsPerCh = current.bitsPerCh;
+        state.notifyingIndex = current.notifyingIndex;
+        System.arraycopy(signalBitShift, 0, state.signalBitShift, 0, nChannels);
+        state.encodingExtra = encodingExtra;
+        System.arraycopy(decodedSignal, 0, state.decodedSignal, 0, nChannels);
+        state.dcSeeded = !centeringRequested && dcEstimator.getState(state.dcOffset);
+        return state;
+    }
+
+    /**
+     * Continues decoding from a state copied by {@link #getState}, e.g. at the start of a
+     * replayed capture. Must be called on the decoding thread.
+     */
+    public void setState(State state) {
+        resolution = new Resolution(state.bitsPerCh, state.notifyingIndex);
+        System.arraycopy(state.signalBitShift, 0, signalBitShift, 0, nChannels);
+        encodingExtra = state.encodingExtra;
+        System.arraycopy(state.decodedSignal, 0, decodedSignal, 0, nChannels);
+        centeringRequested = false;
+        dcEstimator.setState(state.dcOffset, state.dcSeeded);
+        // a delta recording has to start over from the new state
+        syncedRecorder = null;
+    }
+
+    /**
+     * Starts or stops (null) the lossless recording of the received deltas. The recorder first
+     * receives the current encoding and decoder state, then the deltas of every package.
+     */
+    public void setDeltaRecorder(DeltaRecorder recorder) {
+        deltaRecorder = recorder;
     }
 
     /***
@@ -57,39 +167,54 @@ public class TraumschreiberService {
      *  # Signal Data - Units of voltage (distributed over the 3 notifying characteristics)
      *  # Encoding Updates
      *  # Config Data
-     * @param dataBytes     raw bytes received from the Traumschreiber over bluetooth
+     * The result is written into the caller-supplied buffer, so no memory is allocated per
+     * package. The buffer has to hold at least DECODED_PKG_SIZE values, config data beyond
+     * the length of the buffer is dropped.
+     * @param dataBytes        raw bytes received from the Traumschreiber over bluetooth
      * @param characteristicId id of characteristic from which the data was received
-     * @return decodedPkg   pos 0: bluetooth id, pos 1: dropped samples, pos 2:26 channel values
+     * @param decodedPkg       output buffer; for signal data pos 0: bluetooth id,
+     *                         pos 1: dropped samples, pos 2:26 channel values,
+     *                         pos 26 (LOST_PKGS_POS): packages lost before this one,
+     *                         pos 27:29 (ARRIVAL_POS): arrivalNanos, see {@link #getArrivalNanos}
+     * @param arrivalNanos     {@link System#nanoTime} at which the package was received, sizes
+     *                         long gaps in the package ids
+     * @return number of values written to decodedPkg, 0 if there is nothing to pass on
+     * (also for late packages, whose slot has already been reported as lost)
      */
-    public static int[] decode(byte[] dataBytes, UUID characteristicId) {
+    public int decode(byte[] dataBytes, UUID characteristicId, int[] decodedPkg, long arrivalNanos) {
+        final Resolution current = resolution;
         /* CHANNEL VALUES */
-        if (characteristicId.equals(notifyingUUID)) {
+        if (characteristicId.equals(current.notifyingUUID)) {
             if (header) {
-                int[] decodedPkg = new int[nChannels + 2];
-
                 // bluetooth pkg id
                 decodedPkg[0] = (dataBytes[0] >> 4) & 0x0f; // bluetooth pkg id
-                if ((decodedPkg[0] - currentPkgID) > 1) {
-                    Log.d(TAG, "##########LOST A BLUETOOTH PKG!!\n#\n#\n#########");
-                    Log.d(TAG, "Decoded PKG: " + Arrays.toString(decodedPkg));
+                if (resetRequested) {
+                    resetRequested = false;
+                    sequenceTracker.reset();
+                    droppedSampleCount = 0;
                 }
-                currentPkgID = decodedPkg[0];
+                final int lost = sequenceTracker.track(decodedPkg[0], arrivalNanos);
+                if (lost > 0) Log.v(TAG, "Lost " + lost + " bluetooth pkgs before pkg id " + decodedPkg[0]);
 
                 // dropped sample counts
                 decodedPkg[1] = dataBytes[0] & 0x0f;
                 if (decodedPkg[1] > 0) {
+                    droppedSampleCount += decodedPkg[1];
                     Log.v(TAG, "##########DROPPED A SAMPLE!!\n#\n#\n#########");
-                    Log.v(TAG, "Decoded PKG: " + Arrays.toString(decodedPkg));
+                    Log.v(TAG, "Dropped samples: " + decodedPkg[1]);
                 }
 
-                // channel values --- write decodedDeltas to positions [2:26] on decodedPkg
-                int[] decodedDeltas = decodeDpcm(Arrays.copyOfRange(dataBytes, 1, dataBytes.length));
-                System.arraycopy(decodedDeltas, 0, decodedPkg, 2, decodedDeltas.length);
-                if (!warmedUp) return null;
-                return decodedPkg;
+                // channel values --- write decoded signal to positions [2:26] on decodedPkg
+                // the deltas of late packages still count, the sum does not depend on the order
+                decodeDpcm(current, dataBytes, 1, decodedPkg, 2);
+                if (lost == SequenceTracker.LATE) return 0;
+                decodedPkg[LOST_PKGS_POS] = lost;
+                decodedPkg[ARRIVAL_POS] = (int) (arrivalNanos >>> 32);
+                decodedPkg[ARRIVAL_POS + 1] = (int) arrivalNanos;
+                return DECODED_PKG_SIZE;
             } else {
-                if (!warmedUp) return null;
-                return decodeDpcm(dataBytes);
+                decodeDpcm(current, dataBytes, 0, decodedPkg, 0);
+                return nChannels;
             }
 
             /* ENCODING FACTORS */
@@ -101,148 +226,139 @@ public class TraumschreiberService {
                 signalBitShift[i * 2 + 1] = dataBytes[i] & 0xf;
             }
             //Log.d(TAG, "RECEIVED FROM C0DE: " + Arrays.toString(signalBitShift));
-            int[] encodingData = new int[]{0xc0de, signalBitShift[1], dataBytes[13]}; //
-            return encodingData;
+            encodingExtra = dataBytes[13];
+            final DeltaRecorder recorder = deltaRecorder;
+            if (recorder != null && recorder == syncedRecorder
+                    && !recorder.writeEncoding(signalBitShift, current.bitsPerCh, encodingExtra)) {
+                syncedRecorder = null;
+            }
+            decodedPkg[0] = 0xc0de;
+            decodedPkg[1] = signalBitShift[1];
+            decodedPkg[2] = dataBytes[13];
+            return 3;
 
             /* CONFIG DATA */
         } else if (characteristicId.equals(configUUID)) {
             Log.d(TAG, "RECEIVED FROM CONFIG: " + Arrays.toString(dataBytes));
-            int[] configData = new int[dataBytes.length];
-            for (int i = 0; i < dataBytes.length; i++) {
-                configData[i] = dataBytes[i];
+            // config packages longer than the buffer are cut off
+            final int length = Math.min(dataBytes.length, decodedPkg.length);
+            for (int i = 0; i < length; i++) {
+                decodedPkg[i] = dataBytes[i];
             }
-            return configData;
+            return length;
 
         } else {
-            return null;
+            return 0;
         }
     }
 
+    /**
+     * @param decodedPkg signal package written by {@link #decode}
+     * @return {@link System#nanoTime} at which the package was received
+     */
+    public static long getArrivalNanos(int[] decodedPkg) {
+        return ((long) decodedPkg[ARRIVAL_POS] << 32) | (decodedPkg[ARRIVAL_POS + 1] & 0xffffffffL);
+    }
+
     /***
      * Converts bytes to ints and adds the values of the current data to the previous data.
-     * @param  deltaBytes
-     * @return int[] data
+     * @param resolution  resolution the package was sent with
+     * @param deltaBytes  bytes holding the encoded deltas
+     * @param offset      position of the first delta byte within deltaBytes
+     * @param out         receives the decoded signal of all channels, centered around 0
+     * @param outOffset   position of the first channel within out
      */
-    public static int[] decodeDpcm(byte[] deltaBytes) {
+    private void decodeDpcm(Resolution resolution, byte[] deltaBytes, int offset, int[] out, int outOffset) {
         //Log.v(TAG, "Encoded Delta: " + Arrays.toString(deltaBytes));
-        int[] delta;
-
-        switch (bitsPerCh) {
-            case 10:
-                delta = bytesTo10bitInts(deltaBytes);
-                break;
-            case 14:
-                delta = bytesTo14bitInts(deltaBytes);
-                break;
-            case 16:
-                delta = bytesTo16bitInts(deltaBytes);
-                break;
-            default:
-                throw new IllegalStateException("Unexpected value: " + bitsPerCh);
-        }
+        resolution.unpacker.unpack(deltaBytes, offset, delta, 0);
         //Log.v(TAG, "Decoded Delta: " + Arrays.toString(delta));
+        final DeltaRecorder recorder = deltaRecorder;
+        if (recorder != null) recordDeltas(recorder, resolution.bitsPerCh, offset > 0 ? deltaBytes[0] & 0xff : 0);
 
         for (int i = 0; i < nChannels; i++) {
-            /*ch1RunningVarianceEstimate += 0.001 * Math.pow(delta[0],2);
-            if (pkgCount%1000 == 0){
-                ch1Sigma = (float) Math.sqrt(ch1RunningVarianceEstimate);
-                ch1RunningVarianceEstimate = 0;
-            }*/
-
             decodedSignal[i] += (delta[i] << signalBitShift[i]);
-            // Centering the Signal
-            if (pkgCount < 250)
-                signalOffset[i] += 0.004 * decodedSignal[i]; // moving average over 500 pkgs
-            if (pkgCount == 250) {
-                decodedSignal[i] -= signalOffset[i];
-                Log.d(TAG, "Means of all Channels: " + Arrays.toString(signalOffset));
-                warmedUp = true;
-            }
         }
-        pkgCount++;
-        return decodedSignal;
+        // Centering the Signal, from the first package on
+        if (centeringRequested) {
+            centeringRequested = false;
+            dcEstimator.reset();
+        }
+        dcEstimator.center(decodedSignal, out, outOffset);
     }
 
     /***
-     * Turns an array of bytes into an array of 10bit ints.
-     * @param bytes
-     * @return int[] data
+     * Hands the deltas of the current package to the recorder. Whenever the recorder might not
+     * know the decoder state (new recorder, changed resolution, lost queue entries), the state
+     * is written before the deltas. The recorded state is the signal before the DC removal.
      */
-    public static int[] bytesTo10bitInts(byte[] bytes) {
-        // Number of ints : bytes*8/10 (8bits per byte and 10bits per int)
-        int[] data = new int[bytes.length * 8 / 10];
-        /*
-         * Pattern repeats after 5 bytes. Therefore we process the bytes in chunks of 5.
-         * Processing 5 bytes yields 4 (10bit) ints.
-         */
-        int idx = 0;
-        for (int i = 0; i <= bytes.length - 5; i += 5) {
-            idx = i * 4 / 5;
-            data[idx] = ((bytes[i] & 0xff) << 2) | ((bytes[i + 1] & 0xc0) >>> 6);
-            data[idx + 1] = ((bytes[i + 1] & 0x3f) << 4) | ((bytes[i + 2] & 0xf0) >>> 4);
-            data[idx + 2] = ((bytes[i + 2] & 0x0f) << 6) | ((bytes[i + 3] & 0xfc) >>> 2);
-            data[idx + 3] = ((bytes[i + 3] & 0x03) << 8) | ((bytes[i + 4] & 0xff));
+    private void recordDeltas(DeltaRecorder recorder, int bitsPerCh, int headerByte) {
+        if (recorder != syncedRecorder || bitsPerCh != syncedBitsPerCh) {
+            boolean synced = recorder.writeEncoding(signalBitShift, bitsPerCh, encodingExtra)
+                    && recorder.writeState(decodedSignal);
+            syncedRecorder = synced ? recorder : null;
+            syncedBitsPerCh = bitsPerCh;
+            if (!synced) return;
         }
-        // Subtracting 1024 turns unsigned 10bit ints into their 2's complement
-        for (int i = 0; i < data.length; i++) {
-            if (data[i] >= Math.pow(2, 9)) data[i] -= Math.pow(2, 10);
+        if (!recorder.writeDeltas(headerByte, delta)) syncedRecorder = null;
+    }
+
+    private static BitUnpacker unpacker(int bitsPerCh) {
+        switch (bitsPerCh) {
+            case 10:
+                return UNPACK_10BIT;
+            case 14:
+                return UNPACK_14BIT;
+            case 16:
+                return UNPACK_16BIT;
+            default:
+                throw new IllegalStateException("Unexpected value: " + bitsPerCh);
         }
-        return data;
     }
 
-    /***
-     * Turns an array of bytes into an array of 14bit ints.
-     * @param bytes
-     * @return int[] data
+    /**
+     * Bits per channel with the characteristic the packages arrive on, never modified.
      */
-    public static int[] bytesTo14bitInts(byte[] bytes) {
-        // Number of ints : bytes*8/14 (8bits per byte and 14bits per int)
-        int[] data = new int[nChannels];
-        /*
-         * Decoding pattern repeats after 7 Bytes or 4 14-bit-ints (=56bit).
-         * Therefore, we process the data in chunks of 4.
-         */
-        int idx = 0;
-        for (int i = 0; i <= data.length - 4; i += 4) {
-            idx = i * 7 / 4; //adjusted after every loop step : 7 after 1, 14 after 2, 21 after 3, etc.
-
-            data[i] = ((bytes[idx] & 0xff) << 6) | ((bytes[idx + 1] & 0xfc) >> 2);
-            data[i + 1] = ((bytes[idx + 1] & 0x03) << 12) | ((bytes[idx + 2] & 0xff) << 4) | ((bytes[idx + 3] & 0xf0) >> 4);
-            data[i + 2] = ((bytes[idx + 3] & 0x0f) << 10) | ((bytes[idx + 4] & 0xff) << 2) | ((bytes[idx + 5] & 0xc0) >> 6);
-            data[i + 3] = ((bytes[idx + 5] & 0x3f) << 8) | ((bytes[idx + 6] & 0xff));
-        }
-        // Subtracting 2^14 turns unsigned 14bit ints into their 2's complement
-        for (int i = 0; i < data.length; i++) {
-            if (data[i] >= Math.pow(2, 13)) data[i] -= Math.pow(2, 14);
+    private static final class Resolution {
+        final int bitsPerCh;
+        final int notifyingIndex;
+        final UUID notifyingUUID;
+        final BitUnpacker unpacker;
+
+        Resolution(int bitsPerCh, int notifyingIndex) {
+            this.bitsPerCh = bitsPerCh;
+            this.notifyingIndex = notifyingIndex;
+            this.notifyingUUID = notifyingUUIDs.get(notifyingIndex);
+            this.unpacker = unpacker(bitsPerCh);
         }
-        return data;
     }
 
-    /***
-     * Turns an array of bytes into an array of 16bit ints.
-     * @param bytes
-     * @return int[] data
+    /**
+     * Decoder state between two packages, see {@link #getState}.
      */
-    public static int[] bytesTo16bitInts(byte[] bytes) {
-        // Number of ints : bytes*8/14 (8bits per byte and 14bits per int)
-        int[] data = new int[nChannels];
-        for (int i = 0; i < nChannels; i++) {
-            data[i] = ((bytes[i * 2] & 0xff) << 8) | (bytes[i * 2 + 1] & 0xff);
-        }
-        // Subtracting 2^16 turns unsigned 16bit ints into their 2's complement
-        for (int i = 0; i < data.length; i++) {
-            if (data[i] >= Math.pow(2, 15)) data[i] -= Math.pow(2, 16);
-        }
-        return data;
+    public static class State {
+        public final int[] signalBitShift = new int[nChannels];
+        public final int[] decodedSignal = new int[nChannels];
+        // fixed point DC offsets, see DcEstimator
+        public final long[] dcOffset = new long[nChannels];
+        public int bitsPerCh;
+        // index into notifyingUUIDs
+        public int notifyingIndex;
+        public int encodingExtra;
+        public boolean dcSeeded;
     }
 
+    /**
+     * Resets the loss counters and the centering at the start of a new stream.
+     */
     public void warmUp() {
-        warmedUp = false;
+        resetRequested = true;
         initiateCentering();
     }
 
+    /**
+     * Centers the signal around 0 again, starting with the next package.
+     */
     public void initiateCentering() {
-        signalOffset = new int[24];
-        pkgCount = 0;
+        centeringRequested = true;
     }
 }
\ No newline at end of file
@@ -0,0 +1,334 @@
+package de.uos.ikw.eegdroid;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Software stand-in for a Traumschreiber that generates correctly framed packets and feeds them
+ * into a {@link PacketSink}, usually the {@link PacketPipeline} of a virtual device in
+ * {@link BluetoothLeService}. Every stage behind the bluetooth callbacks can so be loaded with
+ * rates and device counts the hardware does not deliver.
+ * <p>
+ * The generated signal (a DC offset, an alpha rhythm, a slow drift and noise per channel) is
+ * DPCM encoded like on the device: every packet starts with the header byte
+ * (pkgid << 4 | dropped samples) followed by the deltas of all channels in the 10, 14 or 16 bit
+ * layout of {@link TraumschreiberService#decode}. The encoder tracks the reconstruction of the
+ * decoder and adapts the bit shift of a channel whenever its deltas saturate or stay small; the
+ * new shifts are announced by a c0de packet before the first packet using them.
+ * Packet loss (skipped pkgids) and dropped samples can be simulated. Like the device, the
+ * simulator answers config reads through the sink and switches the resolution (and with it the
+ * notifying characteristic) when a config with other bits per channel is written.
+ * <p>
+ * Each simulator runs on its own thread; use one instance per virtual device.
+ */
+public class TraumschreiberSimulator implements Runnable {
+
+    public static final String ADDRESS_PREFIX = "SIM:";
+    private static final int nChannels = TraumschreiberService.nChannels;
+    // amplitudes in decoded units
+    private static final double DC_RANGE = 200_000;
+    private static final double ALPHA_AMPLITUDE = 20_000;
+    private static final double DRIFT_AMPLITUDE = 50_000;
+    private static final double NOISE_AMPLITUDE = 2_000;
+    private static final int MAX_SHIFT = 15;
+    // a shift is only reduced if the deltas stayed small for this many packets
+    private static final int ADAPTATION_PACKETS = 64;
+    // schedule is restarted instead of catching up if the generator falls behind this far
+    private static final long MAX_LAG_NS = 1_000_000_000L;
+    private final PacketSink sink;
+    private final float packetRate;
+    private final Random random;
+    private volatile int bitsPerCh;
+    private volatile UUID characteristicId;
+    private byte[] packet;
+    // config characteristic of the device, the requested resolution is applied by the generator
+    private volatile byte[] config = new byte[8];
+    private volatile int requestedBitsPerCh;
+    private volatile boolean configRequested;
+    private final byte[] codePacket = new byte[14];
+    private final int[] delta = new int[nChannels];
+    private final int[] reconstruction = new int[nChannels];
+    // shifts known to the decoder and shifts announced with the next c0de packet
+    private final int[] bitShift = new int[nChannels];
+    private final int[] nextShift = new int[nChannels];
+    private final int[] peakDelta = new int[nChannels];
+    private final double[] dcOffset = new double[nChannels];
+    private final double[] alphaFrequency = new double[nChannels];
+    private final double[] phase = new double[nChannels];
+    private volatile float packetLoss;
+    private volatile float droppedSamples;
+    private volatile boolean running = true;
+    private volatile long packetsSent;
+    private volatile long packetsLost;
+    private volatile long codePacketsSent;
+    private volatile long lateRestarts;
+    private volatile long startNanos;
+    private volatile long endNanos;
+    private boolean shiftChanged = true;
+    private int pkgId;
+    private long sampleIndex;
+
+    /**
+     * @param sink       receives the packets on the simulator thread
+     * @param bitsPerCh  delta resolution, 10, 14 or 16
+     * @param packetRate packets per second, 0 to generate as fast as the sink accepts them
+     * @param seed       seed of the signal and noise, devices with different seeds differ
+     */
+    public TraumschreiberSimulator(PacketSink sink, int bitsPerCh, float packetRate, long seed) {
+        if (bitsPerCh != 10 && bitsPerCh != 14 && bitsPerCh != 16)
+            throw new IllegalArgumentException("Unsupported resolution: " + bitsPerCh);
+        this.sink = sink;
+        this.packetRate = packetRate;
+        this.random = new Random(seed);
+        this.requestedBitsPerCh = bitsPerCh;
+        config[0] = (byte) (characteristicIndex(bitsPerCh) << 4);
+        applyResolution();
+        for (int i = 0; i < nChannels; i++) {
+            dcOffset[i] = (random.nextDouble() * 2 - 1) * DC_RANGE;
+            alphaFrequency[i] = 8 + random.nextDouble() * 4;
+            phase[i] = random.nextDouble() * 2 * Math.PI;
+        }
+    }
+
+    /**
+     * @return address of the i-th virtual device, see {@link BluetoothLeService#connect}
+     */
+    public static String address(int i) {
+        return ADDRESS_PREFIX + i;
+    }
+
+    public static boolean isSimulatedAddress(String address) {
+        return address != null && address.startsWith(ADDRESS_PREFIX);
+    }
+
+    /**
+     * @return index of the notifying characteristic for the resolution, as in
+     * {@link TraumschreiberService#setResolution}
+     */
+    public static int characteristicIndex(int bitsPerCh) {
+        return bitsPerCh == 10 ? 0 : bitsPerCh == 14 ? 1 : 2;
+    }
+
+    /**
+     * Takes a config written to the config characteristic. Bits 4 and 5 of the first byte select
+     * the resolution like on the device, {0,1,2,3} <=> {10,14,16,10} bit; the other settings are
+     * only kept for {@link #readConfig}.
+     */
+    public void writeConfig(byte[] value) {
+        if (value == null || value.length < 8) return;
+        config = value.clone();
+        final int position = (value[0] & 0x30) >> 4;
+        requestedBitsPerCh = position == 1 ? 14 : position == 2 ? 16 : 10;
+    }
+
+    /**
+     * Sends the config to the sink on the config characteristic, before the next packet.
+     */
+    public void readConfig() {
+        configRequested = true;
+    }
+
+    /**
+     * @param fraction share of packets that get lost on the way, their pkgids are skipped
+     */
+    public void setPacketLoss(float fraction) {
+        packetLoss = fraction;
+    }
+
+    /**
+     * @param fraction share of packets that report a dropped sample in their header
+     */
+    public void setDroppedSamples(float fraction) {
+        droppedSamples = fraction;
+    }
+
+    /**
+     * Generates packets on the calling thread until {@link #stop}.
+     */
+    @Override
+    public void run() {
+        final long period = packetRate > 0 ? (long) (1e9 / packetRate) : 0;
+        long start = System.nanoTime();
+        startNanos = start;
+        long scheduled = 0;
+        while (running) {
+            if (period > 0) {
+                final long due = start + scheduled * period;
+                long wait;
+                while (running && (wait = due - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+                if (System.nanoTime() - due > MAX_LAG_NS) {
+                    // the sink cannot keep up, continue at the nominal rate from now on
+                    lateRestarts++;
+                    start = System.nanoTime();
+                    scheduled = 0;
+                }
+                scheduled++;
+            }
+            generatePacket();
+        }
+        endNanos = System.nanoTime();
+    }
+
+    /**
+     * Generates packets on a new thread.
+     */
+    public Thread start() {
+        final Thread thread = new Thread(this, "TraumschreiberSimulator");
+        thread.start();
+        return thread;
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    public int getBitsPerCh() {
+        return bitsPerCh;
+    }
+
+    public UUID getCharacteristicId() {
+        return characteristicId;
+    }
+
+    /**
+     * @return packets handed to the sink, without c0de packets
+     */
+    public long getPacketsSent() {
+        return packetsSent;
+    }
+
+    /**
+     * @return packets that were generated but not sent to simulate bluetooth loss
+     */
+    public long getPacketsLost() {
+        return packetsLost;
+    }
+
+    public long getCodePacketsSent() {
+        return codePacketsSent;
+    }
+
+    /**
+     * @return how often the sink fell more than a second behind the requested rate
+     */
+    public long getLateRestarts() {
+        return lateRestarts;
+    }
+
+    /**
+     * @return packets per second handed to the sink so far
+     */
+    public double getPacketsPerSecond() {
+        final long end = running ? System.nanoTime() : endNanos;
+        final long elapsed = end - startNanos;
+        return elapsed > 0 ? packetsSent * 1e9 / elapsed : 0;
+    }
+
+    /**
+     * Encodes the next sample into the packet buffer and hands it to the sink.
+     */
+    private void generatePacket() {
+        if (configRequested) {
+            configRequested = false;
+            sink.onPacket(TraumschreiberService.configUUID, config.clone(), System.nanoTime());
+        }
+        if (requestedBitsPerCh != bitsPerCh) applyResolution();
+        if (shiftChanged) {
+            // the decoder applies new shifts to all packets after the c0de packet
+            sendCodePacket();
+            shiftChanged = false;
+        }
+        encodeSample(sampleIndex++);
+        final int id = pkgId;
+        pkgId = (pkgId + 1) & 0x0f;
+        if (packetLoss > 0 && random.nextFloat() < packetLoss) {
+            // sent by the device but never received, the decoder misses its deltas like with
+            // the hardware
+            packetsLost++;
+            return;
+        }
+        final int dropped = droppedSamples > 0 && random.nextFloat() < droppedSamples ? 1 : 0;
+        packet[0] = (byte) (id << 4 | dropped);
+        pack(delta, bitsPerCh, packet, 1);
+        sink.onPacket(characteristicId, packet, System.nanoTime());
+        packetsSent++;
+    }
+
+    /**
+     * DPCM step of the device: quantizes the difference to the decoder's reconstruction with
+     * the current bit shifts, then adapts the shifts of the following samples: saturated deltas
+     * increase the shift at once, deltas that stayed small for ADAPTATION_PACKETS decrease it.
+     */
+    private void encodeSample(long n) {
+        final double t = n / (packetRate > 0 ? packetRate : 250.0);
+        final int max = (1 << (bitsPerCh - 1)) - 1;
+        final int min = -(1 << (bitsPerCh - 1));
+        for (int i = 0; i < nChannels; i++) {
+            final double value = dcOffset[i]
+                    + ALPHA_AMPLITUDE * Math.sin(2 * Math.PI * alphaFrequency[i] * t + phase[i])
+                    + DRIFT_AMPLITUDE * Math.sin(2 * Math.PI * 0.05 * t + phase[i])
+                    + NOISE_AMPLITUDE * random.nextGaussian();
+            final long d = (Math.round(value) - reconstruction[i]) >> bitShift[i];
+            if (d > max || d < min) {
+                delta[i] = (int) Math.max(min, Math.min(max, d));
+                if (bitShift[i] < MAX_SHIFT) {
+                    nextShift[i] = bitShift[i] + 1;
+                    shiftChanged = true;
+                }
+            } else {
+                delta[i] = (int) d;
+            }
+            peakDelta[i] = Math.max(peakDelta[i], Math.abs(delta[i]));
+            reconstruction[i] += delta[i] << bitShift[i];
+        }
+        if (n % ADAPTATION_PACKETS == ADAPTATION_PACKETS - 1) {
+            for (int i = 0; i < nChannels; i++) {
+                // half the shift doubles the deltas, keep them clear of saturation
+                if (bitShift[i] > 0 && nextShift[i] == bitShift[i] && peakDelta[i] < max >> 2) {
+                    nextShift[i] = bitShift[i] - 1;
+                    shiftChanged = true;
+                }
+                peakDelta[i] = 0;
+            }
+        }
+    }
+
+    private void applyResolution() {
+        bitsPerCh = requestedBitsPerCh;
+        characteristicId = TraumschreiberService.notifyingUUIDs.get(characteristicIndex(bitsPerCh));
+        packet = new byte[1 + nChannels * bitsPerCh / 8];
+        Arrays.fill(peakDelta, 0);
+        // the device announces its shifts again on the new characteristic
+        shiftChanged = true;
+    }
+
+    private void sendCodePacket() {
+        System.arraycopy(nextShift, 0, bitShift, 0, nChannels);
+        for (int i = 0; i < 12; i++) {
+            codePacket[i] = (byte) (bitShift[i * 2] << 4 | bitShift[i * 2 + 1]);
+        }
+        sink.onPacket(TraumschreiberService.codeUUID, codePacket, System.nanoTime());
+        codePacketsSent++;
+    }
+
+    /**
+     * Packs the low bits of every value MSB first, the layout unpacked by
+     * {@link TraumschreiberService#decode} for 10, 14 and 16 bits.
+     */
+    static void pack(int[] values, int bits, byte[] out, int offset) {
+        final long mask = (1L << bits) - 1;
+        long acc = 0;
+        int accBits = 0;
+        int b = offset;
+        for (int value : values) {
+            acc = (acc << bits) | (value & mask);
+            accBits += bits;
+            while (accBits >= 8) {
+                accBits -= 8;
+                out[b++] = (byte) (acc >>> accBits);
+            }
+        }
+    }
+}
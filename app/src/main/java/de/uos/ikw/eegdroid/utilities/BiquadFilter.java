@@ -0,0 +1,109 @@
+package de.uos.ikw.eegdroid.utilities;
+
+import java.util.Arrays;
+
+/**
+ * Second order IIR section (transposed direct form II) applied to all channels of a
+ * multichannel signal. The filter state is kept as one array per state variable
+ * (structure of arrays), so processing a block walks the channels linearly and never allocates.
+ * <p>
+ * Coefficients follow the RBJ Audio EQ Cookbook.
+ */
+public class BiquadFilter {
+
+    private static final double BUTTERWORTH_Q = 1 / Math.sqrt(2);
+    private final int nChannels;
+    private final double b0, b1, b2, a1, a2;
+    private final double[] s1;
+    private final double[] s2;
+
+    public BiquadFilter(int nChannels, double b0, double b1, double b2,
+                        double a0, double a1, double a2) {
+        this.nChannels = nChannels;
+        this.b0 = b0 / a0;
+        this.b1 = b1 / a0;
+        this.b2 = b2 / a0;
+        this.a1 = a1 / a0;
+        this.a2 = a2 / a0;
+        this.s1 = new double[nChannels];
+        this.s2 = new double[nChannels];
+    }
+
+    /**
+     * Notch (band-stop) filter, e.g. for 50/60 Hz line noise.
+     *
+     * @param fs sampling rate in Hz
+     * @param f0 center frequency in Hz
+     * @param q  quality factor, higher is narrower
+     */
+    public static BiquadFilter notch(int nChannels, double fs, double f0, double q) {
+        double w0 = 2 * Math.PI * f0 / fs;
+        double cos = Math.cos(w0);
+        double alpha = Math.sin(w0) / (2 * q);
+        return new BiquadFilter(nChannels, 1, -2 * cos, 1, 1 + alpha, -2 * cos, 1 - alpha);
+    }
+
+    /**
+     * Second order Butterworth high pass.
+     */
+    public static BiquadFilter highPass(int nChannels, double fs, double fc) {
+        double w0 = 2 * Math.PI * fc / fs;
+        double cos = Math.cos(w0);
+        double alpha = Math.sin(w0) / (2 * BUTTERWORTH_Q);
+        return new BiquadFilter(nChannels, (1 + cos) / 2, -(1 + cos), (1 + cos) / 2,
+                1 + alpha, -2 * cos, 1 - alpha);
+    }
+
+    /**
+     * Second order Butterworth low pass.
+     */
+    public static BiquadFilter lowPass(int nChannels, double fs, double fc) {
+        double w0 = 2 * Math.PI * fc / fs;
+        double cos = Math.cos(w0);
+        double alpha = Math.sin(w0) / (2 * BUTTERWORTH_Q);
+        return new BiquadFilter(nChannels, (1 - cos) / 2, 1 - cos, (1 - cos) / 2,
+                1 + alpha, -2 * cos, 1 - alpha);
+    }
+
+    /**
+     * Band pass built from a high pass at low and a low pass at high (two stages).
+     */
+    public static BiquadFilter[] bandPass(int nChannels, double fs, double low, double high) {
+        return new BiquadFilter[]{highPass(nChannels, fs, low), lowPass(nChannels, fs, high)};
+    }
+
+    /**
+     * First order DC blocker y[n] = r * (y[n-1] + x[n] - x[n-1]), written as a biquad.
+     * With r = 0.999 this is the high pass the app has always used for in-app filtering.
+     */
+    public static BiquadFilter dcBlocker(int nChannels, double r) {
+        return new BiquadFilter(nChannels, r, -r, 0, 1, -r, 0);
+    }
+
+    public int getChannelCount() {
+        return nChannels;
+    }
+
+    /**
+     * Filters a block of samples in place.
+     *
+     * @param block    samples in channel-interleaved order: block[sample * nChannels + channel]
+     * @param nSamples number of samples per channel in the block
+     */
+    public void process(float[] block, int nSamples) {
+        for (int n = 0, idx = 0; n < nSamples; n++) {
+            for (int ch = 0; ch < nChannels; ch++, idx++) {
+                double x = block[idx];
+                double y = b0 * x + s1[ch];
+                s1[ch] = b1 * x - a1 * y + s2[ch];
+                s2[ch] = b2 * x - a2 * y;
+                block[idx] = (float) y;
+            }
+        }
+    }
+
+    public void reset() {
+        Arrays.fill(s1, 0);
+        Arrays.fill(s2, 0);
+    }
+}
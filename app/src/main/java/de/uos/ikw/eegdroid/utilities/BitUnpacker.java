@@ -0,0 +1,88 @@
+package de.uos.ikw.eegdroid.utilities;
+
+/**
+ * Table driven unpacking of signed ints of 1 to 16 bits packed MSB first without gaps, the
+ * layout of the 10, 14 and 16 bit channel payloads of the Traumschreiber.
+ * <p>
+ * For every value of a payload, the tables hold the first of three bytes containing it and the
+ * left shift that moves the value to the top of an int. An arithmetic right shift then brings it
+ * back down and does the 2's complement conversion in the same step, so every value takes one
+ * three byte load and two shifts, without branches or a second pass.
+ */
+public class BitUnpacker {
+
+    private final int bits;
+    private final int nValues;
+    private final int payloadBytes;
+    private final int[] start;
+    private final int[] shift;
+
+    /**
+     * @param bits    bits per value, 1 to 16
+     * @param nValues values per payload
+     */
+    public BitUnpacker(int bits, int nValues) {
+        if (bits < 1 || bits > 16) throw new IllegalArgumentException("Unsupported width: " + bits);
+        this.bits = bits;
+        this.nValues = nValues;
+        this.payloadBytes = (nValues * bits + 7) / 8;
+        if (payloadBytes < 3) throw new IllegalArgumentException("Payload shorter than 3 bytes");
+        this.start = new int[nValues];
+        this.shift = new int[nValues];
+        for (int i = 0; i < nValues; i++) {
+            final int bit = i * bits;
+            // the last values start their window earlier so it never reads past the payload
+            final int s = Math.min(bit / 8, payloadBytes - 3);
+            start[i] = s;
+            shift[i] = bit - s * 8;
+        }
+    }
+
+    public int getBits() {
+        return bits;
+    }
+
+    public int getValueCount() {
+        return nValues;
+    }
+
+    /**
+     * @return bytes taken by the values of one payload
+     */
+    public int getPayloadBytes() {
+        return payloadBytes;
+    }
+
+    /**
+     * Unpacks one payload.
+     *
+     * @param bytes     packed values
+     * @param offset    position of the payload within bytes
+     * @param out       receives nValues signed values
+     * @param outOffset position of the first value within out
+     */
+    public void unpack(byte[] bytes, int offset, int[] out, int outOffset) {
+        final int down = 32 - bits;
+        for (int i = 0; i < nValues; i++) {
+            final int s = offset + start[i];
+            final int window = (bytes[s] << 24) | ((bytes[s + 1] & 0xff) << 16) | ((bytes[s + 2] & 0xff) << 8);
+            out[outOffset + i] = (window << shift[i]) >> down;
+        }
+    }
+
+    /**
+     * Unpacks the payloads of several packets stored one after another.
+     *
+     * @param bytes     packets
+     * @param offset    position of the first payload within bytes
+     * @param stride    distance between two payloads in bytes, at least getPayloadBytes()
+     * @param nPackets  number of payloads to unpack
+     * @param out       receives nPackets * nValues values, packet after packet
+     * @param outOffset position of the first value within out
+     */
+    public void unpack(byte[] bytes, int offset, int stride, int nPackets, int[] out, int outOffset) {
+        for (int p = 0; p < nPackets; p++, offset += stride, outOffset += nValues) {
+            unpack(bytes, offset, out, outOffset);
+        }
+    }
+}
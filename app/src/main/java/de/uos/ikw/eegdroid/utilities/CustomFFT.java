@@ -1,165 +1,337 @@
 package de.uos.ikw.eegdroid.utilities;
 
-import org.apache.commons.math3.complex.Complex;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Discrete Fourier transforms without native code.
+ * <p>
+ * Transforms work in place on separate real and imaginary arrays. Power of two lengths use an
+ * iterative radix-4 FFT (with one radix-2 stage for odd powers of two). Any other length, e.g.
+ * the k * 225 point windows of the spectrogram, is turned into a circular convolution of power
+ * of two length by Bluestein's chirp-z algorithm, so every length costs O(n log n). Bit
+ * reversal, twiddle factors and chirp are computed once per length and shared read-only, the
+ * scratch buffers are kept per thread, so threads transform in parallel and a transform
+ * allocates nothing after the first one of its length on its thread.
+ * <p>
+ * Real signals such as EEG take {@link #rfft}, which returns only the n / 2 + 1 bins that are
+ * not redundant and for even lengths costs one complex transform of half the length.
+ */
 public class CustomFFT {
-    private static final int FFT_THRES = 32;
-    public static int FFT_SIZE = 1024;
-    private static Complex[][] FFT_MAT;
-    private static Complex[][] DFT_MAT;
-    private static Complex[] FFT_FACTORS;
-
-    private static void initFFTMat() {
-        FFT_MAT = new Complex[FFT_THRES][FFT_THRES];
-        double img_exp_val;
-        double real;
-        double img;
-        for (int i = 0; i < FFT_THRES; i++) {
-            for (int j = 0; j < FFT_THRES; j++) {
-                img_exp_val = -2 * Math.PI * i * j / FFT_THRES;
-                real = Math.cos(img_exp_val);
-                img = Math.sin(img_exp_val);
-                FFT_MAT[i][j] = new Complex(real, img);
+    private static final Map<Integer, Plan> PLANS = new ConcurrentHashMap<>();
+    private static final Map<Integer, RealPlan> REAL_PLANS = new ConcurrentHashMap<>();
+
+    /**
+     * Transforms re + i * im in place (forward, without scaling).
+     *
+     * @param re real parts, replaced by the real parts of the spectrum
+     * @param im imaginary parts, replaced by the imaginary parts of the spectrum
+     * @throws IllegalArgumentException if the arrays differ in length
+     */
+    public static void fft(double[] re, double[] im) {
+        final int n = re.length;
+        if (im.length != n) throw new IllegalArgumentException("re and im differ in length");
+        if (n < 2) return;
+        plan(n).transform(re, im);
+    }
+
+    /**
+     * Transforms a real signal (forward, without scaling) and returns the non-redundant half of
+     * the spectrum, bins 0 to n / 2. The other bins are the complex conjugates of these.
+     *
+     * @param x  real input of length n, not modified
+     * @param re receives the real parts of bins 0 to n / 2, at least n / 2 + 1 long
+     * @param im receives the imaginary parts of bins 0 to n / 2, at least n / 2 + 1 long
+     */
+    public static void rfft(double[] x, double[] re, double[] im) {
+        final int n = x.length;
+        if (re.length <= n / 2 || im.length <= n / 2) {
+            throw new IllegalArgumentException("Output has to hold n / 2 + 1 bins");
+        }
+        if (n < 2) {
+            if (n == 1) {
+                re[0] = x[0];
+                im[0] = 0;
             }
+            return;
         }
+        RealPlan plan = REAL_PLANS.get(n);
+        if (plan == null) {
+            plan = new RealPlan(n);
+            final RealPlan previous = REAL_PLANS.putIfAbsent(n, plan);
+            if (previous != null) plan = previous;
+        }
+        plan.transform(x, re, im);
     }
 
-    private static void initFFTFactors() {
-        FFT_FACTORS = new Complex[FFT_SIZE];
-        double img_exp_val;
-        double real;
-        double img;
-        for (int i = 0; i < FFT_SIZE; i++) {
-            img_exp_val = -2 * Math.PI * i / FFT_SIZE;
-            real = Math.cos(img_exp_val);
-            img = Math.sin(img_exp_val);
-            FFT_FACTORS[i] = new Complex(real, img);
+    private static Plan plan(int n) {
+        Plan plan = PLANS.get(n);
+        if (plan == null) {
+            // not computeIfAbsent, a Bluestein plan adds the plan of its convolution length
+            plan = isPowerOfTwo(n) ? new Radix4Plan(n) : new BluesteinPlan(n);
+            final Plan previous = PLANS.putIfAbsent(n, plan);
+            if (previous != null) plan = previous;
         }
+        return plan;
     }
 
-    private static void initDFTMat(int n) {
-        DFT_MAT = new Complex[n][n];
-        double img_exp_val;
-        double real;
-        double img;
-        for (int i = 0; i < n; i++) {
-            for (int j = 0; j < n; j++) {
-                img_exp_val = -2 * Math.PI * i * j / n;
-                real = Math.cos(img_exp_val);
-                img = Math.sin(img_exp_val);
-                DFT_MAT[i][j] = new Complex(real, img);
-            }
-        }
+    public static boolean isPowerOfTwo(int n) {
+        return n > 0 && (n & (n - 1)) == 0;
     }
 
-    private static Complex[] fftRecursive(double[] x) {
-        int n = x.length;
-        if (n % 2 > 0 || n < FFT_THRES) {
-            return vectorizedDft(x);
-        } else if (n == FFT_THRES) {
-            return dftThres(x);
-        } else {
-            int n_half = n / 2;
-            double[] even = new double[n_half];
-            double[] odd = new double[n_half];
-            for (int i = 0, j = 0; i < n_half; i++, j += 2) {
-                even[i] = x[j];
-                odd[i] = x[j + 1];
-            }
-            Complex[] fftEven = fftRecursive(even);
-            Complex[] fftOdd = fftRecursive(odd);
-            Complex[] fftRes = new Complex[n];
-            int facSteps = FFT_SIZE / n;
-            int fs_half = FFT_SIZE / 2;
-            for (int i = 0, fi = 0; i < n_half; i++, fi += facSteps) {
-                fftRes[i] = fftEven[i].add(FFT_FACTORS[fi].multiply(fftOdd[i]));
-                fftRes[n_half + i] = fftEven[i].add(FFT_FACTORS[fs_half + fi].multiply(fftOdd[i]));
-            }
-            return fftRes;
-        }
+    /**
+     * Precomputed tables of one transform length.
+     */
+    private interface Plan {
+        void transform(double[] re, double[] im);
     }
 
-    private static Complex[] dftThres(double[] x) {
-        int n = x.length;
-        assert n == FFT_THRES : "Wrong length in dftThres!";
-        try {
-            if (FFT_MAT.length != n) {
-                initFFTMat();
+    /**
+     * Bit reversal and twiddle tables of one power of two length.
+     */
+    private static class Radix4Plan implements Plan {
+        final int n;
+        // pairs i < swap[i] to exchange for the bit reversed order
+        final int[] swapFrom;
+        final int[] swapTo;
+        // exp(-2 pi i k / n) = cos[k] + i * sin[k] for k < n / 2
+        final double[] cos;
+        final double[] sin;
+
+        Radix4Plan(int n) {
+            this.n = n;
+            final int bits = Integer.numberOfTrailingZeros(n);
+            int pairs = 0;
+            final int[] rev = new int[n];
+            for (int i = 0; i < n; i++) {
+                rev[i] = Integer.reverse(i) >>> (32 - bits);
+                if (i < rev[i]) pairs++;
+            }
+            swapFrom = new int[pairs];
+            swapTo = new int[pairs];
+            for (int i = 0, p = 0; i < n; i++) {
+                if (i < rev[i]) {
+                    swapFrom[p] = i;
+                    swapTo[p++] = rev[i];
+                }
+            }
+            cos = new double[n / 2];
+            sin = new double[n / 2];
+            for (int k = 0; k < n / 2; k++) {
+                final double angle = -2 * Math.PI * k / n;
+                cos[k] = Math.cos(angle);
+                sin[k] = Math.sin(angle);
             }
-        } catch (NullPointerException e) {
-            initFFTMat();
         }
 
-        Complex[] x_dft = new Complex[FFT_THRES];
-        Complex dft_val;
-        Complex addend;
-
-        for (int i = 0; i < FFT_THRES; i++) {
-            dft_val = new Complex(0, 0);
-            for (int j = 0; j < FFT_THRES; j++) {
-                addend = FFT_MAT[i][j];
-                addend = addend.multiply(x[j]);
-                dft_val = dft_val.add(addend);
+        @Override
+        public void transform(double[] re, double[] im) {
+            for (int p = 0; p < swapFrom.length; p++) {
+                final int i = swapFrom[p];
+                final int j = swapTo[p];
+                double t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+            int m = 1;
+            if (Integer.numberOfTrailingZeros(n) % 2 == 1) {
+                // odd power of two: one radix-2 stage of 2 point transforms
+                for (int i = 0; i < n; i += 2) {
+                    final double r = re[i + 1];
+                    final double s = im[i + 1];
+                    re[i + 1] = re[i] - r;
+                    im[i + 1] = im[i] - s;
+                    re[i] += r;
+                    im[i] += s;
+                }
+                m = 2;
+            }
+            // radix-4 stages: four transforms of length m become one of length 4m
+            for (; m < n; m *= 4) {
+                final int step1 = n / (2 * m);
+                final int step2 = n / (4 * m);
+                for (int j = 0; j < m; j++) {
+                    // twiddles of the inner (length 2m) and the outer (length 4m) stage
+                    final double w1r = cos[j * step1];
+                    final double w1i = sin[j * step1];
+                    final double w2r = cos[j * step2];
+                    final double w2i = sin[j * step2];
+                    for (int i = j; i < n; i += 4 * m) {
+                        final int i1 = i + m;
+                        final int i2 = i1 + m;
+                        final int i3 = i2 + m;
+                        // inner stage on (i, i1) and (i2, i3)
+                        double tr = w1r * re[i1] - w1i * im[i1];
+                        double ti = w1r * im[i1] + w1i * re[i1];
+                        final double ar = re[i] + tr;
+                        final double ai = im[i] + ti;
+                        final double br = re[i] - tr;
+                        final double bi = im[i] - ti;
+                        tr = w1r * re[i3] - w1i * im[i3];
+                        ti = w1r * im[i3] + w1i * re[i3];
+                        final double cr = re[i2] + tr;
+                        final double ci = im[i2] + ti;
+                        final double dr = re[i2] - tr;
+                        final double di = im[i2] - ti;
+                        // outer stage on (a, c) with w2 and (b, d) with -i * w2
+                        tr = w2r * cr - w2i * ci;
+                        ti = w2r * ci + w2i * cr;
+                        re[i] = ar + tr;
+                        im[i] = ai + ti;
+                        re[i2] = ar - tr;
+                        im[i2] = ai - ti;
+                        tr = w2r * di + w2i * dr;
+                        ti = w2i * di - w2r * dr;
+                        re[i1] = br + tr;
+                        im[i1] = bi + ti;
+                        re[i3] = br - tr;
+                        im[i3] = bi - ti;
+                    }
+                }
             }
-            x_dft[i] = dft_val;
         }
-        return x_dft;
     }
 
-    public static Complex[] vectorizedDft(double[] x) {
-        int n = x.length;
-        try {
-            if (DFT_MAT.length != n) {
-                initDFTMat(n);
+    /**
+     * Bluestein's algorithm: with the chirp w[k] = exp(-i pi k^2 / n) the transform is
+     * X[k] = w[k] * sum_j (x[j] * w[j]) * conj(w[k - j]), a convolution that is computed by
+     * power of two FFTs of at least 2n - 1 points. The transform of the conjugated chirp is
+     * precomputed, so each transform takes one forward and one inverse FFT.
+     */
+    private static class BluesteinPlan implements Plan {
+        final int n;
+        final Radix4Plan convolution;
+        // chirp w[k] for k < n
+        final double[] chirpRe;
+        final double[] chirpIm;
+        // FFT of the conjugated chirp, wrapped around to the convolution length
+        final double[] filterRe;
+        final double[] filterIm;
+        // convolution length
+        final int m;
+        // real and imaginary convolution buffer of the calling thread
+        final ThreadLocal<double[][]> buffers;
+
+        BluesteinPlan(int n) {
+            this.n = n;
+            m = Integer.highestOneBit(2 * n - 1) << 1;
+            convolution = (Radix4Plan) plan(m);
+            chirpRe = new double[n];
+            chirpIm = new double[n];
+            for (int k = 0; k < n; k++) {
+                // k^2 modulo 2n keeps the angle exact for long transforms
+                final double angle = -Math.PI * ((long) k * k % (2L * n)) / n;
+                chirpRe[k] = Math.cos(angle);
+                chirpIm[k] = Math.sin(angle);
+            }
+            filterRe = new double[m];
+            filterIm = new double[m];
+            filterRe[0] = chirpRe[0];
+            filterIm[0] = -chirpIm[0];
+            for (int k = 1; k < n; k++) {
+                filterRe[k] = filterRe[m - k] = chirpRe[k];
+                filterIm[k] = filterIm[m - k] = -chirpIm[k];
             }
-        } catch (NullPointerException e) {
-            initDFTMat(n);
+            convolution.transform(filterRe, filterIm);
+            buffers = ThreadLocal.withInitial(() -> new double[2][m]);
         }
 
-        Complex[] x_dft = new Complex[n];
-        Complex dft_val;
-        Complex addend;
-
-        for (int i = 0; i < n; i++) {
-            dft_val = new Complex(0, 0);
-            for (int j = 0; j < n; j++) {
-                addend = DFT_MAT[i][j];
-                addend = addend.multiply(x[j]);
-                dft_val = dft_val.add(addend);
+        @Override
+        public void transform(double[] re, double[] im) {
+            final double[][] buffer = buffers.get();
+            final double[] bufRe = buffer[0];
+            final double[] bufIm = buffer[1];
+            for (int k = 0; k < n; k++) {
+                bufRe[k] = re[k] * chirpRe[k] - im[k] * chirpIm[k];
+                bufIm[k] = re[k] * chirpIm[k] + im[k] * chirpRe[k];
+            }
+            Arrays.fill(bufRe, n, m, 0);
+            Arrays.fill(bufIm, n, m, 0);
+            convolution.transform(bufRe, bufIm);
+            // multiply with the filter and conjugate, so the forward FFT computes the inverse
+            for (int k = 0; k < m; k++) {
+                final double r = bufRe[k] * filterRe[k] - bufIm[k] * filterIm[k];
+                final double i = bufRe[k] * filterIm[k] + bufIm[k] * filterRe[k];
+                bufRe[k] = r;
+                bufIm[k] = -i;
+            }
+            convolution.transform(bufRe, bufIm);
+            // conjugate back, scale by 1 / m and apply the chirp
+            for (int k = 0; k < n; k++) {
+                final double r = bufRe[k] / m;
+                final double i = -bufIm[k] / m;
+                re[k] = r * chirpRe[k] - i * chirpIm[k];
+                im[k] = r * chirpIm[k] + i * chirpRe[k];
             }
-            x_dft[i] = dft_val;
         }
-        return x_dft;
     }
 
-    public static Complex[] dft(double[] x) {
-        Complex[] x_dft = new Complex[x.length];
-        Complex dft_val;
-        Complex addend;
-        double real;
-        double img;
-        double img_exp_val;
-        for (int i = 0; i < x.length; i++) {
-            dft_val = new Complex(0, 0);
-            for (int j = 0; j < x.length; j++) {
-                img_exp_val = -2 * Math.PI * i * j / x.length;
-                real = Math.cos(img_exp_val);
-                img = Math.sin(img_exp_val);
-                addend = new Complex(real, img);
-                addend = addend.multiply(x[j]);
-                dft_val = dft_val.add(addend);
-            }
-            x_dft[i] = dft_val;
+    /**
+     * Real transform of length n. For even n the samples are packed as n / 2 complex values
+     * z[k] = x[2k] + i * x[2k + 1], transformed with half the length and separated into the
+     * spectra of the even and the odd samples, which are combined with the twiddles of length n.
+     * Odd lengths take a complex transform of the full length.
+     */
+    private static class RealPlan {
+        final int n;
+        final Plan half;
+        // exp(-2 pi i k / n) for k <= n / 2
+        final double[] cos;
+        final double[] sin;
+        // real and imaginary transform buffer of the calling thread
+        final ThreadLocal<double[][]> buffers;
+
+        RealPlan(int n) {
+            this.n = n;
+            final boolean even = n % 2 == 0;
+            half = plan(even ? n / 2 : n);
+            cos = new double[n / 2 + 1];
+            sin = new double[n / 2 + 1];
+            for (int k = 0; k <= n / 2; k++) {
+                final double angle = -2 * Math.PI * k / n;
+                cos[k] = Math.cos(angle);
+                sin[k] = Math.sin(angle);
+            }
+            final int length = even ? n / 2 : n;
+            buffers = ThreadLocal.withInitial(() -> new double[2][length]);
         }
-        return x_dft;
-    }
 
-    public static Complex[] fft(double[] x) {
-        int n = x.length;
-        if (n != FFT_SIZE) {
-            FFT_SIZE = n;
-            initFFTFactors();
+        void transform(double[] x, double[] re, double[] im) {
+            final double[][] buffer = buffers.get();
+            final double[] bufRe = buffer[0];
+            final double[] bufIm = buffer[1];
+            if (n % 2 == 1) {
+                System.arraycopy(x, 0, bufRe, 0, n);
+                Arrays.fill(bufIm, 0);
+                half.transform(bufRe, bufIm);
+                System.arraycopy(bufRe, 0, re, 0, n / 2 + 1);
+                System.arraycopy(bufIm, 0, im, 0, n / 2 + 1);
+                return;
+            }
+            final int h = n / 2;
+            for (int k = 0; k < h; k++) {
+                bufRe[k] = x[2 * k];
+                bufIm[k] = x[2 * k + 1];
+            }
+            half.transform(bufRe, bufIm);
+            for (int k = 0; k <= h; k++) {
+                // Z[k] and conj(Z[h - k]), Z being periodic in h
+                final double zr = bufRe[k % h];
+                final double zi = bufIm[k % h];
+                final double cr = bufRe[(h - k) % h];
+                final double ci = -bufIm[(h - k) % h];
+                // spectra of the even (e) and the odd (o) samples
+                final double er = (zr + cr) / 2;
+                final double ei = (zi + ci) / 2;
+                final double or = (zi - ci) / 2;
+                final double oi = -(zr - cr) / 2;
+                re[k] = er + cos[k] * or - sin[k] * oi;
+                im[k] = ei + cos[k] * oi + sin[k] * or;
+            }
         }
-        return fftRecursive(x);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,84 @@
+package de.uos.ikw.eegdroid.utilities;
+
+import java.util.Arrays;
+
+/**
+ * Streaming estimate of the DC offset of every channel of an integer signal, used to center
+ * the decoded Traumschreiber signal from the first sample on.
+ * <p>
+ * The estimate is an exponential moving average with a time constant of 2^shift samples,
+ * kept in fixed point with FRACTION_BITS fractional bits so that it is exact and deterministic
+ * and never allocates. It is seeded with the first sample after a {@link #reset}, so the
+ * centered signal starts at 0 instead of waiting for a mean over a warm-up period, and keeps
+ * following slow drifts afterwards (a first order high pass at about fs / (2 pi 2^shift)).
+ */
+public class DcEstimator {
+
+    private static final int FRACTION_BITS = 16;
+    private final int nChannels;
+    private final int shift;
+    private final long[] offset;
+    private boolean seeded;
+
+    /**
+     * @param shift time constant of the average as power of two, in samples
+     */
+    public DcEstimator(int nChannels, int shift) {
+        this.nChannels = nChannels;
+        this.shift = shift;
+        this.offset = new long[nChannels];
+    }
+
+    /**
+     * Updates the estimate with one sample of every channel and writes the centered sample.
+     *
+     * @param signal    current value of every channel
+     * @param out       receives signal minus the estimated offset
+     * @param outOffset position of the first channel within out
+     */
+    public void center(int[] signal, int[] out, int outOffset) {
+        if (!seeded) {
+            for (int i = 0; i < nChannels; i++) offset[i] = (long) signal[i] << FRACTION_BITS;
+            seeded = true;
+        }
+        for (int i = 0; i < nChannels; i++) {
+            final long x = (long) signal[i] << FRACTION_BITS;
+            offset[i] += (x - offset[i]) >> shift;
+            out[outOffset + i] = signal[i] - (int) (offset[i] >> FRACTION_BITS);
+        }
+    }
+
+    /**
+     * Starts over, the next sample becomes the new offset.
+     */
+    public void reset() {
+        Arrays.fill(offset, 0);
+        seeded = false;
+    }
+
+    /**
+     * Copies the internal state, e.g. to continue the estimate in another instance.
+     *
+     * @param offsets receives the fixed point offset of every channel
+     * @return false if no sample was seen since the last reset
+     */
+    public boolean getState(long[] offsets) {
+        System.arraycopy(offset, 0, offsets, 0, nChannels);
+        return seeded;
+    }
+
+    /**
+     * Continues from a state copied by {@link #getState}.
+     */
+    public void setState(long[] offsets, boolean seeded) {
+        System.arraycopy(offsets, 0, offset, 0, nChannels);
+        this.seeded = seeded;
+    }
+
+    /**
+     * @return current offset estimate of the channel
+     */
+    public int getOffset(int channel) {
+        return (int) (offset[channel] >> FRACTION_BITS);
+    }
+}
@@ -2,64 +2,308 @@ package de.uos.ikw.eegdroid.utilities;
 
 import static org.bytedeco.fftw.global.fftw3.FFTW_ESTIMATE;
 import static org.bytedeco.fftw.global.fftw3.FFTW_FORWARD;
+import static org.bytedeco.fftw.global.fftw3.FFTW_MEASURE;
+import static org.bytedeco.fftw.global.fftw3.fftw_alloc_complex;
+import static org.bytedeco.fftw.global.fftw3.fftw_alloc_real;
 import static org.bytedeco.fftw.global.fftw3.fftw_destroy_plan;
 import static org.bytedeco.fftw.global.fftw3.fftw_execute;
+import static org.bytedeco.fftw.global.fftw3.fftw_export_wisdom_to_filename;
+import static org.bytedeco.fftw.global.fftw3.fftw_free;
+import static org.bytedeco.fftw.global.fftw3.fftw_import_wisdom_from_filename;
+import static org.bytedeco.fftw.global.fftw3.fftw_init_threads;
 import static org.bytedeco.fftw.global.fftw3.fftw_plan;
 import static org.bytedeco.fftw.global.fftw3.fftw_plan_dft_1d;
+import static org.bytedeco.fftw.global.fftw3.fftw_plan_dft_r2c_1d;
+import static org.bytedeco.fftw.global.fftw3.fftw_plan_many_dft_r2c;
+import static org.bytedeco.fftw.global.fftw3.fftw_plan_with_nthreads;
+
+import android.util.Log;
 
 import org.apache.commons.math3.complex.Complex;
 import org.bytedeco.fftw.global.fftw3;
 import org.bytedeco.javacpp.DoublePointer;
 import org.bytedeco.javacpp.Loader;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+/**
+ * Transforms with FFTW.
+ * <p>
+ * Every thread keeps one plan per length and kind, together with the aligned native buffers it
+ * was made for, so repeated transforms of the same length only copy the data in, execute and
+ * copy the result out. The FFTW planner is not thread-safe, creating and destroying plans is
+ * serialized, executing them is not. All plans are also kept in a global list, so
+ * {@link #releasePlans} frees the plans of every thread once no transforms are running.
+ * <p>
+ * Plans are made with FFTW_ESTIMATE unless {@link #setMeasure} is enabled. FFTW_MEASURE times
+ * several algorithms per length, which takes much longer once but gives faster plans; the
+ * results are kept as wisdom in a file, so later runs can skip the measuring. Measuring, like
+ * reading and writing the wisdom, blocks for a long time and belongs on a background thread.
+ * <p>
+ * Many real signals of the same length, like the windows of a spectrogram, are best transformed
+ * with {@link #fftwMagnitudes(double[], int, int, double[])}. It copies BATCH_SIZE windows into
+ * one native buffer and transforms them with a single plan from FFTW's advanced interface, so
+ * the JNI calls and copies are per batch instead of per window. Only these batch plans use the
+ * threads set with {@link #setThreads}, single windows are too short to gain from threading.
+ */
 public class FFTWWrapper {
+    private final static String TAG = FFTWWrapper.class.getSimpleName();
     private static final int REAL = 0;
     private static final int IMAG = 1;
+    public static final int BATCH_SIZE = 64;
     public static int NUM_POINTS = 1024;
     private static boolean FFTW_LOADED = false;
+    private static final Object PLANNER_LOCK = new Object();
+    // plans of the calling thread, keyed by length, negative for r2c plans
+    private static final ThreadLocal<Map<Integer, Plan>> PLANS = ThreadLocal.withInitial(HashMap::new);
+    // batch plans of the calling thread, keyed by length
+    private static final ThreadLocal<Map<Integer, Plan>> BATCH_PLANS = ThreadLocal.withInitial(HashMap::new);
+    // guarded by PLANNER_LOCK
+    private static final List<Plan> ALL_PLANS = new ArrayList<>();
+    private static int plannerFlags = (int) FFTW_ESTIMATE;
+    private static File wisdomFile;
+    // a plan was measured since the wisdom was last written
+    private static boolean wisdomChanged;
+    private static int threads = 1;
+    private static boolean threadsInitialized;
 
     public static Complex[] fftw(double[] x) {
-        if (!(FFTW_LOADED)) {
-            Loader.load(fftw3.class);
-            FFTW_LOADED = true;
-        }
-        int n = x.length;
+        final int n = x.length;
         if (n != NUM_POINTS) {
             NUM_POINTS = n;
         }
+        Plan plan = getPlan(n, false);
+        double[] buffer = plan.buffer;
+        for (int i = 0; i < n; i++) {
+            buffer[2 * i + REAL] = x[i];
+            buffer[2 * i + IMAG] = 0;
+        }
+        plan.in.put(buffer, 0, 2 * n);
+        fftw_execute(plan.plan);
+        plan.out.get(buffer, 0, 2 * n);
 
-        DoublePointer signal = new DoublePointer(2L * NUM_POINTS);
-        DoublePointer result = new DoublePointer(2L * NUM_POINTS);
+        Complex[] res = new Complex[n];
+        for (int i = 0; i < n; i++) {
+            res[i] = new Complex(buffer[2 * i + REAL], buffer[2 * i + IMAG]);
+        }
+        return res;
+    }
 
-        fftw_plan plan = fftw_plan_dft_1d(NUM_POINTS, signal, result,
-                FFTW_FORWARD, (int) FFTW_ESTIMATE);
+    /**
+     * Transforms a real signal with FFTW's r2c transform, which computes only the non-redundant
+     * half of the spectrum, bins 0 to n / 2, the other bins are their complex conjugates.
+     *
+     * @param x  real input of length n, not modified
+     * @param re receives the real parts of bins 0 to n / 2, at least n / 2 + 1 long
+     * @param im receives the imaginary parts of bins 0 to n / 2, at least n / 2 + 1 long
+     */
+    public static void fftwReal(double[] x, double[] re, double[] im) {
+        final double[] spectrum = executeReal(x, 0, x.length);
+        final int bins = x.length / 2 + 1;
+        for (int i = 0; i < bins; i++) {
+            re[i] = spectrum[2 * i + REAL];
+            im[i] = spectrum[2 * i + IMAG];
+        }
+    }
 
-        updateSignal(x, signal);
-        fftw_execute(plan);
-        fftw_destroy_plan(plan);
+    /**
+     * Computes the magnitudes of the half spectrum of a real signal, without allocating.
+     *
+     * @param x          real input of length n, not modified
+     * @param magnitudes receives the magnitudes of bins 0 to n / 2, at least n / 2 + 1 long
+     */
+    public static void fftwMagnitudes(double[] x, double[] magnitudes) {
+        final double[] spectrum = executeReal(x, 0, x.length);
+        toMagnitudes(spectrum, x.length / 2 + 1, magnitudes, 0);
+    }
 
-        return convertResult(result);
+    /**
+     * Computes the magnitudes of the half spectra of count real signals of equal length, e.g. the
+     * windows of a spectrogram. Full batches of BATCH_SIZE signals are transformed at once, the
+     * remainder one by one.
+     *
+     * @param frames     the signals one after the other, at least count * n long, not modified
+     * @param count      number of signals
+     * @param n          length of each signal
+     * @param magnitudes receives the magnitudes row by row, bins 0 to n / 2 of the first signal,
+     *                   then of the second and so on, at least count * (n / 2 + 1) long
+     */
+    public static void fftwMagnitudes(double[] frames, int count, int n, double[] magnitudes) {
+        final int bins = n / 2 + 1;
+        int frame = 0;
+        if (count >= BATCH_SIZE) {
+            Plan plan = getBatchPlan(n);
+            for (; frame + BATCH_SIZE <= count; frame += BATCH_SIZE) {
+                plan.in.put(frames, frame * n, BATCH_SIZE * n);
+                fftw_execute(plan.plan);
+                plan.out.get(plan.buffer, 0, plan.buffer.length);
+                toMagnitudes(plan.buffer, BATCH_SIZE * bins, magnitudes, frame * bins);
+            }
+        }
+        for (; frame < count; frame++) {
+            final double[] spectrum = executeReal(frames, frame * n, n);
+            toMagnitudes(spectrum, bins, magnitudes, frame * bins);
+        }
     }
 
-    private static void updateSignal(double[] x, DoublePointer signal) {
-        /* Generate two sine waves of different frequencies and amplitudes. */
+    /**
+     * Switches between FFTW_MEASURE and FFTW_ESTIMATE for plans made from now on, plans that are
+     * already cached are kept. When measuring, the wisdom in wisdomFile is imported if it exists
+     * and written back by {@link #releasePlans} if new plans were measured. Reads the file, so
+     * call it off the UI thread.
+     *
+     * @param measure    true to measure new plans
+     * @param wisdomFile file in the app storage to keep the wisdom in, may be null
+     */
+    public static void setMeasure(boolean measure, File wisdomFile) {
+        synchronized (PLANNER_LOCK) {
+            load();
+            plannerFlags = (int) (measure ? FFTW_MEASURE : FFTW_ESTIMATE);
+            FFTWWrapper.wisdomFile = measure ? wisdomFile : null;
+            if (measure && wisdomFile != null && wisdomFile.exists()
+                    && fftw_import_wisdom_from_filename(wisdomFile.getAbsolutePath()) == 0) {
+                Log.d(TAG, "Could not import FFTW wisdom from " + wisdomFile);
+            }
+        }
+    }
 
-        double[] s = new double[(int) signal.capacity()];
-        for (int i = 0; i < NUM_POINTS; i++) {
-            s[2 * i + REAL] = x[i];
-            s[2 * i + IMAG] = 0;
+    /**
+     * Sets the number of threads batch plans made from now on use. If FFTW was built without
+     * thread support, the plans stay single-threaded.
+     *
+     * @param threads number of threads, e.g. the number of cores
+     */
+    public static void setThreads(int threads) {
+        synchronized (PLANNER_LOCK) {
+            load();
+            if (threads > 1 && !threadsInitialized) {
+                try {
+                    threadsInitialized = fftw_init_threads() != 0;
+                } catch (UnsatisfiedLinkError e) {
+                    threadsInitialized = false;
+                }
+                if (!threadsInitialized) Log.d(TAG, "FFTW threads are not available");
+            }
+            FFTWWrapper.threads = threadsInitialized ? Math.max(1, threads) : 1;
         }
-        signal.put(s);
     }
 
-    private static Complex[] convertResult(DoublePointer result) {
-        double[] r = new double[(int) result.capacity()];
-        result.get(r);
-        Complex[] res = new Complex[NUM_POINTS];
-        for (int i = 0; i < NUM_POINTS; i++) {
-            res[i] = new Complex(r[2 * i + REAL], r[2 * i + IMAG]);
+    /**
+     * Writes the wisdom file if new plans were measured, then destroys the plans of all threads
+     * and frees their buffers. No thread may be transforming while this runs; threads that
+     * transform afterwards make new plans.
+     */
+    public static void releasePlans() {
+        synchronized (PLANNER_LOCK) {
+            if (wisdomChanged && wisdomFile != null
+                    && fftw_export_wisdom_to_filename(wisdomFile.getAbsolutePath()) == 0) {
+                Log.d(TAG, "Could not export FFTW wisdom to " + wisdomFile);
+            }
+            wisdomChanged = false;
+            for (Plan plan : ALL_PLANS) plan.destroy();
+            ALL_PLANS.clear();
+        }
+        PLANS.get().clear();
+        BATCH_PLANS.get().clear();
+    }
+
+    /**
+     * Runs the r2c plan of the calling thread for n values of x starting at offset.
+     *
+     * @return the interleaved half spectrum, only valid until the next transform of this length
+     */
+    private static double[] executeReal(double[] x, int offset, int n) {
+        Plan plan = getPlan(n, true);
+        plan.in.put(x, offset, n);
+        fftw_execute(plan.plan);
+        plan.out.get(plan.buffer, 0, 2 * (n / 2 + 1));
+        return plan.buffer;
+    }
+
+    private static void toMagnitudes(double[] spectrum, int bins, double[] magnitudes, int offset) {
+        for (int i = 0; i < bins; i++) {
+            final double re = spectrum[2 * i + REAL];
+            final double im = spectrum[2 * i + IMAG];
+            magnitudes[offset + i] = Math.sqrt(re * re + im * im);
+        }
+    }
+
+    private static Plan getPlan(int n, boolean real) {
+        Map<Integer, Plan> plans = PLANS.get();
+        final int key = real ? -n : n;
+        Plan plan = plans.get(key);
+        if (plan == null || plan.destroyed) {
+            plan = new Plan(n, real, 1);
+            plans.put(key, plan);
+        }
+        return plan;
+    }
+
+    private static Plan getBatchPlan(int n) {
+        Map<Integer, Plan> plans = BATCH_PLANS.get();
+        Plan plan = plans.get(n);
+        if (plan == null || plan.destroyed) {
+            plan = new Plan(n, true, BATCH_SIZE);
+            plans.put(n, plan);
+        }
+        return plan;
+    }
+
+    private static void load() {
+        if (!(FFTW_LOADED)) {
+            Loader.load(fftw3.class);
+            FFTW_LOADED = true;
+        }
+    }
+
+    /**
+     * A plan with the native buffers it transforms and a Java array to copy them through. Batch
+     * plans transform howmany real signals, which lie one after the other in the input buffer,
+     * and their half spectra one after the other in the output buffer.
+     */
+    private static final class Plan {
+        final DoublePointer in;
+        final DoublePointer out;
+        final fftw_plan plan;
+        final double[] buffer;
+        // set by releasePlans, possibly from another thread
+        volatile boolean destroyed;
+
+        Plan(int n, boolean real, int howmany) {
+            final int bins = real ? n / 2 + 1 : n;
+            synchronized (PLANNER_LOCK) {
+                load();
+                // measuring overwrites the buffers, they are only filled after planning
+                in = real ? fftw_alloc_real((long) howmany * n) : fftw_alloc_complex(n);
+                out = fftw_alloc_complex((long) howmany * bins);
+                if (howmany > 1) {
+                    if (threadsInitialized) fftw_plan_with_nthreads(threads);
+                    plan = fftw_plan_many_dft_r2c(1, new int[]{n}, howmany,
+                            in, (int[]) null, 1, n,
+                            out, (int[]) null, 1, bins, plannerFlags);
+                    if (threadsInitialized) fftw_plan_with_nthreads(1);
+                } else {
+                    plan = real ? fftw_plan_dft_r2c_1d(n, in, out, plannerFlags)
+                            : fftw_plan_dft_1d(n, in, out, FFTW_FORWARD, plannerFlags);
+                }
+                if (plannerFlags == (int) FFTW_MEASURE) wisdomChanged = true;
+                ALL_PLANS.add(this);
+            }
+            buffer = new double[2 * howmany * bins];
+        }
+
+        /**
+         * Needs the planner lock.
+         */
+        void destroy() {
+            destroyed = true;
+            fftw_destroy_plan(plan);
+            fftw_free(in);
+            fftw_free(out);
         }
-        return res;
     }
 }
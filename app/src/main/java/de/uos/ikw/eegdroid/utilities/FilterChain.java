@@ -0,0 +1,49 @@
+package de.uos.ikw.eegdroid.utilities;
+
+/**
+ * Cascade of {@link BiquadFilter}s applied in place to blocks of multichannel samples.
+ * <p>
+ * The stages can be replaced while data is streaming: {@link #setStages} swaps the whole
+ * cascade at once, so the processing thread always sees either the old or the new chain.
+ */
+public class FilterChain {
+
+    private final int nChannels;
+    private volatile BiquadFilter[] stages = new BiquadFilter[0];
+
+    public FilterChain(int nChannels) {
+        this.nChannels = nChannels;
+    }
+
+    /**
+     * Replaces all stages. Stages that were part of the old cascade continue with their state,
+     * new ones start fresh.
+     */
+    public void setStages(BiquadFilter... newStages) {
+        for (BiquadFilter stage : newStages) {
+            if (stage.getChannelCount() != nChannels)
+                throw new IllegalArgumentException("Filter stage has " + stage.getChannelCount()
+                        + " channels, chain has " + nChannels);
+        }
+        stages = newStages.clone();
+    }
+
+    public int size() {
+        return stages.length;
+    }
+
+    public boolean isEmpty() {
+        return stages.length == 0;
+    }
+
+    /**
+     * Runs the block through all stages in place.
+     *
+     * @param block    samples in channel-interleaved order: block[sample * nChannels + channel]
+     * @param nSamples number of samples per channel in the block
+     */
+    public void process(float[] block, int nSamples) {
+        final BiquadFilter[] current = stages;
+        for (BiquadFilter stage : current) stage.process(block, nSamples);
+    }
+}
@@ -0,0 +1,204 @@
+package de.uos.ikw.eegdroid.utilities;
+
+import java.util.Arrays;
+
+/**
+ * Adaptive Rice (Golomb power of two) coding of signed ints.
+ * <p>
+ * A block of values is mapped to unsigned ints by zigzag coding (0, -1, 1, -2, ... -> 0, 1, 2, 3, ...)
+ * and written with the parameter k that gives the shortest code for that block:
+ * 5 bits k, then per value the quotient v >>> k in unary (ones terminated by a zero) followed by
+ * the k low bits. Quotients of ESCAPE or more are written as ESCAPE ones followed by the raw
+ * 32 bit value, which bounds the code length of outliers.
+ */
+public class RiceCodec {
+
+    public static final int MAX_K = 30;
+    private static final int ESCAPE = 32;
+
+    public static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    public static int unzigzag(int u) {
+        return (u >>> 1) ^ -(u & 1);
+    }
+
+    /**
+     * @return number of bits needed to encode the values with parameter k, without the 5 bit header
+     */
+    public static long encodedBits(int[] values, int offset, int stride, int n, int k) {
+        long bits = 0;
+        for (int i = 0, p = offset; i < n; i++, p += stride) {
+            final long q = (zigzag(values[p]) & 0xffffffffL) >>> k;
+            bits += q < ESCAPE ? q + 1 + k : ESCAPE + 32;
+        }
+        return bits;
+    }
+
+    /**
+     * @return the parameter k with the shortest code for the values
+     */
+    public static int optimalK(int[] values, int offset, int stride, int n) {
+        // start at the estimate from the mean magnitude and walk to the minimum
+        long sum = 0;
+        for (int i = 0, p = offset; i < n; i++, p += stride) sum += zigzag(values[p]) & 0xffffffffL;
+        int k = 0;
+        while (k < MAX_K && ((long) n << (k + 1)) < sum) k++;
+        long best = encodedBits(values, offset, stride, n, k);
+        while (k > 0) {
+            final long bits = encodedBits(values, offset, stride, n, k - 1);
+            if (bits >= best) break;
+            best = bits;
+            k--;
+        }
+        while (k < MAX_K) {
+            final long bits = encodedBits(values, offset, stride, n, k + 1);
+            if (bits >= best) break;
+            best = bits;
+            k++;
+        }
+        return k;
+    }
+
+    /**
+     * Writes n values, read from values[offset + i * stride], with the optimal parameter.
+     */
+    public static void encode(int[] values, int offset, int stride, int n, BitWriter out) {
+        final int k = optimalK(values, offset, stride, n);
+        out.write(k, 5);
+        for (int i = 0, p = offset; i < n; i++, p += stride) {
+            final int u = zigzag(values[p]);
+            // unsigned, with k = 0 codes of 2^31 and more would look negative
+            final long q = (u & 0xffffffffL) >>> k;
+            if (q < ESCAPE) {
+                out.writeUnary((int) q);
+                out.write(u, k);
+            } else {
+                out.writeOnes(ESCAPE);
+                out.write(u, 32);
+            }
+        }
+    }
+
+    /**
+     * Reads n values written by {@link #encode} into values[offset + i * stride].
+     */
+    public static void decode(BitReader in, int[] values, int offset, int stride, int n) {
+        final int k = in.read(5);
+        for (int i = 0, p = offset; i < n; i++, p += stride) {
+            final int q = in.readUnary(ESCAPE);
+            final int u = q < ESCAPE ? (q << k) | in.read(k) : in.read(32);
+            values[p] = unzigzag(u);
+        }
+    }
+
+    /**
+     * Collects bits MSB first in a growing byte array that is reused across blocks.
+     */
+    public static class BitWriter {
+        private byte[] bytes;
+        private int length;
+        private long acc;
+        private int accBits;
+
+        public BitWriter(int initialCapacity) {
+            bytes = new byte[Math.max(16, initialCapacity)];
+        }
+
+        /**
+         * Writes the n (0..32) low bits of value.
+         */
+        public void write(int value, int n) {
+            if (n == 0) return;
+            acc = (acc << n) | (value & (0xffffffffL >>> (32 - n)));
+            accBits += n;
+            drain();
+        }
+
+        public void writeUnary(int q) {
+            writeOnes(q);
+            write(0, 1);
+        }
+
+        public void writeOnes(int n) {
+            while (n > 0) {
+                final int chunk = Math.min(n, 32);
+                write(-1, chunk);
+                n -= chunk;
+            }
+        }
+
+        /**
+         * Pads the last byte with zeros.
+         */
+        public void align() {
+            if (accBits > 0) write(0, 8 - accBits);
+        }
+
+        public byte[] bytes() {
+            return bytes;
+        }
+
+        /**
+         * @return number of complete bytes written, call {@link #align} first
+         */
+        public int length() {
+            return length;
+        }
+
+        public void reset() {
+            length = 0;
+            acc = 0;
+            accBits = 0;
+        }
+
+        private void drain() {
+            while (accBits >= 8) {
+                if (length == bytes.length) bytes = Arrays.copyOf(bytes, length * 2);
+                accBits -= 8;
+                bytes[length++] = (byte) (acc >>> accBits);
+            }
+        }
+    }
+
+    /**
+     * Reads bits MSB first from a byte array.
+     */
+    public static class BitReader {
+        private final byte[] bytes;
+        private final int end;
+        private int position;
+        private long acc;
+        private int accBits;
+
+        public BitReader(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        /**
+         * Reads n (0..32) bits.
+         */
+        public int read(int n) {
+            if (n == 0) return 0;
+            while (accBits < n) {
+                if (position >= end) throw new IllegalStateException("Read past the end of the block");
+                acc = (acc << 8) | (bytes[position++] & 0xff);
+                accBits += 8;
+            }
+            accBits -= n;
+            return (int) ((acc >>> accBits) & (0xffffffffL >>> (32 - n)));
+        }
+
+        /**
+         * @return number of ones before the terminating zero, or max if max ones were read
+         */
+        public int readUnary(int max) {
+            int q = 0;
+            while (q < max && read(1) == 1) q++;
+            return q;
+        }
+    }
+}
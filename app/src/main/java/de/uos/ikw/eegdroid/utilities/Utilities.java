@@ -33,31 +33,44 @@ public class Utilities {
         int minFr = (int) Math.ceil(1 / hertzPerVal);
         double[][] spectogramData = new double[frCount][windowSteps + 1];
         double[] fftData = new double[width];
-        Complex[] fftRes;
-
-        for (int count = 0, offset = 0; count <= windowSteps; count++, offset += windowStepSize) {
-            if (width >= 0) System.arraycopy(eegData, offset, fftData, 0, width);
-            switch (window) {
-                case "hanning":
-                    applyHanningWindow(fftData);
-                    break;
-                case "hamming":
-                    applyHammingWindow(fftData);
-                    break;
-                default:
-                    break;
+        // the signal is real, only the first half of the spectrum is needed
+        final int bins = width / 2 + 1;
+        // FFTW transforms the windows in batches, gathered one after the other
+        final int batch = fftw ? Math.min(FFTWWrapper.BATCH_SIZE, windowSteps + 1) : 1;
+        double[] frames = fftw ? new double[batch * width] : null;
+        double[] magnitudes = new double[batch * bins];
+        double[] fftRe = fftw ? null : new double[bins];
+        double[] fftIm = fftw ? null : new double[bins];
+
+        for (int first = 0; first <= windowSteps; first += batch) {
+            final int count = Math.min(batch, windowSteps + 1 - first);
+            for (int k = 0; k < count; k++) {
+                System.arraycopy(eegData, (first + k) * windowStepSize, fftData, 0, width);
+                switch (window) {
+                    case "hanning":
+                        applyHanningWindow(fftData);
+                        break;
+                    case "hamming":
+                        applyHammingWindow(fftData);
+                        break;
+                    default:
+                        break;
+                }
+                if (mean) subtractMean(fftData);
+                if (fftw) {
+                    System.arraycopy(fftData, 0, frames, k * width, width);
+                } else {
+                    CustomFFT.rfft(fftData, fftRe, fftIm);
+                    for (int i = minFr; i < frCount; i++) {
+                        magnitudes[i] = Math.sqrt(fftRe[i] * fftRe[i] + fftIm[i] * fftIm[i]);
+                    }
+                }
             }
-            if (mean) subtractMean(fftData);
-            if (fftw) {
-                fftRes = FFTWWrapper.fftw(fftData);
-            } else {
-                fftRes = CustomFFT.fft(fftData);
-            }
-            for (int i = 0; i < width; i++) {
-                fftData[i] = fftRes[i].abs();
-            }
-            for (int i = minFr; i < frCount; i++) {
-                spectogramData[frCount - 1 - i][count] = fftData[i];
+            if (fftw) FFTWWrapper.fftwMagnitudes(frames, count, width, magnitudes);
+            for (int k = 0; k < count; k++) {
+                for (int i = minFr; i < frCount; i++) {
+                    spectogramData[frCount - 1 - i][first + k] = magnitudes[k * bins + i];
+                }
             }
         }
         return spectogramBitMap(spectogramData);
@@ -236,11 +249,13 @@ public class Utilities {
     public static void testFFTs() {
         int[] freqs = {10};
         double[] sines = genSinWaves(freqs, 254, 1);
-        Complex[] customFFTRes = CustomFFT.fft(sines);
+        double[] customRe = sines.clone();
+        double[] customIm = new double[sines.length];
+        CustomFFT.fft(customRe, customIm);
         Complex[] FFTWRes = FFTWWrapper.fftw(sines);
         // compute magnitude
         for (int i = 0; i < 45; i++) {
-            System.out.println("CUSTOM " + i + ":" + String.format("%4.3f", customFFTRes[i].abs()));
+            System.out.println("CUSTOM " + i + ":" + String.format("%4.3f", Math.hypot(customRe[i], customIm[i])));
             System.out.println("FFTW " + i + ":" + String.format("%4.3f", FFTWRes[i].abs()));
         }
     }
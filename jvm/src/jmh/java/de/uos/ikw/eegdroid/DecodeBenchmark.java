@@ -0,0 +1,59 @@
+package de.uos.ikw.eegdroid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packets per second through {@link TraumschreiberService#decode}, replaying a simulated stream
+ * including its encoding updates. Run with -Pjmh.profilers=gc for the bytes allocated per packet
+ * (gc.alloc.rate.norm), which should be 0.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DecodeBenchmark {
+
+    private static final int N_PACKETS = 4096;
+
+    @Param({"10", "14", "16"})
+    public int bits;
+    private TraumschreiberService decoder;
+    private final List<UUID> uuids = new ArrayList<>();
+    private final List<byte[]> packets = new ArrayList<>();
+    private final int[] decoded = new int[TraumschreiberService.DECODED_PKG_SIZE];
+    private long nanos;
+    private int next;
+
+    @Setup
+    public void setup() {
+        final TraumschreiberSimulator[] simulator = new TraumschreiberSimulator[1];
+        simulator[0] = new TraumschreiberSimulator((characteristicId, data, arrivalNanos) -> {
+            uuids.add(characteristicId);
+            packets.add(data.clone());
+            if (packets.size() == N_PACKETS) simulator[0].stop();
+        }, bits, 0, 1);
+        simulator[0].run();
+        decoder = new TraumschreiberService();
+        decoder.setBitsPerCh(bits);
+        decoder.setNotifyingUUID(TraumschreiberSimulator.characteristicIndex(bits));
+    }
+
+    @Benchmark
+    public int decode() {
+        final int i = next;
+        next = i + 1 == N_PACKETS ? 0 : i + 1;
+        nanos += 4_000_000;
+        return decoder.decode(packets.get(i), uuids.get(i), decoded, nanos);
+    }
+}
@@ -0,0 +1,168 @@
+package de.uos.ikw.eegdroid;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hand-off of one decoded package from the bluetooth thread to the thread that processes it.
+ * <ul>
+ * <li>broadcast: the path the app used before, as far as it exists outside Android. Every
+ * package is put into new extras, flattened into a parcel, queued to a looper thread and
+ * unflattened into new extras there, as sendBroadcast did with the Intent. The binder
+ * transaction and the receiver lookup of the system are not included.</li>
+ * <li>dispatcher: {@link SampleDispatcher} copies the package into its preallocated
+ * {@link SampleRingBuffer} and wakes its consumer thread only if it sleeps.</li>
+ * </ul>
+ * Every operation queues the packages of one connection event (burst) and waits until the
+ * consumer has processed them. So the consumer sleeps between events as it does at 250 Hz, and
+ * the time per operation is the latency of the hand-off including the wake-up. The consumer
+ * thread spends consumerCpuNanos / packages of CPU time per package. Add -Pjmh.profilers=gc for
+ * the bytes allocated per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DispatchBenchmark {
+
+    private static final int SLOT_SIZE = TraumschreiberService.DECODED_PKG_SIZE;
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    @Param({"broadcast", "dispatcher"})
+    public String path;
+    // packages per connection event
+    @Param({"1", "4"})
+    public int burst;
+    private final int[] pkg = new int[SLOT_SIZE];
+    // packages handed off and processed so far
+    private long produced;
+    private volatile long consumed;
+    private SampleDispatcher dispatcher;
+    private BlockingQueue<ByteBuffer> looperQueue;
+    private Thread looper;
+    private volatile Thread consumer;
+    private long iterationStartCpu;
+    private long iterationStartProduced;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        if (path.equals("dispatcher")) {
+            dispatcher = new SampleDispatcher("SampleDispatcher", new SampleRingBuffer(1024, SLOT_SIZE),
+                    (data, length) -> {
+                        if (consumer == null) consumer = Thread.currentThread();
+                        consumed = consumed + 1;
+                    });
+        } else {
+            looperQueue = new LinkedBlockingQueue<>();
+            looper = new Thread(this::loop, "Looper");
+            looper.start();
+        }
+        // the consumer announces itself with the first package
+        handOff();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        if (dispatcher != null) dispatcher.stop();
+        if (looper != null) {
+            looper.interrupt();
+            looper.join();
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void startIteration() {
+        iterationStartCpu = THREADS.getThreadCpuTime(consumer.getId());
+        iterationStartProduced = produced;
+    }
+
+    @TearDown(Level.Iteration)
+    public void endIteration(Cpu cpu) {
+        final long packages = produced - iterationStartProduced;
+        final long nanos = THREADS.getThreadCpuTime(consumer.getId()) - iterationStartCpu;
+        // summed over the iterations by JMH, the ratio stays the mean
+        cpu.consumerCpuNanos = nanos;
+        cpu.packages = packages;
+    }
+
+    @Benchmark
+    public void handOff() {
+        for (int i = 0; i < burst; i++) {
+            pkg[0] = (int) produced;
+            if (dispatcher != null) {
+                dispatcher.offer(pkg, SLOT_SIZE);
+            } else {
+                final Map<String, Object> extras = new HashMap<>();
+                extras.put("address", ADDRESS);
+                extras.put("data", pkg.clone());
+                looperQueue.offer(marshall(extras));
+            }
+            produced++;
+        }
+        while (consumed != produced) Thread.onSpinWait();
+    }
+
+    private void loop() {
+        consumer = Thread.currentThread();
+        try {
+            while (true) {
+                final Map<String, Object> extras = unmarshall(looperQueue.take());
+                final int[] data = (int[]) extras.get("data");
+                if (data.length == SLOT_SIZE) consumed = consumed + 1;
+            }
+        } catch (InterruptedException e) {
+            // trial finished
+        }
+    }
+
+    private static ByteBuffer marshall(Map<String, Object> extras) {
+        final byte[] address = ((String) extras.get("address")).getBytes(StandardCharsets.UTF_8);
+        final int[] data = (int[]) extras.get("data");
+        final ByteBuffer parcel = ByteBuffer.allocate(8 + address.length + 4 * data.length);
+        parcel.putInt(address.length).put(address);
+        parcel.putInt(data.length);
+        for (int value : data) parcel.putInt(value);
+        parcel.flip();
+        return parcel;
+    }
+
+    private static Map<String, Object> unmarshall(ByteBuffer parcel) {
+        final byte[] address = new byte[parcel.getInt()];
+        parcel.get(address);
+        final int[] data = new int[parcel.getInt()];
+        for (int i = 0; i < data.length; i++) data[i] = parcel.getInt();
+        final Map<String, Object> extras = new HashMap<>();
+        extras.put("address", new String(address, StandardCharsets.UTF_8));
+        extras.put("data", data);
+        return extras;
+    }
+
+    /**
+     * CPU time of the consumer thread and the packages it processed, reported next to the latency.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Cpu {
+        public long consumerCpuNanos;
+        public long packages;
+    }
+}
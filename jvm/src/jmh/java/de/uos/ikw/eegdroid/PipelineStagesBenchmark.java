@@ -0,0 +1,133 @@
+package de.uos.ikw.eegdroid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import de.uos.ikw.eegdroid.utilities.BiquadFilter;
+import de.uos.ikw.eegdroid.utilities.FilterChain;
+
+/**
+ * Throughput ceiling of each stage a package passes on its way from the bluetooth callback to
+ * the recording, in packages per second of one device: decoding, the in-app filters (all stages
+ * the filter menu offers) and the recording writer (rows until they are on disk). Each stage
+ * runs flat out on simulated data; the smallest ceiling divided by the packet rate of a device
+ * is the number of devices the pipeline can sustain.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PipelineStagesBenchmark {
+
+    private static final int N_CHANNELS = TraumschreiberService.nChannels;
+    private static final float SAMPLING_RATE = 250;
+    private static final int N_PACKETS = 4096;
+    private static final int ROWS = 16384;
+
+    @State(Scope.Thread)
+    public static class Decode {
+        private final List<UUID> uuids = new ArrayList<>();
+        private final List<byte[]> packets = new ArrayList<>();
+        private final int[] decoded = new int[TraumschreiberService.DECODED_PKG_SIZE];
+        private TraumschreiberService decoder;
+        private long nanos;
+        private int next;
+
+        @Setup
+        public void setup() {
+            final TraumschreiberSimulator[] simulator = new TraumschreiberSimulator[1];
+            simulator[0] = new TraumschreiberSimulator((characteristicId, data, arrivalNanos) -> {
+                uuids.add(characteristicId);
+                packets.add(data.clone());
+                if (packets.size() == N_PACKETS) simulator[0].stop();
+            }, 16, 0, 1);
+            simulator[0].run();
+            decoder = new TraumschreiberService();
+            decoder.setBitsPerCh(16);
+            decoder.setNotifyingUUID(TraumschreiberSimulator.characteristicIndex(16));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Filter {
+        private final FilterChain chain = new FilterChain(N_CHANNELS);
+        private final float[] sample = new float[N_CHANNELS];
+
+        @Setup
+        public void setup() {
+            final List<BiquadFilter> stages = new ArrayList<>();
+            stages.add(BiquadFilter.dcBlocker(N_CHANNELS, 0.999));
+            stages.add(BiquadFilter.notch(N_CHANNELS, SAMPLING_RATE, 50, 30));
+            stages.add(BiquadFilter.notch(N_CHANNELS, SAMPLING_RATE, 60, 30));
+            stages.addAll(Arrays.asList(BiquadFilter.bandPass(N_CHANNELS, SAMPLING_RATE, 0.5, 40)));
+            chain.setStages(stages.toArray(new BiquadFilter[0]));
+            for (int i = 0; i < N_CHANNELS; i++) sample[i] = i * 10;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Write {
+        @Param({"csv", "binary"})
+        public String format;
+        private final float[] sample = new float[N_CHANNELS];
+        private File file;
+        private RecordingWriter writer;
+
+        @Setup(Level.Invocation)
+        public void open() throws IOException {
+            for (int i = 0; i < N_CHANNELS; i++) sample[i] = i * 12.5f - 100;
+            file = File.createTempFile("stages", format.equals("csv") ? ".csv" : SessionFile.EXTENSION);
+            writer = format.equals("csv")
+                    ? new RecordingWriter(file, "time\n", N_CHANNELS)
+                    : new RecordingWriter(file, "time\n", N_CHANNELS, SAMPLING_RATE, 16, 0.3725f);
+        }
+
+        @TearDown(Level.Invocation)
+        public void delete() {
+            if (!file.delete()) file.deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    public int decode(Decode state) {
+        final int i = state.next;
+        state.next = i + 1 == N_PACKETS ? 0 : i + 1;
+        state.nanos += 4_000_000;
+        return state.decoder.decode(state.packets.get(i), state.uuids.get(i), state.decoded, state.nanos);
+    }
+
+    @Benchmark
+    public float[] filter(Filter state) {
+        state.chain.process(state.sample, 1);
+        return state.sample;
+    }
+
+    /**
+     * Queues ROWS rows and waits until the writer thread has written them.
+     */
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long write(Write state) throws IOException {
+        final RecordingWriter writer = state.writer;
+        for (int r = 0; r < ROWS; r++) {
+            writer.writeRow(r * 4.0, r * 4.0, state.sample, r & 15, 0, 0, SAMPLING_RATE);
+        }
+        writer.close();
+        return writer.getRowsWritten();
+    }
+}
@@ -0,0 +1,64 @@
+package de.uos.ikw.eegdroid.utilities;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to unpack the channel payload of one notification, legacy per-width decoders (including
+ * the copy of the payload they need) against {@link BitUnpacker}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BitUnpackerBenchmark {
+
+    private static final int N_CHANNELS = 24;
+    // distinct packets so that the branches of the legacy decoders are not perfectly predicted
+    private static final int N_PACKETS = 1024;
+
+    @Param({"10", "14", "16"})
+    public int bits;
+    private BitUnpacker unpacker;
+    private byte[][] packets;
+    private final int[] out = new int[N_CHANNELS];
+    private int next;
+
+    @Setup
+    public void setup() {
+        unpacker = new BitUnpacker(bits, N_CHANNELS);
+        packets = new byte[N_PACKETS][1 + unpacker.getPayloadBytes()];
+        final Random random = new Random(1);
+        for (byte[] packet : packets) random.nextBytes(packet);
+    }
+
+    @Benchmark
+    public int[] legacy() {
+        final byte[] packet = packets[next++ & (N_PACKETS - 1)];
+        final byte[] payload = Arrays.copyOfRange(packet, 1, packet.length);
+        switch (bits) {
+            case 10:
+                return LegacyUnpacking.bytesTo10bitInts(payload);
+            case 14:
+                return LegacyUnpacking.bytesTo14bitInts(payload);
+            default:
+                return LegacyUnpacking.bytesTo16bitInts(payload);
+        }
+    }
+
+    @Benchmark
+    public void bitUnpacker(Blackhole blackhole) {
+        unpacker.unpack(packets[next++ & (N_PACKETS - 1)], 1, out, 0);
+        blackhole.consume(out);
+    }
+}
@@ -0,0 +1,61 @@
+package de.uos.ikw.eegdroid.utilities;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time per transform of {@link CustomFFT}, complex in place and real to half spectrum, for power
+ * of two lengths and for spectrogram widths of k * 225 points. FFTW needs the native library of
+ * the app and is not part of this build.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CustomFFTBenchmark {
+
+    @Param({"256", "450", "512", "1024", "1125", "2048", "2250", "4096", "8192"})
+    public int n;
+    private double[] x;
+    private double[] re;
+    private double[] im;
+    private double[] halfRe;
+    private double[] halfIm;
+
+    @Setup
+    public void setup() {
+        x = new double[n];
+        final Random random = new Random(0);
+        for (int i = 0; i < n; i++) x[i] = random.nextGaussian();
+        re = new double[n];
+        im = new double[n];
+        halfRe = new double[n / 2 + 1];
+        halfIm = new double[n / 2 + 1];
+    }
+
+    @Benchmark
+    public void complex(Blackhole blackhole) {
+        System.arraycopy(x, 0, re, 0, n);
+        Arrays.fill(im, 0);
+        CustomFFT.fft(re, im);
+        blackhole.consume(re);
+        blackhole.consume(im);
+    }
+
+    @Benchmark
+    public void real(Blackhole blackhole) {
+        CustomFFT.rfft(x, halfRe, halfIm);
+        blackhole.consume(halfRe);
+        blackhole.consume(halfIm);
+    }
+}
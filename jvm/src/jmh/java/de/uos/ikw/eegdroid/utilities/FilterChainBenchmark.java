@@ -0,0 +1,58 @@
+package de.uos.ikw.eegdroid.utilities;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to filter one package of all channels, as the session does for every sample, with a
+ * cascade of 1 to 8 biquad stages. The filter menu offers up to 5 stages at once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FilterChainBenchmark {
+
+    private static final int N_CHANNELS = 24;
+    private static final float SAMPLING_RATE = 250;
+    private static final int N_SAMPLES = 1024;
+
+    @Param({"1", "2", "3", "4", "5", "6", "7", "8"})
+    public int stages;
+    private FilterChain chain;
+    private float[][] samples;
+    private final float[] sample = new float[N_CHANNELS];
+    private int next;
+
+    @Setup
+    public void setup() {
+        final BiquadFilter[] cascade = new BiquadFilter[stages];
+        for (int i = 0; i < stages; i++) {
+            // alternate the kinds of stages the filter menu builds
+            cascade[i] = i % 2 == 0 ? BiquadFilter.notch(N_CHANNELS, SAMPLING_RATE, 50, 30)
+                    : BiquadFilter.lowPass(N_CHANNELS, SAMPLING_RATE, 40);
+        }
+        chain = new FilterChain(N_CHANNELS);
+        chain.setStages(cascade);
+        samples = new float[N_SAMPLES][N_CHANNELS];
+        final Random random = new Random(1);
+        for (float[] s : samples) {
+            for (int ch = 0; ch < N_CHANNELS; ch++) s[ch] = (float) random.nextGaussian() * 50;
+        }
+    }
+
+    @Benchmark
+    public float[] process() {
+        System.arraycopy(samples[next++ & (N_SAMPLES - 1)], 0, sample, 0, N_CHANNELS);
+        chain.process(sample, 1);
+        return sample;
+    }
+}
@@ -0,0 +1,48 @@
+package android.util;
+
+/**
+ * Console replacement for the Android logger, so that the app classes logging through it run
+ * on a plain JVM. Verbose and debug messages are only printed if the system property
+ * "eegdroid.verbose" is set.
+ */
+public final class Log {
+
+    private static final boolean VERBOSE = Boolean.getBoolean("eegdroid.verbose");
+
+    private Log() {
+    }
+
+    public static int v(String tag, String msg) {
+        return VERBOSE ? print("V", tag, msg, null) : 0;
+    }
+
+    public static int d(String tag, String msg) {
+        return VERBOSE ? print("D", tag, msg, null) : 0;
+    }
+
+    public static int i(String tag, String msg) {
+        return print("I", tag, msg, null);
+    }
+
+    public static int w(String tag, String msg) {
+        return print("W", tag, msg, null);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return print("W", tag, msg, tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return print("E", tag, msg, null);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return print("E", tag, msg, tr);
+    }
+
+    private static int print(String level, String tag, String msg, Throwable tr) {
+        System.err.println(level + "/" + tag + ": " + msg);
+        if (tr != null) tr.printStackTrace();
+        return 0;
+    }
+}
@@ -0,0 +1,90 @@
+package de.uos.ikw.eegdroid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Feeds ClockSync the arrivals of a simulated hour-long stream: a device clock that is off by
+ * 50 ppm and drifts further, packages delivered in bursts per BLE connection event with random
+ * latency, lost packages and a few stalls that release a backlog.
+ */
+public class ClockSyncTest {
+
+    private static final double RATE = 250;
+    private static final double HOUR = 3600;
+    private static final double CONNECTION_INTERVAL = 0.0075;
+    // the nominal period is used during the first seconds, checked from here on
+    private static final double SETTLE_SECONDS = 60;
+
+    @Test
+    public void followsDriftingClockThroughJitter() {
+        final Stats stats = simulate(0, 0);
+        assertTrue("rms " + stats.rms, stats.rms < 0.0004);
+        assertTrue("max " + stats.max, stats.max < 0.002);
+        // 50 ppm plus 20 ppm drift at the end of the hour
+        assertEquals(RATE * (1 + 70e-6), stats.rate, RATE * 2e-6);
+    }
+
+    @Test
+    public void toleratesLossAndStalls() {
+        final Stats stats = simulate(0.05, 20);
+        assertTrue("rms " + stats.rms, stats.rms < 0.0004);
+        // a stall releases a backlog the fit only partly follows
+        assertTrue("max " + stats.max, stats.max < 0.005);
+    }
+
+    /**
+     * @param loss   share of lost packages
+     * @param stalls number of 300 ms connection stalls per hour
+     */
+    private static Stats simulate(double loss, int stalls) {
+        final Random random = new Random(42);
+        final ClockSync sync = new ClockSync(RATE);
+        final long samples = (long) (HOUR * RATE);
+        final double latency = 0.012;
+        double sum = 0;
+        double sumSquares = 0;
+        double max = 0;
+        long n = 0;
+        double stallUntil = -1;
+        double sampled = 0;
+        // the errors are taken relative to the mean latency, which stays in the timestamps
+        final double[] errors = new double[(int) samples];
+        for (long i = 0; i < samples; i++) {
+            // device clock: 50 ppm fast, drifting by another 20 ppm over the hour
+            sampled += 1 / (RATE * (1 + 50e-6 + 20e-6 * sampled / HOUR));
+            if (stalls > 0 && random.nextDouble() < stalls / (HOUR * RATE)) stallUntil = sampled + 0.3;
+            if (random.nextDouble() < loss) continue;
+            // sent with the next connection event, received a random latency later
+            double arrival = Math.ceil(sampled / CONNECTION_INTERVAL) * CONNECTION_INTERVAL
+                    + latency + random.nextDouble() * 0.004;
+            if (arrival < stallUntil) arrival = stallUntil + random.nextDouble() * 0.002;
+            final double timestamp = sync.update(i, 1000 + arrival);
+            if (sampled < SETTLE_SECONDS) continue;
+            final double error = timestamp - 1000 - sampled;
+            errors[(int) n++] = error;
+            sum += error;
+        }
+        final double mean = sum / n;
+        for (int i = 0; i < n; i++) {
+            final double e = errors[i] - mean;
+            sumSquares += e * e;
+            max = Math.max(max, Math.abs(e));
+        }
+        final Stats stats = new Stats();
+        stats.rms = Math.sqrt(sumSquares / n);
+        stats.max = max;
+        stats.rate = sync.getRate();
+        return stats;
+    }
+
+    private static class Stats {
+        double rms;
+        double max;
+        double rate;
+    }
+}
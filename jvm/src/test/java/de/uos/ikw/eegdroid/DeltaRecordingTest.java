@@ -0,0 +1,123 @@
+package de.uos.ikw.eegdroid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Records simulated packets while decoding them and replays the recording.
+ */
+public class DeltaRecordingTest {
+
+    private static final int N_CHANNELS = TraumschreiberService.nChannels;
+    private static final byte[] CONFIG_14BIT = {(byte) 0b11011001, 0, 0, 35, 0, -128, 0, 0};
+    private static final byte[] CONFIG_10BIT = {(byte) 0b11001001, 0, 0, 35, 0, -128, 0, 0};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replayReproducesTheDecodedSignal() throws Exception {
+        final File file = folder.newFile("session" + DeltaRecording.EXTENSION);
+        final List<int[]> expected = record(file, 16384, 3000);
+        final List<int[]> replayed = replay(file);
+        assertEquals(expected.size(), replayed.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals("package " + i, expected.get(i), replayed.get(i));
+        }
+
+        final File csv = folder.newFile("session.csv");
+        DeltaRecording.exportCsv(file, csv);
+        final List<String> lines = Files.readAllLines(csv.toPath());
+        assertEquals(expected.size() + 1, lines.size());
+        final String[] last = lines.get(lines.size() - 1).split(",");
+        assertEquals(N_CHANNELS + 3, last.length);
+        assertEquals((expected.size() - 1) * 4.0, Double.parseDouble(last[0]), 1e-6);
+        assertEquals(expected.get(expected.size() - 1)[0], Integer.parseInt(last[N_CHANNELS + 1]));
+    }
+
+    /**
+     * A queue overflow loses the deltas of some packages; the recording resynchronizes with a
+     * state record, so every package that was written still replays exactly.
+     */
+    @Test
+    public void replayAfterQueueOverflowsStaysExact() throws Exception {
+        final File file = folder.newFile("overflow" + DeltaRecording.EXTENSION);
+        final List<int[]> expected = record(file, 4, 0);
+        final List<int[]> replayed = replay(file);
+        assertTrue(replayed.size() < expected.size());
+        int e = 0;
+        for (int i = 0; i < replayed.size(); i++) {
+            while (e < expected.size() && !Arrays.equals(expected.get(e), replayed.get(i))) e++;
+            assertTrue("package " + i + " not in the decoded signal", e < expected.size());
+            e++;
+        }
+    }
+
+    /**
+     * Decodes simulated packets with a recorder attached: c0de updates, a switch to 14 and then
+     * to 10 bits. With minPackets 0 the simulator runs until the queue overflowed a few times.
+     *
+     * @return header and un-centered signal after every package, as returned by the reader
+     */
+    private static List<int[]> record(File file, int queueCapacity, int minPackets) throws Exception {
+        final TraumschreiberService decoder = new TraumschreiberService();
+        decoder.setResolution(16, TraumschreiberSimulator.characteristicIndex(16));
+        final DeltaRecorder recorder = new DeltaRecorder(file, N_CHANNELS, 250, 1, "test",
+                queueCapacity);
+        decoder.setDeltaRecorder(recorder);
+        final List<int[]> expected = new ArrayList<>();
+        final int[] decoded = new int[TraumschreiberService.DECODED_PKG_SIZE];
+        final TraumschreiberSimulator[] simulator = new TraumschreiberSimulator[1];
+        simulator[0] = new TraumschreiberSimulator((characteristicId, data, arrivalNanos) -> {
+            decoder.decode(data, characteristicId, decoded, arrivalNanos);
+            if (characteristicId.equals(TraumschreiberService.configUUID)) {
+                final int bits = simulator[0].getBitsPerCh();
+                decoder.setResolution(bits, TraumschreiberSimulator.characteristicIndex(bits));
+            } else if (characteristicId.equals(decoder.getNotifyingUUID())) {
+                final int[] values = new int[N_CHANNELS + 2];
+                values[0] = (data[0] >> 4) & 0x0f;
+                values[1] = data[0] & 0x0f;
+                System.arraycopy(decoder.getState().decodedSignal, 0, values, 2, N_CHANNELS);
+                expected.add(values);
+            }
+            final long sent = simulator[0].getPacketsSent();
+            if (sent == 1000) simulator[0].writeConfig(CONFIG_14BIT);
+            if (sent == 2000) simulator[0].writeConfig(CONFIG_10BIT);
+            final boolean done = minPackets > 0 ? sent >= minPackets
+                    : sent > 2000 && recorder.getOverflowCount() > 10 || sent >= 2_000_000;
+            if (done) simulator[0].stop();
+        }, 16, 0, 5);
+        simulator[0].setDroppedSamples(0.01f);
+        simulator[0].run();
+        decoder.setDeltaRecorder(null);
+        recorder.close();
+        assertTrue(simulator[0].getCodePacketsSent() > 1);
+        assertEquals(10, simulator[0].getBitsPerCh());
+        if (minPackets == 0) assertTrue(recorder.getOverflowCount() > 0);
+        else assertEquals(0, recorder.getOverflowCount());
+        assertEquals(file.length(), recorder.getBytesWritten());
+        return expected;
+    }
+
+    private static List<int[]> replay(File file) throws Exception {
+        final List<int[]> replayed = new ArrayList<>();
+        try (DeltaRecording.Reader reader = new DeltaRecording.Reader(file)) {
+            assertEquals(N_CHANNELS, reader.getChannelCount());
+            assertEquals("test", reader.getMetadata());
+            final int[] values = new int[N_CHANNELS + 2];
+            while (reader.next(values) > 0) replayed.add(values.clone());
+        }
+        return replayed;
+    }
+}
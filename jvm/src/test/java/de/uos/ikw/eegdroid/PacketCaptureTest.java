@@ -0,0 +1,104 @@
+package de.uos.ikw.eegdroid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+public class PacketCaptureTest {
+
+    private static final int PACKETS = 600;
+    private static final int CAPTURE_START = 300;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * A capture started in the middle of a 14 bit stream on ee61 decodes, in a fresh pipeline
+     * with the default settings, to exactly the packages the live pipeline decoded.
+     */
+    @Test
+    public void replayContinuesFromCapturedState() throws Exception {
+        final List<UUID> uuids = new ArrayList<>();
+        final List<byte[]> packets = new ArrayList<>();
+        final List<Long> nanos = new ArrayList<>();
+        generate(14, uuids, packets, nanos);
+
+        final List<int[]> live = new ArrayList<>();
+        final PacketPipeline pipeline = new PacketPipeline("live", 1024, collector(live));
+        pipeline.getDecoder().setBitsPerCh(14);
+        pipeline.getDecoder().setNotifyingUUID(1);
+        final File file = folder.newFile("capture" + PacketCapture.EXTENSION);
+        PacketCapture capture = null;
+        int dataPackets = 0;
+        int capturedData = 0;
+        for (int i = 0; i < packets.size(); i++) {
+            if (dataPackets == CAPTURE_START && capture == null) {
+                capture = new PacketCapture(file, "live");
+                pipeline.setCapture(capture);
+            }
+            pipeline.onPacket(uuids.get(i), packets.get(i), nanos.get(i));
+            if (uuids.get(i).equals(TraumschreiberService.notifyingUUIDs.get(1))) {
+                dataPackets++;
+                if (capture != null) capturedData++;
+            }
+        }
+        pipeline.setCapture(null);
+        capture.close();
+        awaitSize(live, dataPackets);
+        pipeline.stop();
+
+        final List<int[]> replayed = new ArrayList<>();
+        final PacketPipeline replayPipeline = new PacketPipeline("replay", 1024, collector(replayed));
+        final PacketReplay replay = new PacketReplay(file, replayPipeline, false);
+        replay.run();
+        awaitSize(replayed, capturedData);
+        replayPipeline.stop();
+
+        assertEquals(null, replay.getError());
+        assertEquals(capturedData, replayed.size());
+        for (int i = 0; i < capturedData; i++) {
+            assertArrayEquals("package " + i, live.get(dataPackets - capturedData + i), replayed.get(i));
+        }
+    }
+
+    // runs a simulator on the calling thread until it has sent PACKETS data packets
+    private static void generate(int bitsPerCh, List<UUID> uuids, List<byte[]> packets, List<Long> nanos) {
+        final TraumschreiberSimulator[] simulator = new TraumschreiberSimulator[1];
+        simulator[0] = new TraumschreiberSimulator((characteristicId, data, arrivalNanos) -> {
+            uuids.add(characteristicId);
+            packets.add(data.clone());
+            nanos.add(arrivalNanos);
+            if (simulator[0].getPacketsSent() + 1 == PACKETS) simulator[0].stop();
+        }, bitsPerCh, 0, 7);
+        simulator[0].run();
+    }
+
+    private static SampleDispatcher.Consumer collector(List<int[]> packages) {
+        return (data, length) -> {
+            if (length != TraumschreiberService.DECODED_PKG_SIZE) return;
+            synchronized (packages) {
+                // the replay has its own arrival times
+                packages.add(Arrays.copyOf(data, TraumschreiberService.ARRIVAL_POS));
+            }
+        };
+    }
+
+    private static void awaitSize(List<int[]> packages, int size) throws InterruptedException {
+        final long end = System.currentTimeMillis() + 10_000;
+        while (System.currentTimeMillis() < end) {
+            synchronized (packages) {
+                if (packages.size() >= size) return;
+            }
+            Thread.sleep(5);
+        }
+    }
+}
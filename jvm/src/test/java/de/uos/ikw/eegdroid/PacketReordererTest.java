@@ -0,0 +1,75 @@
+package de.uos.ikw.eegdroid;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+public class PacketReordererTest {
+
+    private static final UUID DATA = TraumschreiberService.notifyingUUIDs.get(2);
+    private static final long INTERVAL = 4_000_000L;
+    private final List<Integer> ids = new ArrayList<>();
+    private final List<Long> arrivals = new ArrayList<>();
+    private final PacketSink sink = (characteristicId, data, arrivalNanos) -> {
+        ids.add((data[0] >> 4) & 0x0f);
+        arrivals.add(arrivalNanos);
+    };
+
+    @Test
+    public void passesLatePacketAtItsPlaceWithOriginalArrivalTimes() {
+        final PacketReorderer reorderer = new PacketReorderer(sink, 3);
+        send(reorderer, 0, 10);
+        send(reorderer, 2, 20);
+        send(reorderer, 3, 30);
+        send(reorderer, 1, 40);
+        assertEquals(Arrays.asList(0, 1, 2, 3), ids);
+        assertEquals(Arrays.asList(10L, 40L, 20L, 30L), arrivals);
+        assertEquals(1, reorderer.getReordered());
+    }
+
+    @Test
+    public void releasesHeldPacketsWhenTheWindowIsFull() {
+        final PacketReorderer reorderer = new PacketReorderer(sink, 2);
+        send(reorderer, 0, INTERVAL);
+        send(reorderer, 2, 2 * INTERVAL);
+        assertEquals(Arrays.asList(0), ids);
+        send(reorderer, 3, 3 * INTERVAL);
+        assertEquals(Arrays.asList(0, 2, 3), ids);
+    }
+
+    @Test
+    public void releasesHeldPacketsAfterTheHoldTimeout() {
+        final PacketReorderer reorderer = new PacketReorderer(sink, 7, 10 * INTERVAL);
+        send(reorderer, 0, INTERVAL);
+        send(reorderer, 2, 2 * INTERVAL);
+        // the next connection event comes long after the timeout
+        send(reorderer, 3, 20 * INTERVAL);
+        assertEquals(Arrays.asList(0, 2, 3), ids);
+        assertEquals(1, reorderer.getTimeouts());
+    }
+
+    @Test
+    public void otherCharacteristicsReleaseHeldPacketsFirst() {
+        final List<UUID> order = new ArrayList<>();
+        final PacketReorderer tracing = new PacketReorderer((characteristicId, data, arrivalNanos) -> {
+            order.add(characteristicId);
+            sink.onPacket(characteristicId, data, arrivalNanos);
+        }, 3);
+        send(tracing, 0, 10);
+        send(tracing, 2, 20);
+        tracing.onPacket(TraumschreiberService.codeUUID, new byte[14], 30);
+        assertEquals(Arrays.asList(DATA, DATA, TraumschreiberService.codeUUID), order);
+        assertEquals(Arrays.asList(0, 2), ids.subList(0, 2));
+    }
+
+    private static void send(PacketReorderer reorderer, int id, long arrivalNanos) {
+        final byte[] packet = new byte[49];
+        packet[0] = (byte) (id << 4);
+        reorderer.onPacket(DATA, packet, arrivalNanos);
+    }
+}
@@ -0,0 +1,125 @@
+package de.uos.ikw.eegdroid;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+public class RecordingWriterTest {
+
+    private static final int N_CHANNELS = 24;
+    // 5 hours in ms, where a float time stamp only resolves 2 ms
+    private static final double LATE_TIME = 5 * 3600 * 1000.0;
+    private static final int ROWS = 1000;
+    private static final float MICRO_VOLTS_PER_UNIT = 0.25f;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void binaryRowsKeepTimesAndSamples() throws Exception {
+        final File file = folder.newFile("session" + SessionFile.EXTENSION);
+        final RecordingWriter writer = new RecordingWriter(file, "meta\n", N_CHANNELS, 250, 16,
+                MICRO_VOLTS_PER_UNIT);
+        writeRows(writer);
+        writer.close();
+        assertEquals(file.length(), writer.getBytesWritten());
+        assertEquals(0, writer.getDroppedRows());
+
+        try (SessionFile.Reader reader = new SessionFile.Reader(file)) {
+            assertEquals(ROWS, reader.getRowCount());
+            assertEquals(MICRO_VOLTS_PER_UNIT, reader.getMicroVoltsPerUnit(), 0);
+            final double[] rows = new double[ROWS * reader.getRowSize()];
+            assertEquals(ROWS, reader.readRows(0, ROWS, rows));
+            for (int r = 0; r < ROWS; r++) {
+                final int o = r * reader.getRowSize();
+                assertEquals(time(r), rows[o], 0);
+                assertEquals(r * 4.0, rows[o + 1], 0);
+                for (int i = 0; i < N_CHANNELS; i++) {
+                    // stored in units of 0.25 uV
+                    assertEquals(channel(r, i), rows[o + 2 + i], MICRO_VOLTS_PER_UNIT / 2);
+                }
+                assertEquals(r & 15, (int) rows[o + 2 + N_CHANNELS]);
+            }
+            final double[] times = new double[ROWS];
+            final float[][] values = reader.readChannels(new int[]{5}, 1, times);
+            assertEquals(time(ROWS - 1), times[ROWS - 1], 0);
+            assertEquals(channel(ROWS - 1, 5), values[0][ROWS - 1], MICRO_VOLTS_PER_UNIT / 2);
+        }
+    }
+
+    @Test
+    public void findsRowsByTime() throws Exception {
+        final File file = folder.newFile("seek" + SessionFile.EXTENSION);
+        final RecordingWriter writer = new RecordingWriter(file, "meta\n", N_CHANNELS, 250, 16,
+                MICRO_VOLTS_PER_UNIT);
+        writeRows(writer);
+        writer.close();
+        assertFindsRows(file);
+
+        // without trailer, as after a crash, the rows are searched without the index
+        final File unclosed = folder.newFile("unclosed" + SessionFile.EXTENSION);
+        final byte[] bytes = Files.readAllBytes(file.toPath());
+        final int indexBytes = (ROWS + SessionFile.BLOCK_ROWS - 1) / SessionFile.BLOCK_ROWS * 8
+                + SessionFile.TRAILER_BYTES;
+        Files.write(unclosed.toPath(), Arrays.copyOf(bytes, bytes.length - indexBytes));
+        assertFindsRows(unclosed);
+    }
+
+    private static void assertFindsRows(File file) throws Exception {
+        try (SessionFile.Reader reader = new SessionFile.Reader(file)) {
+            assertEquals(ROWS, reader.getRowCount());
+            assertEquals(0, reader.findRow(0));
+            assertEquals(ROWS, reader.findRow(time(ROWS - 1) + 1));
+            for (int r : new int[]{0, 1, 255, 256, 257, 511, 512, 700, ROWS - 1}) {
+                assertEquals(r, reader.findRow(time(r)));
+                assertEquals(r, reader.findRow(time(r) - 1));
+            }
+            final double[] row = new double[reader.getRowSize()];
+            reader.readRows(reader.findRow(time(600) - 0.5), 1, row);
+            assertEquals(time(600), row[0], 0);
+        }
+    }
+
+    @Test
+    public void csvRowsKeepSubMillisecondTimes() throws Exception {
+        final File file = folder.newFile("session.csv");
+        // the meta data may hold non-ASCII text, e.g. a participant's name
+        final RecordingWriter writer = new RecordingWriter(file, "m\u00e9ta\n", N_CHANNELS);
+        writeRows(writer);
+        writer.close();
+        assertEquals(file.length(), writer.getBytesWritten());
+        assertEquals(0, writer.getDroppedRows());
+
+        final List<String> lines = Files.readAllLines(file.toPath());
+        assertEquals(ROWS + 1, lines.size());
+        for (int r = 0; r < ROWS; r++) {
+            final String[] columns = lines.get(r + 1).split(",");
+            assertEquals(time(r), Double.parseDouble(columns[0]), 0);
+            assertEquals(N_CHANNELS + SessionFile.EXTRA_COLUMNS, columns.length);
+        }
+    }
+
+    private static void writeRows(RecordingWriter writer) {
+        final float[] sample = new float[N_CHANNELS];
+        for (int r = 0; r < ROWS; r++) {
+            for (int i = 0; i < N_CHANNELS; i++) sample[i] = channel(r, i);
+            writer.writeRow(time(r), r * 4.0, sample, r & 15, 0, 0, 250);
+        }
+    }
+
+    private static double time(int row) {
+        return LATE_TIME + row * 4.0 + 0.125;
+    }
+
+    // every 100th row is a lost sample, the values exceed 16 bit
+    private static float channel(int row, int channel) {
+        return row % 100 == 7 ? Float.NaN : row * 40.1f - channel * 1000;
+    }
+}
@@ -0,0 +1,115 @@
+package de.uos.ikw.eegdroid;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class SequenceTrackerTest {
+
+    private static final long INTERVAL = 4_000_000L; // 250 Hz
+    private static final long[] CONNECTION_EVENTS = {7_500_000L, 15_000_000L, 30_000_000L,
+            35_000_000L, 40_000_000L, 45_000_000L, 50_000_000L};
+
+    @Test
+    public void countsGapsWithinTheIdRange() {
+        final SequenceTracker tracker = new SequenceTracker();
+        long t = 0;
+        for (int id = 0; id < 5; id++) assertEquals(0, tracker.track(id, t += INTERVAL));
+        assertEquals(3, tracker.track(8, t += 4 * INTERVAL));
+        assertEquals(3, tracker.getLost());
+    }
+
+    @Test
+    public void skippedIdArrivingRightAfterItsSuccessorIsLate() {
+        final SequenceTracker tracker = new SequenceTracker();
+        long t = 0;
+        for (int id = 0; id < 5; id++) tracker.track(id, t += INTERVAL);
+        assertEquals(1, tracker.track(6, t += INTERVAL));
+        assertEquals(SequenceTracker.LATE, tracker.track(5, t += 100_000L));
+        assertEquals(0, tracker.track(7, t += INTERVAL));
+        assertEquals(1, tracker.getLost());
+        assertEquals(1, tracker.getLate());
+    }
+
+    /**
+     * 9 to 15 lost packages put the next id just behind the expected one. Packages of a
+     * connection event arrive within microseconds, which must not make them late.
+     */
+    @Test
+    public void burstLossArrivingQuicklyIsCountedAsLoss() {
+        for (int burst = 9; burst <= 15; burst++) {
+            final SequenceTracker tracker = new SequenceTracker();
+            long t = 0;
+            for (int id = 0; id < 20; id++) tracker.track(id & 15, t += INTERVAL);
+            final int next = (20 + burst) & 15;
+            assertEquals("burst " + burst, burst, tracker.track(next, t += 100_000L));
+            assertEquals(0, tracker.getLate());
+            assertEquals(burst, tracker.getLost());
+        }
+    }
+
+    @Test
+    public void sizesGapsLongerThanTheIdRangeByTheirDuration() {
+        final SequenceTracker tracker = new SequenceTracker();
+        long t = 0;
+        for (int id = 0; id < 40; id++) tracker.track(id & 15, t += INTERVAL);
+        // 37 packages lost: ids 40..76, the next one is 77
+        assertEquals(37, tracker.track(77 & 15, t += 38 * INTERVAL));
+        assertEquals(1, tracker.getLongGaps());
+    }
+
+    /**
+     * Packages sent every INTERVAL but delivered in bursts at the next connection event, 0.1 ms
+     * apart. Dropping the first package of an event makes the gap about a connection interval
+     * long, which must not be taken for a wrap of the ids.
+     */
+    @Test
+    public void singleLossAtConnectionEventsInBurstsIsNotAWrap() {
+        for (long event : CONNECTION_EVENTS) {
+            final SequenceTracker tracker = new SequenceTracker();
+            int drops = 0;
+            long lastEvent = -1;
+            for (int i = 0; i < 5000; i++) {
+                final long sent = i * INTERVAL;
+                final long eventTime = (sent / event + 1) * event;
+                final boolean first = eventTime != lastEvent;
+                final long arrival = eventTime + (first ? 0 : (sent - (eventTime - event)) / 40);
+                lastEvent = eventTime;
+                if (first && i > 1000 && drops < 12 && i % 300 < 20) {
+                    drops++;
+                    continue;
+                }
+                tracker.track(i & 15, arrival);
+            }
+            assertEquals("event " + event, 12, tracker.getLost());
+            assertEquals("event " + event, 0, tracker.getLongGaps());
+        }
+    }
+
+    @Test
+    public void sizesLongGapsInBursts() {
+        for (long event : CONNECTION_EVENTS) {
+            for (int lostCount : new int[]{17, 20, 37, 60}) {
+                final SequenceTracker tracker = new SequenceTracker();
+                for (int i = 0; i < 3000; i++) {
+                    if (i >= 2000 && i < 2000 + lostCount) continue;
+                    final long sent = i * INTERVAL;
+                    final long eventTime = (sent / event + 1) * event;
+                    tracker.track(i & 15, eventTime + (sent - (eventTime - event)) / 40);
+                }
+                assertEquals("event " + event + ", lost " + lostCount, lostCount, tracker.getLost());
+            }
+        }
+    }
+
+    @Test
+    public void skippedIdOnlyCountsAsLateOnce() {
+        final SequenceTracker tracker = new SequenceTracker();
+        long t = 0;
+        for (int id = 0; id < 5; id++) tracker.track(id, t += INTERVAL);
+        tracker.track(6, t += INTERVAL);
+        assertEquals(SequenceTracker.LATE, tracker.track(5, t += 100_000L));
+        // the same id again is no longer missing, it starts a new gap
+        assertEquals(14, tracker.track(5, t += 100_000L));
+    }
+}
@@ -0,0 +1,52 @@
+package de.uos.ikw.eegdroid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+public class TraumschreiberSimulatorTest {
+
+    /**
+     * A config written with other bits per channel switches the characteristic and the packet
+     * layout, announced by a c0de packet; a config read is answered before the next packet.
+     */
+    @Test
+    public void configWriteSwitchesResolution() {
+        final List<UUID> uuids = new ArrayList<>();
+        final List<byte[]> packets = new ArrayList<>();
+        final TraumschreiberSimulator[] simulator = new TraumschreiberSimulator[1];
+        final byte[] config = {(byte) 0b11011001, 0, 0, 35, 0, -128, 0, 0}; // 14 bit
+        simulator[0] = new TraumschreiberSimulator((characteristicId, data, arrivalNanos) -> {
+            uuids.add(characteristicId);
+            packets.add(data.clone());
+            if (simulator[0].getPacketsSent() == 100) {
+                simulator[0].writeConfig(config);
+                simulator[0].readConfig();
+            }
+            if (simulator[0].getPacketsSent() == 200) simulator[0].stop();
+        }, 16, 0, 3);
+        simulator[0].run();
+
+        final int switched = uuids.indexOf(TraumschreiberService.configUUID);
+        assertTrue(switched > 0);
+        assertArrayEquals(config, packets.get(switched));
+        assertEquals(TraumschreiberService.codeUUID, uuids.get(switched + 1));
+        for (int i = 0; i < switched; i++) {
+            if (uuids.get(i).equals(TraumschreiberService.codeUUID)) continue;
+            assertEquals(TraumschreiberService.notifyingUUIDs.get(2), uuids.get(i));
+            assertEquals(1 + 24 * 2, packets.get(i).length);
+        }
+        for (int i = switched + 2; i < uuids.size(); i++) {
+            if (uuids.get(i).equals(TraumschreiberService.codeUUID)) continue;
+            assertEquals(TraumschreiberService.notifyingUUIDs.get(1), uuids.get(i));
+            assertEquals(1 + 24 * 14 / 8, packets.get(i).length);
+        }
+        assertEquals(14, simulator[0].getBitsPerCh());
+    }
+}
@@ -0,0 +1,80 @@
+package de.uos.ikw.eegdroid.utilities;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the table driven unpacking with the per-width decoders it replaced.
+ */
+public class BitUnpackerTest {
+
+    private static final int N_CHANNELS = 24;
+    private static final int RUNS = 100_000;
+
+    @Test
+    public void unpacks10BitLikeLegacyDecoder() {
+        compareWithLegacy(10);
+    }
+
+    @Test
+    public void unpacks14BitLikeLegacyDecoder() {
+        compareWithLegacy(14);
+    }
+
+    @Test
+    public void unpacks16BitLikeLegacyDecoder() {
+        compareWithLegacy(16);
+    }
+
+    @Test
+    public void unpacksBatchesLikeSinglePayloads() {
+        final Random random = new Random(3);
+        for (int bits : new int[]{10, 14, 16}) {
+            final BitUnpacker unpacker = new BitUnpacker(bits, N_CHANNELS);
+            final int stride = unpacker.getPayloadBytes() + 1;
+            final int nPackets = 50;
+            final byte[] packets = new byte[1 + nPackets * stride];
+            random.nextBytes(packets);
+            final int[] batch = new int[nPackets * N_CHANNELS];
+            unpacker.unpack(packets, 1, stride, nPackets, batch, 0);
+            final int[] single = new int[N_CHANNELS];
+            for (int p = 0; p < nPackets; p++) {
+                unpacker.unpack(packets, 1 + p * stride, single, 0);
+                assertArrayEquals(single, Arrays.copyOfRange(batch, p * N_CHANNELS, (p + 1) * N_CHANNELS));
+            }
+        }
+    }
+
+    private static void compareWithLegacy(int bits) {
+        final Random random = new Random(bits);
+        final BitUnpacker unpacker = new BitUnpacker(bits, N_CHANNELS);
+        // notification layout: header byte followed by the payload
+        final byte[] packet = new byte[1 + unpacker.getPayloadBytes()];
+        final int[] actual = new int[N_CHANNELS];
+        for (int run = 0; run < RUNS; run++) {
+            random.nextBytes(packet);
+            // also cover the extremes of every value, random bytes rarely produce them
+            if (run == 0) Arrays.fill(packet, (byte) 0x00);
+            if (run == 1) Arrays.fill(packet, (byte) 0xff);
+            if (run == 2) Arrays.fill(packet, (byte) 0x55);
+            unpacker.unpack(packet, 1, actual, 0);
+            final byte[] payload = Arrays.copyOfRange(packet, 1, packet.length);
+            assertArrayEquals("payload " + Arrays.toString(payload), legacy(bits, payload), actual);
+        }
+    }
+
+    private static int[] legacy(int bits, byte[] payload) {
+        switch (bits) {
+            case 10:
+                return LegacyUnpacking.bytesTo10bitInts(payload);
+            case 14:
+                return LegacyUnpacking.bytesTo14bitInts(payload);
+            default:
+                return LegacyUnpacking.bytesTo16bitInts(payload);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package de.uos.ikw.eegdroid.utilities;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares the transforms with a direct evaluation of the DFT sum, for power of two lengths and
+ * for the k * 225 point windows of the spectrogram, which go through Bluestein's algorithm.
+ */
+public class CustomFFTTest {
+
+    private static final int[] LENGTHS = {1, 2, 3, 8, 15, 32, 225, 256, 450, 512, 1024, 1125, 2048, 2250};
+    // largest error relative to the largest magnitude of the spectrum
+    private static final double TOLERANCE = 1e-13;
+    // largest absolute error for inputs in [-1, 1)
+    private static final double ABSOLUTE_TOLERANCE = 2.5e-13;
+    private static final int THREADS = 4;
+
+    @Test
+    public void complexTransformMatchesDft() {
+        final Random random = new Random(1);
+        for (int n : LENGTHS) {
+            final double[] re = new double[n];
+            final double[] im = new double[n];
+            for (int i = 0; i < n; i++) {
+                re[i] = random.nextGaussian();
+                im[i] = random.nextGaussian();
+            }
+            final double[][] expected = dft(re, im);
+            CustomFFT.fft(re, im);
+            assertClose(n, expected, re, im, n);
+        }
+    }
+
+    @Test
+    public void realTransformMatchesDft() {
+        final Random random = new Random(2);
+        for (int n : LENGTHS) {
+            final double[] x = new double[n];
+            for (int i = 0; i < n; i++) x[i] = random.nextGaussian();
+            final double[][] expected = dft(x, new double[n]);
+            final double[] re = new double[n / 2 + 1];
+            final double[] im = new double[n / 2 + 1];
+            CustomFFT.rfft(x, re, im);
+            assertClose(n, expected, re, im, n / 2 + 1);
+        }
+    }
+
+    @Test
+    public void spectrogramWidthsAreAccurate() {
+        final Random random = new Random(3);
+        for (int n = 3; n <= 1125; n = n < 225 ? n * 2 + 1 : n + 225) {
+            final double[] re = new double[n];
+            final double[] im = new double[n];
+            for (int i = 0; i < n; i++) re[i] = 2 * random.nextDouble() - 1;
+            final double[][] expected = dft(re, im);
+            CustomFFT.fft(re, im);
+            double maxError = 0;
+            for (int k = 0; k < n; k++) {
+                maxError = Math.max(maxError, Math.hypot(re[k] - expected[0][k], im[k] - expected[1][k]));
+            }
+            assertTrue(n + " points: absolute error " + maxError, maxError < ABSOLUTE_TOLERANCE);
+        }
+    }
+
+    @Test
+    public void threadsTransformTheSameLengthInParallel() throws Exception {
+        // a power of two and a Bluestein length, complex and real
+        final int[] lengths = {1024, 1125};
+        final Random random = new Random(4);
+        final double[][] signals = new double[lengths.length][];
+        final double[][][] expected = new double[lengths.length][][];
+        for (int l = 0; l < lengths.length; l++) {
+            signals[l] = new double[lengths[l]];
+            for (int i = 0; i < lengths[l]; i++) signals[l][i] = random.nextGaussian();
+            expected[l] = transform(signals[l]);
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                results.add(executor.submit((Callable<Boolean>) () -> {
+                    for (int run = 0; run < 200; run++) {
+                        final int l = run % lengths.length;
+                        final double[][] actual = transform(signals[l]);
+                        for (int i = 0; i < actual.length; i++) {
+                            assertArrayEquals(expected[l][i], actual[i], 0);
+                        }
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> result : results) assertTrue(result.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // complex and real transform of x, as {re, im, half re, half im}
+    private static double[][] transform(double[] x) {
+        final int n = x.length;
+        final double[] re = x.clone();
+        final double[] im = new double[n];
+        CustomFFT.fft(re, im);
+        final double[] halfRe = new double[n / 2 + 1];
+        final double[] halfIm = new double[n / 2 + 1];
+        CustomFFT.rfft(x, halfRe, halfIm);
+        return new double[][]{re, im, halfRe, halfIm};
+    }
+
+    // sum_j x[j] * exp(-2 pi i j k / n), the angle reduced modulo n to keep it exact
+    static double[][] dft(double[] re, double[] im) {
+        final int n = re.length;
+        final double[][] out = new double[2][n];
+        for (int k = 0; k < n; k++) {
+            double sumRe = 0;
+            double sumIm = 0;
+            for (int j = 0; j < n; j++) {
+                final double angle = -2 * Math.PI * ((long) j * k % n) / n;
+                final double c = Math.cos(angle);
+                final double s = Math.sin(angle);
+                sumRe += re[j] * c - im[j] * s;
+                sumIm += re[j] * s + im[j] * c;
+            }
+            out[0][k] = sumRe;
+            out[1][k] = sumIm;
+        }
+        return out;
+    }
+
+    static double relativeError(double[][] expected, double[] re, double[] im, int bins) {
+        double maxError = 0;
+        double maxMagnitude = 0;
+        for (int k = 0; k < bins; k++) {
+            maxError = Math.max(maxError, Math.hypot(re[k] - expected[0][k], im[k] - expected[1][k]));
+            maxMagnitude = Math.max(maxMagnitude, Math.hypot(expected[0][k], expected[1][k]));
+        }
+        return maxMagnitude > 0 ? maxError / maxMagnitude : maxError;
+    }
+
+    private static void assertClose(int n, double[][] expected, double[] re, double[] im, int bins) {
+        final double error = relativeError(expected, re, im, bins);
+        assertTrue(n + " points: relative error " + error, error < TOLERANCE);
+    }
+}
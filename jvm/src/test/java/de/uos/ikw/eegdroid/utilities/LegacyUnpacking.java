@@ -0,0 +1,83 @@
+package de.uos.ikw.eegdroid.utilities;
+
+/**
+ * The per-width decoders of TraumschreiberService before they were replaced by
+ * {@link BitUnpacker}, kept unchanged as reference for the tests and benchmarks.
+ */
+public class LegacyUnpacking {
+
+    private static final int nChannels = 24;
+
+    /***
+     * Turns an array of bytes into an array of 10bit ints.
+     * @param bytes
+     * @return int[] data
+     */
+    public static int[] bytesTo10bitInts(byte[] bytes) {
+        // Number of ints : bytes*8/10 (8bits per byte and 10bits per int)
+        int[] data = new int[bytes.length * 8 / 10];
+        /*
+         * Pattern repeats after 5 bytes. Therefore we process the bytes in chunks of 5.
+         * Processing 5 bytes yields 4 (10bit) ints.
+         */
+        int idx = 0;
+        for (int i = 0; i <= bytes.length - 5; i += 5) {
+            idx = i * 4 / 5;
+            data[idx] = ((bytes[i] & 0xff) << 2) | ((bytes[i + 1] & 0xc0) >>> 6);
+            data[idx + 1] = ((bytes[i + 1] & 0x3f) << 4) | ((bytes[i + 2] & 0xf0) >>> 4);
+            data[idx + 2] = ((bytes[i + 2] & 0x0f) << 6) | ((bytes[i + 3] & 0xfc) >>> 2);
+            data[idx + 3] = ((bytes[i + 3] & 0x03) << 8) | ((bytes[i + 4] & 0xff));
+        }
+        // Subtracting 1024 turns unsigned 10bit ints into their 2's complement
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] >= Math.pow(2, 9)) data[i] -= Math.pow(2, 10);
+        }
+        return data;
+    }
+
+    /***
+     * Turns an array of bytes into an array of 14bit ints.
+     * @param bytes
+     * @return int[] data
+     */
+    public static int[] bytesTo14bitInts(byte[] bytes) {
+        // Number of ints : bytes*8/14 (8bits per byte and 14bits per int)
+        int[] data = new int[nChannels];
+        /*
+         * Decoding pattern repeats after 7 Bytes or 4 14-bit-ints (=56bit).
+         * Therefore, we process the data in chunks of 4.
+         */
+        int idx = 0;
+        for (int i = 0; i <= data.length - 4; i += 4) {
+            idx = i * 7 / 4; //adjusted after every loop step : 7 after 1, 14 after 2, 21 after 3, etc.
+
+            data[i] = ((bytes[idx] & 0xff) << 6) | ((bytes[idx + 1] & 0xfc) >> 2);
+            data[i + 1] = ((bytes[idx + 1] & 0x03) << 12) | ((bytes[idx + 2] & 0xff) << 4) | ((bytes[idx + 3] & 0xf0) >> 4);
+            data[i + 2] = ((bytes[idx + 3] & 0x0f) << 10) | ((bytes[idx + 4] & 0xff) << 2) | ((bytes[idx + 5] & 0xc0) >> 6);
+            data[i + 3] = ((bytes[idx + 5] & 0x3f) << 8) | ((bytes[idx + 6] & 0xff));
+        }
+        // Subtracting 2^14 turns unsigned 14bit ints into their 2's complement
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] >= Math.pow(2, 13)) data[i] -= Math.pow(2, 14);
+        }
+        return data;
+    }
+
+    /***
+     * Turns an array of bytes into an array of 16bit ints.
+     * @param bytes
+     * @return int[] data
+     */
+    public static int[] bytesTo16bitInts(byte[] bytes) {
+        // Number of ints : bytes*8/14 (8bits per byte and 14bits per int)
+        int[] data = new int[nChannels];
+        for (int i = 0; i < nChannels; i++) {
+            data[i] = ((bytes[i * 2] & 0xff) << 8) | (bytes[i * 2 + 1] & 0xff);
+        }
+        // Subtracting 2^16 turns unsigned 16bit ints into their 2's complement
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] >= Math.pow(2, 15)) data[i] -= Math.pow(2, 16);
+        }
+        return data;
+    }
+}
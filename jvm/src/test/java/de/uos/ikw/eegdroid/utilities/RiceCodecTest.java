@@ -0,0 +1,63 @@
+package de.uos.ikw.eegdroid.utilities;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class RiceCodecTest {
+
+    @Test
+    public void zigzagMapsSmallMagnitudesToSmallCodes() {
+        final int[] values = {0, -1, 1, -2, 2, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        final int[] codes = {0, 1, 2, 3, 4, -2, -1};
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(codes[i], RiceCodec.zigzag(values[i]));
+            assertEquals(values[i], RiceCodec.unzigzag(codes[i]));
+        }
+    }
+
+    /**
+     * Small deltas with outliers up to the int range, which go through the escape, in several
+     * strided blocks that share one writer.
+     */
+    @Test
+    public void decodesWhatWasEncoded() {
+        final Random random = new Random(9);
+        final int stride = 3;
+        final int n = 128;
+        final int[][] blocks = new int[20][n * stride];
+        final RiceCodec.BitWriter out = new RiceCodec.BitWriter(16);
+        for (int b = 0; b < blocks.length; b++) {
+            for (int i = 0; i < n; i++) {
+                final int p = 1 + i * stride;
+                blocks[b][p] = random.nextInt(1 << (b % 12)) - (1 << (b % 12)) / 2;
+                if (random.nextInt(20) == 0) blocks[b][p] = random.nextInt();
+            }
+            blocks[b][1] = b % 2 == 0 ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+            RiceCodec.encode(blocks[b], 1, stride, n, out);
+        }
+        out.align();
+
+        final RiceCodec.BitReader in = new RiceCodec.BitReader(out.bytes(), 0, out.length());
+        for (int[] block : blocks) {
+            final int[] decoded = new int[n * stride];
+            RiceCodec.decode(in, decoded, 1, stride, n);
+            assertArrayEquals(block, decoded);
+        }
+    }
+
+    @Test
+    public void optimalKGivesTheShortestCode() {
+        final Random random = new Random(4);
+        final int[] values = new int[256];
+        for (int i = 0; i < values.length; i++) values[i] = (int) (random.nextGaussian() * 300);
+        final int k = RiceCodec.optimalK(values, 0, 1, values.length);
+        final long bits = RiceCodec.encodedBits(values, 0, 1, values.length, k);
+        for (int other = 0; other <= RiceCodec.MAX_K; other++) {
+            assertEquals(true, bits <= RiceCodec.encodedBits(values, 0, 1, values.length, other));
+        }
+    }
+}